@@ -35,4 +35,17 @@ public interface BlueprintConstants  {
     public static final String CONTAINER_VERSION_PROPERTY = "osgi.blueprint.container.version";
 
     public static final String XML_VALIDATION = "blueprint.aries.xml-validation";
+
+    /**
+     * Framework property giving the number of threads used by the blueprint extender to create
+     * blueprint containers.  Defaults to the number of available processors, with a minimum of 3.
+     */
+    public static final String EXTENDER_THREADS_PROPERTY = "org.apache.aries.blueprint.extender.threads";
+
+    /**
+     * Framework property which, when set to <code>true</code>, makes each blueprint container create
+     * the groups of eager components which do not depend on each other concurrently on the extender
+     * threads.  Defaults to <code>false</code>, where they are created one after the other.
+     */
+    public static final String PARALLEL_INSTANTIATION_PROPERTY = "org.apache.aries.blueprint.instantiation.parallel";
 }
@@ -46,6 +46,8 @@ import org.apache.aries.blueprint.ExtendedServiceReferenceMetadata;
 import org.apache.aries.blueprint.di.AbstractRecipe;
 import org.apache.aries.blueprint.di.CollectionRecipe;
 import org.apache.aries.blueprint.di.Recipe;
+import org.apache.aries.blueprint.proxy.InterfaceProxyGenerator;
+import org.apache.aries.blueprint.proxy.UnableToProxyException;
 import org.apache.aries.blueprint.utils.BundleDelegatingClassLoader;
 import org.apache.aries.blueprint.utils.ReflectionUtils;
 import org.osgi.framework.Bundle;
@@ -304,11 +306,26 @@ public abstract class AbstractServiceReferenceRecipe extends AbstractRecipe impl
                 proxyClass = (((ExtendedServiceReferenceMetadata) metadata).getProxyMethod() & ExtendedServiceReferenceMetadata.PROXY_METHOD_CLASSES) != 0;
             }
             List<Class> classes = loadAllClasses(Collections.singletonList(this.metadata.getInterface()));
-            if (!proxyClass) {
-                for (Class cl : classes) {
-                    if (!cl.isInterface()) {
+            boolean interfacesOnly = true;
+            for (Class cl : classes) {
+                if (!cl.isInterface()) {
+                    if (!proxyClass) {
                         throw new ComponentDefinitionException("A class " + cl.getName() + " was found in the interfaces list, but class proxying is not allowed by default. The ext:proxy-method='classes' attribute needs to be added to this service reference.");
                     }
+                    interfacesOnly = false;
+                }
+            }
+            // generated proxies only implement interfaces: with class proxying enabled, reference-lists
+            // may proxy the classes a service is registered under, which only cglib supports
+            if (interfacesOnly && !proxyClass) {
+                try {
+                    // Try to load an asm class (to make sure it's actually available)
+                    // then create the generated bytecode factory
+                    getClass().getClassLoader().loadClass("org.objectweb.asm.ClassWriter");
+                    proxyFactory = new AsmProxyFactory();
+                    return proxyFactory;
+                } catch (Throwable t) {
+                    LOGGER.debug("Unable to use asm for proxying service references, falling back to cglib or jdk proxies", t);
                 }
             }
             try {
@@ -621,6 +638,30 @@ public abstract class AbstractServiceReferenceRecipe extends AbstractRecipe impl
 
     }
 
+    /**
+     * A proxy factory generating a class per set of interfaces whose methods call the current
+     * service returned by the dispatcher directly, without going through reflection.
+     * Generated classes are cached and shared between references to the same interfaces.
+     * Falls back to jdk proxies for interfaces which are not public.
+     */
+    public static class AsmProxyFactory implements ProxyFactory {
+
+        private final ProxyFactory fallback = new JdkProxyFactory();
+
+        public Object createProxy(final ClassLoader classLoader, final Class[] classes, final Callable<Object> dispatcher) {
+            Class[] interfaces = getInterfaces(classes);
+            if (!InterfaceProxyGenerator.canProxy(interfaces)) {
+                return fallback.createProxy(classLoader, classes, dispatcher);
+            }
+            try {
+                return InterfaceProxyGenerator.newProxyInstance(classLoader, interfaces, dispatcher);
+            } catch (UnableToProxyException e) {
+                throw new ComponentDefinitionException("Unable to create proxy for " + e.getClassName(), e);
+            }
+        }
+
+    }
+
     public static class CgLibProxyFactory implements ProxyFactory {
 
         public Object createProxy(final ClassLoader classLoader, final Class[] classes, final Callable<Object> dispatcher) {
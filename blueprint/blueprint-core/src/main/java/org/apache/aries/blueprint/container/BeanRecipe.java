@@ -25,9 +25,8 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,6 +71,7 @@ public class BeanRecipe extends AbstractRecipe {
     private List<String> argTypes;
     private boolean reorderArguments;
     private final boolean allowsFieldInjection;
+    private volatile Resolution resolution;
 
 
     public BeanRecipe(String name, ExtendedBlueprintContainer blueprintContainer, Object type, boolean allowsFieldInjection) {
@@ -271,210 +271,119 @@ public class BeanRecipe extends AbstractRecipe {
     }
 
     private Map<Method, List<Object>> findMatchingMethods(Class type, String name, boolean instance, List<Object> args, List<ReifiedType> types) {
-        Map<Method, List<Object>> matches = new HashMap<Method, List<Object>>();
-        // Get constructors
-        List<Method> methods = new ArrayList<Method>(Arrays.asList(type.getMethods()));
-        // Discard any signature with wrong cardinality
-        for (Iterator<Method> it = methods.iterator(); it.hasNext();) {
-            Method mth = it.next();
-            if (!mth.getName().equals(name)) {
-                it.remove();
-            } else if (mth.getParameterTypes().length != args.size()) {
-                it.remove();
-            } else if (instance ^ !Modifier.isStatic(mth.getModifiers())) {
-                it.remove();
-            } else if (mth.isBridge()) {
-                it.remove();
-            }
-        }
-        // Find a direct match with assignment
-        if (matches.size() != 1) {
-            Map<Method, List<Object>> nmatches = new HashMap<Method, List<Object>>();
-            for (Method mth : methods) {
-                boolean found = true;
-                List<Object> match = new ArrayList<Object>();
-                for (int i = 0; i < args.size(); i++) {
-                    ReifiedType argType = new GenericType(mth.getGenericParameterTypes()[i]);
-                    if (types.get(i) != null && !argType.getRawClass().equals(types.get(i).getRawClass())) {
-                        found = false;
-                        break;
-                    }
-                    if (!AggregateConverter.isAssignable(args.get(i), argType)) {
-                        found = false;
-                        break;
-                    }
-                    try {
-                        match.add(convert(args.get(i), mth.getGenericParameterTypes()[i]));
-                    } catch (Throwable t) {
-                        found = false;
-                        break;
-                    }
-                }
-                if (found) {
-                    nmatches.put(mth, match);
-                }
-            }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
-            }
+        Map<Method, List<Object>> resolved = matchResolution(type, args, types);
+        if (resolved != null) {
+            return resolved;
         }
-        // Find a direct match with conversion
-        if (matches.size() != 1) {
-            Map<Method, List<Object>> nmatches = new HashMap<Method, List<Object>>();
-            for (Method mth : methods) {
-                boolean found = true;
-                List<Object> match = new ArrayList<Object>();
-                for (int i = 0; i < args.size(); i++) {
-                    ReifiedType argType = new GenericType(mth.getGenericParameterTypes()[i]);
-                    if (types.get(i) != null && !argType.getRawClass().equals(types.get(i).getRawClass())) {
-                        found = false;
-                        break;
-                    }
-                    try {
-                        Object val = convert(args.get(i), argType);
-                        match.add(val);
-                    } catch (Throwable t) {
-                        found = false;
-                        break;
-                    }
-                }
-                if (found) {
-                    nmatches.put(mth, match);
-                }
+        // Discard any signature with wrong name or cardinality
+        Map<Method, Type[]> methods = new HashMap<Method, Type[]>();
+        for (Method mth : type.getMethods()) {
+            if (mth.getName().equals(name)
+                    && mth.getParameterTypes().length == args.size()
+                    && instance == !Modifier.isStatic(mth.getModifiers())
+                    && !mth.isBridge()) {
+                methods.put(mth, mth.getGenericParameterTypes());
             }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
+        }
+        return findMatches(type, methods, args, types);
+    }
+
+    private Map<Constructor, List<Object>> findMatchingConstructors(Class type, List<Object> args, List<ReifiedType> types) {
+        Map<Constructor, List<Object>> resolved = matchResolution(type, args, types);
+        if (resolved != null) {
+            return resolved;
+        }
+        // Discard any signature with wrong cardinality
+        Map<Constructor, Type[]> constructors = new HashMap<Constructor, Type[]>();
+        for (Constructor cns : type.getConstructors()) {
+            if (cns.getParameterTypes().length == args.size()) {
+                constructors.put(cns, cns.getGenericParameterTypes());
             }
         }
-        // Start reordering with assignment
-        if (matches.size() != 1 && reorderArguments && args.size() > 1) {
-            Map<Method, List<Object>> nmatches = new HashMap<Method, List<Object>>();
-            for (Method mth : methods) {
-                ArgumentMatcher matcher = new ArgumentMatcher(mth.getGenericParameterTypes(), false);
-                List<Object> match = matcher.match(args, types);
-                if (match != null) {
-                    nmatches.put(mth, match);
-                }
+        return findMatches(type, constructors, args, types);
+    }
+
+    /**
+     * Try each matching strategy in turn until a single candidate is found.  If there is
+     * one, and arguments of the same classes would always resolve to it, it is kept to be
+     * used directly the next time the bean is instantiated.
+     */
+    private <T> Map<T, List<Object>> findMatches(Class type, Map<T, Type[]> candidates, List<Object> args, List<ReifiedType> types) {
+        Map<T, List<Object>> matches = new HashMap<T, List<Object>>();
+        Matching matching = null;
+        for (Matching m : Matching.values()) {
+            if (matches.size() == 1) {
+                break;
             }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
+            if (m.reorder && (!reorderArguments || args.size() <= 1)) {
+                break;
             }
-        }
-        // Start reordering with conversion
-        if (matches.size() != 1 && reorderArguments && args.size() > 1) {
-            Map<Method, List<Object>> nmatches = new HashMap<Method, List<Object>>();
-            for (Method mth : methods) {
-                ArgumentMatcher matcher = new ArgumentMatcher(mth.getGenericParameterTypes(), true);
-                List<Object> match = matcher.match(args, types);
+            Map<T, List<Object>> nmatches = new HashMap<T, List<Object>>();
+            for (Map.Entry<T, Type[]> candidate : candidates.entrySet()) {
+                List<Object> match = match(candidate.getValue(), args, types, m);
                 if (match != null) {
-                    nmatches.put(mth, match);
+                    nmatches.put(candidate.getKey(), match);
                 }
             }
             if (nmatches.size() > 0) {
                 matches = nmatches;
+                matching = m;
             }
         }
+        if (matches.size() == 1 && (matching == Matching.Assign
+                || (matching == Matching.Convert && candidates.size() == 1))) {
+            // Assignability only depends on the classes of the arguments, but whether they
+            // convert depends on their values: other candidates may match other values
+            T member = matches.keySet().iterator().next();
+            resolution = new Resolution(type, args, member, candidates.get(member), matching);
+        }
         return matches;
     }
 
-    private Map<Constructor, List<Object>> findMatchingConstructors(Class type, List<Object> args, List<ReifiedType> types) {
-        Map<Constructor, List<Object>> matches = new HashMap<Constructor, List<Object>>();
-        // Get constructors
-        List<Constructor> constructors = new ArrayList<Constructor>(Arrays.asList(type.getConstructors()));
-        // Discard any signature with wrong cardinality
-        for (Iterator<Constructor> it = constructors.iterator(); it.hasNext();) {
-            if (it.next().getParameterTypes().length != args.size()) {
-                it.remove();
-            }
-        }
-        // Find a direct match with assignment
-        if (matches.size() != 1) {
-            Map<Constructor, List<Object>> nmatches = new HashMap<Constructor, List<Object>>();
-            for (Constructor cns : constructors) {
-                boolean found = true;
-                List<Object> match = new ArrayList<Object>();
-                for (int i = 0; i < args.size(); i++) {
-                    ReifiedType argType = new GenericType(cns.getGenericParameterTypes()[i]);
-                    if (types.get(i) != null && !argType.getRawClass().equals(types.get(i).getRawClass())) {
-                        found = false;
-                        break;
-                    }
-                    if (!AggregateConverter.isAssignable(args.get(i), argType)) {
-                        found = false;
-                        break;
-                    }
-                    try {
-                        match.add(convert(args.get(i), cns.getGenericParameterTypes()[i]));
-                    } catch (Throwable t) {
-                        found = false;
-                        break;
-                    }
-                }
-                if (found) {
-                    nmatches.put(cns, match);
-                }
-            }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
-            }
+    /**
+     * Match the arguments against the constructor or factory method resolved for a previous
+     * instantiation, if it was resolved for arguments of the same classes.
+     *
+     * @return the match or <code>null</code> if a full resolution is needed
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Map<T, List<Object>> matchResolution(Class type, List<Object> args, List<ReifiedType> types) {
+        Resolution r = resolution;
+        if (r == null || !r.appliesTo(type, args)) {
+            return null;
         }
-        // Find a direct match with conversion
-        if (matches.size() != 1) {
-            Map<Constructor, List<Object>> nmatches = new HashMap<Constructor, List<Object>>();
-            for (Constructor cns : constructors) {
-                boolean found = true;
-                List<Object> match = new ArrayList<Object>();
-                for (int i = 0; i < args.size(); i++) {
-                    ReifiedType argType = new GenericType(cns.getGenericParameterTypes()[i]);
-                    if (types.get(i) != null && !argType.getRawClass().equals(types.get(i).getRawClass())) {
-                        found = false;
-                        break;
-                    }
-                    try {
-                        Object val = convert(args.get(i), argType);
-                        match.add(val);
-                    } catch (Throwable t) {
-                        found = false;
-                        break;
-                    }
-                }
-                if (found) {
-                    nmatches.put(cns, match);
-                }
-            }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
-            }
+        List<Object> match = match(r.parameterTypes, args, types, r.matching);
+        if (match == null) {
+            return null;
         }
-        // Start reordering with assignment
-        if (matches.size() != 1 && reorderArguments && arguments.size() > 1) {
-            Map<Constructor, List<Object>> nmatches = new HashMap<Constructor, List<Object>>();
-            for (Constructor cns : constructors) {
-                ArgumentMatcher matcher = new ArgumentMatcher(cns.getGenericParameterTypes(), false);
-                List<Object> match = matcher.match(args, types);
-                if (match != null) {
-                    nmatches.put(cns, match);
-                }
-            }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
-            }
+        return Collections.singletonMap((T) r.member, match);
+    }
+
+    /**
+     * Match the arguments against the parameter types of a constructor or method.
+     *
+     * @return the converted arguments or <code>null</code> if they do not match
+     */
+    private List<Object> match(Type[] parameterTypes, List<Object> args, List<ReifiedType> types, Matching matching) {
+        if (matching.reorder) {
+            return new ArgumentMatcher(parameterTypes, matching.convert).match(args, types);
         }
-        // Start reordering with conversion
-        if (matches.size() != 1 && reorderArguments && arguments.size() > 1) {
-            Map<Constructor, List<Object>> nmatches = new HashMap<Constructor, List<Object>>();
-            for (Constructor cns : constructors) {
-                ArgumentMatcher matcher = new ArgumentMatcher(cns.getGenericParameterTypes(), true);
-                List<Object> match = matcher.match(args, types);
-                if (match != null) {
-                    nmatches.put(cns, match);
-                }
+        List<Object> match = new ArrayList<Object>();
+        for (int i = 0; i < args.size(); i++) {
+            ReifiedType argType = new GenericType(parameterTypes[i]);
+            if (types.get(i) != null && !argType.getRawClass().equals(types.get(i).getRawClass())) {
+                return null;
             }
-            if (nmatches.size() > 0) {
-                matches = nmatches;
+            if (!matching.convert && !AggregateConverter.isAssignable(args.get(i), argType)) {
+                return null;
+            }
+            try {
+                match.add(convert(args.get(i), argType));
+            } catch (Throwable t) {
+                return null;
             }
         }
-        return matches;
+        return match;
     }
 
     /**
@@ -809,6 +718,61 @@ public class BeanRecipe extends AbstractRecipe {
     
     private static Object UNMATCHED = new Object();
 
+    /**
+     * The strategies used to match arguments, in the order they are tried.
+     */
+    private enum Matching {
+        Assign(false, false),
+        Convert(false, true),
+        ReorderAssign(true, false),
+        ReorderConvert(true, true);
+
+        private final boolean reorder;
+        private final boolean convert;
+
+        private Matching(boolean reorder, boolean convert) {
+            this.reorder = reorder;
+            this.convert = convert;
+        }
+    }
+
+    /**
+     * A constructor or factory method resolved for arguments of given classes.
+     */
+    private static class Resolution {
+
+        private final Class type;
+        private final Class[] argClasses;
+        private final Object member;
+        private final Type[] parameterTypes;
+        private final Matching matching;
+
+        public Resolution(Class type, List<Object> args, Object member, Type[] parameterTypes, Matching matching) {
+            this.type = type;
+            this.argClasses = new Class[args.size()];
+            for (int i = 0; i < argClasses.length; i++) {
+                argClasses[i] = args.get(i) != null ? args.get(i).getClass() : null;
+            }
+            this.member = member;
+            this.parameterTypes = parameterTypes;
+            this.matching = matching;
+        }
+
+        public boolean appliesTo(Class type, List<Object> args) {
+            if (this.type != type || argClasses.length != args.size()) {
+                return false;
+            }
+            for (int i = 0; i < argClasses.length; i++) {
+                Object arg = args.get(i);
+                if (argClasses[i] != (arg != null ? arg.getClass() : null)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
     private class ArgumentMatcher {
 
         private List<TypeEntry> entries;
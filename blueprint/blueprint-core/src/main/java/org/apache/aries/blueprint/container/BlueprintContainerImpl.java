@@ -36,6 +36,7 @@ import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -120,6 +121,9 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
     private final ComponentDefinitionRegistryImpl componentDefinitionRegistry;
     private final AggregateConverter converter;
     private final ScheduledExecutorService executors;
+    private final ValidationCache validationCache;
+    private String cacheKey;
+    private ParsedMetadata parsedMetadata;
     private Set<URI> namespaces;
     private State state = State.Unknown;
     private NamespaceHandlerRegistry.NamespaceHandlerSet handlerSet;
@@ -139,9 +143,16 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
     private List<ServiceRecipe> services;
     private AccessControlContext accessControlContext;
     private final IdSpace tempRecipeIdSpace = new IdSpace();
+    private final Map<String, Long> phaseTimings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    private long startTime;
     
     public BlueprintContainerImpl(BundleContext bundleContext, Bundle extenderBundle, BlueprintListener eventDispatcher, NamespaceHandlerRegistry handlers, ScheduledExecutorService executors, List<Object> pathList) {
+        this(bundleContext, extenderBundle, eventDispatcher, handlers, executors, pathList, null);
+    }
+
+    public BlueprintContainerImpl(BundleContext bundleContext, Bundle extenderBundle, BlueprintListener eventDispatcher, NamespaceHandlerRegistry handlers, ScheduledExecutorService executors, List<Object> pathList, ValidationCache validationCache) {
         this.bundleContext = bundleContext;
+        this.validationCache = validationCache;
         this.extenderBundle = extenderBundle;
         this.eventDispatcher = eventDispatcher;
         this.handlers = handlers;
@@ -231,11 +242,25 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
                 LOGGER.debug("Running blueprint container for bundle {} in state {}", bundleContext.getBundle().getSymbolicName(), state);
                 switch (state) {
                     case Unknown:
+                        startTime = System.currentTimeMillis();
                         checkDirectives();
                         eventDispatcher.blueprintEvent(new BlueprintEvent(BlueprintEvent.CREATING, getBundleContext().getBundle(), getExtenderBundle()));
-                        parser = new Parser();
-                        parser.parse(getResources());
-                        namespaces = parser.getNamespaces();
+                        List<URL> resources = getResources();
+                        if (validationCache != null) {
+                            // Only bundles without custom namespaces have their metadata cached
+                            cacheKey = validationCache.getKey(bundleContext.getBundle(), resources, null);
+                            parsedMetadata = validationCache.getParsedMetadata(bundleContext.getBundle(), cacheKey, xmlValidation);
+                        }
+                        if (parsedMetadata != null) {
+                            LOGGER.debug("Using cached metadata for bundle {}", bundleContext.getBundle().getSymbolicName());
+                            namespaces = Collections.emptySet();
+                        } else {
+                            parser = new Parser();
+                            long t0 = System.currentTimeMillis();
+                            parser.parse(resources);
+                            recordPhase("parse", t0);
+                            namespaces = parser.getNamespaces();
+                        }
                         handlerSet = handlers.getNamespaceHandlers(namespaces, getBundleContext().getBundle());
                         handlerSet.addListener(this);
                         state = State.WaitForNamespaceHandlers;
@@ -257,10 +282,26 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
                         componentDefinitionRegistry.registerComponentDefinition(new PassThroughMetadataImpl("blueprintBundle", bundleContext.getBundle()));
                         componentDefinitionRegistry.registerComponentDefinition(new PassThroughMetadataImpl("blueprintBundleContext", bundleContext));
                         componentDefinitionRegistry.registerComponentDefinition(new PassThroughMetadataImpl("blueprintConverter", converter));
-                        if (xmlValidation) {
-                            parser.validate(handlerSet.getSchema());
+                        if (parsedMetadata != null) {
+                            long t2 = System.currentTimeMillis();
+                            parsedMetadata.populate(componentDefinitionRegistry);
+                            recordPhase("populate", t2);
+                            parsedMetadata = null;
+                        } else {
+                            if (xmlValidation) {
+                                long t1 = System.currentTimeMillis();
+                                validate();
+                                recordPhase("validate", t1);
+                            }
+                            long t2 = System.currentTimeMillis();
+                            parser.populate(handlerSet, componentDefinitionRegistry);
+                            recordPhase("populate", t2);
+                            if (validationCache != null && namespaces.isEmpty()) {
+                                validationCache.setParsedMetadata(bundleContext.getBundle(), cacheKey, xmlValidation, ParsedMetadata.capture(componentDefinitionRegistry));
+                            }
+                            // the documents are no longer needed, release them
+                            parser = null;
                         }
-                        parser.populate(handlerSet, componentDefinitionRegistry);
                         state = State.Populated;
                         break;
                     }
@@ -295,8 +336,10 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
                         state = State.InitialReferencesSatisfied;
                         break;
                     case InitialReferencesSatisfied:
+                        long t3 = System.currentTimeMillis();
                         processTypeConverters();
                         processProcessors();
+                        recordPhase("processors", t3);
                         state = State.WaitForInitialReferences2;
                         break;
                     case WaitForInitialReferences2:
@@ -311,8 +354,10 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
                         break;
                     case Create:
                         timeoutFuture.cancel(false);
+                        long t4 = System.currentTimeMillis();
                         registerServices();
                         instantiateEagerComponents();
+                        recordPhase("instantiate", t4);
 
                         // Register the BlueprintContainer in the OSGi registry
                         if (registration == null) {
@@ -322,6 +367,8 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
                             props.put(BlueprintConstants.CONTAINER_VERSION_PROPERTY,
                                       JavaUtils.getBundleVersion(bundleContext.getBundle()));
                             registration = registerService(new String [] { BlueprintContainer.class.getName() }, this, props);
+                            recordPhase("total", startTime);
+                            LOGGER.debug("Blueprint container for bundle {} created, phase timings (ms): {}", bundleContext.getBundle().getSymbolicName(), phaseTimings);
                             eventDispatcher.blueprintEvent(new BlueprintEvent(BlueprintEvent.CREATED, getBundleContext().getBundle(), getExtenderBundle()));
                             state = State.Created;
                         }
@@ -344,6 +391,38 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
         }
     }
 
+    private void validate() throws Exception {
+        String key = null;
+        if (validationCache != null) {
+            key = validationCache.getKey(bundleContext.getBundle(), getResources(), handlerSet);
+            if (validationCache.isValidated(bundleContext.getBundle(), key)) {
+                LOGGER.debug("Skipping xml validation for bundle {}: content has already been validated", bundleContext.getBundle().getSymbolicName());
+                return;
+            }
+        }
+        parser.validate(handlerSet.getSchema());
+        // without custom namespaces, the entry is written along with the metadata once populated
+        if (validationCache != null && !namespaces.isEmpty()) {
+            validationCache.setValidated(bundleContext.getBundle(), key);
+        }
+    }
+
+    private void recordPhase(String phase, long start) {
+        phaseTimings.put(phase, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the time spent, in milliseconds, in each of the creation phases of this
+     * container (parse, validate, populate, processors, instantiate), along with the
+     * total time between the start of the creation and the registration of the container.
+     * Time spent waiting for namespace handlers or dependencies is only part of the total.
+     */
+    public Map<String, Long> getPhaseTimings() {
+        synchronized (phaseTimings) {
+            return new LinkedHashMap<String, Long>(phaseTimings);
+        }
+    }
+
     private List<URL> getResources() throws FileNotFoundException {
         List<URL> resources = new ArrayList<URL>();
         for (Object path : pathList) {
@@ -620,8 +699,9 @@ public class BlueprintContainerImpl implements ExtendedBlueprintContainer, Names
             }
         }
         LOGGER.debug("Instantiating components: {}", components);
+        boolean parallel = Boolean.parseBoolean(bundleContext.getProperty(BlueprintConstants.PARALLEL_INSTANTIATION_PROPERTY));
         try {
-            repository.createAll(components);
+            repository.createAll(components, parallel ? executors : null);
         } catch (ComponentDefinitionException e) {
             throw e;
         } catch (Throwable t) {
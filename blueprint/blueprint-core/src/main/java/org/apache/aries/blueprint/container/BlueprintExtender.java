@@ -42,6 +42,7 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
@@ -63,6 +64,8 @@ public class BlueprintExtender implements BundleActivator, SynchronousBundleList
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BlueprintExtender.class);
 
+    private static final int DEFAULT_THREADS = 3;
+
     private BundleContext context;
     private ScheduledExecutorService executors;
     private Map<Bundle, BlueprintContainerImpl> containers;
@@ -70,15 +73,28 @@ public class BlueprintExtender implements BundleActivator, SynchronousBundleList
     private NamespaceHandlerRegistry handlers;
     private BundleTracker bt;
     private ServiceRegistration parserServiceReg;
+    private ValidationCache validationCache;
+    private BundleListener uninstallListener;
 
     public void start(BundleContext context) {
         LOGGER.debug("Starting blueprint extender...");
 
         this.context = context;
         handlers = new NamespaceHandlerRegistryImpl(context);
-        executors = Executors.newScheduledThreadPool(3, new BlueprintThreadFactory("Blueprint Extender"));
+        executors = Executors.newScheduledThreadPool(getThreadPoolSize(), new BlueprintThreadFactory("Blueprint Extender"));
         eventDispatcher = new BlueprintEventDispatcher(context, executors);
         containers = new HashMap<Bundle, BlueprintContainerImpl>();
+        validationCache = new ValidationCache(context.getDataFile("validation"), context.getBundle());
+        // The bundle tracker does not see uninstalled bundles, so listen for them separately
+        // to remove their validation cache entries
+        uninstallListener = new BundleListener() {
+            public void bundleChanged(BundleEvent event) {
+                if (event.getType() == BundleEvent.UNINSTALLED) {
+                    validationCache.invalidate(event.getBundle());
+                }
+            }
+        };
+        context.addBundleListener(uninstallListener);
 
         ServiceReference sr = this.context.getServiceReference("org.osgi.service.framework.CompositeBundleFactory");
         if (sr == null) {
@@ -97,6 +113,28 @@ public class BlueprintExtender implements BundleActivator, SynchronousBundleList
         LOGGER.debug("Blueprint extender started");
     }
 
+    /**
+     * Containers are created in parallel on the extender thread pool, so size it to the
+     * machine unless configured explicitly.
+     */
+    private int getThreadPoolSize() {
+        int size = Math.max(DEFAULT_THREADS, Runtime.getRuntime().availableProcessors());
+        String value = context.getProperty(BlueprintConstants.EXTENDER_THREADS_PROPERTY);
+        if (value != null) {
+            try {
+                size = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid value for " + BlueprintConstants.EXTENDER_THREADS_PROPERTY + ": " + value);
+            }
+        }
+        if (size < 1) {
+            LOGGER.warn("Invalid value for " + BlueprintConstants.EXTENDER_THREADS_PROPERTY + ": " + value);
+            size = DEFAULT_THREADS;
+        }
+        LOGGER.debug("Using {} threads for the blueprint extender", size);
+        return size;
+    }
+
     /**
      * this method checks the initial bundle that are installed/active before
      * bundle tracker is opened.  
@@ -124,6 +162,7 @@ public class BlueprintExtender implements BundleActivator, SynchronousBundleList
         if (bt != null) {
         	bt.close();
         }
+        context.removeBundleListener(uninstallListener);
         
         parserServiceReg.unregister();
 
@@ -247,7 +286,7 @@ public class BlueprintExtender implements BundleActivator, SynchronousBundleList
                 // ServiceReference, or just not do this check, which could be quite harmful.
                 boolean compatible = isCompatible(bundle);
                 if (compatible) {
-                    final BlueprintContainerImpl blueprintContainer = new BlueprintContainerImpl(bundle.getBundleContext(), context.getBundle(), eventDispatcher, handlers, executors, pathList);
+                    final BlueprintContainerImpl blueprintContainer = new BlueprintContainerImpl(bundle.getBundleContext(), context.getBundle(), eventDispatcher, handlers, executors, pathList, validationCache);
                     containers.put(bundle, blueprintContainer);
                     blueprintContainer.schedule();
                 } else {
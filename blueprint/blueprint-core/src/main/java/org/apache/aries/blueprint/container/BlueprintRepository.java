@@ -29,8 +29,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.aries.blueprint.ExtendedBlueprintContainer;
 import org.apache.aries.blueprint.di.CircularDependencyException;
@@ -64,9 +70,15 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     private final Map<String, Recipe> recipes = new ConcurrentHashMap<String, Recipe>();
 
     /**
-     * Contains object instances
+     * Contains object instances, or their pending creation
      */
-    private final Map<String, Object> instances = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+
+    /**
+     * Contains service objects, or their pending creation.  They are kept apart from
+     * the component instances so that they are not visible as components.
+     */
+    private final ConcurrentMap<String, Instance> serviceObjects = new ConcurrentHashMap<String, Instance>();
 
     /**
      * Keep track of creation order
@@ -74,27 +86,38 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     private final List<String> creationOrder = new CopyOnWriteArrayList<String>();
 
     /**
-     * Lock for object instance creation
+     * Container wide lock, no longer used for object instance creation
      */
     private final Object instanceLock = new Object();
 
     /**
-     * Contains partial objects.
+     * Contains partial objects.  They are only visible to the thread creating them,
+     * unless needed to break a cycle between threads.
      */
     private final Map<String, Object> partialObjects = new ConcurrentHashMap<String, Object>();
 
     /**
-     * Before each recipe is executed it is pushed on the stack.  The
-     * stack is used to detect circular dependencies.
+     * The pending creation each thread is waiting for, used to detect cycles between threads.
      */
-    private final LinkedList<Recipe> stack = new LinkedList<Recipe>();
+    private final Map<Thread, Instance> waiting = new ConcurrentHashMap<Thread, Instance>();
+
+    /**
+     * Before each recipe is executed it is pushed on the stack of the current thread.
+     * The stack is used to detect circular dependencies.
+     */
+    private final ThreadLocal<LinkedList<Recipe>> stack = new ThreadLocal<LinkedList<Recipe>>() {
+        protected LinkedList<Recipe> initialValue() {
+            return new LinkedList<Recipe>();
+        }
+    };
     
     public BlueprintRepository(ExtendedBlueprintContainer container) {
         blueprintContainer = container;
     }
     
     public Object getInstance(String name) {
-        return instances.get(name);
+        Instance instance = instances.get(name);
+        return instance != null ? instance.getNow() : null;
     }
 
     public Recipe getRecipe(String name) {
@@ -109,15 +132,17 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     }
 
     public void putRecipe(String name, Recipe recipe) {
-        if (instances.get(name) != null) {
-            throw new ComponentDefinitionException("Name " + name + " is already registered to instance " + instances.get(name));
+        Object instance = getInstance(name);
+        if (instance != null) {
+            throw new ComponentDefinitionException("Name " + name + " is already registered to instance " + instance);
         }
         recipes.put(name, recipe);
     }
     
     public void removeRecipe(String name) {
-        if (instances.get(name) != null)
-            throw new ComponentDefinitionException("Name " + name + " is already instanciated as " + instances.get(name) + " and cannot be removed.");
+        Object instance = getInstance(name);
+        if (instance != null)
+            throw new ComponentDefinitionException("Name " + name + " is already instanciated as " + instance + " and cannot be removed.");
 
         recipes.remove(name);
     }
@@ -155,6 +180,63 @@ public class BlueprintRepository implements Repository, ExecutionContext {
         }
     }
 
+    /**
+     * Create the given components, creating the groups of components which do not depend on each
+     * other concurrently on the given executor.  The calling thread creates every group no thread
+     * of the executor has started, so it never waits for work queued behind its own task.
+     *
+     * @param executor the executor to use, or null to create the components on the calling thread
+     */
+    public Map<String, Object> createAll(Collection<String> names, Executor executor) throws ComponentDefinitionException {
+        List<List<String>> groups = executor != null ? new DependencyGraph(this).getIndependentGroups(names)
+                                                     : Collections.<List<String>>emptyList();
+        if (groups.size() < 2) {
+            return createAll(names);
+        }
+        LOGGER.debug("Creating independent groups of components concurrently: {}", groups);
+        List<FutureTask<Map<String, Object>>> tasks = new ArrayList<FutureTask<Map<String, Object>>>();
+        for (final List<String> group : groups) {
+            tasks.add(new FutureTask<Map<String, Object>>(new Callable<Map<String, Object>>() {
+                public Map<String, Object> call() throws Exception {
+                    return createAll(group);
+                }
+            }));
+        }
+        for (FutureTask<Map<String, Object>> task : tasks.subList(1, tasks.size())) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // run below by the calling thread
+            }
+        }
+        for (FutureTask<Map<String, Object>> task : tasks) {
+            // does nothing if the task has already been started by the executor
+            task.run();
+        }
+        Map<String, Object> objects = new LinkedHashMap<String, Object>();
+        Throwable failure = null;
+        for (FutureTask<Map<String, Object>> task : tasks) {
+            try {
+                objects.putAll(task.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComponentDefinitionException("Interrupted while creating components " + names, e);
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new ComponentDefinitionException("Unable to create components " + names, failure);
+        }
+        return objects;
+    }
+
     public <T> List<T> getAllRecipes(Class<T> clazz, String... names) {
         List<T> recipes = new ArrayList<T>();
         for (Recipe r : getAllRecipes(names)) {
@@ -205,23 +287,20 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     }
 
     private Map<String, Object> createInstances(Collection<String> names) {
-        // We need to synchronize recipe creation on the repository
-        // so that we don't end up with multiple threads creating the
-        // same instance at the same time.
-        synchronized (instanceLock) {
-            DependencyGraph graph = new DependencyGraph(this);
-            HashMap<String, Object> objects = new LinkedHashMap<String, Object>();
-            for (Map.Entry<String, Recipe> entry : graph.getSortedRecipes(names).entrySet()) {
-                String name = entry.getKey();
-                Object object = instances.get(name);
-                if (object == null) {
-                    Recipe recipe = entry.getValue();
-                    object = recipe.create();
-                }
-                objects.put(name, object);
+        // No container wide lock is needed here: each singleton is created
+        // by a single thread, see createFullObject()
+        DependencyGraph graph = new DependencyGraph(this);
+        HashMap<String, Object> objects = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Recipe> entry : graph.getSortedRecipes(names).entrySet()) {
+            String name = entry.getKey();
+            Object object = getInstance(name);
+            if (object == null) {
+                Recipe recipe = entry.getValue();
+                object = recipe.create();
             }
-            return objects;
+            objects.put(name, object);
         }
+        return objects;
     }
         
     public void validate() {
@@ -292,10 +371,11 @@ public class BlueprintRepository implements Repository, ExecutionContext {
         for (String name : order) {
             Recipe recipe = recipes.get(name);
             if (recipe != null) {
-                recipe.destroy(instances.get(name));
+                recipe.destroy(getInstance(name));
             }
         }
         instances.clear();
+        serviceObjects.clear();
         creationOrder.clear();
     }
 
@@ -304,6 +384,7 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     }
 
     public void push(Recipe recipe) {
+        LinkedList<Recipe> stack = this.stack.get();
         if (stack.contains(recipe)) {
             ArrayList<Recipe> circularity = new ArrayList<Recipe>(stack.subList(stack.indexOf(recipe), stack.size()));
 
@@ -324,11 +405,11 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     }
 
     public Recipe pop() {
-        return stack.removeLast();
+        return stack.get().removeLast();
     }
 
     public LinkedList<Recipe> getStack() {
-        return new LinkedList<Recipe>(stack);
+        return new LinkedList<Recipe>(stack.get());
     }
 
     public boolean containsObject(String name) {
@@ -344,13 +425,84 @@ public class BlueprintRepository implements Repository, ExecutionContext {
         return object;
     }
 
-    public void addFullObject(String name, Object object) {
-        if (instances.get(name) != null) {
-            throw new ComponentDefinitionException("Name " + name + " is already registered to instance " + instances.get(name));
+    public Object createFullObject(String name, Callable<Object> factory) throws ComponentDefinitionException {
+        Instance instance = new Instance(name, factory, true);
+        Instance existing = register(instances, instance);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            instance.run();
+        } finally {
+            partialObjects.remove(name);
+        }
+        if (!instance.isFailed()) {
+            creationOrder.add(name);
+        }
+        return instance.getResult();
+    }
+
+    public Object createServiceObject(String name, Callable<Object> factory) throws ComponentDefinitionException {
+        Instance instance = new Instance(name, factory, false);
+        Instance existing = register(serviceObjects, instance);
+        if (existing != null) {
+            return await(existing);
+        }
+        instance.run();
+        return instance.getResult();
+    }
+
+    /**
+     * Register a pending creation, unless another one is already registered.
+     *
+     * @return the creation already registered, or <code>null</code> if the given one has been registered
+     */
+    private static Instance register(ConcurrentMap<String, Instance> map, Instance instance) {
+        String name = instance.name;
+        Instance existing = map.putIfAbsent(name, instance);
+        // a failed creation can be attempted again
+        while (existing != null && existing.isFailed()) {
+            existing = map.replace(name, existing, instance) ? null : map.putIfAbsent(name, instance);
         }
-        instances.put(name, object);
-        creationOrder.add(name); 
-        partialObjects.remove(name);
+        return existing;
+    }
+
+    /**
+     * Wait for the creation of an instance by another thread.  If that thread is itself
+     * waiting, directly or not, for an instance being created by the current thread, waiting
+     * would dead lock, so the partial object is returned instead if there is one, the same
+     * way a cycle is broken when it happens on a single thread.
+     */
+    private Object await(Instance instance) throws ComponentDefinitionException {
+        if (instance.isDone()) {
+            return instance.getResult();
+        }
+        Thread current = Thread.currentThread();
+        waiting.put(current, instance);
+        try {
+            if (isWaitingFor(instance, current)) {
+                // service objects have no partial object, only components do
+                Object partial = instance.component ? partialObjects.get(instance.name) : null;
+                if (partial != null) {
+                    return partial;
+                }
+                throw new CircularDependencyException("Concurrent creation of " + instance.name + " would dead lock", getStack());
+            }
+            return instance.getResult();
+        } finally {
+            waiting.remove(current);
+        }
+    }
+
+    private boolean isWaitingFor(Instance instance, Thread thread) {
+        Set<Instance> visited = new HashSet<Instance>();
+        while (instance != null && !instance.isDone() && visited.add(instance)) {
+            if (instance.owner == thread) {
+                return true;
+            }
+            instance = waiting.get(instance.owner);
+        }
+        return false;
     }
     
     public void addPartialObject(String name, Object object) {
@@ -362,11 +514,15 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     }
     
     public Object getPartialObject(String name) {
-        Object obj = partialObjects.get(name);
-        if (obj == null) {
-            obj = getInstance(name);
+        Instance instance = instances.get(name);
+        if (instance == null) {
+            return null;
+        }
+        if (instance.isDone()) {
+            return instance.getNow();
         }
-        return obj;
+        // partial objects are only visible to the thread creating them
+        return instance.owner == Thread.currentThread() ? partialObjects.get(name) : null;
     }
 
     public Object convert(Object value, ReifiedType type) throws Exception {
@@ -376,4 +532,55 @@ public class BlueprintRepository implements Repository, ExecutionContext {
     public Class loadClass(String typeName) throws ClassNotFoundException {
         return blueprintContainer.loadClass(typeName);
     }
+
+    /**
+     * The creation of a singleton or of a service object, run by the thread that registered it.
+     */
+    private static class Instance extends FutureTask<Object> {
+
+        private final String name;
+        private final boolean component;
+        private final Thread owner = Thread.currentThread();
+        private volatile boolean failed;
+
+        public Instance(String name, Callable<Object> factory, boolean component) {
+            super(factory);
+            this.name = name;
+            this.component = component;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        protected void setException(Throwable t) {
+            failed = true;
+            super.setException(t);
+        }
+
+        public Object getNow() {
+            if (!isDone() || failed) {
+                return null;
+            }
+            return getResult();
+        }
+
+        public Object getResult() throws ComponentDefinitionException {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComponentDefinitionException("Interrupted while waiting for the creation of " + name, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new ComponentDefinitionException("Unable to create " + name, cause);
+            }
+        }
+    }
+
 }
@@ -19,13 +19,18 @@ package org.apache.aries.blueprint.container;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.aries.blueprint.di.CircularDependencyException;
+import org.apache.aries.blueprint.di.PassThroughRecipe;
 import org.apache.aries.blueprint.di.Recipe;
 import org.apache.aries.blueprint.di.RefRecipe;
 import org.osgi.service.blueprint.container.NoSuchComponentException;
@@ -103,6 +108,70 @@ public class DependencyGraph {
         return sortedRecipes;
     }
 
+    /**
+     * Split the given components into groups which do not share any recipe, directly or
+     * through their dependencies, so that each group can be created on its own thread.
+     * Recipes returning an existing object, such as the blueprint container, do not tie
+     * components together.  The groups, and the names in each group, keep the order of
+     * the given names.
+     */
+    public List<List<String>> getIndependentGroups(Collection<String> names) {
+        final Map<String, Integer> positions = new HashMap<String, Integer>();
+        Map<Recipe, List<String>> groupOf = new HashMap<Recipe, List<String>>();
+        List<List<String>> groups = new ArrayList<List<String>>();
+        for (String name : names) {
+            positions.put(name, positions.size());
+            Set<Recipe> recipes = repository.getAllRecipes(name);
+            List<String> group = null;
+            for (Recipe recipe : recipes) {
+                List<String> other = groupOf.get(recipe);
+                if (other == null || other == group) {
+                    continue;
+                }
+                if (group == null) {
+                    group = other;
+                } else {
+                    // the component links two groups, merge them
+                    group.addAll(other);
+                    for (Map.Entry<Recipe, List<String>> entry : groupOf.entrySet()) {
+                        if (entry.getValue() == other) {
+                            entry.setValue(group);
+                        }
+                    }
+                    for (Iterator<List<String>> it = groups.iterator(); it.hasNext();) {
+                        if (it.next() == other) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.add(group);
+            }
+            group.add(name);
+            for (Recipe recipe : recipes) {
+                if (!(recipe instanceof PassThroughRecipe)) {
+                    groupOf.put(recipe, group);
+                }
+            }
+        }
+        final Comparator<String> byPosition = new Comparator<String>() {
+            public int compare(String n1, String n2) {
+                return positions.get(n1).compareTo(positions.get(n2));
+            }
+        };
+        for (List<String> group : groups) {
+            Collections.sort(group, byPosition);
+        }
+        Collections.sort(groups, new Comparator<List<String>>() {
+            public int compare(List<String> g1, List<String> g2) {
+                return byPosition.compare(g1.get(0), g2.get(0));
+            }
+        });
+        return groups;
+    }
+
     private void findCircuit(Node node, ArrayList<Recipe> stack) {
         if (stack.contains(node.recipe)) {
             ArrayList<Recipe> circularity = new ArrayList<Recipe>(stack.subList(stack.indexOf(node.recipe), stack.size()));
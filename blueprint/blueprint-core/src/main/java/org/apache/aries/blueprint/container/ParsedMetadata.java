@@ -0,0 +1,526 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.container;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.aries.blueprint.ComponentDefinitionRegistry;
+import org.apache.aries.blueprint.reflect.BeanArgumentImpl;
+import org.apache.aries.blueprint.reflect.BeanMetadataImpl;
+import org.apache.aries.blueprint.reflect.BeanPropertyImpl;
+import org.apache.aries.blueprint.reflect.CollectionMetadataImpl;
+import org.apache.aries.blueprint.reflect.ComponentMetadataImpl;
+import org.apache.aries.blueprint.reflect.IdRefMetadataImpl;
+import org.apache.aries.blueprint.reflect.MapEntryImpl;
+import org.apache.aries.blueprint.reflect.MapMetadataImpl;
+import org.apache.aries.blueprint.reflect.PassThroughMetadataImpl;
+import org.apache.aries.blueprint.reflect.PropsMetadataImpl;
+import org.apache.aries.blueprint.reflect.RefMetadataImpl;
+import org.apache.aries.blueprint.reflect.ReferenceListMetadataImpl;
+import org.apache.aries.blueprint.reflect.ReferenceListenerImpl;
+import org.apache.aries.blueprint.reflect.ReferenceMetadataImpl;
+import org.apache.aries.blueprint.reflect.RegistrationListenerImpl;
+import org.apache.aries.blueprint.reflect.ServiceMetadataImpl;
+import org.apache.aries.blueprint.reflect.ServiceReferenceMetadataImpl;
+import org.apache.aries.blueprint.reflect.ValueMetadataImpl;
+import org.osgi.service.blueprint.reflect.BeanArgument;
+import org.osgi.service.blueprint.reflect.BeanProperty;
+import org.osgi.service.blueprint.reflect.ComponentMetadata;
+import org.osgi.service.blueprint.reflect.MapEntry;
+import org.osgi.service.blueprint.reflect.Metadata;
+import org.osgi.service.blueprint.reflect.NonNullMetadata;
+import org.osgi.service.blueprint.reflect.NullMetadata;
+import org.osgi.service.blueprint.reflect.ReferenceListener;
+import org.osgi.service.blueprint.reflect.RegistrationListener;
+import org.osgi.service.blueprint.reflect.Target;
+
+/**
+ * The components and type converters registered by the {@link Parser} for a blueprint
+ * bundle, in a form that can be stored in the {@link ValidationCache} and registered
+ * again without parsing the xml definitions.
+ *
+ * Only the metadata built by the parser for the blueprint namespace itself can be
+ * stored: metadata returned by custom namespace handlers is arbitrary and the handlers
+ * have to run every time, so {@link #capture} returns <code>null</code> as soon as an
+ * unknown metadata class is found.
+ *
+ * @version $Rev$, $Date$
+ */
+public class ParsedMetadata {
+
+    private static final byte NULL = 0;
+    private static final byte BEAN = 1;
+    private static final byte SERVICE = 2;
+    private static final byte REFERENCE = 3;
+    private static final byte REFERENCE_LIST = 4;
+    private static final byte REF = 5;
+    private static final byte IDREF = 6;
+    private static final byte VALUE = 7;
+    private static final byte COLLECTION = 8;
+    private static final byte MAP = 9;
+    private static final byte PROPS = 10;
+    private static final byte NULL_METADATA = 11;
+
+    private final List<ComponentMetadata> components;
+    private final List<Target> typeConverters;
+
+    private ParsedMetadata(List<ComponentMetadata> components, List<Target> typeConverters) {
+        this.components = components;
+        this.typeConverters = typeConverters;
+    }
+
+    /**
+     * Capture the components and type converters of a registry which has just been populated
+     * by the parser.  The pass-through components registered by the container are left out.
+     *
+     * @return the metadata or <code>null</code> if it contains metadata which can not be stored
+     */
+    public static ParsedMetadata capture(ComponentDefinitionRegistry registry) {
+        List<ComponentMetadata> components = new ArrayList<ComponentMetadata>();
+        for (String name : registry.getComponentDefinitionNames()) {
+            ComponentMetadata component = registry.getComponentDefinition(name);
+            if (!(component instanceof PassThroughMetadataImpl)) {
+                if (!isSupported(component)) {
+                    return null;
+                }
+                components.add(component);
+            }
+        }
+        List<Target> typeConverters = new ArrayList<Target>(registry.getTypeConverters());
+        for (Target target : typeConverters) {
+            if (!components.contains(target) && !isSupported(target)) {
+                return null;
+            }
+        }
+        return new ParsedMetadata(components, typeConverters);
+    }
+
+    /**
+     * Register the components and type converters in the given registry, keeping both
+     * the declaration order of the components and the order of the type converters.
+     */
+    public void populate(ComponentDefinitionRegistry registry) {
+        int converter = 0;
+        for (ComponentMetadata component : components) {
+            int index = typeConverters.indexOf(component);
+            if (index < 0) {
+                registry.registerComponentDefinition(component);
+            } else {
+                for (; converter < index; converter++) {
+                    registry.registerTypeConverter(typeConverters.get(converter));
+                }
+                registry.registerTypeConverter((Target) component);
+                converter = index + 1;
+            }
+        }
+        for (; converter < typeConverters.size(); converter++) {
+            registry.registerTypeConverter(typeConverters.get(converter));
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(components.size());
+        for (ComponentMetadata component : components) {
+            writeMetadata(out, component);
+        }
+        out.writeInt(typeConverters.size());
+        for (Target target : typeConverters) {
+            int index = components.indexOf(target);
+            out.writeInt(index);
+            if (index < 0) {
+                writeMetadata(out, target);
+            }
+        }
+    }
+
+    public static ParsedMetadata read(DataInput in) throws IOException {
+        int nbComponents = in.readInt();
+        List<ComponentMetadata> components = new ArrayList<ComponentMetadata>(nbComponents);
+        for (int i = 0; i < nbComponents; i++) {
+            components.add((ComponentMetadata) readMetadata(in));
+        }
+        int nbConverters = in.readInt();
+        List<Target> typeConverters = new ArrayList<Target>(nbConverters);
+        for (int i = 0; i < nbConverters; i++) {
+            int index = in.readInt();
+            typeConverters.add((Target) (index < 0 ? readMetadata(in) : components.get(index)));
+        }
+        return new ParsedMetadata(components, typeConverters);
+    }
+
+    private static boolean isSupported(Metadata metadata) {
+        if (metadata == null || metadata == NullMetadata.NULL) {
+            return true;
+        }
+        Class<?> clazz = metadata.getClass();
+        if (clazz == BeanMetadataImpl.class) {
+            BeanMetadataImpl bean = (BeanMetadataImpl) metadata;
+            if (bean.getRuntimeClass() != null || !isSupported(bean.getFactoryComponent())) {
+                return false;
+            }
+            for (BeanArgument argument : bean.getArguments()) {
+                if (argument.getClass() != BeanArgumentImpl.class || !isSupported(argument.getValue())) {
+                    return false;
+                }
+            }
+            for (BeanProperty property : bean.getProperties()) {
+                if (property.getClass() != BeanPropertyImpl.class || !isSupported(property.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (clazz == ServiceMetadataImpl.class) {
+            ServiceMetadataImpl service = (ServiceMetadataImpl) metadata;
+            if (!isSupported(service.getServiceComponent()) || !isSupportedEntries(service.getServiceProperties())) {
+                return false;
+            }
+            for (RegistrationListener listener : service.getRegistrationListeners()) {
+                if (listener.getClass() != RegistrationListenerImpl.class || !isSupported(listener.getListenerComponent())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (clazz == ReferenceMetadataImpl.class || clazz == ReferenceListMetadataImpl.class) {
+            for (ReferenceListener listener : ((ServiceReferenceMetadataImpl) metadata).getReferenceListeners()) {
+                if (listener.getClass() != ReferenceListenerImpl.class || !isSupported(listener.getListenerComponent())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (clazz == CollectionMetadataImpl.class) {
+            CollectionMetadataImpl collection = (CollectionMetadataImpl) metadata;
+            if (collection.getCollectionClass() != null && toCollectionClass(collection.getCollectionClass().getName()) == null) {
+                return false;
+            }
+            for (Metadata value : collection.getValues()) {
+                if (!isSupported(value)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (clazz == MapMetadataImpl.class) {
+            return isSupportedEntries(((MapMetadataImpl) metadata).getEntries());
+        } else if (clazz == PropsMetadataImpl.class) {
+            return isSupportedEntries(((PropsMetadataImpl) metadata).getEntries());
+        } else {
+            return clazz == RefMetadataImpl.class
+                    || clazz == IdRefMetadataImpl.class
+                    || clazz == ValueMetadataImpl.class;
+        }
+    }
+
+    private static boolean isSupportedEntries(List<MapEntry> entries) {
+        for (MapEntry entry : entries) {
+            if (entry.getClass() != MapEntryImpl.class || !isSupported(entry.getKey()) || !isSupported(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class toCollectionClass(String name) {
+        if (List.class.getName().equals(name)) {
+            return List.class;
+        } else if (Set.class.getName().equals(name)) {
+            return Set.class;
+        } else if (Object[].class.getName().equals(name)) {
+            return Object[].class;
+        } else {
+            return null;
+        }
+    }
+
+    private static void writeMetadata(DataOutput out, Metadata metadata) throws IOException {
+        if (metadata == null) {
+            out.writeByte(NULL);
+        } else if (metadata == NullMetadata.NULL) {
+            out.writeByte(NULL_METADATA);
+        } else if (metadata instanceof BeanMetadataImpl) {
+            BeanMetadataImpl bean = (BeanMetadataImpl) metadata;
+            out.writeByte(BEAN);
+            writeComponent(out, bean);
+            writeString(out, bean.getClassName());
+            writeString(out, bean.getInitMethod());
+            writeString(out, bean.getDestroyMethod());
+            writeString(out, bean.getFactoryMethod());
+            writeMetadata(out, bean.getFactoryComponent());
+            writeString(out, bean.getScope());
+            out.writeBoolean(bean.isProcessor());
+            out.writeBoolean(bean.getFieldInjection());
+            out.writeInt(bean.getArguments().size());
+            for (BeanArgument argument : bean.getArguments()) {
+                writeMetadata(out, argument.getValue());
+                writeString(out, argument.getValueType());
+                out.writeInt(argument.getIndex());
+            }
+            out.writeInt(bean.getProperties().size());
+            for (BeanProperty property : bean.getProperties()) {
+                writeString(out, property.getName());
+                writeMetadata(out, property.getValue());
+            }
+        } else if (metadata instanceof ServiceMetadataImpl) {
+            ServiceMetadataImpl service = (ServiceMetadataImpl) metadata;
+            out.writeByte(SERVICE);
+            writeComponent(out, service);
+            writeMetadata(out, service.getServiceComponent());
+            writeStrings(out, service.getInterfaces());
+            out.writeInt(service.getAutoExport());
+            writeEntries(out, service.getServiceProperties());
+            out.writeInt(service.getRanking());
+            out.writeInt(service.getRegistrationListeners().size());
+            for (RegistrationListener listener : service.getRegistrationListeners()) {
+                writeMetadata(out, listener.getListenerComponent());
+                writeString(out, listener.getRegistrationMethod());
+                writeString(out, listener.getUnregistrationMethod());
+            }
+        } else if (metadata instanceof ServiceReferenceMetadataImpl) {
+            ServiceReferenceMetadataImpl reference = (ServiceReferenceMetadataImpl) metadata;
+            if (reference instanceof ReferenceListMetadataImpl) {
+                out.writeByte(REFERENCE_LIST);
+                out.writeInt(((ReferenceListMetadataImpl) reference).getMemberType());
+            } else {
+                out.writeByte(REFERENCE);
+                out.writeLong(((ReferenceMetadataImpl) reference).getTimeout());
+            }
+            writeComponent(out, reference);
+            out.writeInt(reference.getAvailability());
+            writeString(out, reference.getInterface());
+            writeString(out, reference.getComponentName());
+            writeString(out, reference.getFilter());
+            out.writeInt(reference.getProxyMethod());
+            out.writeInt(reference.getReferenceListeners().size());
+            for (ReferenceListener listener : reference.getReferenceListeners()) {
+                writeMetadata(out, listener.getListenerComponent());
+                writeString(out, listener.getBindMethod());
+                writeString(out, listener.getUnbindMethod());
+            }
+        } else if (metadata instanceof RefMetadataImpl) {
+            out.writeByte(REF);
+            writeString(out, ((RefMetadataImpl) metadata).getComponentId());
+        } else if (metadata instanceof IdRefMetadataImpl) {
+            out.writeByte(IDREF);
+            writeString(out, ((IdRefMetadataImpl) metadata).getComponentId());
+        } else if (metadata instanceof ValueMetadataImpl) {
+            ValueMetadataImpl value = (ValueMetadataImpl) metadata;
+            out.writeByte(VALUE);
+            writeString(out, value.getStringValue());
+            writeString(out, value.getType());
+        } else if (metadata instanceof CollectionMetadataImpl) {
+            CollectionMetadataImpl collection = (CollectionMetadataImpl) metadata;
+            out.writeByte(COLLECTION);
+            writeString(out, collection.getCollectionClass() != null ? collection.getCollectionClass().getName() : null);
+            writeString(out, collection.getValueType());
+            out.writeInt(collection.getValues().size());
+            for (Metadata value : collection.getValues()) {
+                writeMetadata(out, value);
+            }
+        } else if (metadata instanceof MapMetadataImpl) {
+            MapMetadataImpl map = (MapMetadataImpl) metadata;
+            out.writeByte(MAP);
+            writeString(out, map.getKeyType());
+            writeString(out, map.getValueType());
+            writeEntries(out, map.getEntries());
+        } else if (metadata instanceof PropsMetadataImpl) {
+            out.writeByte(PROPS);
+            writeEntries(out, ((PropsMetadataImpl) metadata).getEntries());
+        } else {
+            throw new IOException("Unsupported metadata " + metadata);
+        }
+    }
+
+    private static Metadata readMetadata(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case NULL_METADATA:
+                return NullMetadata.NULL;
+            case BEAN: {
+                BeanMetadataImpl bean = new BeanMetadataImpl();
+                readComponent(in, bean);
+                bean.setClassName(readString(in));
+                bean.setInitMethod(readString(in));
+                bean.setDestroyMethod(readString(in));
+                bean.setFactoryMethod(readString(in));
+                bean.setFactoryComponent((Target) readMetadata(in));
+                bean.setScope(readString(in));
+                bean.setProcessor(in.readBoolean());
+                bean.setFieldInjection(in.readBoolean());
+                int nbArguments = in.readInt();
+                for (int i = 0; i < nbArguments; i++) {
+                    Metadata value = readMetadata(in);
+                    String valueType = readString(in);
+                    bean.addArgument(value, valueType, in.readInt());
+                }
+                int nbProperties = in.readInt();
+                for (int i = 0; i < nbProperties; i++) {
+                    String name = readString(in);
+                    bean.addProperty(name, readMetadata(in));
+                }
+                return bean;
+            }
+            case SERVICE: {
+                ServiceMetadataImpl service = new ServiceMetadataImpl();
+                readComponent(in, service);
+                service.setServiceComponent((Target) readMetadata(in));
+                service.setInterfaceNames(readStrings(in));
+                service.setAutoExport(in.readInt());
+                service.setServiceProperties(readEntries(in));
+                service.setRanking(in.readInt());
+                int nbListeners = in.readInt();
+                for (int i = 0; i < nbListeners; i++) {
+                    Target listener = (Target) readMetadata(in);
+                    String registrationMethod = readString(in);
+                    service.addRegistrationListener(listener, registrationMethod, readString(in));
+                }
+                return service;
+            }
+            case REFERENCE:
+            case REFERENCE_LIST: {
+                ServiceReferenceMetadataImpl reference;
+                if (type == REFERENCE_LIST) {
+                    ReferenceListMetadataImpl list = new ReferenceListMetadataImpl();
+                    list.setMemberType(in.readInt());
+                    reference = list;
+                } else {
+                    ReferenceMetadataImpl single = new ReferenceMetadataImpl();
+                    single.setTimeout(in.readLong());
+                    reference = single;
+                }
+                readComponent(in, reference);
+                reference.setAvailability(in.readInt());
+                reference.setInterface(readString(in));
+                reference.setComponentName(readString(in));
+                reference.setFilter(readString(in));
+                reference.setProxyMethod(in.readInt());
+                int nbListeners = in.readInt();
+                for (int i = 0; i < nbListeners; i++) {
+                    Target listener = (Target) readMetadata(in);
+                    String bindMethod = readString(in);
+                    reference.addServiceListener(listener, bindMethod, readString(in));
+                }
+                return reference;
+            }
+            case REF:
+                return new RefMetadataImpl(readString(in));
+            case IDREF:
+                return new IdRefMetadataImpl(readString(in));
+            case VALUE: {
+                String value = readString(in);
+                return new ValueMetadataImpl(value, readString(in));
+            }
+            case COLLECTION: {
+                String collectionClass = readString(in);
+                String valueType = readString(in);
+                int nbValues = in.readInt();
+                List<Metadata> values = new ArrayList<Metadata>(nbValues);
+                for (int i = 0; i < nbValues; i++) {
+                    values.add(readMetadata(in));
+                }
+                return new CollectionMetadataImpl(collectionClass != null ? toCollectionClass(collectionClass) : null, valueType, values);
+            }
+            case MAP: {
+                String keyType = readString(in);
+                String valueType = readString(in);
+                return new MapMetadataImpl(keyType, valueType, readEntries(in));
+            }
+            case PROPS:
+                return new PropsMetadataImpl(readEntries(in));
+            default:
+                throw new IOException("Unknown metadata type " + type);
+        }
+    }
+
+    private static void writeComponent(DataOutput out, ComponentMetadata component) throws IOException {
+        writeString(out, component.getId());
+        out.writeInt(component.getActivation());
+        writeStrings(out, component.getDependsOn());
+    }
+
+    private static void readComponent(DataInput in, ComponentMetadataImpl component) throws IOException {
+        component.setId(readString(in));
+        component.setActivation(in.readInt());
+        component.setDependsOn(readStrings(in));
+    }
+
+    private static void writeEntries(DataOutput out, List<MapEntry> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (MapEntry entry : entries) {
+            writeMetadata(out, entry.getKey());
+            writeMetadata(out, entry.getValue());
+        }
+    }
+
+    private static List<MapEntry> readEntries(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<MapEntry> entries = new ArrayList<MapEntry>(size);
+        for (int i = 0; i < size; i++) {
+            NonNullMetadata key = (NonNullMetadata) readMetadata(in);
+            entries.add(new MapEntryImpl(key, readMetadata(in)));
+        }
+        return entries;
+    }
+
+    private static void writeStrings(DataOutput out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<String> values = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /*
+     * Strings are written as UTF-8 bytes prefixed with their length, as DataOutput.writeUTF
+     * is limited to 64k and values can be longer than that.
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
@@ -30,8 +30,8 @@ import java.util.List;
 import java.util.Set;
 
 import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.Validator;
@@ -85,7 +85,10 @@ import org.w3c.dom.EntityReference;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
 
 /**
  * TODO: javadoc
@@ -174,6 +177,7 @@ public class Parser {
     public static final String ACTIVATION_DEFAULT = ACTIVATION_EAGER;
     
     private static DocumentBuilderFactory documentBuilderFactory;
+    private static SAXParserFactory saxParserFactory;
 
     private final List<Document> documents = new ArrayList<Document>();
     private ComponentDefinitionRegistry registry;
@@ -184,7 +188,8 @@ public class Parser {
     private String defaultTimeout;
     private String defaultAvailability;
     private String defaultActivation;
-    private Set<URI> namespaces;
+    private final Set<URI> namespaces = new LinkedHashSet<URI>();
+    private ComponentDefinitionException namespacesError;
 
     public Parser() {
     }
@@ -195,13 +200,22 @@ public class Parser {
 
     /**
      * Parse an input stream for blueprint xml. 
+     * The whole document is still built in memory as a DOM, since validation and the
+     * namespace handlers work on DOM elements. It is built from a SAX parse which also
+     * collects the namespaces used, so that the DOM does not have to be walked again to
+     * find out which namespace handlers are needed. Comments and processing instructions
+     * are not kept.
      * @param inputStream The data to parse. The caller is responsible for closing the stream afterwards. 
      * @throws Exception on parse error
      */
     public void parse(InputStream inputStream) throws Exception { 
       InputSource inputSource = new InputSource(inputStream);
-      DocumentBuilder builder = getDocumentBuilderFactory().newDocumentBuilder();
-      Document doc = builder.parse(inputSource);
+      Document doc = getDocumentBuilderFactory().newDocumentBuilder().newDocument();
+      DocumentHandler handler = new DocumentHandler(doc);
+      getSAXParserFactory().newSAXParser().parse(inputSource, handler);
+      if (namespacesError == null) {
+          namespacesError = handler.error;
+      }
       documents.add(doc);
     }
     
@@ -224,44 +238,102 @@ public class Parser {
     }
 
     public Set<URI> getNamespaces() {
-        if (this.namespaces == null) {
-            Set<URI> namespaces = new LinkedHashSet<URI>();
-            for (Document doc : documents) {
-                findNamespaces(namespaces, doc);
-            }
-            this.namespaces = namespaces;
+        if (namespacesError != null) {
+            throw namespacesError;
         }
         return this.namespaces;
     }
 
-    private void findNamespaces(Set<URI> namespaces, Node node) {
-        if (node instanceof Element || node instanceof Attr) {
-            String ns = node.getNamespaceURI();
-            if (ns != null && !isBlueprintNamespace(ns) && !isIgnorableAttributeNamespace(ns)) {
-                namespaces.add(URI.create(ns));
-            }else if ( ns == null && //attributes from blueprint are unqualified as per schema.
-                       node instanceof Attr &&
-                       SCOPE_ATTRIBUTE.equals(node.getNodeName()) &&
-                       ((Attr)node).getOwnerElement() != null && //should never occur from parsed doc.
-                       BLUEPRINT_NAMESPACE.equals(((Attr)node).getOwnerElement().getNamespaceURI()) &&
-                       BEAN_ELEMENT.equals(((Attr)node).getOwnerElement().getLocalName()) ){
-                //Scope attribute is special case, as may contain namespace usage within its value.
-                
-                URI scopeNS = getNamespaceForAttributeValue(node);
-                if(scopeNS!=null){
-                    namespaces.add(scopeNS);
+    /**
+     * Namespaces that require a namespace handler: the ones used by elements and attributes,
+     * and the ones used in the value of the scope attribute of blueprint beans.
+     */
+    private void addNamespace(String ns) {
+        if (ns != null && ns.length() > 0 && !isBlueprintNamespace(ns) && !isIgnorableAttributeNamespace(ns)) {
+            namespaces.add(URI.create(ns));
+        }
+    }
+
+    /**
+     * SAX handler building a namespace aware DOM document and collecting the namespaces used.
+     */
+    private class DocumentHandler extends DefaultHandler {
+
+        private final Document document;
+        private final NamespaceSupport prefixes = new NamespaceSupport();
+        private final List<String> pendingPrefixes = new ArrayList<String>();
+        private final StringBuilder text = new StringBuilder();
+        private Node current;
+        private ComponentDefinitionException error;
+
+        private DocumentHandler(Document document) {
+            this.document = document;
+            this.current = document;
+        }
+
+        public void startPrefixMapping(String prefix, String uri) {
+            pendingPrefixes.add(prefix);
+            pendingPrefixes.add(uri);
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            flushText();
+            prefixes.pushContext();
+            Element element = document.createElementNS(uri.length() > 0 ? uri : null, qName);
+            for (int i = 0; i < pendingPrefixes.size(); i += 2) {
+                String prefix = pendingPrefixes.get(i);
+                String ns = pendingPrefixes.get(i + 1);
+                prefixes.declarePrefix(prefix, ns);
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                       prefix.length() > 0 ? XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix : XMLConstants.XMLNS_ATTRIBUTE,
+                                       ns);
+            }
+            pendingPrefixes.clear();
+            addNamespace(uri);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String attrUri = attributes.getURI(i);
+                element.setAttributeNS(attrUri.length() > 0 ? attrUri : null, attributes.getQName(i), attributes.getValue(i));
+                if (attrUri.length() > 0) {
+                    addNamespace(attrUri);
+                } else if (SCOPE_ATTRIBUTE.equals(attributes.getLocalName(i))
+                            && BLUEPRINT_NAMESPACE.equals(uri)
+                            && BEAN_ELEMENT.equals(localName)) {
+                    //Scope attribute is special case, as may contain namespace usage within its value.
+                    String value = attributes.getValue(i);
+                    if (value.indexOf(':') != -1) {
+                        String prefix = value.split(":")[0];
+                        String ns = prefixes.getURI(prefix);
+                        if (ns != null) {
+                            namespaces.add(URI.create(ns));
+                        } else if (error == null) {
+                            error = new ComponentDefinitionException("Unsupported attribute namespace prefix " + prefix + " " + element.getAttributeNode(SCOPE_ATTRIBUTE));
+                        }
+                    }
                 }
             }
+            current.appendChild(element);
+            current = element;
         }
-        NamedNodeMap nnm = node.getAttributes();
-        if(nnm!=null){
-            for(int i = 0; i< nnm.getLength() ; i++){
-                findNamespaces(namespaces, nnm.item(i));
-            }
+
+        public void endElement(String uri, String localName, String qName) {
+            flushText();
+            current = current.getParentNode();
+            prefixes.popContext();
         }
-        NodeList nl = node.getChildNodes();
-        for (int i = 0; i < nl.getLength(); i++) {
-            findNamespaces(namespaces, nl.item(i));
+
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        private void flushText() {
+            if (text.length() > 0) {
+                current.appendChild(document.createTextNode(text.toString()));
+                text.setLength(0);
+            }
         }
     }
 
@@ -1335,4 +1407,13 @@ public class Parser {
         return documentBuilderFactory;
     }
 
+    private static SAXParserFactory getSAXParserFactory() {
+        if (saxParserFactory == null) {
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setNamespaceAware(true);
+            saxParserFactory = spf;
+        }
+        return saxParserFactory;
+    }
+
 }
@@ -138,11 +138,14 @@ public class ReferenceRecipe extends AbstractServiceReferenceRecipe {
     private void bind(ServiceReference ref) {
         LOGGER.debug("Binding reference {} to {}", getName(), ref);
         synchronized (monitor) {
-            if (trackedServiceReference != null) {
-                blueprintContainer.getBundleContext().ungetService(trackedServiceReference);
-            }
-            trackedServiceReference = ref;
+            ServiceReference oldReference = trackedServiceReference;
+            // Clear the cached service and switch to the new reference before releasing
+            // the old service, so that getService() can no longer return it
             trackedService = null;
+            trackedServiceReference = ref;
+            if (oldReference != null) {
+                blueprintContainer.getBundleContext().ungetService(oldReference);
+            }
             monitor.notifyAll();
             bind(trackedServiceReference, proxy);
         }
@@ -152,16 +155,25 @@ public class ReferenceRecipe extends AbstractServiceReferenceRecipe {
         LOGGER.debug("Unbinding reference {}", getName());
         synchronized (monitor) {
             if (trackedServiceReference != null) {
+                // Clear the cached service first so that the lock-free path in getService()
+                // stops handing it out before it is released
+                trackedService = null;
                 unbind(trackedServiceReference, proxy);
                 blueprintContainer.getBundleContext().ungetService(trackedServiceReference);
                 trackedServiceReference = null;
-                trackedService = null;
                 monitor.notifyAll();
             }
         }
     }
 
     private Object getService() throws InterruptedException {
+        // Fast path: once a service is bound and has been retrieved, it is published through
+        // the volatile trackedService field and can be returned without taking the monitor.
+        // trackedService is always reset before the tracked reference changes.
+        Object service = trackedService;
+        if (service != null) {
+            return service;
+        }
         synchronized (monitor) {
             if (isStarted() && trackedServiceReference == null && metadata.getTimeout() > 0
                     && metadata.getAvailability() == ServiceReferenceMetadata.AVAILABILITY_MANDATORY) {
@@ -176,13 +188,15 @@ public class ReferenceRecipe extends AbstractServiceReferenceRecipe {
                     throw new ServiceUnavailableException("The Blueprint container is being or has been destroyed", getOsgiFilter());
                 }
             }
-            if (trackedService == null) {
-                trackedService = blueprintContainer.getService(trackedServiceReference);
-            }
-            if (trackedService == null) {
-                throw new IllegalStateException("getService() returned null for " + trackedServiceReference);
+            service = trackedService;
+            if (service == null) {
+                service = blueprintContainer.getService(trackedServiceReference);
+                if (service == null) {
+                    throw new IllegalStateException("getService() returned null for " + trackedServiceReference);
+                }
+                trackedService = service;
             }
-            return trackedService;
+            return service;
         }
     }
 
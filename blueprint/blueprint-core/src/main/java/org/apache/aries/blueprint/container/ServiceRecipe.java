@@ -24,6 +24,7 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.aries.blueprint.BlueprintConstants;
@@ -211,10 +212,9 @@ public class ServiceRecipe extends AbstractRecipe {
 
     /**
      * Create the service object.
-     * We need to synchronize the access to the repository,
-     * but not on this ServiceRecipe instance to avoid deadlock.
-     * When using internalCreate(), no other lock but the on the repository
-     * should be held.
+     * No lock is held while the service object is created: the creation goes
+     * through the repository, so that only one thread creates it and threads
+     * waiting for it take part in the dead lock detection of the repository.
      *
      * @param bundle
      * @param registration
@@ -222,14 +222,15 @@ public class ServiceRecipe extends AbstractRecipe {
      */
     private Object internalGetService(Bundle bundle, ServiceRegistration registration) {
         LOGGER.debug("Retrieving service for bundle {} and service registration {}", bundle, registration);
-        if (this.service == null) {
-            synchronized (blueprintContainer.getRepository().getInstanceLock()) {
-                if (this.service == null) {
+        Object service = this.service;
+        if (service == null) {
+            service = blueprintContainer.getRepository().createServiceObject(getName(), new Callable<Object>() {
+                public Object call() {
                     createService();
+                    return ServiceRecipe.this.service;
                 }
-            }
+            });
         }
-        Object service = this.service;
         // We need the real service ...
         if (bundle != null) {
             if (service instanceof ServiceFactory) {
@@ -296,7 +297,7 @@ public class ServiceRecipe extends AbstractRecipe {
         }
     }
 
-    public synchronized Object getService(Bundle bundle, ServiceRegistration registration) {
+    public Object getService(Bundle bundle, ServiceRegistration registration) {
         /** getService() can get called before registerService() returns with the registration object.
          *  So we need to set the registration object in case registration listeners call 
          *  getServiceReference(). 
@@ -307,7 +308,7 @@ public class ServiceRecipe extends AbstractRecipe {
         return internalGetService(bundle, registration);
     }
 
-    public synchronized void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+    public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
         if (this.service instanceof ServiceFactory) {
             ((ServiceFactory) this.service).ungetService(bundle, registration, service);
         }
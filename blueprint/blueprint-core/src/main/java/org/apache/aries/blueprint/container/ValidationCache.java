@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.container;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.aries.blueprint.NamespaceHandler;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A persistent record of the blueprint bundles whose xml definitions have been
+ * successfully parsed and validated against their schemas, so that this work can be
+ * skipped when the container is created again with the same content, typically after
+ * a restart of the framework.
+ *
+ * Entries are stored in one small binary file per bundle id, in the data area of
+ * the extender bundle.  An entry is only considered valid if the last modified
+ * time of the bundle and a digest of the xml files, of the core blueprint schema
+ * and of the schemas provided by the namespace handlers in use, along with the
+ * schemas they import or include, all match, so that a change in any of them,
+ * including a new version of a namespace handler, invalidates it.
+ *
+ * For bundles which only use the blueprint namespace, the entry also holds the
+ * {@link ParsedMetadata} built by the parser, so that the xml does not even need
+ * to be parsed.  Bundles using custom namespaces only record the validation, as
+ * their namespace handlers have to run on every start.  Entries are removed when
+ * the bundle is uninstalled.
+ *
+ * @version $Rev$, $Date$
+ */
+public class ValidationCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidationCache.class);
+
+    private static final int MAGIC = 0x42505643;
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Set<String> SCHEMA_REFERENCES = new HashSet<String>(Arrays.asList("import", "include", "redefine"));
+
+    private static SAXParserFactory saxParserFactory;
+
+    private final File directory;
+    private final Bundle extenderBundle;
+
+    /**
+     * @param directory the directory where the entries are stored, or <code>null</code>
+     *                  if the framework does not provide a file system
+     * @param extenderBundle the blueprint extender bundle, whose version determines the core schema
+     */
+    public ValidationCache(File directory, Bundle extenderBundle) {
+        this.directory = directory;
+        this.extenderBundle = extenderBundle;
+    }
+
+    /**
+     * Compute the key identifying the content to validate.
+     *
+     * @param handlerSet the namespace handlers in use, or <code>null</code> if the content
+     *                   only uses the blueprint namespace
+     * @return the key or <code>null</code> if it could not be computed, in which case the xml must be validated
+     */
+    public String getKey(Bundle bundle, List<URL> resources, NamespaceHandlerRegistry.NamespaceHandlerSet handlerSet) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            update(digest, Long.toString(extenderBundle.getBundleId()) + ":" + extenderBundle.getLastModified());
+            for (URL url : resources) {
+                update(digest, readBytes(url));
+            }
+            List<String> namespaces = new ArrayList<String>();
+            if (handlerSet != null) {
+                for (URI ns : handlerSet.getNamespaces()) {
+                    namespaces.add(ns.toString());
+                }
+            }
+            Collections.sort(namespaces);
+            Set<String> schemas = new HashSet<String>();
+            for (String ns : namespaces) {
+                update(digest, ns);
+                NamespaceHandler handler = handlerSet.getNamespaceHandler(URI.create(ns));
+                URL schema = handler != null ? handler.getSchemaLocation(ns) : null;
+                if (schema != null) {
+                    updateSchema(digest, schema, schemas);
+                }
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            LOGGER.debug("Unable to compute validation key", e);
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Unable to compute validation key", e);
+            return null;
+        } catch (SAXException e) {
+            LOGGER.debug("Unable to compute validation key", e);
+            return null;
+        } catch (ParserConfigurationException e) {
+            LOGGER.debug("Unable to compute validation key", e);
+            return null;
+        }
+    }
+
+    /**
+     * Check if the content identified by the given key has already been validated for the bundle.
+     */
+    public boolean isValidated(Bundle bundle, String key) {
+        Entry entry = read(bundle, key, false);
+        return entry != null && entry.validated;
+    }
+
+    /**
+     * Return the metadata previously stored for the content identified by the given key.
+     *
+     * @param validated whether the content must also have been validated
+     * @return the metadata or <code>null</code> if none has been stored
+     */
+    public ParsedMetadata getParsedMetadata(Bundle bundle, String key, boolean validated) {
+        Entry entry = read(bundle, key, true);
+        if (entry == null || (validated && !entry.validated)) {
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    /**
+     * Record that the content identified by the given key has been validated for the bundle.
+     */
+    public void setValidated(Bundle bundle, String key) {
+        write(bundle, key, true, null);
+    }
+
+    /**
+     * Record the metadata parsed from the content identified by the given key.
+     *
+     * @param validated whether the content has been validated
+     * @param metadata the metadata, or <code>null</code> if it can not be stored
+     */
+    public void setParsedMetadata(Bundle bundle, String key, boolean validated, ParsedMetadata metadata) {
+        write(bundle, key, validated, metadata);
+    }
+
+    /**
+     * Remove any entry for the given bundle.
+     */
+    public void invalidate(Bundle bundle) {
+        File file = getFile(bundle);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /*
+     * Read the entry matching the given key, skipping the metadata unless withMetadata is set.
+     */
+    private Entry read(Bundle bundle, String key, boolean withMetadata) {
+        File file = getFile(bundle);
+        if (key == null || file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC
+                        || in.readInt() != FORMAT_VERSION
+                        || in.readLong() != bundle.getLastModified()
+                        || !in.readUTF().equals(key)) {
+                    return null;
+                }
+                Entry entry = new Entry();
+                entry.validated = in.readBoolean();
+                if (withMetadata && in.readBoolean()) {
+                    entry.metadata = ParsedMetadata.read(in);
+                }
+                return entry;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to read validation cache entry " + file, e);
+            return null;
+        } catch (RuntimeException e) {
+            LOGGER.debug("Unable to read validation cache entry " + file, e);
+            return null;
+        }
+    }
+
+    private void write(Bundle bundle, String key, boolean validated, ParsedMetadata metadata) {
+        File file = getFile(bundle);
+        if (key == null || file == null) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(bundle.getLastModified());
+                out.writeUTF(key);
+                out.writeBoolean(validated);
+                out.writeBoolean(metadata != null);
+                if (metadata != null) {
+                    metadata.write(out);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to write validation cache entry " + file, e);
+            file.delete();
+        }
+    }
+
+    private File getFile(Bundle bundle) {
+        return directory != null ? new File(directory, bundle.getBundleId() + ".bin") : null;
+    }
+
+    /*
+     * Add a schema and, recursively, the schemas it imports, includes or redefines to the digest.
+     * Remote schemas are only identified by their location, so that computing the key never
+     * requires network access.
+     */
+    private static void updateSchema(MessageDigest digest, URL url, Set<String> visited) throws IOException, SAXException, ParserConfigurationException {
+        if (!visited.add(url.toExternalForm())) {
+            return;
+        }
+        update(digest, url.toExternalForm());
+        String protocol = url.getProtocol();
+        if ("http".equals(protocol) || "https".equals(protocol) || "ftp".equals(protocol)) {
+            return;
+        }
+        byte[] content = readBytes(url);
+        update(digest, content);
+        final List<String> locations = new ArrayList<String>();
+        getSAXParserFactory().newSAXParser().parse(new ByteArrayInputStream(content), new DefaultHandler() {
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(uri) && SCHEMA_REFERENCES.contains(localName)) {
+                    String location = attributes.getValue("schemaLocation");
+                    if (location != null) {
+                        locations.add(location.trim());
+                    }
+                }
+            }
+        });
+        for (String location : locations) {
+            updateSchema(digest, new URL(url, location), visited);
+        }
+    }
+
+    private static synchronized SAXParserFactory getSAXParserFactory() {
+        if (saxParserFactory == null) {
+            saxParserFactory = SAXParserFactory.newInstance();
+            saxParserFactory.setNamespaceAware(true);
+        }
+        return saxParserFactory;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+        digest.update((byte) 0);
+    }
+
+    private static void update(MessageDigest digest, byte[] content) {
+        digest.update(content);
+        digest.update((byte) 0);
+    }
+
+    private static byte[] readBytes(URL url) throws IOException {
+        InputStream is = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        boolean validated;
+        ParsedMetadata metadata;
+    }
+
+}
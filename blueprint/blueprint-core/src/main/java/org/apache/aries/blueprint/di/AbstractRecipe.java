@@ -20,6 +20,7 @@ package org.apache.aries.blueprint.di;
 import java.lang.reflect.Type;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.aries.blueprint.container.GenericType;
 import org.osgi.service.blueprint.container.ReifiedType;
@@ -51,28 +52,29 @@ public abstract class AbstractRecipe implements Recipe {
         // Ensure a container has been set
         ExecutionContext context = ExecutionContext.Holder.getContext();
 
-        synchronized (context.getInstanceLock()) {
-            // if this recipe has already been executed in this container, return the currently registered value
-            Object obj = context.getPartialObject(name);
-            if (obj != null) {
-                return obj;
-            }
+        // if this recipe has already been executed in this container, return the currently registered value
+        Object obj = context.getPartialObject(name);
+        if (obj != null) {
+            return obj;
+        }
 
-            // execute the recipe
-            context.push(this);
-            try {
-                obj = internalCreate();
-                if (!prototype) {
-                    context.addFullObject(name, obj);
-                }
-                return obj;
-            } finally {
-                Recipe popped = context.pop();
-                if (popped != this) {
-                    //noinspection ThrowFromFinallyBlock
-                    throw new IllegalStateException("Internal Error: recipe stack is corrupt:" +
-                            " Expected " + this + " to be popped of the stack but was " + popped);
+        // execute the recipe
+        context.push(this);
+        try {
+            if (prototype) {
+                return internalCreate();
+            }
+            return context.createFullObject(name, new Callable<Object>() {
+                public Object call() throws ComponentDefinitionException {
+                    return internalCreate();
                 }
+            });
+        } finally {
+            Recipe popped = context.pop();
+            if (popped != this) {
+                //noinspection ThrowFromFinallyBlock
+                throw new IllegalStateException("Internal Error: recipe stack is corrupt:" +
+                        " Expected " + this + " to be popped of the stack but was " + popped);
             }
         }
     }
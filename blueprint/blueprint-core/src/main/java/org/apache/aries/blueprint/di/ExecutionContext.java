@@ -17,6 +17,9 @@
  */
 package org.apache.aries.blueprint.di;
 
+import java.util.concurrent.Callable;
+
+import org.osgi.service.blueprint.container.ComponentDefinitionException;
 import org.osgi.service.blueprint.container.ReifiedType;
 
 public interface ExecutionContext {
@@ -45,22 +48,23 @@ public interface ExecutionContext {
     }
 
     /**
-     * Lock that should be used to synchronized creation of singletons
+     * Container wide lock.  Singletons are no longer created while holding this lock,
+     * see {@link #createFullObject(String, Callable)}.
      * 
      * @return
      */
     public Object getInstanceLock();
 
     /**
-     * Adds a recipe to the top of the execution stack.  If the recipe is already on
-     * the stack, a CircularDependencyException is thrown.
+     * Adds a recipe to the top of the execution stack of the current thread.  If the recipe
+     * is already on the stack, a CircularDependencyException is thrown.
      * @param recipe the recipe to add to the stack
      * @throws CircularDependencyException if the recipe is already on the stack
      */
     public abstract void push(Recipe recipe) throws CircularDependencyException;
 
     /**
-     * Removes the top recipe from the execution stack.
+     * Removes the top recipe from the execution stack of the current thread.
      * @return the top recipe on the stack
      */
     public abstract Recipe pop();
@@ -81,7 +85,19 @@ public interface ExecutionContext {
      */
     public abstract Object getObject(String name);
 
-    public abstract void addFullObject(String name, Object object);
+    /**
+     * Returns the singleton registered with the specified name, creating it with the given
+     * factory if needed.  Only one thread creates a given singleton: other threads asking for
+     * the same name wait for its creation to complete, while singletons with different
+     * names can be created concurrently.
+     *
+     * @param name the unique name of the object instance
+     * @param factory the factory used to create the instance
+     * @return the object instance
+     * @throws CircularDependencyException if threads are waiting on each other's creations
+     *         and no partial object is available to break the cycle
+     */
+    public abstract Object createFullObject(String name, Callable<Object> factory) throws ComponentDefinitionException;
     
     public abstract void addPartialObject(String name, Object object);
     
@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.osgi.service.blueprint.container.ComponentDefinitionException;
 
@@ -69,7 +70,22 @@ public interface Repository {
     void destroy();
 
     /**
-     * Lock that should be used to synchronized creation of singletons
+     * Returns the service object of the service with the specified id, creating it with the
+     * given factory if needed, with the same guarantees as {@link ExecutionContext#createFullObject}:
+     * only one thread runs the factory and threads waiting for it take part in the dead lock
+     * detection of the repository.  Service objects are not components: they are not returned
+     * by {@link #getNames()}, {@link #getInstance(String)} or {@link #create(String)} and are not
+     * destroyed by {@link #destroy()}.
+     *
+     * @param name the id of the service
+     * @param factory the factory used to create the service object
+     * @return the service object
+     */
+    Object createServiceObject(String name, Callable<Object> factory) throws ComponentDefinitionException;
+
+    /**
+     * Container wide lock.  It is no longer used by the container to create objects,
+     * see {@link #createServiceObject(String, Callable)}.
      *
      * @return
      */
@@ -22,19 +22,19 @@ import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.net.URI;
 import java.net.URL;
-import java.util.AbstractMap;
-import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.IOException;
 
 import javax.xml.validation.Schema;
@@ -68,17 +68,31 @@ public class NamespaceHandlerRegistryImpl implements NamespaceHandlerRegistry, S
 
     public static final String NAMESPACE = "osgi.service.blueprint.namespace";
 
+    /**
+     * Framework property giving the maximum number of compiled schemas to cache
+     */
+    public static final String SCHEMA_CACHE_SIZE_PROPERTY = "org.apache.aries.blueprint.schema.cache.size";
+
+    /**
+     * Framework property controlling how compiled schemas are referenced by the cache: <code>strong</code>
+     * (the default) keeps them until evicted, <code>soft</code> lets the garbage collector reclaim them
+     */
+    public static final String SCHEMA_CACHE_REFERENCES_PROPERTY = "org.apache.aries.blueprint.schema.cache.references";
+
+    private static final int DEFAULT_SCHEMA_CACHE_SIZE = 10;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(NamespaceHandlerRegistryImpl.class);
 
     private final BundleContext bundleContext;
     private final Map<URI, Set<NamespaceHandler>> handlers;
     private final ServiceTracker tracker;
-    private final Map<Map<URI, NamespaceHandler>, Reference<Schema>> schemas = new LRUMap<Map<URI, NamespaceHandler>, Reference<Schema>>(10);
-    private SchemaFactory schemaFactory;
+    private final SchemaCache schemas;
     private List<NamespaceHandlerSetImpl> sets;
 
     public NamespaceHandlerRegistryImpl(BundleContext bundleContext) {
         this.bundleContext = bundleContext;
+        schemas = new SchemaCache(getIntProperty(bundleContext, SCHEMA_CACHE_SIZE_PROPERTY, DEFAULT_SCHEMA_CACHE_SIZE),
+                                  !"soft".equalsIgnoreCase(bundleContext.getProperty(SCHEMA_CACHE_REFERENCES_PROPERTY)));
         handlers = new HashMap<URI, Set<NamespaceHandler>>();
         sets = new ArrayList<NamespaceHandlerSetImpl>();
         tracker = new ServiceTracker(bundleContext, NamespaceHandler.class.getName(), this);
@@ -208,64 +222,79 @@ public class NamespaceHandlerRegistryImpl implements NamespaceHandlerRegistry, S
         tracker.close();
     }
 
-    public synchronized Schema getSchema(Map<URI, NamespaceHandler> handlers) throws IOException, SAXException {
-        Schema schema = null;
+    public Schema getSchema(Map<URI, NamespaceHandler> handlers) throws IOException, SAXException {
         // Find a schema that can handle all the requested namespaces
         // If it contains additional namespaces, it should not be a problem since
         // they won't be used at all
-        for (Map<URI, NamespaceHandler> key : schemas.keySet()) {
-            if (key.equals(handlers)) {
-                schema = schemas.get(key).get();
-                break;
-            }
-        }
-        if (schema == null) {
-            List<StreamSource> schemaSources = new ArrayList<StreamSource>();
-            try {
-                schemaSources.add(new StreamSource(getClass().getResourceAsStream("/org/apache/aries/blueprint/blueprint.xsd")));
-                // Create a schema for all namespaces known at this point
-                // It will speed things as it can be reused for all other blueprint containers
-                for (URI ns : handlers.keySet()) {
-                    URL url = handlers.get(ns).getSchemaLocation(ns.toString());
-                    if (url == null) {
-                        LOGGER.warn("No URL is defined for schema " + ns + ". This schema will not be validated");
-                    } else {
-                        schemaSources.add(new StreamSource(url.openStream()));
-                    }
+        return schemas.get(handlers);
+    }
+
+    /**
+     * Number of schema requests served from the cache
+     */
+    public long getSchemaCacheHits() {
+        return schemas.getHits();
+    }
+
+    /**
+     * Number of schema requests which needed a schema to be compiled
+     */
+    public long getSchemaCacheMisses() {
+        return schemas.getMisses();
+    }
+
+    /**
+     * Total time spent compiling schemas, in milliseconds
+     */
+    public long getSchemaCompileTime() {
+        return schemas.compileTime.get();
+    }
+
+    protected void removeSchemasFor(NamespaceHandler handler) {
+        schemas.removeSchemasFor(handler);
+    }
+
+    private static Schema createSchema(Map<URI, NamespaceHandler> handlers) throws IOException, SAXException {
+        List<StreamSource> schemaSources = new ArrayList<StreamSource>();
+        try {
+            schemaSources.add(new StreamSource(NamespaceHandlerRegistryImpl.class.getResourceAsStream("/org/apache/aries/blueprint/blueprint.xsd")));
+            // Create a schema for all namespaces known at this point
+            // It will speed things as it can be reused for all other blueprint containers
+            for (URI ns : handlers.keySet()) {
+                URL url = handlers.get(ns).getSchemaLocation(ns.toString());
+                if (url == null) {
+                    LOGGER.warn("No URL is defined for schema " + ns + ". This schema will not be validated");
+                } else {
+                    schemaSources.add(new StreamSource(url.openStream()));
                 }
-                schema = getSchemaFactory().newSchema(schemaSources.toArray(new Source[schemaSources.size()]));
-                schemas.put(handlers, new SoftReference<Schema>(schema));
-            } finally {
-                for (StreamSource s : schemaSources) {
-                    try {
-                        s.getInputStream().close();
-                    } catch (IOException e) {
-                        // Ignore
-                    }
+            }
+            return getSchemaFactory().newSchema(schemaSources.toArray(new Source[schemaSources.size()]));
+        } finally {
+            for (StreamSource s : schemaSources) {
+                try {
+                    s.getInputStream().close();
+                } catch (IOException e) {
+                    // Ignore
                 }
             }
         }
-        return schema;
     }
 
-    protected synchronized void removeSchemasFor(NamespaceHandler handler) {
-        List<Map<URI, NamespaceHandler>> keys = new ArrayList<Map<URI, NamespaceHandler>>();
-        for (Map<URI, NamespaceHandler> key : schemas.keySet()) {
-            if (key.values().contains(handler)) {
-                keys.add(key);
-            }
-        }
-        for (Map<URI, NamespaceHandler> key : keys) {
-            schemas.remove(key);
-        }
+    private static SchemaFactory getSchemaFactory() {
+        // SchemaFactory is not thread safe, so use a new one for each compilation
+        return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
     }
 
-    private SchemaFactory getSchemaFactory() {
-        SchemaFactory schemaFactory = null;
-        if (schemaFactory == null) {
-            schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    private static int getIntProperty(BundleContext bundleContext, String name, int defaultValue) {
+        String value = bundleContext.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid value for " + name + ": " + value);
+            }
         }
-        return schemaFactory;
+        return defaultValue;
     }
 
     protected class NamespaceHandlerSetImpl implements NamespaceHandlerSet {
@@ -444,82 +473,140 @@ public class NamespaceHandlerRegistryImpl implements NamespaceHandlerRegistry, S
         return handlers;
     }
 
-    public static class LRUMap<K,V> extends AbstractMap<K,V> {
-
-        private final int bound;
-        private final LinkedList<Entry<K,V>> entries = new LinkedList<Entry<K,V>>();
-
-        private static class LRUEntry<K,V> implements Entry<K,V> {
-            private final K key;
-            private final V value;
-
-            private LRUEntry(K key, V value) {
-                this.key = key;
-                this.value = value;
-            }
+    /**
+     * A concurrent cache of compiled schemas, keyed by the set of namespace handlers used.
+     * Each schema is compiled once, even if requested concurrently by several containers,
+     * while schemas for different sets of handlers can be compiled in parallel.
+     * When the cache is full, the least recently used schema is evicted.
+     */
+    static class SchemaCache {
+
+        private final ConcurrentMap<SchemaKey, SchemaHolder> holders = new ConcurrentHashMap<SchemaKey, SchemaHolder>();
+        private final int capacity;
+        private final boolean strong;
+        private final AtomicLong clock = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong compileTime = new AtomicLong();
+
+        SchemaCache(int capacity, boolean strong) {
+            this.capacity = Math.max(1, capacity);
+            this.strong = strong;
+        }
 
-            public K getKey() {
-                return key;
+        public Schema get(Map<URI, NamespaceHandler> handlers) throws IOException, SAXException {
+            SchemaKey key = new SchemaKey(handlers);
+            SchemaHolder holder = holders.get(key);
+            if (holder == null) {
+                SchemaHolder newHolder = new SchemaHolder(key);
+                // the new schema must not look like the least recently used one
+                newHolder.lastAccess = clock.incrementAndGet();
+                holder = holders.putIfAbsent(key, newHolder);
+                if (holder == null) {
+                    holder = newHolder;
+                    evict(key);
+                }
             }
+            holder.lastAccess = clock.incrementAndGet();
+            return holder.getSchema();
+        }
 
-            public V getValue() {
-                return value;
-            }
+        public long getHits() {
+            return hits.get();
+        }
 
-            public V setValue(V value) {
-                throw new UnsupportedOperationException();
-            }
+        public long getMisses() {
+            return misses.get();
         }
 
-        private LRUMap(int bound) {
-            this.bound = bound;
+        public int size() {
+            return holders.size();
         }
 
-        public V get(Object key) {
-            if (key == null) {
-                throw new NullPointerException();
-            }
-            for (Entry<K,V> e : entries) {
-                if (e.getKey().equals(key)) {
-                    entries.remove(e);
-                    entries.addFirst(e);
-                    return e.getValue();
+        public void removeSchemasFor(NamespaceHandler handler) {
+            for (Iterator<SchemaKey> it = holders.keySet().iterator(); it.hasNext();) {
+                if (it.next().handlers.containsValue(handler)) {
+                    it.remove();
                 }
             }
-            return null;
         }
 
-        public V put(K key, V value) {
-            if (key == null) {
-                throw new NullPointerException();
-            }
-            V old = null;
-            for (Entry<K,V> e : entries) {
-                if (e.getKey().equals(key)) {
-                    entries.remove(e);
-                    old = e.getValue();
+        private void evict(SchemaKey inserted) {
+            while (holders.size() > capacity) {
+                SchemaHolder oldest = null;
+                for (SchemaHolder h : holders.values()) {
+                    if (h.key.equals(inserted)) {
+                        continue;
+                    }
+                    if (oldest == null || h.lastAccess < oldest.lastAccess) {
+                        oldest = h;
+                    }
+                }
+                if (oldest == null) {
                     break;
                 }
+                holders.remove(oldest.key, oldest);
+            }
+        }
+
+        private class SchemaHolder {
+            private final SchemaKey key;
+            private volatile long lastAccess;
+            private Reference<Schema> reference;
+            private Schema schema;
+
+            private SchemaHolder(SchemaKey key) {
+                this.key = key;
             }
-            if (value != null) {
-                entries.addFirst(new LRUEntry<K,V>(key, value));
-                while (entries.size() > bound) {
-                    entries.removeLast();
+
+            public synchronized Schema getSchema() throws IOException, SAXException {
+                Schema s = strong ? schema : (reference != null ? reference.get() : null);
+                if (s != null) {
+                    hits.incrementAndGet();
+                    return s;
                 }
+                misses.incrementAndGet();
+                long start = System.currentTimeMillis();
+                s = createSchema(key.handlers);
+                long time = System.currentTimeMillis() - start;
+                compileTime.addAndGet(time);
+                LOGGER.debug("Compiled schema for namespaces {} in {} ms ({} hits, {} misses)",
+                             new Object[] { key.handlers.keySet(), time, hits.get(), misses.get() });
+                if (strong) {
+                    schema = s;
+                } else {
+                    reference = new SoftReference<Schema>(s);
+                }
+                return s;
             }
-            return old;
         }
+    }
 
-        public Set<Entry<K, V>> entrySet() {
-            return new AbstractSet<Entry<K,V>>() {
-                public Iterator<Entry<K, V>> iterator() {
-                    return entries.iterator();
-                }
+    /**
+     * Immutable key identifying a set of namespace handlers, with a precomputed hash code.
+     */
+    private static class SchemaKey {
+        private final Map<URI, NamespaceHandler> handlers;
+        private final int hashCode;
 
-                public int size() {
-                    return entries.size();
-                }
-            };
+        private SchemaKey(Map<URI, NamespaceHandler> handlers) {
+            this.handlers = Collections.unmodifiableMap(new HashMap<URI, NamespaceHandler>(handlers));
+            this.hashCode = this.handlers.hashCode();
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SchemaKey)) {
+                return false;
+            }
+            SchemaKey other = (SchemaKey) o;
+            return hashCode == other.hashCode && handlers.equals(other.handlers);
         }
     }
 
@@ -22,8 +22,11 @@ import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.aries.blueprint.Interceptor;
 import org.osgi.service.blueprint.reflect.ComponentMetadata;
@@ -42,13 +45,17 @@ class Collaborator implements InvocationHandler, Serializable {
     private static final Logger LOGGER = LoggerFactory
             .getLogger(Collaborator.class);
 
+    private static final Interceptor[] NO_INTERCEPTORS = new Interceptor[0];
+
     /** The invocation handler to call */
     final InvocationHandler delegate;
     final Object object;
 
-    private transient List<Interceptor> interceptors = null;
+    /** The interceptor chain, in the order of the list given to the collaborator */
+    private transient Interceptor[] interceptors = NO_INTERCEPTORS;
     private transient ComponentMetadata cm = null;
-    private transient boolean sorted = false;
+    /** Accessible copies of the invoked methods, so that access checks are done only once per method */
+    private transient ConcurrentMap<Method, Method> invokers = new ConcurrentHashMap<Method, Method>();
 
     Collaborator(ComponentMetadata cm, List<Interceptor> interceptors,
             final Object delegateObj) {
@@ -63,7 +70,7 @@ class Collaborator implements InvocationHandler, Serializable {
                     throws Throwable {
                 Object result;
                 try {
-                    result = method.invoke(object, args);
+                    result = getInvoker(method).invoke(object, args);
                 } catch (InvocationTargetException ite) {
                     // We are invisible, so unwrap and throw the cause as
                     // though we called the method directly.
@@ -82,35 +89,44 @@ class Collaborator implements InvocationHandler, Serializable {
                 return result;
             }
         };
-        this.interceptors = interceptors;
+        if (interceptors != null && !interceptors.isEmpty()) {
+            // the registry keeps the list sorted by descending rank
+            this.interceptors = interceptors.toArray(new Interceptor[interceptors.size()]);
+        }
     }
 
     /**
-     * Invoke the preCall method on the interceptor
-     * 
-     * @param cm
-     *            : component Metadata
-     * @param m
-     *            : method
-     * @param parameters
-     *            : method paramters
-     * @throws Throwable
+     * Return the method to use to invoke the delegate, made accessible once and cached.
+     * If the method cannot be made accessible, the given method is used.
+     *
+     * @param method
+     *            : the invoked method
      */
-    private void preCallInterceptor(List<Interceptor> interceptorList,
-            ComponentMetadata cm, Method m, Object[] parameters,
-            Stack<Collaborator.StackElement> calledInterceptors)
-            throws Throwable {
-        if ((interceptors != null) && !(interceptors.isEmpty())) {
-            for (Interceptor im : interceptorList) {
-                Collaborator.StackElement se = new StackElement(im);
-
-                // should we do this before or after the preCall ?
-                calledInterceptors.push(se);
-
-                // allow exceptions to propagate
-                se.setPreCallToken(im.preCall(cm, m, parameters));
-            }
+    private Method getInvoker(final Method method) {
+        ConcurrentMap<Method, Method> invokers = this.invokers;
+        if (invokers == null) {
+            // deserialized collaborator
+            return method;
         }
+        Method invoker = invokers.get(method);
+        if (invoker == null) {
+            invoker = AccessController.doPrivileged(new PrivilegedAction<Method>() {
+                public Method run() {
+                    try {
+                        Method m = method.getDeclaringClass().getDeclaredMethod(
+                                method.getName(), method.getParameterTypes());
+                        m.setAccessible(true);
+                        return m;
+                    } catch (NoSuchMethodException e) {
+                        return method;
+                    } catch (SecurityException e) {
+                        return method;
+                    }
+                }
+            });
+            invokers.putIfAbsent(method, invoker);
+        }
+        return invoker;
     }
 
     public Object invoke(Object proxy, Method method, Object[] args)
@@ -138,24 +154,57 @@ class Collaborator implements InvocationHandler, Serializable {
         } else if (method.getName().equals("finalize") && method.getParameterTypes().length == 0) {
             // special case finalize, don't route through to delegate because that will get its own call
             toReturn = null;
+        } else if (interceptors == null || interceptors.length == 0) {
+            // no interceptors, call straight through to the delegate
+            toReturn = delegate.invoke(proxy, method, args);
         } else 
         // Proxy the call through to the delegate, wrapping call in 
         // interceptor invocations.
         {
-            Stack<Collaborator.StackElement> calledInterceptors = new Stack<Collaborator.StackElement>();
+            final Interceptor[] chain = interceptors;
+            // tokens returned by preCall, only allocated if an interceptor returns one
+            Object[] tokens = null;
+            // number of interceptors which still need a postCall
+            int called = 0;
             boolean inInvoke = false;
             try {
-                preCallInterceptor(interceptors, cm, method, args,
-                        calledInterceptors);
+                while (called < chain.length) {
+                    Interceptor im = chain[called];
+                    // should we do this before or after the preCall ?
+                    called++;
+                    // allow exceptions to propagate
+                    Object token = im.preCall(cm, method, args);
+                    if (token != null) {
+                        if (tokens == null) {
+                            tokens = new Object[chain.length];
+                        }
+                        tokens[called - 1] = token;
+                    }
+                }
                 inInvoke = true;
                 toReturn = delegate.invoke(proxy, method, args);
                 inInvoke = false;
-                postCallInterceptorWithReturn(cm, method, toReturn,
-                        calledInterceptors);
+                while (called > 0) {
+                    called--;
+                    try {
+                        chain[called].postCallWithReturn(cm, method, toReturn,
+                                tokens != null ? tokens[called] : null);
+                    } catch (Throwable t) {
+                        LOGGER.error("postCallInterceptorWithReturn", t);
+                        // propagate this to the catch block ... further interceptors
+                        // will be called via the postCallInterceptorWithException method
+                        throw t;
+                    }
+                }
 
             } catch (Throwable e) {
-                // log the exception e
-                LOGGER.error("invoke", e);
+                // exceptions from the delegate are part of the normal flow
+                // of the application, only interceptor failures are errors
+                if (inInvoke) {
+                    LOGGER.debug("invoke", e);
+                } else {
+                    LOGGER.error("invoke", e);
+                }
 
                 // if we catch an exception we decide carefully which one to
                 // throw onwards
@@ -178,7 +227,7 @@ class Collaborator implements InvocationHandler, Serializable {
                 }
                 try {
                     postCallInterceptorWithException(cm, method, e,
-                            calledInterceptors);
+                            chain, tokens, called);
                 } catch (Exception f) {
                     // we caught an exception from
                     // postCallInterceptorWithException
@@ -200,36 +249,6 @@ class Collaborator implements InvocationHandler, Serializable {
         return toReturn;
     }
 
-    /**
-     * Called when the method is called and returned normally
-     * 
-     * @param cm
-     *            : component metadata
-     * @param method
-     *            : method
-     * @param returnType
-     *            : return type
-     * @throws Throwable
-     */
-    private void postCallInterceptorWithReturn(ComponentMetadata cm,
-            Method method, Object returnType,
-            Stack<Collaborator.StackElement> calledInterceptors)
-            throws Throwable {
-
-        while (!calledInterceptors.isEmpty()) {
-            Collaborator.StackElement se = calledInterceptors.pop();
-            try {
-                se.interceptor.postCallWithReturn(cm, method, returnType, se
-                        .getPreCallToken());
-            } catch (Throwable t) {
-                LOGGER.error("postCallInterceptorWithReturn", t);
-                // propagate this to invoke ... further interceptors will be
-                // called via the postCallInterceptorWithException method
-                throw t;
-            }
-        } // end while
-    }
-
     /**
      * Called when the method is called and returned with an exception
      * 
@@ -239,18 +258,24 @@ class Collaborator implements InvocationHandler, Serializable {
      *            : method
      * @param exception
      *            : exception throwed
+     * @param chain
+     *            : the interceptor chain
+     * @param tokens
+     *            : the preCall tokens, or null if no interceptor returned one
+     * @param called
+     *            : number of interceptors, from the start of the chain, to call
      */
     private void postCallInterceptorWithException(ComponentMetadata cm,
-            Method method, Throwable exception,
-            Stack<Collaborator.StackElement> calledInterceptors)
+            Method method, Throwable exception, Interceptor[] chain,
+            Object[] tokens, int called)
             throws Throwable {
         Throwable tobeRethrown = null;
-        while (!calledInterceptors.isEmpty()) {
-            Collaborator.StackElement se = calledInterceptors.pop();
+        while (called > 0) {
+            called--;
 
             try {
-                se.interceptor.postCallWithException(cm, method, exception, se
-                        .getPreCallToken());
+                chain[called].postCallWithException(cm, method, exception,
+                        tokens != null ? tokens[called] : null);
             } catch (Throwable t) {
                 // log the exception
                 LOGGER.error("postCallInterceptorWithException", t);
@@ -264,22 +289,4 @@ class Collaborator implements InvocationHandler, Serializable {
             throw tobeRethrown;
     }
 
-    // info to store on interceptor stack during invoke
-    private static class StackElement {
-        private Interceptor interceptor;
-        private Object preCallToken;
-
-        private StackElement(Interceptor i) {
-            interceptor = i;
-        }
-
-        private void setPreCallToken(Object preCallToken) {
-            this.preCallToken = preCallToken;
-        }
-
-        private Object getPreCallToken() {
-            return preCallToken;
-        }
-
-    }
 }
\ No newline at end of file
@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.proxy;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates proxy classes implementing a set of interfaces where every method
+ * looks up the current delegate from a {@link Callable} and calls the same
+ * method on it with a direct <code>invokeinterface</code>, without going
+ * through an {@link java.lang.reflect.InvocationHandler} or reflection.
+ *
+ * Generated classes are cached per defining class loader and interface set.
+ */
+public class InterfaceProxyGenerator implements Opcodes
+{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(InterfaceProxyGenerator.class);
+
+  private static final Type OBJECT_TYPE = Type.getType(Object.class);
+  private static final Type CALLABLE_TYPE = Type.getType(Callable.class);
+  private static final Type EXCEPTION_TYPE = Type.getType(Exception.class);
+  private static final Type RUNTIME_EXCEPTION_TYPE = Type.getType(RuntimeException.class);
+  private static final Type UNDECLARED_TYPE = Type.getType(UndeclaredThrowableException.class);
+  private static final Method UNDECLARED_CONSTRUCTOR = new Method("<init>", Type.VOID_TYPE,
+      new Type[] { Type.getType(Throwable.class) });
+  private static final Method CALL_METHOD = new Method("call", OBJECT_TYPE, new Type[] {});
+  private static final Method OBJECT_CONSTRUCTOR = new Method("<init>", Type.VOID_TYPE, new Type[] {});
+  private static final Method PROXY_CONSTRUCTOR = new Method("<init>", Type.VOID_TYPE, new Type[] { CALLABLE_TYPE });
+  private static final String DISPATCHER_FIELD = "dispatcher";
+  private static final String PROXY_CLASS_PREFIX = "org.apache.aries.blueprint.proxy.$InterfaceProxy";
+
+  private static final AtomicInteger proxyCounter = new AtomicInteger();
+
+  // Weak map from the class loader able to see the interfaces to the loader
+  // holding the generated classes. The value is weakly referenced too, as it
+  // has a strong reference to its parent (the key). Live proxy instances keep
+  // their defining loader reachable through their class.
+  private static final Map<ClassLoader, WeakReference<ProxyClassLoader>> proxyLoaders = Collections
+      .synchronizedMap(new WeakHashMap<ClassLoader, WeakReference<ProxyClassLoader>>());
+
+  /**
+   * Create a new proxy instance implementing the given interfaces and dispatching
+   * every call to the object returned by the dispatcher.
+   *
+   * @param loader a class loader able to see all the interfaces, used if the
+   *          interfaces do not share a common class loader
+   * @param interfaces the interfaces to implement, all of which must be public
+   * @param dispatcher the dispatcher providing the delegate for each call
+   */
+  public static Object newProxyInstance(ClassLoader loader, Class<?>[] interfaces, Callable<Object> dispatcher)
+      throws UnableToProxyException
+  {
+    Constructor<?> constructor = getProxyConstructor(loader, interfaces);
+    try {
+      return constructor.newInstance(dispatcher);
+    } catch (InstantiationException ie) {
+      LOGGER.debug(AsmInterceptorWrapper.LOG_EXCEPTION, ie);
+      throw new ProxyClassInstantiationException(interfaces[0], ie);
+    } catch (IllegalAccessException iae) {
+      LOGGER.debug(AsmInterceptorWrapper.LOG_EXCEPTION, iae);
+      throw new ProxyClassInstantiationException(interfaces[0], iae);
+    } catch (InvocationTargetException ite) {
+      LOGGER.debug(AsmInterceptorWrapper.LOG_EXCEPTION, ite);
+      throw new ProxyClassInstantiationException(interfaces[0], ite);
+    }
+  }
+
+  /**
+   * Check whether a proxy can be generated for the given types: they all have
+   * to be public interfaces, as the proxy class is defined in its own class
+   * loader and therefore cannot access package private types. Methods they
+   * inherit from package private interfaces are called through them.
+   */
+  public static boolean canProxy(Class<?>[] interfaces)
+  {
+    if (interfaces.length == 0) {
+      return false;
+    }
+    for (Class<?> iface : interfaces) {
+      if (!iface.isInterface() || !Modifier.isPublic(iface.getModifiers())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static Class<?> getProxyClass(ClassLoader loader, Class<?>[] interfaces)
+      throws UnableToProxyException
+  {
+    return getProxyConstructor(loader, interfaces).getDeclaringClass();
+  }
+
+  private static Constructor<?> getProxyConstructor(ClassLoader loader, Class<?>[] interfaces)
+      throws UnableToProxyException
+  {
+    for (Class<?> iface : interfaces) {
+      if (!iface.isInterface() || !Modifier.isPublic(iface.getModifiers())) {
+        throw new UnableToProxyException(iface);
+      }
+    }
+    ProxyClassLoader proxyLoader = getProxyClassLoader(getDefiningParent(loader, interfaces));
+    InterfaceSet key = new InterfaceSet(interfaces);
+    Constructor<?> constructor = proxyLoader.constructors.get(key);
+    if (constructor == null) {
+      synchronized (proxyLoader) {
+        constructor = proxyLoader.constructors.get(key);
+        if (constructor == null) {
+          LOGGER.debug("Generating proxy class for interfaces {}", key);
+          String className = PROXY_CLASS_PREFIX + proxyCounter.incrementAndGet();
+          Class<?> clazz = proxyLoader.define(className, generate(className, interfaces), interfaces[0]);
+          try {
+            constructor = clazz.getConstructor(Callable.class);
+          } catch (NoSuchMethodException nsme) {
+            LOGGER.debug(AsmInterceptorWrapper.LOG_EXCEPTION, nsme);
+            throw new ProxyClassInstantiationException(interfaces[0], nsme);
+          }
+          proxyLoader.constructors.put(key, constructor);
+        }
+      }
+    }
+    return constructor;
+  }
+
+  /**
+   * Use the class loader of the interfaces when they all share the same one, so
+   * that generated classes can be reused by every reference to the same
+   * service interface, regardless of the client bundle.
+   */
+  private static ClassLoader getDefiningParent(ClassLoader loader, Class<?>[] interfaces)
+  {
+    ClassLoader common = interfaces[0].getClassLoader();
+    for (Class<?> iface : interfaces) {
+      if (iface.getClassLoader() != common) {
+        return loader;
+      }
+    }
+    return common != null ? common : loader;
+  }
+
+  private static ProxyClassLoader getProxyClassLoader(ClassLoader parent)
+  {
+    synchronized (proxyLoaders) {
+      WeakReference<ProxyClassLoader> ref = proxyLoaders.get(parent);
+      ProxyClassLoader proxyLoader = ref != null ? ref.get() : null;
+      if (proxyLoader == null) {
+        proxyLoader = new ProxyClassLoader(parent);
+        proxyLoaders.put(parent, new WeakReference<ProxyClassLoader>(proxyLoader));
+      }
+      return proxyLoader;
+    }
+  }
+
+  private static byte[] generate(String className, Class<?>[] interfaces)
+  {
+    String internalName = className.replace('.', '/');
+    Type proxyType = Type.getObjectType(internalName);
+    String[] interfaceNames = new String[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaceNames[i] = Type.getInternalName(interfaces[i]);
+    }
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, internalName, null, OBJECT_TYPE.getInternalName(),
+        interfaceNames);
+    cw.visitField(ACC_PRIVATE | ACC_FINAL, DISPATCHER_FIELD, CALLABLE_TYPE.getDescriptor(), null, null)
+        .visitEnd();
+
+    // public <init>(Callable dispatcher) { super(); this.dispatcher = dispatcher; }
+    GeneratorAdapter ctor = new GeneratorAdapter(ACC_PUBLIC, PROXY_CONSTRUCTOR, null, null, cw);
+    ctor.loadThis();
+    ctor.invokeConstructor(OBJECT_TYPE, OBJECT_CONSTRUCTOR);
+    ctor.loadThis();
+    ctor.loadArg(0);
+    ctor.putField(proxyType, DISPATCHER_FIELD, CALLABLE_TYPE);
+    ctor.returnValue();
+    ctor.endMethod();
+
+    // equals, hashCode and toString are forwarded to the delegate, as is done
+    // by the jdk and cglib proxies
+    Set<String> generated = new HashSet<String>();
+    for (java.lang.reflect.Method m : new java.lang.reflect.Method[] { getObjectMethod("equals", Object.class),
+        getObjectMethod("hashCode"), getObjectMethod("toString") }) {
+      generated.add(m.getName() + Type.getMethodDescriptor(m));
+      generateMethod(cw, proxyType, m, OBJECT_TYPE, false);
+    }
+    for (Class<?> iface : interfaces) {
+      for (java.lang.reflect.Method m : iface.getMethods()) {
+        if (Modifier.isStatic(m.getModifiers())) {
+          continue;
+        }
+        // call the method through the public interface being proxied, as the
+        // interface declaring it may not be accessible from the proxy class
+        if (generated.add(m.getName() + Type.getMethodDescriptor(m))) {
+          generateMethod(cw, proxyType, m, Type.getType(iface), true);
+        }
+      }
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static void generateMethod(ClassWriter cw, Type proxyType, java.lang.reflect.Method m,
+      Type owner, boolean isInterface)
+  {
+    Method method = Method.getMethod(m);
+    Class<?>[] exceptionClasses = m.getExceptionTypes();
+    Type[] exceptions = new Type[exceptionClasses.length];
+    for (int i = 0; i < exceptionClasses.length; i++) {
+      exceptions[i] = Type.getType(exceptionClasses[i]);
+    }
+    // return ((Owner) dispatcher.call()).method(args);
+    GeneratorAdapter ga = new GeneratorAdapter(ACC_PUBLIC | ACC_FINAL, method, null, exceptions, cw);
+    ga.loadThis();
+    ga.getField(proxyType, DISPATCHER_FIELD, CALLABLE_TYPE);
+    Label start = ga.mark();
+    ga.invokeInterface(CALLABLE_TYPE, CALL_METHOD);
+    Label end = ga.mark();
+    Label dispatched = ga.newLabel();
+    ga.goTo(dispatched);
+    // like jdk proxies, the checked exceptions of the dispatcher the method
+    // does not declare are wrapped in an UndeclaredThrowableException
+    ga.catchException(start, end, RUNTIME_EXCEPTION_TYPE);
+    ga.throwException();
+    for (Type exception : exceptions) {
+      ga.catchException(start, end, exception);
+      ga.throwException();
+    }
+    ga.catchException(start, end, EXCEPTION_TYPE);
+    int cause = ga.newLocal(EXCEPTION_TYPE);
+    ga.storeLocal(cause);
+    ga.newInstance(UNDECLARED_TYPE);
+    ga.dup();
+    ga.loadLocal(cause);
+    ga.invokeConstructor(UNDECLARED_TYPE, UNDECLARED_CONSTRUCTOR);
+    ga.throwException();
+    ga.mark(dispatched);
+    if (isInterface) {
+      ga.checkCast(owner);
+      ga.loadArgs();
+      ga.invokeInterface(owner, method);
+    } else {
+      ga.loadArgs();
+      ga.invokeVirtual(owner, method);
+    }
+    ga.returnValue();
+    ga.endMethod();
+  }
+
+  private static java.lang.reflect.Method getObjectMethod(String name, Class<?>... parameterTypes)
+  {
+    try {
+      return Object.class.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException nsme) {
+      throw new IllegalStateException(nsme);
+    }
+  }
+
+  /**
+   * Class loader used to define the generated classes. It delegates to a
+   * class loader able to see the proxied interfaces.
+   */
+  private static class ProxyClassLoader extends ClassLoader
+  {
+    private final ConcurrentMap<InterfaceSet, Constructor<?>> constructors = new ConcurrentHashMap<InterfaceSet, Constructor<?>>();
+
+    ProxyClassLoader(ClassLoader parent)
+    {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes, Class<?> proxiedClass) throws UnableToProxyException
+    {
+      try {
+        return defineClass(name, bytes, 0, bytes.length, InterfaceProxyGenerator.class.getProtectionDomain());
+      } catch (LinkageError le) {
+        LOGGER.debug(AsmInterceptorWrapper.LOG_EXCEPTION, le);
+        throw new UnableToProxyException(proxiedClass.getName(), le);
+      }
+    }
+  }
+
+  /**
+   * Cache key for an ordered set of interfaces.
+   */
+  private static class InterfaceSet
+  {
+    private final Class<?>[] interfaces;
+    private final int hashCode;
+
+    InterfaceSet(Class<?>[] interfaces)
+    {
+      this.interfaces = interfaces.clone();
+      this.hashCode = Arrays.hashCode(this.interfaces);
+    }
+
+    public int hashCode()
+    {
+      return hashCode;
+    }
+
+    public boolean equals(Object o)
+    {
+      return o instanceof InterfaceSet && Arrays.equals(interfaces, ((InterfaceSet) o).interfaces);
+    }
+
+    public String toString()
+    {
+      return Arrays.toString(interfaces);
+    }
+  }
+
+}
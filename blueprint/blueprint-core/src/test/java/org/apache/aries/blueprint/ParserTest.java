@@ -18,8 +18,11 @@
  */
 package org.apache.aries.blueprint;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -32,10 +35,14 @@ import javax.xml.validation.Schema;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import org.apache.aries.blueprint.container.NamespaceHandlerRegistry;
+import org.apache.aries.blueprint.container.Parser;
+import org.apache.aries.blueprint.namespace.ComponentDefinitionRegistryImpl;
 import org.apache.aries.blueprint.reflect.BeanMetadataImpl;
 import org.osgi.framework.Bundle;
+import org.osgi.service.blueprint.container.ComponentDefinitionException;
 import org.osgi.service.blueprint.reflect.BeanArgument;
 import org.osgi.service.blueprint.reflect.BeanMetadata;
 import org.osgi.service.blueprint.reflect.BeanProperty;
@@ -153,6 +160,109 @@ public class ParserTest extends AbstractBlueprintTest {
     }
 
 
+    public void testNamespaces() throws Exception {
+        Parser parser = new Parser();
+        parser.parse(Collections.singletonList(getClass().getResource("/test-custom-nodes.xml")));
+        Set<URI> namespaces = parser.getNamespaces();
+        assertEquals(Collections.singleton(URI.create("http://cache.org")), namespaces);
+    }
+
+    public void testNamespacesOfNestedElementsAndAttributes() throws Exception {
+        Parser parser = new Parser();
+        parser.parse(toStream(
+                "<blueprint xmlns='http://www.osgi.org/xmlns/blueprint/v1.0.0'"
+              + "           xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'>"
+              + "  <bean id='a' class='A' scope='scope:prototype' xmlns:scope='http://scope.org'>"
+              + "    <property name='p'>"
+              + "      <outer:config xmlns:outer='http://outer.org'>"
+              + "        <outer:entry>"
+              + "          <inner:value xmlns:inner='http://inner.org' xmlns:attr='http://attr.org' attr:flag='true'/>"
+              + "        </outer:entry>"
+              + "      </outer:config>"
+              + "    </property>"
+              + "  </bean>"
+              + "</blueprint>"));
+        Set<URI> expected = new HashSet<URI>(Arrays.asList(URI.create("http://scope.org"), URI.create("http://outer.org"),
+                                                           URI.create("http://inner.org"), URI.create("http://attr.org")));
+        assertEquals(expected, parser.getNamespaces());
+    }
+
+    public void testNestedCustomElements() throws Exception {
+        Parser parser = new Parser();
+        parser.parse(toStream(
+                "<blueprint xmlns='http://www.osgi.org/xmlns/blueprint/v1.0.0' xmlns:outer='http://outer.org'>"
+              + "  <bean id='a' class='A'>"
+              + "    <property name='p'>"
+              + "      <outer:config id='config'>"
+              + "        <!-- dropped -->"
+              + "        <outer:entry key='k'>"
+              + "          <inner:value xmlns:inner='http://inner.org' flag='true'>x<![CDATA[<y/>]]></inner:value>"
+              + "        </outer:entry>"
+              + "      </outer:config>"
+              + "    </property>"
+              + "  </bean>"
+              + "</blueprint>"));
+        final RecordingNamespaceHandler handler = new RecordingNamespaceHandler();
+        ComponentDefinitionRegistryImpl registry = new ComponentDefinitionRegistryImpl();
+        parser.populate(new TestNamespaceHandlerSet(URI.create("http://outer.org"), handler), registry);
+
+        assertEquals(1, handler.elements.size());
+        Element config = handler.elements.get(0);
+        assertEquals("http://outer.org", config.getNamespaceURI());
+        assertEquals("config", config.getLocalName());
+        assertEquals("config", config.getAttribute("id"));
+        // the declarations of the enclosing elements are kept to resolve prefixes
+        assertEquals("http://outer.org", config.lookupNamespaceURI("outer"));
+
+        List<Element> entries = getChildElements(config);
+        assertEquals(1, entries.size());
+        Element entry = entries.get(0);
+        assertEquals("http://outer.org", entry.getNamespaceURI());
+        assertEquals("entry", entry.getLocalName());
+        assertEquals("k", entry.getAttribute("key"));
+
+        List<Element> values = getChildElements(entry);
+        assertEquals(1, values.size());
+        Element value = values.get(0);
+        assertEquals("http://inner.org", value.getNamespaceURI());
+        assertEquals("value", value.getLocalName());
+        assertEquals("inner:value", value.getNodeName());
+        assertEquals("true", value.getAttributeNS(null, "flag"));
+        assertEquals("x<y/>", value.getTextContent());
+
+        BeanMetadata bean = (BeanMetadata) registry.getComponentDefinition("a");
+        assertEquals(1, bean.getProperties().size());
+        assertEquals("config", ((BeanMetadata) bean.getProperties().get(0).getValue()).getId());
+    }
+
+    public void testMalformedDocument() throws Exception {
+        Parser parser = new Parser();
+        try {
+            parser.parse(toStream(
+                    "<blueprint xmlns='http://www.osgi.org/xmlns/blueprint/v1.0.0'>"
+                  + "  <bean id='a' class='A'>"
+                  + "</blueprint>"));
+            fail("Parsing a malformed document should fail");
+        } catch (SAXException e) {
+            // expected
+        }
+        assertTrue(parser.getNamespaces().isEmpty());
+    }
+
+    public void testUnboundScopePrefix() throws Exception {
+        Parser parser = new Parser();
+        parser.parse(toStream(
+                "<blueprint xmlns='http://www.osgi.org/xmlns/blueprint/v1.0.0'>"
+              + "  <bean id='a' class='A' scope='missing:prototype'/>"
+              + "</blueprint>"));
+        try {
+            parser.getNamespaces();
+            fail("An unbound scope prefix should be reported");
+        } catch (ComponentDefinitionException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("missing") >= 0);
+        }
+    }
+
     public void testCustomNodes() throws Exception {
         ComponentDefinitionRegistry registry = parse("/test-custom-nodes.xml", new TestNamespaceHandlerSet());
         
@@ -184,13 +294,37 @@ public class ParserTest extends AbstractBlueprintTest {
         assertEquals("org.apache.aries.Cache", comp3.getClassName());         
     }
 
+    private static InputStream toStream(String xml) throws Exception {
+        return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+    }
+
+    private static List<Element> getChildElements(Element element) {
+        List<Element> elements = new ArrayList<Element>();
+        NodeList nl = element.getChildNodes();
+        for (int i = 0; i < nl.getLength(); i++) {
+            if (nl.item(i) instanceof Element) {
+                elements.add((Element) nl.item(i));
+            }
+        }
+        return elements;
+    }
+
     private static class TestNamespaceHandlerSet implements NamespaceHandlerRegistry.NamespaceHandlerSet {
 
+        private final URI namespace;
+        private final NamespaceHandler handler;
+
         private TestNamespaceHandlerSet() {
+            this(URI.create("http://cache.org"), null);
+        }
+
+        private TestNamespaceHandlerSet(URI namespace, NamespaceHandler handler) {
+            this.namespace = namespace;
+            this.handler = handler;
         }
 
         public Set<URI> getNamespaces() {
-            return Collections.singleton(URI.create("http://cache.org"));
+            return Collections.singleton(namespace);
         }
 
         public boolean isComplete() {
@@ -198,9 +332,8 @@ public class ParserTest extends AbstractBlueprintTest {
         }
 
         public NamespaceHandler getNamespaceHandler(URI namespace) {
-            URI u = URI.create("http://cache.org");
-            if (u.equals(namespace)) {
-                return new TestNamespaceHandler();
+            if (this.namespace.equals(namespace)) {
+                return (handler != null) ? handler : new TestNamespaceHandler();
             } else {
                 return null;
             }
@@ -270,6 +403,30 @@ public class ParserTest extends AbstractBlueprintTest {
         
     }
     
+    private static class RecordingNamespaceHandler implements NamespaceHandler {
+
+        private final List<Element> elements = new ArrayList<Element>();
+
+        public URL getSchemaLocation(String namespace) {
+            return null;
+        }
+
+        public Set<Class> getManagedClasses() {
+            return new HashSet<Class>();
+        }
+
+        public ComponentMetadata decorate(Node node, ComponentMetadata component, ParserContext context) {
+            throw new RuntimeException("Unhandled node: " + node);
+        }
+
+        public Metadata parse(Element element, ParserContext context) {
+            elements.add(element);
+            BeanMetadataImpl metadata = new BeanMetadataImpl();
+            metadata.setId(element.getAttribute("id"));
+            return metadata;
+        }
+    }
+
     private static class MyLocalComponentMetadata extends BeanMetadataImpl {
         
         private boolean cacheReturnValues;
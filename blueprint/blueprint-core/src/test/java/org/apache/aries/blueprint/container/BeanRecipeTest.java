@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.container;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+import org.apache.aries.blueprint.TestBlueprintContainer;
+import org.apache.aries.blueprint.di.AbstractRecipe;
+import org.apache.aries.blueprint.di.PassThroughRecipe;
+import org.apache.aries.blueprint.di.Recipe;
+import org.apache.aries.blueprint.namespace.ComponentDefinitionRegistryImpl;
+import org.junit.Test;
+import org.osgi.service.blueprint.container.ComponentDefinitionException;
+
+/**
+ * A bean instantiated several times reuses the constructor or factory method resolved
+ * the first time.  These tests check that it is always the one a new recipe resolves.
+ */
+public class BeanRecipeTest {
+
+    public static class Result {
+        public final String kind;
+
+        public Result(String kind) {
+            this.kind = kind;
+        }
+    }
+
+    public static class ByClass extends Result {
+        public ByClass(String s) {
+            super("String");
+        }
+
+        public ByClass(Integer i) {
+            super("Integer");
+        }
+
+        public ByClass(List<?> l) {
+            super("List");
+        }
+    }
+
+    public static class ByValue extends Result {
+        public ByValue(int i) {
+            super("int");
+        }
+
+        public ByValue(char c) {
+            super("char");
+        }
+    }
+
+    public static class Single extends Result {
+        public Single(int i) {
+            super("int " + i);
+        }
+    }
+
+    public static class Reordered extends Result {
+        public Reordered(String s, Integer i) {
+            super(s + i);
+        }
+    }
+
+    public static class Factory {
+        public static Result create(String s) {
+            return new Result("static String");
+        }
+
+        public static Result create(Long l) {
+            return new Result("static Long");
+        }
+
+        public static Result create(int i) {
+            return new Result("static int");
+        }
+
+        public static Result create(boolean b) {
+            return new Result("static boolean");
+        }
+
+        public Result make(String s) {
+            return new Result("String");
+        }
+
+        public Result make(Integer i) {
+            return new Result("Integer");
+        }
+
+        public Result make(char c) {
+            return new Result("char");
+        }
+    }
+
+    @Test
+    public void testConstructorOverloadsByClass() throws Exception {
+        assertResolutions(ByClass.class, null, null, false,
+                Arrays.asList("String", "Integer", "String", "List", "Integer", "error"),
+                new Object[] { "a" }, new Object[] { 1 }, new Object[] { "b" },
+                new Object[] { new ArrayList<Object>() }, new Object[] { 2 }, new Object[] { null });
+    }
+
+    @Test
+    public void testConstructorOverloadsByConvertedValue() throws Exception {
+        // "5" converts to both an int and a char, so it is ambiguous even after "12" resolved to int
+        assertResolutions(ByValue.class, null, null, false,
+                Arrays.asList("int", "error", "char", "int", "char"),
+                new Object[] { "12" }, new Object[] { "5" }, new Object[] { "x" },
+                new Object[] { "34" }, new Object[] { "y" });
+    }
+
+    @Test
+    public void testSingleConvertedConstructor() throws Exception {
+        assertResolutions(Single.class, null, null, false,
+                Arrays.asList("int 1", "int 2", "error", "int 3"),
+                new Object[] { "1" }, new Object[] { "2" }, new Object[] { "x" }, new Object[] { 3 });
+    }
+
+    @Test
+    public void testReorderedArguments() throws Exception {
+        assertResolutions(Reordered.class, null, null, true,
+                Arrays.asList("a1", "b2", "c3", "d4"),
+                new Object[] { 1, "a" }, new Object[] { "b", 2 }, new Object[] { 3, "c" }, new Object[] { 4, "d" });
+    }
+
+    @Test
+    public void testStaticFactoryMethodOverloads() throws Exception {
+        assertResolutions(Factory.class, "create", null, false,
+                Arrays.asList("static String", "static Long", "static String", "static boolean", "static int"),
+                new Object[] { "a" }, new Object[] { 5L }, new Object[] { "b" },
+                new Object[] { true }, new Object[] { 7 });
+    }
+
+    @Test
+    public void testInstanceFactoryMethodOverloads() throws Exception {
+        assertResolutions(null, "make", new Factory(), false,
+                Arrays.asList("String", "Integer", "char", "String", "char"),
+                new Object[] { "a" }, new Object[] { 1 }, new Object[] { 'c' },
+                new Object[] { "b" }, new Object[] { 'd' });
+    }
+
+    /**
+     * Instantiate a bean with each set of arguments, through a single recipe and through
+     * a new recipe each time, and check that both resolve to the expected results.
+     */
+    private void assertResolutions(Class type, String factoryMethod, Object factory, boolean reorder,
+                                   List<String> expected, Object[]... argumentSets) throws Exception {
+        List<String> cached = new ArrayList<String>();
+        Instantiator instantiator = new Instantiator(type, factoryMethod, factory, reorder, argumentSets[0].length);
+        for (Object[] arguments : argumentSets) {
+            cached.add(instantiator.create(arguments));
+        }
+        List<String> uncached = new ArrayList<String>();
+        for (Object[] arguments : argumentSets) {
+            uncached.add(new Instantiator(type, factoryMethod, factory, reorder, arguments.length).create(arguments));
+        }
+        assertEquals(expected, uncached);
+        assertEquals(uncached, cached);
+    }
+
+    private static class Instantiator {
+
+        private final BlueprintRepository repository;
+        private final List<Argument> arguments = new ArrayList<Argument>();
+
+        Instantiator(Class type, String factoryMethod, Object factory, boolean reorder, int size) throws Exception {
+            TestBlueprintContainer container = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl());
+            repository = container.getRepository();
+            BeanRecipe recipe = new BeanRecipe("bean", container, type, false);
+            recipe.setFactoryMethod(factoryMethod);
+            if (factory != null) {
+                recipe.setFactoryComponent(new PassThroughRecipe("factory", factory));
+            }
+            recipe.setReorderArguments(reorder);
+            for (int i = 0; i < size; i++) {
+                arguments.add(new Argument("arg" + i));
+            }
+            recipe.setArguments(new ArrayList<Object>(arguments));
+            recipe.setArgTypes(new ArrayList<String>(Collections.<String>nCopies(size, null)));
+            repository.putRecipe("bean", recipe);
+        }
+
+        String create(Object[] values) {
+            for (int i = 0; i < values.length; i++) {
+                arguments.get(i).value = values[i];
+            }
+            try {
+                return ((Result) repository.create("bean")).kind;
+            } catch (ComponentDefinitionException e) {
+                return "error";
+            }
+        }
+    }
+
+    private static class Argument extends AbstractRecipe {
+
+        Object value;
+
+        Argument(String name) {
+            super(name);
+        }
+
+        protected Object internalCreate() throws ComponentDefinitionException {
+            return value;
+        }
+
+        public List<Recipe> getDependencies() {
+            return Collections.emptyList();
+        }
+    }
+}
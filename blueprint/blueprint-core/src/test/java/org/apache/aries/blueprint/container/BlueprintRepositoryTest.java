@@ -0,0 +1,333 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.container;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+import org.apache.aries.blueprint.TestBlueprintContainer;
+import org.apache.aries.blueprint.di.AbstractRecipe;
+import org.apache.aries.blueprint.di.CircularDependencyException;
+import org.apache.aries.blueprint.di.PassThroughRecipe;
+import org.apache.aries.blueprint.di.Recipe;
+import org.apache.aries.blueprint.namespace.ComponentDefinitionRegistryImpl;
+import org.apache.aries.blueprint.reflect.ServiceMetadataImpl;
+import org.junit.Test;
+import org.osgi.service.blueprint.container.ComponentDefinitionException;
+import org.osgi.service.blueprint.container.NoSuchComponentException;
+
+public class BlueprintRepositoryTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @Test
+    public void testConcurrentCycle() throws Exception {
+        final BlueprintRepository repository = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl()).getRepository();
+        final CountDownLatch aStarted = new CountDownLatch(1);
+        final CountDownLatch bStarted = new CountDownLatch(1);
+        WaitingRecipe a = new WaitingRecipe("a", aStarted, bStarted);
+        WaitingRecipe b = new WaitingRecipe("b", bStarted, aStarted);
+        a.next = b;
+        b.next = a;
+        repository.putRecipe("a", a);
+        repository.putRecipe("b", b);
+
+        Creator creatorA = new Creator(repository, "a");
+        Creator creatorB = new Creator(repository, "b");
+        creatorA.start();
+        creatorB.start();
+        creatorA.join(TIMEOUT);
+        creatorB.join(TIMEOUT);
+
+        // each thread waits for the instance created by the other one: the cycle must be
+        // detected instead of dead locking
+        assertFalse(creatorA.isAlive());
+        assertFalse(creatorB.isAlive());
+        assertTrue(creatorA.error instanceof CircularDependencyException
+                   || creatorB.error instanceof CircularDependencyException);
+    }
+
+    @Test
+    public void testConcurrentServiceCreation() throws Exception {
+        final TestBlueprintContainer container = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl());
+        final BlueprintRepository repository = container.getRepository();
+        final CountDownLatch beanStarted = new CountDownLatch(1);
+        final CountDownLatch otherStarted = new CountDownLatch(1);
+        WaitingRecipe bean = new WaitingRecipe("bean", beanStarted, otherStarted);
+        final ServiceRecipe service = new ServiceRecipe("service", container, new ServiceMetadataImpl(), bean, null, null, null);
+        // a bean which, on another thread, asks for the service while it is being created
+        WaitingRecipe other = new WaitingRecipe("other", otherStarted, beanStarted) {
+            protected Object next() {
+                return service.getService(container.getBundleContext().getBundle(), null);
+            }
+        };
+        bean.next = other;
+        repository.putRecipe("service", service);
+        repository.putRecipe("bean", bean);
+        repository.putRecipe("other", other);
+
+        Creator creatorService = new Creator(repository, "service");
+        Creator creatorOther = new Creator(repository, "other");
+        creatorService.start();
+        creatorOther.start();
+        creatorService.join(TIMEOUT);
+        creatorOther.join(TIMEOUT);
+
+        assertFalse(creatorService.isAlive());
+        assertFalse(creatorOther.isAlive());
+        assertTrue(creatorService.error instanceof CircularDependencyException
+                   || creatorOther.error instanceof CircularDependencyException);
+    }
+
+    @Test
+    public void testServiceCreatedOnce() throws Exception {
+        final TestBlueprintContainer container = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl());
+        final BlueprintRepository repository = container.getRepository();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int[] count = new int[1];
+        WaitingRecipe bean = new WaitingRecipe("bean", started, release) {
+            protected Object next() {
+                synchronized (count) {
+                    count[0]++;
+                }
+                return "bean";
+            }
+        };
+        // the bean itself is a prototype, so that only the service recipe prevents it from being created twice
+        bean.setPrototype(true);
+        final ServiceRecipe service = new ServiceRecipe("service", container, new ServiceMetadataImpl(), bean, null, null, null);
+        repository.putRecipe("bean", bean);
+
+        Thread[] threads = new Thread[4];
+        final Object[] results = new Object[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    results[index] = service.getService(container.getBundleContext().getBundle(), null);
+                }
+            };
+            threads[i].start();
+        }
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(1, count[0]);
+        for (Object result : results) {
+            assertEquals("bean", result);
+        }
+    }
+
+    @Test
+    public void testServiceObjectIsNotAComponent() throws Exception {
+        TestBlueprintContainer container = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl());
+        BlueprintRepository repository = container.getRepository();
+        Recipe bean = new PassThroughRecipe("bean", "bean");
+        ServiceRecipe service = new ServiceRecipe("service", container, new ServiceMetadataImpl(), bean, null, null, null);
+        repository.putRecipe("bean", bean);
+        repository.putRecipe("service", service);
+
+        assertEquals("bean", service.getService(container.getBundleContext().getBundle(), null));
+        for (String name : repository.getNames()) {
+            assertNotNull(repository.getRecipe(name));
+        }
+        assertNull(repository.getInstance("service"));
+        try {
+            repository.create("service#service");
+            fail("Expected NoSuchComponentException");
+        } catch (NoSuchComponentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIndependentGroups() throws Exception {
+        BlueprintRepository repository = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl()).getRepository();
+        Recipe container = new PassThroughRecipe("container", "container");
+        Recipe p = new DependentRecipe("p");
+        Recipe q = new DependentRecipe("q");
+        repository.putRecipe("a", new DependentRecipe("a", p));
+        repository.putRecipe("b", new DependentRecipe("b", container));
+        repository.putRecipe("c", new DependentRecipe("c", q));
+        repository.putRecipe("d", new DependentRecipe("d", container));
+        // e links the groups of a and c
+        repository.putRecipe("e", new DependentRecipe("e", new DependentRecipe("f", q), p));
+
+        List<List<String>> groups = new DependencyGraph(repository).getIndependentGroups(Arrays.asList("a", "b", "c", "d", "e"));
+        assertEquals(Arrays.asList(Arrays.asList("a", "c", "e"), Arrays.asList("b"), Arrays.asList("d")), groups);
+    }
+
+    @Test
+    public void testIndependentGroupsCreatedConcurrently() throws Exception {
+        BlueprintRepository repository = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl()).getRepository();
+        CountDownLatch aStarted = new CountDownLatch(1);
+        CountDownLatch bStarted = new CountDownLatch(1);
+        // each one only completes once the other one has started
+        repository.putRecipe("a", new WaitingRecipe("a", aStarted, bStarted) {
+            protected Object next() {
+                return "a";
+            }
+        });
+        repository.putRecipe("b", new WaitingRecipe("b", bStarted, aStarted) {
+            protected Object next() {
+                return "b";
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Map<String, Object> objects = repository.createAll(Arrays.asList("a", "b"), executor);
+            assertEquals("a", objects.get("a"));
+            assertEquals("b", objects.get("b"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGroupsRejectedByExecutorCreatedByCaller() throws Exception {
+        BlueprintRepository repository = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl()).getRepository();
+        repository.putRecipe("a", new DependentRecipe("a"));
+        repository.putRecipe("b", new DependentRecipe("b"));
+        Map<String, Object> objects = repository.createAll(Arrays.asList("a", "b"), new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        assertEquals("a", objects.get("a"));
+        assertEquals("b", objects.get("b"));
+        assertEquals("a", repository.getInstance("a"));
+    }
+
+    @Test
+    public void testConcurrentCreationFailure() throws Exception {
+        BlueprintRepository repository = new TestBlueprintContainer(new ComponentDefinitionRegistryImpl()).getRepository();
+        repository.putRecipe("a", new DependentRecipe("a"));
+        repository.putRecipe("b", new DependentRecipe("b") {
+            protected Object internalCreate() throws ComponentDefinitionException {
+                throw new ComponentDefinitionException("b failed");
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            repository.createAll(Arrays.asList("a", "b"), executor);
+            fail("The creation of b must fail");
+        } catch (ComponentDefinitionException e) {
+            assertEquals("b failed", e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A singleton recipe creating its name, after its dependencies.
+     */
+    private static class DependentRecipe extends AbstractRecipe {
+
+        private final List<Recipe> dependencies;
+
+        DependentRecipe(String name, Recipe... dependencies) {
+            super(name);
+            this.dependencies = Arrays.asList(dependencies);
+            setPrototype(false);
+        }
+
+        protected Object internalCreate() throws ComponentDefinitionException {
+            for (Recipe dependency : dependencies) {
+                dependency.create();
+            }
+            return getName();
+        }
+
+        public List<Recipe> getDependencies() {
+            return dependencies;
+        }
+    }
+
+    /**
+     * A singleton recipe which signals that its creation started and waits for
+     * another one to start before carrying on.
+     */
+    private static class WaitingRecipe extends AbstractRecipe {
+
+        private final CountDownLatch started;
+        private final CountDownLatch other;
+        Recipe next;
+
+        WaitingRecipe(String name, CountDownLatch started, CountDownLatch other) {
+            super(name);
+            this.started = started;
+            this.other = other;
+            setPrototype(false);
+        }
+
+        protected Object internalCreate() throws ComponentDefinitionException {
+            started.countDown();
+            try {
+                if (!other.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new ComponentDefinitionException("Timeout while creating " + getName());
+                }
+            } catch (InterruptedException e) {
+                throw new ComponentDefinitionException(e);
+            }
+            return next();
+        }
+
+        protected Object next() {
+            return next.create();
+        }
+
+        public List<Recipe> getDependencies() {
+            return Collections.emptyList();
+        }
+    }
+
+    private static class Creator extends Thread {
+
+        private final BlueprintRepository repository;
+        private final String name;
+        volatile Throwable error;
+
+        Creator(BlueprintRepository repository, String name) {
+            this.repository = repository;
+            this.name = name;
+        }
+
+        public void run() {
+            try {
+                repository.create(name);
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.container;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+import org.apache.aries.blueprint.ExtendedServiceReferenceMetadata;
+import org.apache.aries.blueprint.TestBundleContext;
+import org.apache.aries.blueprint.container.AbstractServiceReferenceRecipe.AsmProxyFactory;
+import org.apache.aries.blueprint.container.AbstractServiceReferenceRecipe.CgLibProxyFactory;
+import org.apache.aries.blueprint.reflect.ReferenceMetadataImpl;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.blueprint.reflect.ReferenceMetadata;
+
+public class ReferenceRecipeTest {
+
+    @Test
+    public void testRebind() throws Exception {
+        final TestServiceReference ref1 = new TestServiceReference(1);
+        final TestServiceReference ref2 = new TestServiceReference(2);
+        final RecordingBundleContext context = new RecordingBundleContext(ref1);
+        context.services.put(ref1, "service1");
+        context.services.put(ref2, "service2");
+
+        ReferenceMetadataImpl metadata = new ReferenceMetadataImpl();
+        metadata.setFilter("(name=test)");
+        metadata.setAvailability(ReferenceMetadata.AVAILABILITY_OPTIONAL);
+        BlueprintContainerImpl container = new BlueprintContainerImpl(context, null, null, null, null, null);
+        final ReferenceRecipe recipe = new ReferenceRecipe("ref", container, metadata, null, null);
+        final ReferenceRecipe.ServiceDispatcher dispatcher = recipe.new ServiceDispatcher();
+
+        recipe.start(new SatisfiableRecipe.SatisfactionListener() {
+            public void notifySatisfaction(SatisfiableRecipe satisfiable) {
+            }
+        });
+        assertEquals("service1", dispatcher.call());
+        assertEquals("service1", dispatcher.call());
+        assertEquals(1, context.gets.size());
+
+        // While the old service is being released, the recipe must already hand out the new one
+        context.onUnget = new Runnable() {
+            public void run() {
+                try {
+                    assertEquals("service2", dispatcher.call());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        recipe.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, ref2));
+        recipe.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, ref1));
+
+        assertEquals(1, context.ungets.size());
+        assertSame(ref1, context.ungets.get(0));
+        assertEquals("service2", dispatcher.call());
+        assertEquals(2, context.gets.size());
+        assertSame(ref2, context.gets.get(1));
+
+        context.onUnget = null;
+        recipe.stop();
+        assertEquals(2, context.ungets.size());
+        assertSame(ref2, context.ungets.get(1));
+    }
+
+    @Test
+    public void testGeneratedProxiesForInterfaces() throws Exception {
+        ReferenceMetadataImpl metadata = new ReferenceMetadataImpl();
+        metadata.setInterface(List.class.getName());
+        assertTrue(createRecipe(metadata).getProxyFactory() instanceof AsmProxyFactory);
+    }
+
+    @Test
+    public void testClassProxyingUsesCglib() throws Exception {
+        // the service classes may be proxied, which the generated proxies would silently drop
+        ReferenceMetadataImpl metadata = new ReferenceMetadataImpl();
+        metadata.setInterface(List.class.getName());
+        metadata.setProxyMethod(ExtendedServiceReferenceMetadata.PROXY_METHOD_CLASSES);
+        assertTrue(createRecipe(metadata).getProxyFactory() instanceof CgLibProxyFactory);
+    }
+
+    private static ReferenceRecipe createRecipe(ReferenceMetadataImpl metadata) {
+        final Bundle bundle = (Bundle) Proxy.newProxyInstance(ReferenceRecipeTest.class.getClassLoader(),
+                new Class[] { Bundle.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("loadClass")) {
+                            return ReferenceRecipeTest.class.getClassLoader().loadClass((String) args[0]);
+                        }
+                        return null;
+                    }
+                });
+        RecordingBundleContext context = new RecordingBundleContext() {
+            @Override
+            public Bundle getBundle() {
+                return bundle;
+            }
+        };
+        BlueprintContainerImpl container = new BlueprintContainerImpl(context, null, null, null, null, null);
+        return new ReferenceRecipe("ref", container, metadata, null, null);
+    }
+
+    private static class RecordingBundleContext extends TestBundleContext {
+
+        final ServiceReference[] initialReferences;
+        final Map<ServiceReference, Object> services = new HashMap<ServiceReference, Object>();
+        final List<ServiceReference> gets = new ArrayList<ServiceReference>();
+        final List<ServiceReference> ungets = new ArrayList<ServiceReference>();
+        Runnable onUnget;
+
+        RecordingBundleContext(ServiceReference... initialReferences) {
+            this.initialReferences = initialReferences;
+        }
+
+        @Override
+        public ServiceReference[] getServiceReferences(String clazz, String filter) {
+            return initialReferences;
+        }
+
+        @Override
+        public Object getService(ServiceReference reference) {
+            gets.add(reference);
+            return services.get(reference);
+        }
+
+        @Override
+        public boolean ungetService(ServiceReference reference) {
+            ungets.add(reference);
+            if (onUnget != null) {
+                onUnget.run();
+            }
+            return true;
+        }
+    }
+
+    private static class TestServiceReference implements ServiceReference {
+
+        private final Map<String, Object> properties = new HashMap<String, Object>();
+
+        TestServiceReference(long id) {
+            properties.put(Constants.SERVICE_ID, id);
+        }
+
+        public Object getProperty(String key) {
+            return properties.get(key);
+        }
+
+        public String[] getPropertyKeys() {
+            return properties.keySet().toArray(new String[properties.size()]);
+        }
+
+        public Bundle getBundle() {
+            return null;
+        }
+
+        public Bundle[] getUsingBundles() {
+            return null;
+        }
+
+        public boolean isAssignableTo(Bundle bundle, String className) {
+            return true;
+        }
+
+        public int compareTo(Object reference) {
+            return 0;
+        }
+    }
+}
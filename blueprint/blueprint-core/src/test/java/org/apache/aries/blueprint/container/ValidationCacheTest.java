@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.container;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+import org.apache.aries.blueprint.NamespaceHandler;
+import org.apache.aries.blueprint.namespace.ComponentDefinitionRegistryImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.service.blueprint.reflect.BeanMetadata;
+import org.osgi.service.blueprint.reflect.Target;
+
+public class ValidationCacheTest {
+
+    private static final String NS = "http://test.apache.org/schemas/test";
+
+    private File directory;
+    private Bundle bundle;
+    private long lastModified = 1000L;
+    private ValidationCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("validation", "");
+        directory.delete();
+        directory.mkdirs();
+        bundle = (Bundle) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Bundle.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getBundleId")) {
+                    return 5L;
+                } else if (method.getName().equals("getLastModified")) {
+                    return lastModified;
+                }
+                return null;
+            }
+        });
+        cache = new ValidationCache(new File(directory, "cache"), bundle);
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        File xml = write("blueprint.xml", "<blueprint/>");
+        List<URL> resources = Collections.singletonList(xml.toURI().toURL());
+        String key = cache.getKey(bundle, resources, null);
+        assertNotNull(key);
+        assertFalse(cache.isValidated(bundle, key));
+
+        cache.setValidated(bundle, key);
+        assertTrue(cache.isValidated(bundle, key));
+        assertEquals(key, cache.getKey(bundle, resources, null));
+
+        // a change in the content changes the key
+        write("blueprint.xml", "<blueprint></blueprint>");
+        String newKey = cache.getKey(bundle, resources, null);
+        assertFalse(key.equals(newKey));
+        assertFalse(cache.isValidated(bundle, newKey));
+
+        // an updated bundle does not match the entry any more
+        cache.setValidated(bundle, newKey);
+        lastModified++;
+        assertFalse(cache.isValidated(bundle, newKey));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        File xml = write("blueprint.xml", "<blueprint/>");
+        String key = cache.getKey(bundle, Collections.singletonList(xml.toURI().toURL()), null);
+        cache.setValidated(bundle, key);
+        assertTrue(cache.isValidated(bundle, key));
+
+        cache.invalidate(bundle);
+        assertFalse(cache.isValidated(bundle, key));
+    }
+
+    @Test
+    public void testIncludedSchemas() throws Exception {
+        File xml = write("blueprint.xml", "<blueprint xmlns:t=\"" + NS + "\"/>");
+        File schema = write("test.xsd", "<xsd:schema xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"" + NS + "\">"
+                                      + "<xsd:include schemaLocation=\"included.xsd\"/></xsd:schema>");
+        write("included.xsd", "<xsd:schema xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"" + NS + "\"/>");
+        List<URL> resources = Collections.singletonList(xml.toURI().toURL());
+        NamespaceHandlerRegistry.NamespaceHandlerSet handlers = createHandlerSet(schema.toURI().toURL());
+
+        String key = cache.getKey(bundle, resources, handlers);
+        assertNotNull(key);
+        assertEquals(key, cache.getKey(bundle, resources, handlers));
+
+        write("included.xsd", "<xsd:schema xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"" + NS + "\">"
+                            + "<xsd:element name=\"test\"/></xsd:schema>");
+        assertFalse(key.equals(cache.getKey(bundle, resources, handlers)));
+    }
+
+    @Test
+    public void testParsedMetadata() throws Exception {
+        URL xml = getClass().getResource("/test.xml");
+        List<URL> resources = Collections.singletonList(xml);
+        String key = cache.getKey(bundle, resources, null);
+        assertNull(cache.getParsedMetadata(bundle, key, false));
+
+        ComponentDefinitionRegistryImpl registry = new ComponentDefinitionRegistryImpl();
+        Parser parser = new Parser();
+        parser.parse(resources);
+        parser.populate(null, registry);
+        ParsedMetadata metadata = ParsedMetadata.capture(registry);
+        assertNotNull(metadata);
+        cache.setParsedMetadata(bundle, key, false, metadata);
+
+        // not validated
+        assertNull(cache.getParsedMetadata(bundle, key, true));
+        assertFalse(cache.isValidated(bundle, key));
+        ParsedMetadata cached = cache.getParsedMetadata(bundle, key, false);
+        assertNotNull(cached);
+
+        ComponentDefinitionRegistryImpl restored = new ComponentDefinitionRegistryImpl();
+        cached.populate(restored);
+        assertEquals(new ArrayList<String>(registry.getComponentDefinitionNames()),
+                     new ArrayList<String>(restored.getComponentDefinitionNames()));
+        assertEquals(registry.getTypeConverters().size(), restored.getTypeConverters().size());
+        for (int i = 0; i < registry.getTypeConverters().size(); i++) {
+            Target expected = registry.getTypeConverters().get(i);
+            Target actual = restored.getTypeConverters().get(i);
+            assertEquals(expected.getClass(), actual.getClass());
+            if (expected instanceof BeanMetadata) {
+                assertSame(actual, restored.getComponentDefinition(((BeanMetadata) actual).getId()));
+            }
+        }
+        assertTrue(Arrays.equals(toBytes(metadata), toBytes(ParsedMetadata.capture(restored))));
+
+        cache.setParsedMetadata(bundle, key, true, metadata);
+        assertNotNull(cache.getParsedMetadata(bundle, key, true));
+        assertTrue(cache.isValidated(bundle, key));
+    }
+
+    private NamespaceHandlerRegistry.NamespaceHandlerSet createHandlerSet(final URL schema) {
+        final NamespaceHandler handler = (NamespaceHandler) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { NamespaceHandler.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getSchemaLocation") ? schema : null;
+            }
+        });
+        return (NamespaceHandlerRegistry.NamespaceHandlerSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { NamespaceHandlerRegistry.NamespaceHandlerSet.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getNamespaces")) {
+                    return Collections.singleton(URI.create(NS));
+                } else if (method.getName().equals("getNamespaceHandler")) {
+                    return handler;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static byte[] toBytes(ParsedMetadata metadata) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        metadata.write(out);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
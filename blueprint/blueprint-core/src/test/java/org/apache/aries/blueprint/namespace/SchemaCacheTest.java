@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.namespace;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.validation.Schema;
+
+import static org.junit.Assert.*;
+
+import org.apache.aries.blueprint.NamespaceHandler;
+import org.apache.aries.blueprint.ParserContext;
+import org.junit.Test;
+import org.osgi.service.blueprint.reflect.ComponentMetadata;
+import org.osgi.service.blueprint.reflect.Metadata;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class SchemaCacheTest {
+
+    private static final URI NS = URI.create("http://cache.org");
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        NamespaceHandlerRegistryImpl.SchemaCache cache = new NamespaceHandlerRegistryImpl.SchemaCache(2, true);
+        Map<URI, NamespaceHandler> handlers = handlers();
+        Schema schema = cache.get(handlers);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // an equal set of handlers finds the compiled schema
+        assertSame(schema, cache.get(Collections.singletonMap(NS, handlers.get(NS))));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedAtCapacity() throws Exception {
+        NamespaceHandlerRegistryImpl.SchemaCache cache = new NamespaceHandlerRegistryImpl.SchemaCache(2, true);
+        Map<URI, NamespaceHandler> a = handlers();
+        Map<URI, NamespaceHandler> b = handlers();
+        Map<URI, NamespaceHandler> c = handlers();
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getMisses());
+
+        // the schema just inserted is kept, b was the least recently used one
+        cache.get(c);
+        cache.get(a);
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        cache.get(b);
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testRemoveSchemasForHandler() throws Exception {
+        NamespaceHandlerRegistryImpl.SchemaCache cache = new NamespaceHandlerRegistryImpl.SchemaCache(2, true);
+        Map<URI, NamespaceHandler> handlers = handlers();
+        cache.get(handlers);
+        cache.removeSchemasFor(handlers.get(NS));
+        assertEquals(0, cache.size());
+        cache.get(handlers);
+        assertEquals(2, cache.getMisses());
+    }
+
+    private static Map<URI, NamespaceHandler> handlers() {
+        return Collections.<URI, NamespaceHandler>singletonMap(NS, new TestNamespaceHandler());
+    }
+
+    private static class TestNamespaceHandler implements NamespaceHandler {
+
+        public URL getSchemaLocation(String namespace) {
+            return getClass().getResource("/cache.xsd");
+        }
+
+        public Set<Class> getManagedClasses() {
+            return Collections.emptySet();
+        }
+
+        public Metadata parse(Element element, ParserContext context) {
+            return null;
+        }
+
+        public ComponentMetadata decorate(Node node, ComponentMetadata component, ParserContext context) {
+            return component;
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.aries.blueprint.Interceptor;
+import org.apache.aries.blueprint.namespace.ComponentDefinitionRegistryImpl;
+import org.apache.aries.blueprint.reflect.BeanMetadataImpl;
+import org.osgi.service.blueprint.reflect.ComponentMetadata;
+import org.junit.Test;
+
+public class CollaboratorTest
+{
+  public interface Service
+  {
+    String call(String arg) throws IOException;
+  }
+
+  /** Not public, so the delegate is invoked through an accessible copy of the method */
+  private static class ServiceImpl implements Service
+  {
+    private final List<String> events;
+    private Throwable failure;
+
+    ServiceImpl(List<String> events)
+    {
+      this.events = events;
+    }
+
+    public String call(String arg) throws IOException
+    {
+      events.add("call " + arg);
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      return "result " + arg;
+    }
+  }
+
+  private static class RecordingInterceptor implements Interceptor
+  {
+    private final String name;
+    private final int rank;
+    private final List<String> events;
+    private Object token;
+    private RuntimeException preCallFailure;
+    private RuntimeException postCallFailure;
+
+    RecordingInterceptor(String name, int rank, List<String> events)
+    {
+      this.name = name;
+      this.rank = rank;
+      this.events = events;
+    }
+
+    public Object preCall(ComponentMetadata cm, Method m, Object... parameters) throws Throwable
+    {
+      events.add("pre " + name);
+      if (preCallFailure != null) {
+        throw preCallFailure;
+      }
+      return token;
+    }
+
+    public void postCallWithReturn(ComponentMetadata cm, Method m, Object returnType, Object preCallToken) throws Throwable
+    {
+      events.add("post " + name + " " + returnType + " " + preCallToken);
+      if (postCallFailure != null) {
+        throw postCallFailure;
+      }
+    }
+
+    public void postCallWithException(ComponentMetadata cm, Method m, Throwable ex, Object preCallToken) throws Throwable
+    {
+      events.add("exception " + name + " " + ex.getMessage() + " " + preCallToken);
+    }
+
+    public int getRank()
+    {
+      return rank;
+    }
+  }
+
+  private final List<String> events = new ArrayList<String>();
+  private final ServiceImpl service = new ServiceImpl(events);
+
+  private Object invoke(Interceptor... interceptors) throws Throwable
+  {
+    Collaborator collaborator = new Collaborator(null, Arrays.asList(interceptors), service);
+    Method method = Service.class.getMethod("call", String.class);
+    return collaborator.invoke(null, method, new Object[] { "a" });
+  }
+
+  @Test
+  public void testInterceptorsAreCalledInListOrder() throws Throwable
+  {
+    RecordingInterceptor low = new RecordingInterceptor("low", 1, events);
+    RecordingInterceptor high = new RecordingInterceptor("high", 10, events);
+    RecordingInterceptor middle = new RecordingInterceptor("middle", 5, events);
+
+    assertEquals("result a", invoke(low, high, middle));
+    assertEquals(Arrays.asList("pre low", "pre high", "pre middle", "call a",
+        "post middle result a null", "post high result a null", "post low result a null"), events);
+  }
+
+  @Test
+  public void testRegisteredInterceptorsAreCalledByDescendingRank() throws Throwable
+  {
+    ComponentMetadata cm = new BeanMetadataImpl();
+    ComponentDefinitionRegistryImpl registry = new ComponentDefinitionRegistryImpl();
+    registry.registerInterceptorWithComponent(cm, new RecordingInterceptor("low", 1, events));
+    registry.registerInterceptorWithComponent(cm, new RecordingInterceptor("high", 10, events));
+    registry.registerInterceptorWithComponent(cm, new RecordingInterceptor("first", 5, events));
+    registry.registerInterceptorWithComponent(cm, new RecordingInterceptor("second", 5, events));
+
+    Collaborator collaborator = new Collaborator(cm, registry.getInterceptors(cm), service);
+    collaborator.invoke(null, Service.class.getMethod("call", String.class), new Object[] { "a" });
+    assertEquals(Arrays.asList("pre high", "pre first", "pre second", "pre low", "call a",
+        "post low result a null", "post second result a null", "post first result a null",
+        "post high result a null"), events);
+  }
+
+  @Test
+  public void testTokensAreReturnedToTheirInterceptor() throws Throwable
+  {
+    RecordingInterceptor first = new RecordingInterceptor("first", 2, events);
+    RecordingInterceptor second = new RecordingInterceptor("second", 1, events);
+    RecordingInterceptor third = new RecordingInterceptor("third", 0, events);
+    first.token = "t1";
+    third.token = "t3";
+
+    invoke(first, second, third);
+    assertEquals(Arrays.asList("pre first", "pre second", "pre third", "call a",
+        "post third result a t3", "post second result a null", "post first result a t1"), events);
+  }
+
+  @Test
+  public void testNoInterceptors() throws Throwable
+  {
+    assertEquals("result a", invoke());
+    assertEquals(Arrays.asList("call a"), events);
+  }
+
+  @Test
+  public void testCheckedExceptionFromDelegate() throws Throwable
+  {
+    RecordingInterceptor first = new RecordingInterceptor("first", 1, events);
+    RecordingInterceptor second = new RecordingInterceptor("second", 0, events);
+    second.token = "t2";
+    IOException failure = new IOException("io");
+    service.failure = failure;
+
+    try {
+      invoke(first, second);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(Arrays.asList("pre first", "pre second", "call a",
+        "exception second io t2", "exception first io null"), events);
+  }
+
+  @Test
+  public void testRuntimeExceptionFromDelegate() throws Throwable
+  {
+    RecordingInterceptor first = new RecordingInterceptor("first", 0, events);
+    IllegalStateException failure = new IllegalStateException("state");
+    service.failure = failure;
+
+    try {
+      invoke(first);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(Arrays.asList("pre first", "call a", "exception first state null"), events);
+  }
+
+  @Test
+  public void testPreCallFailureSkipsTheDelegate() throws Throwable
+  {
+    RecordingInterceptor first = new RecordingInterceptor("first", 2, events);
+    RecordingInterceptor second = new RecordingInterceptor("second", 1, events);
+    RecordingInterceptor third = new RecordingInterceptor("third", 0, events);
+    first.token = "t1";
+    IllegalArgumentException failure = new IllegalArgumentException("pre");
+    second.preCallFailure = failure;
+
+    try {
+      invoke(first, second, third);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(Arrays.asList("pre first", "pre second",
+        "exception second pre null", "exception first pre t1"), events);
+  }
+
+  @Test
+  public void testPostCallFailureIsPropagated() throws Throwable
+  {
+    RecordingInterceptor first = new RecordingInterceptor("first", 2, events);
+    RecordingInterceptor second = new RecordingInterceptor("second", 1, events);
+    RecordingInterceptor third = new RecordingInterceptor("third", 0, events);
+    IllegalArgumentException failure = new IllegalArgumentException("post");
+    second.postCallFailure = failure;
+
+    try {
+      invoke(first, second, third);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(Arrays.asList("pre first", "pre second", "pre third", "call a",
+        "post third result a null", "post second result a null", "exception first post null"), events);
+  }
+
+  @Test
+  public void testRepeatedCalls() throws Throwable
+  {
+    RecordingInterceptor first = new RecordingInterceptor("first", 0, events);
+    first.token = "t";
+    Collaborator collaborator = new Collaborator(null, Arrays.<Interceptor>asList(first), service);
+    Method method = Service.class.getMethod("call", String.class);
+
+    assertEquals("result a", collaborator.invoke(null, method, new Object[] { "a" }));
+    assertEquals("result b", collaborator.invoke(null, method, new Object[] { "b" }));
+    assertEquals(Arrays.asList("pre first", "call a", "post first result a t",
+        "pre first", "call b", "post first result b t"), events);
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.blueprint.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class InterfaceProxyGeneratorTest
+{
+
+  private static class SwitchingDispatcher implements Callable<Object>
+  {
+    private Object delegate;
+
+    public Object call() throws Exception
+    {
+      return delegate;
+    }
+  }
+
+  interface PackagePrivateInterface
+  {
+    String hidden();
+  }
+
+  public interface PublicSubInterface extends PackagePrivateInterface
+  {
+    void io() throws IOException;
+  }
+
+  private static class FailingDispatcher implements Callable<Object>
+  {
+    private final Exception exception;
+
+    FailingDispatcher(Exception exception)
+    {
+      this.exception = exception;
+    }
+
+    public Object call() throws Exception
+    {
+      throw exception;
+    }
+  }
+
+  @Test
+  public void testCallsAreDispatchedToCurrentDelegate() throws Exception
+  {
+    SwitchingDispatcher dispatcher = new SwitchingDispatcher();
+    List<String> first = new ArrayList<String>();
+    List<String> second = new ArrayList<String>();
+    dispatcher.delegate = first;
+
+    @SuppressWarnings("unchecked")
+    List<String> proxy = (List<String>) InterfaceProxyGenerator.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { List.class }, dispatcher);
+
+    proxy.add("a");
+    assertEquals(1, first.size());
+    assertEquals("a", proxy.get(0));
+
+    dispatcher.delegate = second;
+    assertTrue(proxy.isEmpty());
+    proxy.add("b");
+    assertEquals("b", second.get(0));
+    assertEquals(second.toString(), proxy.toString());
+    assertEquals(second.hashCode(), proxy.hashCode());
+  }
+
+  @Test
+  public void testExceptionsArePropagated() throws Exception
+  {
+    SwitchingDispatcher dispatcher = new SwitchingDispatcher();
+    dispatcher.delegate = new ArrayList<String>();
+    List<?> proxy = (List<?>) InterfaceProxyGenerator.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { List.class }, dispatcher);
+    try {
+      proxy.get(3);
+      fail("Expected an IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMethodsOfPackagePrivateSuperInterface() throws Exception
+  {
+    SwitchingDispatcher dispatcher = new SwitchingDispatcher();
+    dispatcher.delegate = new PublicSubInterface() {
+      public String hidden()
+      {
+        return "hidden";
+      }
+
+      public void io()
+      {
+      }
+    };
+    assertTrue(InterfaceProxyGenerator.canProxy(new Class<?>[] { PublicSubInterface.class }));
+    PublicSubInterface proxy = (PublicSubInterface) InterfaceProxyGenerator.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { PublicSubInterface.class }, dispatcher);
+    assertEquals("hidden", proxy.hidden());
+  }
+
+  @Test
+  public void testUndeclaredDispatcherExceptionsAreWrapped() throws Exception
+  {
+    InterruptedException interrupted = new InterruptedException();
+    List<?> proxy = (List<?>) InterfaceProxyGenerator.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { List.class }, new FailingDispatcher(interrupted));
+    try {
+      proxy.size();
+      fail("Expected an UndeclaredThrowableException");
+    } catch (UndeclaredThrowableException e) {
+      assertSame(interrupted, e.getCause());
+    }
+
+    IllegalStateException runtime = new IllegalStateException();
+    proxy = (List<?>) InterfaceProxyGenerator.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { List.class }, new FailingDispatcher(runtime));
+    try {
+      proxy.toString();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertSame(runtime, e);
+    }
+  }
+
+  @Test
+  public void testDeclaredDispatcherExceptionsArePropagated() throws Exception
+  {
+    IOException exception = new IOException();
+    PublicSubInterface proxy = (PublicSubInterface) InterfaceProxyGenerator.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { PublicSubInterface.class }, new FailingDispatcher(exception));
+    try {
+      proxy.io();
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertSame(exception, e);
+    }
+  }
+
+  @Test
+  public void testProxyClassesAreCached() throws Exception
+  {
+    ClassLoader loader = getClass().getClassLoader();
+    Class<?> c1 = InterfaceProxyGenerator.getProxyClass(loader, new Class<?>[] { List.class });
+    Class<?> c2 = InterfaceProxyGenerator.getProxyClass(loader, new Class<?>[] { List.class });
+    Class<?> c3 = InterfaceProxyGenerator.getProxyClass(loader, new Class<?>[] { Collection.class });
+    assertSame(c1, c2);
+    assertFalse(c1 == c3);
+  }
+
+  @Test
+  public void testCanProxy()
+  {
+    assertTrue(InterfaceProxyGenerator.canProxy(new Class<?>[] { List.class, Runnable.class }));
+    assertFalse(InterfaceProxyGenerator.canProxy(new Class<?>[] { ArrayList.class }));
+    assertFalse(InterfaceProxyGenerator.canProxy(new Class<?>[] {}));
+  }
+
+}
@@ -16,10 +16,19 @@
  */
 package org.apache.aries.jmx.agent;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
@@ -57,6 +66,14 @@ import org.osgi.util.tracker.ServiceTracker;
  */
 public class JMXAgentImpl implements JMXAgent {
 
+    /**
+     * Framework property setting the number of threads registering MBeans in parallel. Registrations are sequential
+     * when it is set to 1.
+     */
+    public static final String REGISTRATION_THREADS_PROPERTY = "org.apache.aries.jmx.registrationThreads";
+
+    private static final int DEFAULT_REGISTRATION_THREADS = 4;
+
     private ServiceTracker mbeanServiceTracker;
     /**
      * {@link MBeanHandler} store.
@@ -70,6 +87,12 @@ public class JMXAgentImpl implements JMXAgent {
      */
     private ExecutorService registrationExecutor;
 
+    /**
+     * Pool registering MBeans to several MBeanServers, or several MBeans, in parallel. Null when registrations are
+     * made by the registration executor itself.
+     */
+    private ExecutorService registrationPool;
+
     /**
      * Constructs new JMXAgent.
      * 
@@ -87,6 +110,13 @@ public class JMXAgentImpl implements JMXAgent {
     public void start() {
         logger.log(LogService.LOG_INFO, "Starting JMX OSGi agent");
         BundleContext bc = agentContext.getBundleContext();
+        int threads = getRegistrationThreads(bc);
+        if (threads > 1) {
+            // no core threads so that idle ones time out, the caller runs the tasks no thread is free for
+            registrationPool = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new JMXThreadFactory("JMX OSGi Agent Registration"),
+                    new CallerRunsPolicy());
+        }
         MBeanHandler frameworkHandler = new FrameworkMBeanHandler(bc, logger);
         frameworkHandler.open();
         mbeansHandlers.add(frameworkHandler);
@@ -119,56 +149,40 @@ public class JMXAgentImpl implements JMXAgent {
      * @see org.apache.aries.jmx.agent.JMXAgent#registerMBeans(javax.management.MBeanServer)
      */
     public void registerMBeans(final MBeanServer server) {
-        for (MBeanHandler mbeanHandler : mbeansHandlers) {
-            String name = mbeanHandler.getName();
-            StandardMBean mbean = mbeanHandler.getMbean();
-            if (mbean != null) {
-                try {
-                    logger.log(LogService.LOG_INFO, "Registering " + mbean.getMBeanInterface().getName()
-                            + " to MBeanServer " + server + " with name " + name);
-                    server.registerMBean(mbean, new ObjectName(name));
-                } catch (InstanceAlreadyExistsException e) {
-                    logger.log(LogService.LOG_ERROR, "MBean is already registered", e);
-                } catch (MBeanRegistrationException e) {
-                    logger.log(LogService.LOG_ERROR, "Can't register MBean", e);
-                } catch (NotCompliantMBeanException e) {
-                    logger.log(LogService.LOG_ERROR, "MBean is not compliant MBean", e);
-                } catch (MalformedObjectNameException e) {
-                    logger.log(LogService.LOG_ERROR, "Try to register with no valid objectname", e);
-                } catch (NullPointerException e) {
-                    logger.log(LogService.LOG_ERROR, "Name of objectname can't be null", e);
-                }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final MBeanHandler mbeanHandler : mbeansHandlers) {
+            if (mbeanHandler.getMbean() != null) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        registerMBean(server, mbeanHandler);
+                        return null;
+                    }
+                });
             }
         }
-
+        execute(tasks);
     }
 
     /**
      * @see org.apache.aries.jmx.agent.JMXAgent#unregisterMBeans(javax.management.MBeanServer)
      */
     public void unregisterMBeans(final MBeanServer server) {
-        for (MBeanHandler mBeanHandler : mbeansHandlers) {
-            try
-            {
-               String name = mBeanHandler.getName();
-               StandardMBean mbean = mBeanHandler.getMbean();
-               if (mbean != null) {
-                   logger.log(LogService.LOG_INFO, "Unregistering " + mbean.getMBeanInterface().getName()
-                         + " to MBeanServer " + server + " with name " + name);
-                   server.unregisterMBean(new ObjectName(name));
-               }
-            } catch (MBeanRegistrationException e) {
-               logger.log(LogService.LOG_ERROR, "Can't unregister MBean", e);
-            } catch (InstanceNotFoundException e) {
-               logger.log(LogService.LOG_ERROR, "Mbena doesn't exist in the repository", e);
-            } catch (MalformedObjectNameException e) {
-               logger.log(LogService.LOG_ERROR, "Try to unregister with no valid objectname", e);
-            } catch (NullPointerException e) {
-               logger.log(LogService.LOG_ERROR, "Name of objectname can't be null ", e);
-            } catch (Exception e) {
-               logger.log(LogService.LOG_ERROR, "Cannot unregister MBean: " + mBeanHandler, e);
-            } 
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final MBeanHandler mBeanHandler : mbeansHandlers) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    try {
+                        if (mBeanHandler.getMbean() != null) {
+                            unregisterMBean(server, mBeanHandler.getName());
+                        }
+                    } catch (Exception e) {
+                        logger.log(LogService.LOG_ERROR, "Cannot unregister MBean: " + mBeanHandler, e);
+                    }
+                    return null;
+                }
+            });
         }
+        execute(tasks);
     }
 
     /**
@@ -180,31 +194,16 @@ public class JMXAgentImpl implements JMXAgent {
             logger.log(LogService.LOG_WARNING, "There are no MBean servers registred, can't register MBeans");
             return;
         }
-
-        for (Object server : servers) {
-            String name = mBeanHandler.getName();
-            StandardMBean mbean = mBeanHandler.getMbean();
-            try {
-                logger.log(LogService.LOG_INFO, "Registering " + mbean.getMBeanInterface().getName()
-                        + " to MBeanServer " + server + " with name " + name);
-                ((MBeanServer) server).registerMBean(mbean, new ObjectName(name));
-
-            } catch (InstanceAlreadyExistsException e) {
-                logger.log(LogService.LOG_ERROR, "MBean is already registered", e);
-            } catch (MBeanRegistrationException e) {
-                logger.log(LogService.LOG_ERROR, "Can't register MBean", e);
-            } catch (NotCompliantMBeanException e) {
-                logger.log(LogService.LOG_ERROR, "MBean is not compliant MBean, Stopping registration", e);
-                return;
-            } catch (MalformedObjectNameException e) {
-                logger.log(LogService.LOG_ERROR, "Try to register with no valid objectname, Stopping registration", e);
-                return;
-            } catch (NullPointerException e) {
-                logger.log(LogService.LOG_ERROR, "Name of objectname can't be null, Stopping registration", e);
-                return;
-            }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Object server : servers) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    registerMBean((MBeanServer) server, mBeanHandler);
+                    return null;
+                }
+            });
         }
-
+        execute(tasks);
     }
 
     /**
@@ -212,24 +211,89 @@ public class JMXAgentImpl implements JMXAgent {
      */
     public void unregisterMBean(final String name) {
         Object[] servers = getMBeanServers();
-        for (Object server : servers) {
+        if (servers == null) {
+            return;
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Object server : servers) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    unregisterMBean((MBeanServer) server, name);
+                    return null;
+                }
+            });
+        }
+        execute(tasks);
+    }
+
+    /*
+     * Registers the MBean of a handler to one MBeanServer
+     */
+    private void registerMBean(MBeanServer server, MBeanHandler mBeanHandler) {
+        String name = mBeanHandler.getName();
+        StandardMBean mbean = mBeanHandler.getMbean();
+        try {
+            logger.log(LogService.LOG_INFO, "Registering " + mbean.getMBeanInterface().getName()
+                    + " to MBeanServer " + server + " with name " + name);
+            server.registerMBean(mbean, new ObjectName(name));
+        } catch (InstanceAlreadyExistsException e) {
+            logger.log(LogService.LOG_ERROR, "MBean is already registered", e);
+        } catch (MBeanRegistrationException e) {
+            logger.log(LogService.LOG_ERROR, "Can't register MBean", e);
+        } catch (NotCompliantMBeanException e) {
+            logger.log(LogService.LOG_ERROR, "MBean is not compliant MBean", e);
+        } catch (MalformedObjectNameException e) {
+            logger.log(LogService.LOG_ERROR, "Try to register with no valid objectname", e);
+        } catch (NullPointerException e) {
+            logger.log(LogService.LOG_ERROR, "Name of objectname can't be null", e);
+        }
+    }
 
+    /*
+     * Unregisters an MBean from one MBeanServer
+     */
+    private void unregisterMBean(MBeanServer server, String name) {
+        try {
+            logger.log(LogService.LOG_INFO, "Unregistering mbean " + " to MBeanServer " + server + " with name "
+                    + name);
+            server.unregisterMBean(new ObjectName(name));
+        } catch (MBeanRegistrationException e) {
+            logger.log(LogService.LOG_ERROR, "Can't unregister MBean", e);
+        } catch (InstanceNotFoundException e) {
+            logger.log(LogService.LOG_ERROR, "Mbena doesn't exist in the repository", e);
+        } catch (MalformedObjectNameException e) {
+            logger.log(LogService.LOG_ERROR, "Try to unregister with no valid objectname", e);
+        } catch (NullPointerException e) {
+            logger.log(LogService.LOG_ERROR, "Name of objectname can't be null ", e);
+        }
+    }
+
+    /*
+     * Runs registration tasks on the registration pool and waits for all of them, so that the tasks submitted to the
+     * registration executor still complete in order. The tasks are run in the calling thread when there is no pool.
+     */
+    private void execute(List<Callable<Object>> tasks) {
+        ExecutorService pool = registrationPool;
+        if (pool != null && tasks.size() > 1) {
+            try {
+                for (Future<Object> future : pool.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        logger.log(LogService.LOG_ERROR, "MBean registration task failed", e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        for (Callable<Object> task : tasks) {
             try {
-                logger.log(LogService.LOG_INFO, "Unregistering mbean " + " to MBeanServer " + server + " with name "
-                        + name);
-                ((MBeanServer) server).unregisterMBean(new ObjectName(name));
-            } catch (MBeanRegistrationException e) {
-                logger.log(LogService.LOG_ERROR, "Can't register MBean", e);
-            } catch (InstanceNotFoundException e) {
-                logger.log(LogService.LOG_ERROR, "Mbena doesn't exist in the repository", e);
-            } catch (MalformedObjectNameException e) {
-                logger.log(LogService.LOG_ERROR, "Try to register with no valid objectname, Stopping registration", e);
-                return;
-            } catch (NullPointerException e) {
-                logger.log(LogService.LOG_ERROR, "Name of objectname can't be null, Stopping registration", e);
-                return;
+                task.call();
+            } catch (Exception e) {
+                logger.log(LogService.LOG_ERROR, "MBean registration task failed", e);
             }
-
         }
     }
 
@@ -243,6 +307,15 @@ public class JMXAgentImpl implements JMXAgent {
             mBeanHandler.close();
         }
         if (registrationExecutor != null && !registrationExecutor.isShutdown()) {
+            final ExecutorService pool = registrationPool;
+            if (pool != null) {
+                // the pool is used by the pending unregistrations, shut it down after them
+                registrationExecutor.submit(new Runnable() {
+                    public void run() {
+                        pool.shutdown();
+                    }
+                });
+            }
             registrationExecutor.shutdown();
         }
     }
@@ -261,6 +334,26 @@ public class JMXAgentImpl implements JMXAgent {
         this.agentContext = agentContext;
     }
 
+    /**
+     * Gets the number of threads registering MBeans, configured in the framework properties. Defaults to the number of
+     * processors, at most {@value #DEFAULT_REGISTRATION_THREADS}.
+     * 
+     * @param bundleContext
+     * @return the number of threads.
+     */
+    private static int getRegistrationThreads(BundleContext bundleContext) {
+        int threads = Math.min(DEFAULT_REGISTRATION_THREADS, Runtime.getRuntime().availableProcessors());
+        String value = bundleContext.getProperty(REGISTRATION_THREADS_PROPERTY);
+        if (value != null) {
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return threads;
+    }
+
     /**
      * Gets all MBeanServers from MBeanServiceTracker.
      * 
@@ -277,4 +370,16 @@ public class JMXAgentImpl implements JMXAgent {
         return registrationExecutor;
     }
 
+    /*
+     * Runs a task in the calling thread when no pool thread is free. Unlike ThreadPoolExecutor.CallerRunsPolicy it
+     * also runs it once the pool is shut down, as the caller waits for it.
+     */
+    private static class CallerRunsPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            task.run();
+        }
+
+    }
+
 }
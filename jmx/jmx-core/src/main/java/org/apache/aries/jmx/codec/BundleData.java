@@ -56,12 +56,14 @@ import static org.osgi.jmx.framework.BundleStateMBean.VALUE;
 import static org.osgi.jmx.framework.BundleStateMBean.VERSION;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import javax.management.JMRuntimeException;
 import javax.management.openmbean.CompositeData;
@@ -86,6 +88,25 @@ import org.osgi.service.startlevel.StartLevel;
  */
 public class BundleData {
 
+    /*
+     * The items of BUNDLE_TYPE, in the order of the values built by toCompositeData()
+     */
+    private static final String[] ITEM_NAMES = new String[] { EXPORTED_PACKAGES, FRAGMENT, FRAGMENTS, HOSTS,
+            IDENTIFIER, IMPORTED_PACKAGES, LAST_MODIFIED, LOCATION, PERSISTENTLY_STARTED, REGISTERED_SERVICES,
+            REMOVAL_PENDING, REQUIRED, REQUIRED_BUNDLES, REQUIRING_BUNDLES, SERVICES_IN_USE, START_LEVEL, STATE,
+            SYMBOLIC_NAME, VERSION, HEADERS };
+
+    private static final String[] HEADER_ITEM_NAMES = new String[] { KEY, VALUE };
+
+    /**
+     * The items of {@link BundleStateMBean#BUNDLE_TYPE} read from the wiring of the bundle through the
+     * <code>PackageAdmin</code>. The other items only need the <code>Bundle</code> and the <code>StartLevel</code>,
+     * see {@link #getItem(Bundle, StartLevel, String)}.
+     */
+    public static final Set<String> WIRING_ITEMS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            EXPORTED_PACKAGES, FRAGMENT, FRAGMENTS, HOSTS, IMPORTED_PACKAGES, REMOVAL_PENDING, REQUIRED,
+            REQUIRED_BUNDLES, REQUIRING_BUNDLES)));
+
     /**
      * @see BundleStateMBean#EXPORTED_PACKAGES_ITEM
      */
@@ -106,6 +127,12 @@ public class BundleData {
      */
     private List<Header> headers = new ArrayList<Header>();
 
+    /*
+     * The encoded headers, shared with the copies made by refresh(Bundle, StartLevel) as they only change when the
+     * bundle is updated
+     */
+    private volatile CompositeData[] headerRows;
+
     /**
      * @see BundleStateMBean#HOSTS_ITEM
      */
@@ -225,6 +252,46 @@ public class BundleData {
         this.version = bundle.getVersion().toString();
     }
 
+    /**
+     * Returns a copy of this <code>BundleData</code> in which the state, start level and service usage are read
+     * again from the bundle. The other properties only change with the bundle's lifecycle or wiring.
+     * 
+     * @param bundle
+     *            the bundle this <code>BundleData</code> was created for
+     * @param startLevel
+     * @return
+     * @throws IllegalArgumentException
+     *             if bundle is not the bundle of this <code>BundleData</code>
+     */
+    public BundleData refresh(Bundle bundle, StartLevel startLevel) throws IllegalArgumentException {
+        if (bundle == null || bundle.getBundleId() != this.identifier) {
+            throw new IllegalArgumentException("Argument bundle must be bundle [" + this.identifier + "]");
+        }
+        BundleData bundleData = new BundleData();
+        bundleData.exportedPackages = this.exportedPackages;
+        bundleData.fragment = this.fragment;
+        bundleData.fragments = this.fragments;
+        bundleData.headers = this.headers;
+        bundleData.headerRows = getHeaderRows();
+        bundleData.hosts = this.hosts;
+        bundleData.identifier = this.identifier;
+        bundleData.importedPackages = this.importedPackages;
+        bundleData.lastModified = this.lastModified;
+        bundleData.location = this.location;
+        bundleData.persistentlyStarted = startLevel.isBundlePersistentlyStarted(bundle);
+        bundleData.registeredServices = getRegisteredServiceIds(bundle);
+        bundleData.removalPending = this.removalPending;
+        bundleData.required = this.required;
+        bundleData.requiredBundles = this.requiredBundles;
+        bundleData.requiringBundles = this.requiringBundles;
+        bundleData.servicesInUse = getServicesInUseByBundle(bundle);
+        bundleData.bundleStartLevel = startLevel.getBundleStartLevel(bundle);
+        bundleData.state = getBundleState(bundle);
+        bundleData.symbolicName = this.symbolicName;
+        bundleData.version = this.version;
+        return bundleData;
+    }
+
     /**
      * Returns CompositeData representing a BundleData complete state typed by {@link BundleStateMBean#BUNDLE_TYPE}
      * 
@@ -232,33 +299,14 @@ public class BundleData {
      */
     public CompositeData toCompositeData() {
         CompositeData result = null;
-        Map<String, Object> items = new HashMap<String, Object>();
-        items.put(EXPORTED_PACKAGES, this.exportedPackages);
-        items.put(FRAGMENT, this.fragment);
-        items.put(FRAGMENTS, toLong(this.fragments));
-        items.put(HOSTS, toLong(this.hosts));
-        items.put(IDENTIFIER, this.identifier);
-        items.put(IMPORTED_PACKAGES, this.importedPackages);
-        items.put(LAST_MODIFIED, this.lastModified);
-        items.put(LOCATION, this.location);
-        items.put(PERSISTENTLY_STARTED, this.persistentlyStarted);
-        items.put(REGISTERED_SERVICES, toLong(this.registeredServices));
-        items.put(REMOVAL_PENDING, this.removalPending);
-        items.put(REQUIRED, this.required);
-        items.put(REQUIRED_BUNDLES, toLong(this.requiredBundles));
-        items.put(REQUIRING_BUNDLES, toLong(this.requiringBundles));
-        items.put(SERVICES_IN_USE, toLong(this.servicesInUse));
-        items.put(START_LEVEL, this.bundleStartLevel);
-        items.put(STATE, this.state);
-        items.put(SYMBOLIC_NAME, this.symbolicName);
-        items.put(VERSION, this.version);
-        TabularData headerTable = new TabularDataSupport(HEADERS_TYPE);
-        for (Header header : this.headers) {
-            headerTable.put(header.toCompositeData());
-        }
-        items.put(HEADERS, headerTable);
+        TabularData headerTable = toHeaderTable(getHeaderRows());
+        Object[] itemValues = new Object[] { this.exportedPackages, this.fragment, toLong(this.fragments),
+                toLong(this.hosts), this.identifier, this.importedPackages, this.lastModified, this.location,
+                this.persistentlyStarted, toLong(this.registeredServices), this.removalPending, this.required,
+                toLong(this.requiredBundles), toLong(this.requiringBundles), toLong(this.servicesInUse),
+                this.bundleStartLevel, this.state, this.symbolicName, this.version, headerTable };
         try {
-            result = new CompositeDataSupport(BUNDLE_TYPE, items);
+            result = new CompositeDataSupport(BUNDLE_TYPE, ITEM_NAMES, itemValues);
         } catch (OpenDataException e) {
             throw new IllegalStateException("Failed to create CompositeData for BundleData [" + this.identifier
                     + "]", e);
@@ -266,6 +314,132 @@ public class BundleData {
         return result;
     }
 
+    /**
+     * Returns the value of one item of {@link BundleStateMBean#BUNDLE_TYPE}, as put in the <code>CompositeData</code>
+     * returned by {@link #toCompositeData()}
+     * 
+     * @param item
+     * @return
+     * @throws IllegalArgumentException
+     *             if the item is not part of {@link BundleStateMBean#BUNDLE_TYPE}
+     */
+    public Object getItem(String item) throws IllegalArgumentException {
+        if (EXPORTED_PACKAGES.equals(item)) {
+            return this.exportedPackages;
+        } else if (FRAGMENT.equals(item)) {
+            return this.fragment;
+        } else if (FRAGMENTS.equals(item)) {
+            return toLong(this.fragments);
+        } else if (HOSTS.equals(item)) {
+            return toLong(this.hosts);
+        } else if (IMPORTED_PACKAGES.equals(item)) {
+            return this.importedPackages;
+        } else if (REMOVAL_PENDING.equals(item)) {
+            return this.removalPending;
+        } else if (REQUIRED.equals(item)) {
+            return this.required;
+        } else if (REQUIRED_BUNDLES.equals(item)) {
+            return toLong(this.requiredBundles);
+        } else if (REQUIRING_BUNDLES.equals(item)) {
+            return toLong(this.requiringBundles);
+        } else if (IDENTIFIER.equals(item)) {
+            return this.identifier;
+        } else if (LAST_MODIFIED.equals(item)) {
+            return this.lastModified;
+        } else if (LOCATION.equals(item)) {
+            return this.location;
+        } else if (PERSISTENTLY_STARTED.equals(item)) {
+            return this.persistentlyStarted;
+        } else if (REGISTERED_SERVICES.equals(item)) {
+            return toLong(this.registeredServices);
+        } else if (SERVICES_IN_USE.equals(item)) {
+            return toLong(this.servicesInUse);
+        } else if (START_LEVEL.equals(item)) {
+            return this.bundleStartLevel;
+        } else if (STATE.equals(item)) {
+            return this.state;
+        } else if (SYMBOLIC_NAME.equals(item)) {
+            return this.symbolicName;
+        } else if (VERSION.equals(item)) {
+            return this.version;
+        } else if (HEADERS.equals(item)) {
+            return toHeaderTable(getHeaderRows());
+        }
+        throw new IllegalArgumentException("Item [" + item + "] is not part of " + BUNDLE_TYPE.getTypeName());
+    }
+
+    /**
+     * Returns the value of one item of {@link BundleStateMBean#BUNDLE_TYPE} that is not one of the
+     * {@link #WIRING_ITEMS}, read directly from the bundle so that no <code>BundleData</code> has to be built
+     * 
+     * @param bundle
+     * @param startLevel
+     * @param item
+     * @return
+     * @throws IllegalArgumentException
+     *             if the item is not part of {@link BundleStateMBean#BUNDLE_TYPE} or is one of the
+     *             {@link #WIRING_ITEMS}
+     */
+    @SuppressWarnings("unchecked")
+    public static Object getItem(Bundle bundle, StartLevel startLevel, String item) throws IllegalArgumentException {
+        if (IDENTIFIER.equals(item)) {
+            return bundle.getBundleId();
+        } else if (LAST_MODIFIED.equals(item)) {
+            return bundle.getLastModified();
+        } else if (LOCATION.equals(item)) {
+            return bundle.getLocation();
+        } else if (PERSISTENTLY_STARTED.equals(item)) {
+            return startLevel.isBundlePersistentlyStarted(bundle);
+        } else if (REGISTERED_SERVICES.equals(item)) {
+            return toLong(getRegisteredServiceIds(bundle));
+        } else if (SERVICES_IN_USE.equals(item)) {
+            return toLong(getServicesInUseByBundle(bundle));
+        } else if (START_LEVEL.equals(item)) {
+            return startLevel.getBundleStartLevel(bundle);
+        } else if (STATE.equals(item)) {
+            return getBundleState(bundle);
+        } else if (SYMBOLIC_NAME.equals(item)) {
+            return bundle.getSymbolicName();
+        } else if (VERSION.equals(item)) {
+            return bundle.getVersion().toString();
+        } else if (HEADERS.equals(item)) {
+            Dictionary<String, String> bundleHeaders = bundle.getHeaders();
+            List<CompositeData> rows = new ArrayList<CompositeData>(bundleHeaders.size());
+            Enumeration<String> keys = bundleHeaders.keys();
+            while (keys.hasMoreElements()) {
+                String key = keys.nextElement();
+                rows.add(new Header(key, bundleHeaders.get(key)).toCompositeData());
+            }
+            return toHeaderTable(rows.toArray(new CompositeData[rows.size()]));
+        } else if (WIRING_ITEMS.contains(item)) {
+            throw new IllegalArgumentException("Item [" + item + "] is read from the wiring of the bundle");
+        }
+        throw new IllegalArgumentException("Item [" + item + "] is not part of " + BUNDLE_TYPE.getTypeName());
+    }
+
+    private static TabularData toHeaderTable(CompositeData[] rows) {
+        TabularData headerTable = new TabularDataSupport(HEADERS_TYPE, Math.max(16, rows.length * 4 / 3 + 1), 0.75f);
+        for (CompositeData row : rows) {
+            headerTable.put(row);
+        }
+        return headerTable;
+    }
+
+    /*
+     * Returns the encoded headers, computed once
+     */
+    private CompositeData[] getHeaderRows() {
+        CompositeData[] rows = headerRows;
+        if (rows == null) {
+            rows = new CompositeData[headers.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = headers.get(i).toCompositeData();
+            }
+            headerRows = rows;
+        }
+        return rows;
+    }
+
     /**
      * Constructs a <code>BundleData</code> object from the given <code>CompositeData</code>
      * 
@@ -417,11 +591,8 @@ public class BundleData {
 
         public CompositeData toCompositeData() throws JMRuntimeException {
             CompositeData result = null;
-            Map<String, Object> items = new HashMap<String, Object>();
-            items.put(KEY, key);
-            items.put(VALUE, value);
             try {
-                result = new CompositeDataSupport(HEADER_TYPE, items);
+                result = new CompositeDataSupport(HEADER_TYPE, HEADER_ITEM_NAMES, new Object[] { key, value });
             } catch (OpenDataException e) {
                 throw new JMRuntimeException("Failed to create CompositeData for header [" + key + ":" + value + "] - "
                         + e.getMessage());
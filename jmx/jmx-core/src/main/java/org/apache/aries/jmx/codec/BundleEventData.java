@@ -22,8 +22,6 @@ import static org.osgi.jmx.framework.BundleStateMBean.IDENTIFIER;
 import static org.osgi.jmx.framework.BundleStateMBean.LOCATION;
 import static org.osgi.jmx.framework.BundleStateMBean.SYMBOLIC_NAME;
 
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
@@ -43,6 +41,11 @@ import org.osgi.jmx.framework.BundleStateMBean;
  */
 public class BundleEventData {
 
+    /*
+     * The items of BUNDLE_EVENT_TYPE, in the order of the values built by toCompositeData()
+     */
+    private static final String[] ITEM_NAMES = new String[] { IDENTIFIER, SYMBOLIC_NAME, LOCATION, EVENT };
+
     /**
      * @see BundleStateMBean#IDENTIFIER_ITEM
      */
@@ -82,13 +85,9 @@ public class BundleEventData {
      */
     public CompositeData toCompositeData() {
         CompositeData result = null;
-        Map<String, Object> items = new HashMap<String, Object>();
-        items.put(IDENTIFIER, this.bundleId);
-        items.put(SYMBOLIC_NAME, this.bundleSymbolicName);
-        items.put(LOCATION, this.location);
-        items.put(EVENT, this.eventType);
+        Object[] itemValues = new Object[] { this.bundleId, this.bundleSymbolicName, this.location, this.eventType };
         try {
-            result = new CompositeDataSupport(BUNDLE_EVENT_TYPE, items);
+            result = new CompositeDataSupport(BUNDLE_EVENT_TYPE, ITEM_NAMES, itemValues);
         } catch (OpenDataException e) {
             throw new IllegalStateException("Failed to create CompositeData for BundleEvent for Bundle ["
                     + this.bundleId + "]", e);
@@ -16,8 +16,6 @@
  */
 package org.apache.aries.jmx.codec;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
 import javax.management.openmbean.CompositeData;
@@ -40,6 +38,13 @@ import org.osgi.service.packageadmin.ExportedPackage;
  */
 public class PackageData {
 
+    /*
+     * The items of PACKAGE_TYPE, in the order of the values built by toCompositeData()
+     */
+    private static final String[] ITEM_NAMES = new String[] { PackageStateMBean.EXPORTING_BUNDLES,
+            PackageStateMBean.IMPORTING_BUNDLES, PackageStateMBean.NAME, PackageStateMBean.REMOVAL_PENDING,
+            PackageStateMBean.VERSION };
+
     /**
      * {@link PackageStateMBean#EXPORTING_BUNDLES}
      */
@@ -100,13 +105,9 @@ public class PackageData {
      */
     public CompositeData toCompositeData() {
         try {
-            Map<String, Object> items = new HashMap<String, Object>();
-            items.put(PackageStateMBean.EXPORTING_BUNDLES, toLongArray(exportingBundles));
-            items.put(PackageStateMBean.IMPORTING_BUNDLES, toLongArray(importingBundles));
-            items.put(PackageStateMBean.NAME, name);
-            items.put(PackageStateMBean.REMOVAL_PENDING, removalPending);
-            items.put(PackageStateMBean.VERSION, version);
-            return new CompositeDataSupport(PackageStateMBean.PACKAGE_TYPE, items);
+            Object[] itemValues = new Object[] { toLongArray(exportingBundles), toLongArray(importingBundles), name,
+                    removalPending, version };
+            return new CompositeDataSupport(PackageStateMBean.PACKAGE_TYPE, ITEM_NAMES, itemValues);
         } catch (OpenDataException e) {
             throw new IllegalStateException("Can't create CompositeData" + e);
         }
@@ -34,8 +34,6 @@ import static org.osgi.jmx.JmxConstants.VALUE;
 import static org.osgi.jmx.JmxConstants.VECTOR_OF;
 
 import java.lang.reflect.Array;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
@@ -55,6 +53,11 @@ import org.osgi.jmx.JmxConstants;
  */
 public class PropertyData<T> {
 
+    /*
+     * The items of PROPERTY_TYPE, in the order of the values built by toCompositeData()
+     */
+    private static final String[] ITEM_NAMES = new String[] { KEY, VALUE, TYPE };
+
     /**
      * @see JmxConstants#KEY_ITEM
      */
@@ -233,12 +236,9 @@ public class PropertyData<T> {
      */
     public CompositeData toCompositeData() {
         CompositeData result = null;
-        Map<String, Object> items = new HashMap<String, Object>();
-        items.put(KEY, this.key);
-        items.put(VALUE, this.encodedValue);
-        items.put(TYPE, this.encodedType);
+        Object[] itemValues = new Object[] { this.key, this.encodedValue, this.encodedType };
         try {
-            result = new CompositeDataSupport(PROPERTY_TYPE, items);
+            result = new CompositeDataSupport(PROPERTY_TYPE, ITEM_NAMES, itemValues);
         } catch (OpenDataException e) {
             throw new IllegalStateException("Failed to create CompositeData for Property [" + this.key + ":" + this.value + "]", e);
         }
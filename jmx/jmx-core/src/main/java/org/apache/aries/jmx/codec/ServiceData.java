@@ -25,8 +25,6 @@ import static org.osgi.jmx.framework.ServiceStateMBean.OBJECT_CLASS;
 import static org.osgi.jmx.framework.ServiceStateMBean.SERVICE_TYPE;
 import static org.osgi.jmx.framework.ServiceStateMBean.USING_BUNDLES;
 
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
@@ -46,6 +44,12 @@ import org.osgi.jmx.framework.ServiceStateMBean;
  */
 public class ServiceData {
 
+    /*
+     * The items of SERVICE_TYPE, in the order of the values built by toCompositeData()
+     */
+    private static final String[] ITEM_NAMES = new String[] { IDENTIFIER, BUNDLE_IDENTIFIER, OBJECT_CLASS,
+            USING_BUNDLES };
+
     /**
      * @see ServiceStateMBean#IDENTIFIER_ITEM
      */
@@ -95,18 +99,15 @@ public class ServiceData {
      */
     public CompositeData toCompositeData() {
         CompositeData result = null;
-        Map<String, Object> items = new HashMap<String, Object>();
-        items.put(IDENTIFIER, this.serviceId);
-        items.put(BUNDLE_IDENTIFIER, this.bundleId);
-        items.put(OBJECT_CLASS, this.serviceInterfaces);
         //TabularData propertiesTable = new TabularDataSupport(PROPERTIES_TYPE);
         //for (PropertyData<? extends Object> propertyData : this.properties) {
         //    propertiesTable.put(propertyData.toCompositeData());
         //}
         // items.put(PROPERTIES, propertiesTable);
-        items.put(USING_BUNDLES, toLong(this.usingBundles));
+        Object[] itemValues = new Object[] { this.serviceId, this.bundleId, this.serviceInterfaces,
+                toLong(this.usingBundles) };
         try {
-            result = new CompositeDataSupport(SERVICE_TYPE, items);
+            result = new CompositeDataSupport(SERVICE_TYPE, ITEM_NAMES, itemValues);
         } catch (OpenDataException e) {
             throw new IllegalStateException("Failed to create CompositeData for ServiceReference with "
                     + Constants.SERVICE_ID + " [" + this.serviceId + "]", e);
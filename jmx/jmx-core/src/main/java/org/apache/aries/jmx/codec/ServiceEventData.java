@@ -24,8 +24,6 @@ import static org.osgi.jmx.framework.ServiceStateMBean.IDENTIFIER;
 import static org.osgi.jmx.framework.ServiceStateMBean.OBJECT_CLASS;
 import static org.osgi.jmx.framework.ServiceStateMBean.SERVICE_EVENT_TYPE;
 
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
@@ -47,6 +45,12 @@ import org.osgi.jmx.framework.ServiceStateMBean;
  */
 public class ServiceEventData {
 
+    /*
+     * The items of SERVICE_EVENT_TYPE, in the order of the values built by toCompositeData()
+     */
+    private static final String[] ITEM_NAMES = new String[] { IDENTIFIER, OBJECT_CLASS, BUNDLE_IDENTIFIER,
+            BUNDLE_LOCATION, BUNDLE_SYMBOLIC_NAME, EVENT };
+
     /**
      * @see ServiceStateMBean#IDENTIFIER_ITEM
      */
@@ -99,15 +103,10 @@ public class ServiceEventData {
      */
     public CompositeData toCompositeData() {
         CompositeData result = null;
-        Map<String, Object> items = new HashMap<String, Object>();
-        items.put(IDENTIFIER, this.serviceId);
-        items.put(OBJECT_CLASS, this.serviceInterfaces);
-        items.put(BUNDLE_IDENTIFIER, this.bundleId);
-        items.put(BUNDLE_LOCATION, this.bundleLocation);
-        items.put(BUNDLE_SYMBOLIC_NAME, this.bundleSymbolicName);
-        items.put(EVENT, this.eventType);
+        Object[] itemValues = new Object[] { this.serviceId, this.serviceInterfaces, this.bundleId,
+                this.bundleLocation, this.bundleSymbolicName, this.eventType };
         try {
-            result = new CompositeDataSupport(SERVICE_EVENT_TYPE, items);
+            result = new CompositeDataSupport(SERVICE_EVENT_TYPE, ITEM_NAMES, itemValues);
         } catch (OpenDataException e) {
             throw new IllegalStateException("Failed to create CompositeData for ServiceEvent for Service [" + this.serviceId + "]", e);
         }
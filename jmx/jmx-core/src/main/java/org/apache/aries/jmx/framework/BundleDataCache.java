@@ -0,0 +1,236 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jmx.framework;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.aries.jmx.codec.BundleData;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.startlevel.StartLevel;
+
+/**
+ * <p>
+ * Holds the <code>BundleData</code> of every bundle between calls to {@link BundleState#listBundles()}. Building a
+ * <code>BundleData</code> requires querying the <code>PackageAdmin</code> for the wiring of the bundle, which is costly
+ * with many bundles. The state, start level and services of a cached bundle are read again each time.
+ * </p>
+ * <p>
+ * The wiring of a bundle changes when it is resolved, unresolved, updated or uninstalled, and so does the wiring seen
+ * from the bundles wired to it: its fragments and hosts, the bundles it requires or that require it, and the bundles
+ * importing its packages or exporting the packages it imports. Such an event marks the bundle as changed and, before the
+ * cache is next read, the bundle and the cached bundles wired to it, before or after the change, are evicted. The other
+ * bundles stay cached.
+ * </p>
+ * <p>
+ * Packages imported through <code>DynamicImport-Package</code> are wired without any <code>BundleEvent</code>, so the
+ * data of bundles declaring that header is never cached. The packages a bundle exports, the bundles requiring it and its
+ * removal pending flag do not depend on dynamic imports.
+ * </p>
+ * <p>
+ * The cache is only used while it is {@link #setEnabled(boolean) enabled}, that is while events are delivered to
+ * {@link #bundleChanged(BundleEvent)}.
+ * </p>
+ *
+ * @version $Rev$ $Date$
+ */
+public class BundleDataCache {
+
+    private final BundleContext bundleContext;
+    private final PackageAdmin packageAdmin;
+    private final StartLevel startLevel;
+
+    // guarded by this
+    private final Map<Long, BundleData> bundleDatas = new HashMap<Long, BundleData>();
+    private final Set<Long> changedBundles = new LinkedHashSet<Long>();
+    private long generation;
+    private boolean enabled;
+
+    public BundleDataCache(BundleContext bundleContext, PackageAdmin packageAdmin, StartLevel startLevel) {
+        this.bundleContext = bundleContext;
+        this.packageAdmin = packageAdmin;
+        this.startLevel = startLevel;
+    }
+
+    /**
+     * Returns the current <code>BundleData</code> of a bundle
+     *
+     * @param bundle
+     * @return
+     */
+    public BundleData getBundleData(Bundle bundle) {
+        BundleData cached;
+        long expectedGeneration;
+        synchronized (this) {
+            if (!enabled) {
+                cached = null;
+                expectedGeneration = -1;
+            } else {
+                evictChangedBundles();
+                cached = bundleDatas.get(bundle.getBundleId());
+                expectedGeneration = generation;
+            }
+        }
+        if (cached != null) {
+            return cached.refresh(bundle, startLevel);
+        }
+        BundleData bundleData = new BundleData(bundleContext, bundle, packageAdmin, startLevel);
+        synchronized (this) {
+            // do not keep data computed while the wiring was changing
+            if (enabled && generation == expectedGeneration && isCacheable(bundle)) {
+                bundleDatas.put(bundle.getBundleId(), bundleData);
+            }
+        }
+        return bundleData;
+    }
+
+    /**
+     * Marks the bundle of the event as changed if the event may have changed its wiring
+     *
+     * @param event
+     */
+    public void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+        case BundleEvent.RESOLVED:
+        case BundleEvent.UNRESOLVED:
+        case BundleEvent.UPDATED:
+        case BundleEvent.UNINSTALLED:
+            synchronized (this) {
+                if (enabled) {
+                    changedBundles.add(event.getBundle().getBundleId());
+                    generation++;
+                }
+            }
+            break;
+        default:
+            // state, start level and services are always read again
+        }
+    }
+
+    /**
+     * Enables or disables the cache. The cache is cleared in both cases.
+     *
+     * @param enabled
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        bundleDatas.clear();
+        changedBundles.clear();
+        generation++;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of bundles cached
+     */
+    public synchronized int size() {
+        evictChangedBundles();
+        return bundleDatas.size();
+    }
+
+    /*
+     * Evicts the changed bundles and the cached bundles wired to them. The current data of a changed bundle is needed
+     * to find the bundles it has just been wired to, so it is cached again in place of the evicted one.
+     */
+    private synchronized void evictChangedBundles() {
+        if (changedBundles.isEmpty()) {
+            return;
+        }
+        Set<Long> evicted = new HashSet<Long>();
+        Set<String> packages = new HashSet<String>();
+        Map<Long, BundleData> current = new HashMap<Long, BundleData>();
+        for (Long id : changedBundles) {
+            evicted.add(id);
+            BundleData previous = bundleDatas.get(id);
+            if (previous != null) {
+                addWiring(previous, evicted, packages);
+            }
+            Bundle bundle = bundleContext.getBundle(id);
+            if (bundle != null && bundle.getState() != Bundle.UNINSTALLED) {
+                BundleData bundleData = new BundleData(bundleContext, bundle, packageAdmin, startLevel);
+                addWiring(bundleData, evicted, packages);
+                if (isCacheable(bundle)) {
+                    current.put(id, bundleData);
+                }
+            }
+        }
+        changedBundles.clear();
+        for (Iterator<BundleData> i = bundleDatas.values().iterator(); i.hasNext();) {
+            BundleData bundleData = i.next();
+            if (evicted.contains(bundleData.getIdentifier())
+                    || containsAny(packages, bundleData.getExportedPackages())
+                    || containsAny(packages, bundleData.getImportedPackages())) {
+                i.remove();
+            }
+        }
+        bundleDatas.putAll(current);
+    }
+
+    /*
+     * Adds the bundles and packages a bundle is wired through
+     */
+    private static void addWiring(BundleData bundleData, Set<Long> bundles, Set<String> packages) {
+        addAll(bundles, bundleData.getFragments());
+        addAll(bundles, bundleData.getHosts());
+        addAll(bundles, bundleData.getRequiredBundles());
+        addAll(bundles, bundleData.getRequiringBundles());
+        if (bundleData.getExportedPackages() != null) {
+            packages.addAll(Arrays.asList(bundleData.getExportedPackages()));
+        }
+        if (bundleData.getImportedPackages() != null) {
+            packages.addAll(Arrays.asList(bundleData.getImportedPackages()));
+        }
+    }
+
+    private static void addAll(Set<Long> set, long[] ids) {
+        if (ids != null) {
+            for (long id : ids) {
+                set.add(id);
+            }
+        }
+    }
+
+    private static boolean containsAny(Set<String> set, String[] values) {
+        if (values != null) {
+            for (String value : values) {
+                if (set.contains(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Packages imported dynamically are wired without any BundleEvent
+     */
+    private static boolean isCacheable(Bundle bundle) {
+        return bundle.getHeaders().get(Constants.DYNAMICIMPORT_PACKAGE) == null;
+    }
+}
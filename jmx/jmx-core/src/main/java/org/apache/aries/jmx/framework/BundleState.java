@@ -16,6 +16,9 @@
  */
 package org.apache.aries.jmx.framework;
 
+import static org.apache.aries.jmx.framework.EventBatcher.getBatchSize;
+import static org.apache.aries.jmx.framework.EventBatcher.getBatchWindow;
+import static org.apache.aries.jmx.framework.EventBatcher.getQueueSize;
 import static org.apache.aries.jmx.util.FrameworkUtils.getBundleDependencies;
 import static org.apache.aries.jmx.util.FrameworkUtils.getBundleExportedPackages;
 import static org.apache.aries.jmx.util.FrameworkUtils.getBundleImportedPackages;
@@ -28,16 +31,23 @@ import static org.apache.aries.jmx.util.FrameworkUtils.getServicesInUseByBundle;
 import static org.apache.aries.jmx.util.FrameworkUtils.isBundlePendingRemoval;
 import static org.apache.aries.jmx.util.FrameworkUtils.isBundleRequiredByOthers;
 import static org.apache.aries.jmx.util.FrameworkUtils.resolveBundle;
+import static org.apache.aries.jmx.util.Projection.getProjection;
+import static org.apache.aries.jmx.util.Projection.page;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -47,6 +57,7 @@ import javax.management.MBeanServer;
 import javax.management.Notification;
 import javax.management.NotificationBroadcasterSupport;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
 import javax.management.openmbean.TabularDataSupport;
 
@@ -55,11 +66,13 @@ import org.apache.aries.jmx.Logger;
 import org.apache.aries.jmx.codec.BundleData;
 import org.apache.aries.jmx.codec.BundleEventData;
 import org.apache.aries.jmx.codec.BundleData.Header;
+import org.apache.aries.jmx.util.Projection;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
-import org.osgi.jmx.framework.BundleStateMBean;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.service.startlevel.StartLevel;
@@ -70,14 +83,18 @@ import org.osgi.service.startlevel.StartLevel;
  * 
  * @version $Rev$ $Date$
  */
-public class BundleState extends NotificationBroadcasterSupport implements BundleStateMBean, MBeanRegistration {
+public class BundleState extends NotificationBroadcasterSupport implements BundleStateQueryMBean, MBeanRegistration {
 
     protected Logger logger;
     protected BundleContext bundleContext;
     protected PackageAdmin packageAdmin;
     protected StartLevel startLevel;
+    protected BundleDataCache bundleDataCache;
 
     protected ExecutorService eventDispatcher;
+    protected EventBatcher eventBatcher;
+    private long batchWindow;
+    private AtomicLong droppedEvents = new AtomicLong();
     protected BundleListener bundleListener;
     private AtomicInteger notificationSequenceNumber = new AtomicInteger(1);
     private Lock lock = new ReentrantLock();
@@ -91,6 +108,8 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
         this.packageAdmin = packageAdmin;
         this.startLevel = startLevel;
         this.logger = logger;
+        this.bundleDataCache = new BundleDataCache(bundleContext, packageAdmin, startLevel);
+        this.batchWindow = getBatchWindow(bundleContext);
     }
 
     /**
@@ -265,7 +284,7 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
         List<BundleData> bundleDatas = new ArrayList<BundleData>();
         if (containerBundles != null) {
             for (Bundle containerBundle : containerBundles) {
-                bundleDatas.add(new BundleData(bundleContext, containerBundle, packageAdmin, startLevel));
+                bundleDatas.add(bundleDataCache.getBundleData(containerBundle));
             } 
         }
         TabularData bundleTable = new TabularDataSupport(BUNDLES_TYPE);
@@ -275,11 +294,97 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
         return bundleTable;
     }
 
+    /**
+     * @see org.apache.aries.jmx.framework.BundleStateQueryMBean#listBundles(java.lang.String, int, int,
+     *      java.lang.String[])
+     */
+    @SuppressWarnings("unchecked")
+    public TabularData listBundles(String filter, int offset, int count, String[] items) throws IOException,
+            IllegalArgumentException {
+        Projection projection = getProjection(BUNDLES_TYPE, items);
+        Filter bundleFilter = null;
+        if (filter != null) {
+            try {
+                bundleFilter = bundleContext.createFilter(filter);
+            } catch (InvalidSyntaxException e) {
+                throw new IllegalArgumentException("Invalid filter [" + filter + "]: " + e.getMessage());
+            }
+        }
+        Bundle[] containerBundles = bundleContext.getBundles();
+        List<Bundle> matching = new ArrayList<Bundle>();
+        if (containerBundles != null) {
+            for (Bundle containerBundle : containerBundles) {
+                if (bundleFilter == null || bundleFilter.match(getFilterProperties(containerBundle))) {
+                    matching.add(containerBundle);
+                }
+            }
+        }
+        Collections.sort(matching, new Comparator<Bundle>() {
+            public int compare(Bundle b1, Bundle b2) {
+                long id1 = b1.getBundleId();
+                long id2 = b2.getBundleId();
+                return (id1 < id2) ? -1 : ((id1 == id2) ? 0 : 1);
+            }
+        });
+        String[] projectedItems = projection.getItems();
+        TabularData bundleTable = projection.newTable();
+        for (Bundle bundle : page(matching, offset, count)) {
+            if (projectedItems == null) {
+                bundleTable.put(bundleDataCache.getBundleData(bundle).toCompositeData());
+            } else {
+                bundleTable.put(projection.newRow(getItems(bundle, projectedItems)));
+            }
+        }
+        return bundleTable;
+    }
+
+    /*
+     * Returns the values of the given items only, the wiring of the bundle being read only if one of them needs it
+     */
+    private Object[] getItems(Bundle bundle, String[] items) {
+        boolean wiring = false;
+        for (String item : items) {
+            wiring |= BundleData.WIRING_ITEMS.contains(item);
+        }
+        BundleData bundleData = wiring ? bundleDataCache.getBundleData(bundle) : null;
+        Object[] values = new Object[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = wiring ? bundleData.getItem(items[i]) : BundleData.getItem(bundle, startLevel, items[i]);
+        }
+        return values;
+    }
+
+    /*
+     * Returns the properties a bundle filter is matched against
+     */
+    @SuppressWarnings("unchecked")
+    private Dictionary<String, Object> getFilterProperties(Bundle bundle) {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        Dictionary<String, String> bundleHeaders = bundle.getHeaders();
+        Enumeration<String> keys = bundleHeaders.keys();
+        while (keys.hasMoreElements()) {
+            String key = keys.nextElement();
+            properties.put(key, bundleHeaders.get(key));
+        }
+        properties.put(IDENTIFIER, bundle.getBundleId());
+        if (bundle.getSymbolicName() != null) {
+            properties.put(SYMBOLIC_NAME, bundle.getSymbolicName());
+        }
+        properties.put(VERSION, bundle.getVersion().toString());
+        if (bundle.getLocation() != null) {
+            properties.put(LOCATION, bundle.getLocation());
+        }
+        properties.put(STATE, getBundleState(bundle));
+        properties.put(START_LEVEL, startLevel.getBundleStartLevel(bundle));
+        return properties;
+    }
+
     /**
      * @see javax.management.NotificationBroadcasterSupport#getNotificationInfo()
      */
     public MBeanNotificationInfo[] getNotificationInfo() {
-        String[] types = new String[] { BUNDLE_EVENT };
+        String[] types = (batchWindow > 0) ? new String[] { BUNDLE_EVENT, BATCHED_EVENT }
+                : new String[] { BUNDLE_EVENT };
         String name = Notification.class.getName();
         String description = "A BundleEvent issued from the Framework describing a bundle lifecycle change";
         MBeanNotificationInfo info = new MBeanNotificationInfo(types, name, description);
@@ -300,8 +405,25 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
      */
     public void postRegister(Boolean registrationDone) {
         if (registrationDone && registrations.incrementAndGet() == 1) {
-            eventDispatcher = Executors.newSingleThreadExecutor(new JMXThreadFactory("JMX OSGi Bundle State Event Dispatcher"));
+            if (batchWindow > 0) {
+                ScheduledExecutorService dispatcher = EventBatcher.newDispatcher(new JMXThreadFactory(
+                        "JMX OSGi Bundle State Event Dispatcher"));
+                eventBatcher = new EventBatcher(dispatcher, batchWindow, getBatchSize(bundleContext),
+                        getQueueSize(bundleContext), droppedEvents) {
+                    protected void send(CompositeData[] events) {
+                        Notification notification = new Notification(BATCHED_EVENT, OBJECTNAME,
+                                notificationSequenceNumber.getAndIncrement());
+                        notification.setUserData(events);
+                        sendNotification(notification);
+                    }
+                };
+                eventDispatcher = dispatcher;
+            } else {
+                eventDispatcher = Executors.newSingleThreadExecutor(new JMXThreadFactory("JMX OSGi Bundle State Event Dispatcher"));
+            }
             bundleContext.addBundleListener(bundleListener);
+            // the listener now keeps the cached wiring up to date
+            bundleDataCache.setEnabled(true);
         }
     }
 
@@ -321,15 +443,21 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
             if (bundleListener == null) {
                 bundleListener = new BundleListener() {
                     public void bundleChanged(BundleEvent event) {
-                        final Notification notification = new Notification(EVENT, OBJECTNAME,
-                                notificationSequenceNumber.getAndIncrement());
+                        bundleDataCache.bundleChanged(event);
                         try {
-                            notification.setUserData(new BundleEventData(event).toCompositeData());
-                            eventDispatcher.submit(new Runnable() {
-                                public void run() {
-                                    sendNotification(notification);
-                                }
-                            });
+                            CompositeData eventData = new BundleEventData(event).toCompositeData();
+                            if (eventBatcher != null) {
+                                eventBatcher.add(eventData);
+                            } else {
+                                final Notification notification = new Notification(EVENT, OBJECTNAME,
+                                        notificationSequenceNumber.getAndIncrement());
+                                notification.setUserData(eventData);
+                                eventDispatcher.submit(new Runnable() {
+                                    public void run() {
+                                        sendNotification(notification);
+                                    }
+                                });
+                            }
                         } catch (RejectedExecutionException re) {
                             logger.log(LogService.LOG_WARNING, "Task rejected for JMX Notification dispatch of event ["
                                     + event + "] - Dispatcher may have been shutdown");
@@ -351,6 +479,7 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
      * [ARIES-259] MBeans not getting unregistered reliably
      */
     protected void shutDownDispatcher() {
+        bundleDataCache.setEnabled(false);
         if (bundleListener != null) {
             try {
                bundleContext.removeBundleListener(bundleListener);
@@ -359,11 +488,21 @@ public class BundleState extends NotificationBroadcasterSupport implements Bundl
                // ignore
             }  
         }
+        if (eventBatcher != null) {
+            eventBatcher.flushAll();
+        }
         if (eventDispatcher != null) {
             eventDispatcher.shutdown(); 
         }
     }
 
+    /**
+     * @see org.apache.aries.jmx.framework.BundleStateQueryMBean#getDroppedEventCount()
+     */
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
     /*
      * Returns the ExecutorService used to dispatch Notifications
      */
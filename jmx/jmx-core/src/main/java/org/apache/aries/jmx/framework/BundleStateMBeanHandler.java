@@ -16,6 +16,7 @@
  */
 package org.apache.aries.jmx.framework;
 
+import static org.apache.aries.jmx.framework.RegistrableStandardEmitterMBean.isLazyActivation;
 import static org.osgi.jmx.framework.BundleStateMBean.OBJECTNAME;
 
 import javax.management.NotCompliantMBeanException;
@@ -66,7 +67,8 @@ public class BundleStateMBeanHandler implements MBeanHandler {
         StartLevel startLevel = (StartLevel) bundleContext.getService(startLevelRef);
         bundleStateMBean = new BundleState(bundleContext, packageAdmin, startLevel, logger);
         try {
-            mbean = new RegistrableStandardEmitterMBean(bundleStateMBean, BundleStateMBean.class);
+            mbean = new RegistrableStandardEmitterMBean(bundleStateMBean, BundleStateQueryMBean.class,
+                    isLazyActivation(bundleContext));
         } catch (NotCompliantMBeanException e) {
             logger.log(LogService.LOG_ERROR, "Failed to instantiate MBean for " + BundleStateMBean.class.getName(), e);
         }
@@ -0,0 +1,203 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jmx.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.openmbean.CompositeData;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * <p>
+ * Coalesces framework events into batches, so that a single <code>Notification</code> is sent for all the events
+ * received during a window of time, or as soon as a batch is full. Events are held in a bounded queue until they are
+ * sent, and the events which do not fit in the queue are dropped and counted.
+ * </p>
+ * <p>
+ * Batching is enabled by setting the framework property {@link #BATCH_WINDOW_PROPERTY} to a positive number of
+ * milliseconds. Invalid property values are ignored.
+ * </p>
+ *
+ * @version $Rev$ $Date$
+ */
+public abstract class EventBatcher {
+
+    /**
+     * The time, in milliseconds, during which events are coalesced. Batching is disabled when not set or zero.
+     */
+    public static final String BATCH_WINDOW_PROPERTY = "org.apache.aries.jmx.notification.batchWindow";
+
+    /**
+     * The maximum number of events sent in one notification. Defaults to {@value #DEFAULT_BATCH_SIZE}.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "org.apache.aries.jmx.notification.batchSize";
+
+    /**
+     * The maximum number of events waiting to be sent. Defaults to {@value #DEFAULT_QUEUE_SIZE}.
+     */
+    public static final String QUEUE_SIZE_PROPERTY = "org.apache.aries.jmx.notification.queueSize";
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final ScheduledExecutorService dispatcher;
+    private final long window;
+    private final int batchSize;
+    private final BlockingQueue<CompositeData> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final AtomicLong dropped;
+
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param dispatcher
+     *            the single thread executor sending the notifications
+     * @param window
+     *            the time, in milliseconds, during which events are coalesced
+     * @param batchSize
+     *            the maximum number of events in a batch
+     * @param queueSize
+     *            the maximum number of events waiting to be sent
+     * @param dropped
+     *            the counter of dropped events
+     */
+    public EventBatcher(ScheduledExecutorService dispatcher, long window, int batchSize, int queueSize,
+            AtomicLong dropped) {
+        this.dispatcher = dispatcher;
+        this.window = window;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<CompositeData>(Math.max(queueSize, batchSize));
+        this.dropped = dropped;
+    }
+
+    /**
+     * Queues an event to be sent with the next batch
+     *
+     * @param event
+     * @return <code>false</code> if the queue is full and the event has been dropped
+     * @throws RejectedExecutionException
+     *             if the dispatcher has been shut down
+     */
+    public boolean add(CompositeData event) throws RejectedExecutionException {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (queue.size() >= batchSize) {
+            if (flushing.compareAndSet(false, true)) {
+                dispatcher.execute(flush);
+            }
+        } else if (scheduled.compareAndSet(false, true)) {
+            dispatcher.schedule(flush, window, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the queued events without waiting for the end of the window. Called before the dispatcher is shut down,
+     * as delayed flushes are then discarded.
+     *
+     * @throws RejectedExecutionException
+     *             if the dispatcher has been shut down
+     */
+    public void flushAll() throws RejectedExecutionException {
+        dispatcher.execute(flush);
+    }
+
+    /**
+     * Sends one batch of events. Called on the dispatcher thread.
+     *
+     * @param events
+     */
+    protected abstract void send(CompositeData[] events);
+
+    /*
+     * Sends all the queued events, in batches of at most batchSize events. The flags are reset first, so that an
+     * event queued while flushing schedules another flush.
+     */
+    private void flush() {
+        scheduled.set(false);
+        flushing.set(false);
+        List<CompositeData> batch = new ArrayList<CompositeData>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            send(batch.toArray(new CompositeData[batch.size()]));
+            batch.clear();
+        }
+    }
+
+    /**
+     * Creates a single thread dispatcher which discards its delayed flushes when it is shut down
+     *
+     * @param threadFactory
+     * @return
+     */
+    public static ScheduledExecutorService newDispatcher(ThreadFactory threadFactory) {
+        ScheduledThreadPoolExecutor dispatcher = new ScheduledThreadPoolExecutor(1, threadFactory);
+        dispatcher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return dispatcher;
+    }
+
+    /**
+     * Returns the batching window configured in the framework properties
+     *
+     * @param bundleContext
+     * @return the window in milliseconds, or zero if batching is disabled
+     */
+    public static long getBatchWindow(BundleContext bundleContext) {
+        return getProperty(bundleContext, BATCH_WINDOW_PROPERTY, 0);
+    }
+
+    public static int getBatchSize(BundleContext bundleContext) {
+        return (int) getProperty(bundleContext, BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE);
+    }
+
+    public static int getQueueSize(BundleContext bundleContext) {
+        return (int) getProperty(bundleContext, QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+    }
+
+    private static long getProperty(BundleContext bundleContext, String name, long defaultValue) {
+        String value = bundleContext.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result > 0 && result <= Integer.MAX_VALUE) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // ignored, as any other invalid value
+        }
+        return defaultValue;
+    }
+}
@@ -16,7 +16,12 @@
  */
 package org.apache.aries.jmx.framework;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InvalidAttributeValueException;
 import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanNotificationInfo;
 import javax.management.MBeanRegistration;
@@ -26,19 +31,102 @@ import javax.management.NotificationEmitter;
 import javax.management.NotificationFilter;
 import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.management.StandardMBean;
 
+import org.osgi.framework.BundleContext;
+
 /**
  * The <code>StandardMBean</code> does not appear to delegate correctly to the underlying MBean implementation. Due to
  * issues surrounding the <code>MBeanRegistration</code> callback methods and <code>NotificationEmmitter</code> methods,
  * this subclass was introduced to force the delegation
+ * <p>
+ * A lazy MBean only delegates <code>postRegister</code> to its implementation, which is where the framework MBeans add
+ * their listeners, when its attributes or operations are first used or a <code>NotificationListener</code> is added.
+ * Until then, an MBean registered with an MBeanServer but never used costs nothing to the framework.
+ * </p>
  * 
  * @version $Rev$ $Date$
  */
 public class RegistrableStandardEmitterMBean extends StandardMBean implements MBeanRegistration, NotificationEmitter {
 
+    /**
+     * Framework property disabling the lazy activation of the framework MBeans when set to <code>false</code>
+     */
+    public static final String LAZY_ACTIVATION_PROPERTY = "org.apache.aries.jmx.lazyActivation";
+
+    private final boolean lazy;
+    // guarded by this
+    private boolean active;
+    private int registrations;
+
     public <T> RegistrableStandardEmitterMBean(T impl, Class<T> intf) throws NotCompliantMBeanException {
+        this(impl, intf, false);
+    }
+
+    /**
+     * @param impl
+     * @param intf
+     * @param lazy
+     *            true to delay <code>postRegister</code> until the MBean is first used
+     * @throws NotCompliantMBeanException
+     */
+    public <T> RegistrableStandardEmitterMBean(T impl, Class<T> intf, boolean lazy) throws NotCompliantMBeanException {
         super(impl, intf);
+        this.lazy = lazy;
+    }
+
+    /**
+     * Returns whether lazy activation is enabled in the framework properties, which is the default
+     * 
+     * @param bundleContext
+     * @return
+     */
+    public static boolean isLazyActivation(BundleContext bundleContext) {
+        return !"false".equalsIgnoreCase(bundleContext.getProperty(LAZY_ACTIVATION_PROPERTY));
+    }
+
+    /**
+     * @see javax.management.StandardMBean#getAttribute(java.lang.String)
+     */
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException,
+            ReflectionException {
+        activate();
+        return super.getAttribute(attribute);
+    }
+
+    /**
+     * @see javax.management.StandardMBean#getAttributes(java.lang.String[])
+     */
+    public AttributeList getAttributes(String[] attributes) {
+        activate();
+        return super.getAttributes(attributes);
+    }
+
+    /**
+     * @see javax.management.StandardMBean#setAttribute(javax.management.Attribute)
+     */
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException,
+            MBeanException, ReflectionException {
+        activate();
+        super.setAttribute(attribute);
+    }
+
+    /**
+     * @see javax.management.StandardMBean#setAttributes(javax.management.AttributeList)
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+        activate();
+        return super.setAttributes(attributes);
+    }
+
+    /**
+     * @see javax.management.StandardMBean#invoke(java.lang.String, java.lang.Object[], java.lang.String[])
+     */
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException,
+            ReflectionException {
+        activate();
+        return super.invoke(actionName, params, signature);
     }
 
     /**
@@ -64,6 +152,24 @@ public class RegistrableStandardEmitterMBean extends StandardMBean implements MB
      * @see javax.management.MBeanRegistration#postDeregister()
      */
     public void postDeregister() {
+        if (lazy) {
+            synchronized (this) {
+                registrations--;
+                if (!active) {
+                    return;
+                }
+                if (registrations == 0) {
+                    // the next registration is lazy again
+                    active = false;
+                }
+                delegatePostDeregister();
+            }
+        } else {
+            delegatePostDeregister();
+        }
+    }
+
+    private void delegatePostDeregister() {
         Object impl = getImplementation();
         if (impl instanceof MBeanRegistration) {
             ((MBeanRegistration) impl).postDeregister();
@@ -74,12 +180,44 @@ public class RegistrableStandardEmitterMBean extends StandardMBean implements MB
      * @see javax.management.MBeanRegistration#postRegister(java.lang.Boolean)
      */
     public void postRegister(Boolean registrationDone) {
+        if (lazy) {
+            synchronized (this) {
+                if (!registrationDone) {
+                    return;
+                }
+                registrations++;
+                if (active) {
+                    delegatePostRegister(registrationDone);
+                }
+            }
+        } else {
+            delegatePostRegister(registrationDone);
+        }
+    }
+
+    private void delegatePostRegister(Boolean registrationDone) {
         Object impl = getImplementation();
         if (impl instanceof MBeanRegistration) {
             ((MBeanRegistration) impl).postRegister(registrationDone);
         }
     }
 
+    /*
+     * Delegates the postRegister calls held back until the first use of a lazy MBean
+     */
+    private void activate() {
+        if (lazy) {
+            synchronized (this) {
+                if (!active && registrations > 0) {
+                    active = true;
+                    for (int i = 0; i < registrations; i++) {
+                        delegatePostRegister(Boolean.TRUE);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * @see javax.management.MBeanRegistration#preDeregister()
      */
@@ -120,6 +258,7 @@ public class RegistrableStandardEmitterMBean extends StandardMBean implements MB
      */
     public void addNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback)
             throws IllegalArgumentException {
+        activate();
         Object impl = getImplementation();
         if (impl instanceof NotificationEmitter) {
             ((NotificationEmitter) (impl)).addNotificationListener(listener, filter, handback);
@@ -16,15 +16,27 @@
  */
 package org.apache.aries.jmx.framework;
 
+import static org.apache.aries.jmx.framework.EventBatcher.getBatchSize;
+import static org.apache.aries.jmx.framework.EventBatcher.getBatchWindow;
+import static org.apache.aries.jmx.framework.EventBatcher.getQueueSize;
 import static org.apache.aries.jmx.util.FrameworkUtils.getBundleIds;
 import static org.apache.aries.jmx.util.FrameworkUtils.resolveService;
+import static org.apache.aries.jmx.util.Projection.getProjection;
+import static org.apache.aries.jmx.util.Projection.page;
 import static org.osgi.jmx.JmxConstants.PROPERTIES_TYPE;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,6 +46,7 @@ import javax.management.MBeanServer;
 import javax.management.Notification;
 import javax.management.NotificationBroadcasterSupport;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
 import javax.management.openmbean.TabularDataSupport;
 
@@ -42,6 +55,7 @@ import org.apache.aries.jmx.Logger;
 import org.apache.aries.jmx.codec.PropertyData;
 import org.apache.aries.jmx.codec.ServiceData;
 import org.apache.aries.jmx.codec.ServiceEventData;
+import org.apache.aries.jmx.util.Projection;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -49,7 +63,6 @@ import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
-import org.osgi.jmx.framework.ServiceStateMBean;
 import org.osgi.service.log.LogService;
 
 /**
@@ -58,12 +71,15 @@ import org.osgi.service.log.LogService;
  * 
  * @version $Rev$ $Date$
  */
-public class ServiceState extends NotificationBroadcasterSupport implements ServiceStateMBean, MBeanRegistration {
+public class ServiceState extends NotificationBroadcasterSupport implements ServiceStateQueryMBean, MBeanRegistration {
 
     protected Logger logger;
     private BundleContext bundleContext;
 
     protected ExecutorService eventDispatcher;
+    protected EventBatcher eventBatcher;
+    private long batchWindow;
+    private AtomicLong droppedEvents = new AtomicLong();
     protected AllServiceListener serviceListener;
     private AtomicInteger notificationSequenceNumber = new AtomicInteger(1);
     private AtomicInteger registrations = new AtomicInteger(0);
@@ -77,6 +93,7 @@ public class ServiceState extends NotificationBroadcasterSupport implements Serv
         }
         this.bundleContext = bundleContext;
         this.logger = logger;
+        this.batchWindow = getBatchWindow(bundleContext);
     }
 
     /**
@@ -136,11 +153,43 @@ public class ServiceState extends NotificationBroadcasterSupport implements Serv
         return servicesTable;
     }
 
+    /**
+     * @see org.apache.aries.jmx.framework.ServiceStateQueryMBean#listServices(java.lang.String, int, int,
+     *      java.lang.String[])
+     */
+    public TabularData listServices(String filter, int offset, int count, String[] items) throws IOException,
+            IllegalArgumentException {
+        Projection projection = getProjection(SERVICES_TYPE, items);
+        ServiceReference[] serviceReferences = null;
+        try {
+            serviceReferences = bundleContext.getAllServiceReferences(null, filter);
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException("Invalid filter [" + filter + "]: " + e.getMessage());
+        }
+        List<ServiceReference> matching = new ArrayList<ServiceReference>();
+        if (serviceReferences != null) {
+            matching.addAll(Arrays.asList(serviceReferences));
+        }
+        Collections.sort(matching, new Comparator<ServiceReference>() {
+            public int compare(ServiceReference r1, ServiceReference r2) {
+                long id1 = (Long) r1.getProperty(Constants.SERVICE_ID);
+                long id2 = (Long) r2.getProperty(Constants.SERVICE_ID);
+                return (id1 < id2) ? -1 : ((id1 == id2) ? 0 : 1);
+            }
+        });
+        TabularData servicesTable = projection.newTable();
+        for (ServiceReference reference : page(matching, offset, count)) {
+            servicesTable.put(projection.project(new ServiceData(reference).toCompositeData()));
+        }
+        return servicesTable;
+    }
+
     /**
      * @see javax.management.NotificationBroadcasterSupport#getNotificationInfo()
      */
     public MBeanNotificationInfo[] getNotificationInfo() {
-        String[] types = new String[] { SERVICE_EVENT };
+        String[] types = (batchWindow > 0) ? new String[] { SERVICE_EVENT, BATCHED_EVENT }
+                : new String[] { SERVICE_EVENT };
         String name = Notification.class.getName();
         String description = "A ServiceEvent issued from the Framework describing a service lifecycle change";
         MBeanNotificationInfo info = new MBeanNotificationInfo(types, name, description);
@@ -161,7 +210,22 @@ public class ServiceState extends NotificationBroadcasterSupport implements Serv
      */
     public void postRegister(Boolean registrationDone) {
         if (registrationDone && registrations.incrementAndGet() == 1) {
-            eventDispatcher = Executors.newSingleThreadExecutor(new JMXThreadFactory("JMX OSGi Service State Event Dispatcher"));
+            if (batchWindow > 0) {
+                ScheduledExecutorService dispatcher = EventBatcher.newDispatcher(new JMXThreadFactory(
+                        "JMX OSGi Service State Event Dispatcher"));
+                eventBatcher = new EventBatcher(dispatcher, batchWindow, getBatchSize(bundleContext),
+                        getQueueSize(bundleContext), droppedEvents) {
+                    protected void send(CompositeData[] events) {
+                        Notification notification = new Notification(BATCHED_EVENT, OBJECTNAME,
+                                notificationSequenceNumber.getAndIncrement());
+                        notification.setUserData(events);
+                        sendNotification(notification);
+                    }
+                };
+                eventDispatcher = dispatcher;
+            } else {
+                eventDispatcher = Executors.newSingleThreadExecutor(new JMXThreadFactory("JMX OSGi Service State Event Dispatcher"));
+            }
             bundleContext.addServiceListener(serviceListener);
         }
     }
@@ -179,15 +243,20 @@ public class ServiceState extends NotificationBroadcasterSupport implements Serv
             if (serviceListener == null) {
                 serviceListener = new AllServiceListener() {
                     public void serviceChanged(ServiceEvent serviceevent) {
-                        final Notification notification = new Notification(EVENT, OBJECTNAME,
-                                notificationSequenceNumber.getAndIncrement());
                         try {
-                            notification.setUserData(new ServiceEventData(serviceevent).toCompositeData());
-                            eventDispatcher.submit(new Runnable() {
-                                public void run() {
-                                    sendNotification(notification);
-                                }
-                            });
+                            CompositeData eventData = new ServiceEventData(serviceevent).toCompositeData();
+                            if (eventBatcher != null) {
+                                eventBatcher.add(eventData);
+                            } else {
+                                final Notification notification = new Notification(EVENT, OBJECTNAME,
+                                        notificationSequenceNumber.getAndIncrement());
+                                notification.setUserData(eventData);
+                                eventDispatcher.submit(new Runnable() {
+                                    public void run() {
+                                        sendNotification(notification);
+                                    }
+                                });
+                            }
                         } catch (RejectedExecutionException re) {
                             logger.log(LogService.LOG_WARNING, "Task rejected for JMX Notification dispatch of event ["
                                     + serviceevent + "] - Dispatcher may have been shutdown");
@@ -218,11 +287,21 @@ public class ServiceState extends NotificationBroadcasterSupport implements Serv
                // ignore
             }
         }
+        if (eventBatcher != null) {
+            eventBatcher.flushAll();
+        }
         if (eventDispatcher != null) {  
             eventDispatcher.shutdown();
         }
     }
 
+    /**
+     * @see org.apache.aries.jmx.framework.ServiceStateQueryMBean#getDroppedEventCount()
+     */
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
     /*
      * Returns the ExecutorService used to dispatch Notifications
      */
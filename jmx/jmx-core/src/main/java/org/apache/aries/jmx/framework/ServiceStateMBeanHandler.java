@@ -16,6 +16,7 @@
  */
 package org.apache.aries.jmx.framework;
 
+import static org.apache.aries.jmx.framework.RegistrableStandardEmitterMBean.isLazyActivation;
 import static org.osgi.jmx.framework.ServiceStateMBean.OBJECTNAME;
 
 import javax.management.NotCompliantMBeanException;
@@ -57,7 +58,8 @@ public class ServiceStateMBeanHandler implements MBeanHandler {
     public void open() {
         serviceStateMBean = new ServiceState(bundleContext, logger);
         try {
-            mbean = new RegistrableStandardEmitterMBean(serviceStateMBean, ServiceStateMBean.class);
+            mbean = new RegistrableStandardEmitterMBean(serviceStateMBean, ServiceStateQueryMBean.class,
+                    isLazyActivation(bundleContext));
         } catch (NotCompliantMBeanException e) {
             logger.log(LogService.LOG_ERROR, "Failed to instantiate MBean for " + ServiceStateMBean.class.getName(), e);
         }
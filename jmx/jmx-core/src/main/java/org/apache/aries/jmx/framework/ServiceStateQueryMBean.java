@@ -0,0 +1,69 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jmx.framework;
+
+import java.io.IOException;
+
+import javax.management.openmbean.TabularData;
+
+import org.osgi.jmx.framework.ServiceStateMBean;
+
+/**
+ * <p>
+ * Extends <code>ServiceStateMBean</code> with a query returning only the services and items a client needs.
+ * </p>
+ *
+ * @version $Rev$ $Date$
+ */
+public interface ServiceStateQueryMBean extends ServiceStateMBean {
+
+    /**
+     * Answer part of the service state of the system, ordered by service identifier
+     *
+     * @param filter
+     *            an LDAP filter matched against the service properties, for example
+     *            <code>(objectClass=org.osgi.service.log.LogService)</code>, or <code>null</code> to match all
+     *            services
+     * @param offset
+     *            the number of matching services to skip
+     * @param count
+     *            the maximum number of services to return, or 0 to return all of them
+     * @param items
+     *            the items of {@link #SERVICE_TYPE} to return, or <code>null</code> to return all of them. The
+     *            {@link #IDENTIFIER} is always returned.
+     * @return the tabular representation of the matching services, whose rows contain the requested items
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the filter is invalid or an item is unknown
+     */
+    TabularData listServices(String filter, int offset, int count, String[] items) throws IOException,
+            IllegalArgumentException;
+
+    /**
+     * The type of the notifications sent when events are batched. The user data of such a notification is an array
+     * of <code>CompositeData</code> of type {@link #SERVICE_EVENT_TYPE}, in the order of the events.
+     */
+    String BATCHED_EVENT = "org.apache.aries.jmx.service.event.batch";
+
+    /**
+     * Answer the number of service events dropped because the queue of events waiting to be sent in a batch was full
+     *
+     * @return the number of dropped events
+     */
+    long getDroppedEventCount();
+
+}
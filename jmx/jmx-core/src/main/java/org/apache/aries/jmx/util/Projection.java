@@ -0,0 +1,170 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jmx.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * <p>
+ * Restricts the rows of a <code>TabularType</code> to some of their items. The index items of the table are always
+ * included, so that the projected rows can still be put in a table.
+ * </p>
+ *
+ * @version $Rev$ $Date$
+ */
+public class Projection {
+
+    private static final ConcurrentMap<String, Projection> projections = new ConcurrentHashMap<String, Projection>();
+
+    private final TabularType tabularType;
+    private final String[] items;
+
+    private Projection(TabularType tabularType, String[] items) {
+        this.tabularType = tabularType;
+        this.items = items;
+    }
+
+    /**
+     * Returns the projection of a <code>TabularType</code> on the given items
+     *
+     * @param tabularType
+     * @param items
+     *            the items to keep, or <code>null</code> or an empty array to keep all of them
+     * @return
+     * @throws IllegalArgumentException
+     *             if an item is not part of the rows of the table
+     */
+    public static Projection getProjection(TabularType tabularType, String[] items) throws IllegalArgumentException {
+        if (items == null || items.length == 0) {
+            return new Projection(tabularType, null);
+        }
+        String[] sorted = items.clone();
+        Arrays.sort(sorted);
+        String key = tabularType.getTypeName() + Arrays.toString(sorted);
+        Projection projection = projections.get(key);
+        if (projection == null) {
+            projection = create(tabularType, sorted);
+            projections.putIfAbsent(key, projection);
+        }
+        return projection;
+    }
+
+    private static Projection create(TabularType tabularType, String[] items) throws IllegalArgumentException {
+        CompositeType rowType = tabularType.getRowType();
+        List<String> names = new ArrayList<String>(tabularType.getIndexNames());
+        for (String item : items) {
+            if (!rowType.containsKey(item)) {
+                throw new IllegalArgumentException("Item [" + item + "] is not part of " + rowType.getTypeName());
+            }
+            if (!names.contains(item)) {
+                names.add(item);
+            }
+        }
+        String[] itemNames = names.toArray(new String[names.size()]);
+        String[] descriptions = new String[itemNames.length];
+        OpenType<?>[] types = new OpenType<?>[itemNames.length];
+        for (int i = 0; i < itemNames.length; i++) {
+            descriptions[i] = rowType.getDescription(itemNames[i]);
+            types[i] = rowType.getType(itemNames[i]);
+        }
+        try {
+            CompositeType projectedRowType = new CompositeType(rowType.getTypeName(), rowType.getDescription(),
+                    itemNames, descriptions, types);
+            List<String> indexNames = tabularType.getIndexNames();
+            TabularType projectedType = new TabularType(tabularType.getTypeName(), tabularType.getDescription(),
+                    projectedRowType, indexNames.toArray(new String[indexNames.size()]));
+            return new Projection(projectedType, itemNames);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Failed to create projection of " + tabularType.getTypeName(), e);
+        }
+    }
+
+    /**
+     * @return a new empty table of the projected type
+     */
+    public TabularData newTable() {
+        return new TabularDataSupport(tabularType);
+    }
+
+    /**
+     * @param row
+     *            a row of the original table
+     * @return the row restricted to the items of this projection
+     */
+    public CompositeData project(CompositeData row) {
+        if (items == null) {
+            return row;
+        }
+        try {
+            return new CompositeDataSupport(tabularType.getRowType(), items, row.getAll(items));
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Failed to project " + row.getCompositeType().getTypeName(), e);
+        }
+    }
+
+    /**
+     * @return the items of the projected rows, index items first, or <code>null</code> if the rows are not restricted
+     */
+    public String[] getItems() {
+        return (items == null) ? null : items.clone();
+    }
+
+    /**
+     * @param values
+     *            the values of the {@link #getItems() items} of this projection, in the same order
+     * @return a projected row holding the given values
+     */
+    public CompositeData newRow(Object[] values) {
+        try {
+            return new CompositeDataSupport(tabularType.getRowType(), items, values);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Failed to create " + tabularType.getRowType().getTypeName(), e);
+        }
+    }
+
+    /**
+     * Returns the part of a list of elements starting at the given offset
+     *
+     * @param elements
+     * @param offset
+     *            the index of the first element to return
+     * @param count
+     *            the maximum number of elements to return, or a negative number or zero to return all of them
+     * @return
+     */
+    public static <T> List<T> page(List<T> elements, int offset, int count) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Argument offset cannot be negative");
+        }
+        int from = Math.min(offset, elements.size());
+        int to = (count <= 0) ? elements.size() : (int) Math.min((long) from + count, elements.size());
+        return elements.subList(from, to);
+    }
+}
@@ -188,6 +188,34 @@ public class BundleDataTest {
         
     }
 
+    @Test
+    public void testRefreshReusesHeaders() throws Exception {
+
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        PackageAdmin packageAdmin = mock(PackageAdmin.class);
+        StartLevel startLevel = mock(StartLevel.class);
+        when(context.getBundles()).thenReturn(new Bundle[] { bundle });
+        when(bundle.getSymbolicName()).thenReturn("test");
+        when(bundle.getVersion()).thenReturn(Version.emptyVersion);
+        when(bundle.getBundleId()).thenReturn(new Long(1));
+        when(bundle.getState()).thenReturn(Bundle.RESOLVED);
+        Dictionary<String, String> headers = new Hashtable<String, String>();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "test");
+        when(bundle.getHeaders()).thenReturn(headers);
+
+        BundleData b = new BundleData(context, bundle, packageAdmin, startLevel);
+        CompositeData compositeData = b.toCompositeData();
+        assertEquals("RESOLVED", compositeData.get(STATE));
+
+        // headers are only read again when the bundle is updated
+        headers.put(Constants.BUNDLE_VERSION, "1.0.0");
+        when(bundle.getState()).thenReturn(Bundle.ACTIVE);
+        CompositeData refreshed = b.refresh(bundle, startLevel).toCompositeData();
+        assertEquals("ACTIVE", refreshed.get(STATE));
+        assertEquals(compositeData.get(HEADERS), refreshed.get(HEADERS));
+    }
+
    
     @Test
     public void testFromCompositeData() throws Exception {
@@ -0,0 +1,179 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jmx.framework;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Hashtable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.packageadmin.RequiredBundle;
+import org.osgi.service.startlevel.StartLevel;
+
+public class BundleDataCacheTest {
+
+    private BundleContext context;
+    private PackageAdmin admin;
+    private BundleDataCache cache;
+
+    @Before
+    public void setUp() {
+        context = mock(BundleContext.class);
+        admin = mock(PackageAdmin.class);
+        cache = new BundleDataCache(context, admin, mock(StartLevel.class));
+        cache.setEnabled(true);
+    }
+
+    @Test
+    public void testChangedBundleEvictsOnlyWiredBundles() throws Exception {
+        Bundle exporter = newBundle(1, null, null);
+        Bundle importer = newBundle(2, Constants.IMPORT_PACKAGE, "org.example.api");
+        Bundle other = newBundle(3, null, null);
+        ExportedPackage exported = newExportedPackage("org.example.api", importer);
+        when(admin.getExportedPackages(exporter)).thenReturn(new ExportedPackage[] { exported });
+        when(admin.getExportedPackages("org.example.api")).thenReturn(new ExportedPackage[] { exported });
+
+        cache.getBundleData(exporter);
+        cache.getBundleData(importer);
+        cache.getBundleData(other);
+        assertEquals(3, cache.size());
+
+        cache.bundleChanged(newEvent(exporter, BundleEvent.UPDATED));
+        // the exporter is read again, its importer evicted and the other bundle kept
+        assertEquals(2, cache.size());
+        verify(admin, times(2)).getExportedPackages(exporter);
+
+        cache.getBundleData(exporter);
+        cache.getBundleData(importer);
+        cache.getBundleData(other);
+        verify(admin, times(2)).getExportedPackages(exporter);
+        verify(admin, times(2)).getExportedPackages(importer);
+        verify(admin, times(1)).getExportedPackages(other);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testResolvedFragmentEvictsItsHost() throws Exception {
+        Bundle host = newBundle(1, null, null);
+        Bundle fragment = newBundle(2, null, null);
+        Bundle other = newBundle(3, null, null);
+        cache.getBundleData(host);
+        cache.getBundleData(other);
+        assertEquals(2, cache.size());
+
+        // the host was cached before the fragment was attached, only the fragment's new wiring tells about it
+        when(admin.getHosts(fragment)).thenReturn(new Bundle[] { host });
+        when(admin.getFragments(host)).thenReturn(new Bundle[] { fragment });
+        cache.bundleChanged(newEvent(fragment, BundleEvent.RESOLVED));
+
+        assertEquals(2, cache.size());
+        long[] fragments = cache.getBundleData(host).getFragments();
+        assertEquals(1, fragments.length);
+        assertEquals(2, fragments[0]);
+        verify(admin, times(1)).getExportedPackages(other);
+    }
+
+    @Test
+    public void testUninstalledBundleEvictsRequiredBundles() throws Exception {
+        Bundle required = newBundle(1, null, null);
+        Bundle requiring = newBundle(2, Constants.REQUIRE_BUNDLE, "bundle1");
+        Bundle other = newBundle(3, null, null);
+        RequiredBundle requiredBundle = mock(RequiredBundle.class);
+        when(requiredBundle.getBundle()).thenReturn(required);
+        when(requiredBundle.getRequiringBundles()).thenReturn(new Bundle[] { requiring });
+        when(admin.getRequiredBundles("bundle1")).thenReturn(new RequiredBundle[] { requiredBundle });
+
+        cache.getBundleData(required);
+        cache.getBundleData(requiring);
+        cache.getBundleData(other);
+        assertEquals(3, cache.size());
+
+        // the required bundle is no longer required once the other one is gone
+        when(context.getBundle(2)).thenReturn(null);
+        when(requiredBundle.getRequiringBundles()).thenReturn(new Bundle[0]);
+        cache.bundleChanged(newEvent(requiring, BundleEvent.UNINSTALLED));
+
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getBundleData(required).getRequiringBundles().length);
+        verify(admin, times(1)).getExportedPackages(other);
+    }
+
+    @Test
+    public void testDynamicImportsAreNotCached() throws Exception {
+        Bundle dynamic = newBundle(1, Constants.DYNAMICIMPORT_PACKAGE, "*");
+        when(context.getBundles()).thenReturn(new Bundle[] { dynamic });
+
+        cache.getBundleData(dynamic);
+        cache.getBundleData(dynamic);
+        assertEquals(0, cache.size());
+        verify(admin, times(2)).getExportedPackages(dynamic);
+    }
+
+    @Test
+    public void testDisabledCacheKeepsNothing() throws Exception {
+        Bundle bundle = newBundle(1, null, null);
+        cache.getBundleData(bundle);
+        assertEquals(1, cache.size());
+
+        cache.setEnabled(false);
+        cache.getBundleData(bundle);
+        cache.bundleChanged(newEvent(bundle, BundleEvent.RESOLVED));
+        assertEquals(0, cache.size());
+    }
+
+    private Bundle newBundle(long id, String header, String value) {
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(id);
+        when(bundle.getSymbolicName()).thenReturn("bundle" + id);
+        when(bundle.getVersion()).thenReturn(new Version("1.0.0"));
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        if (header != null) {
+            headers.put(header, value);
+        }
+        when(bundle.getHeaders()).thenReturn(headers);
+        when(bundle.getState()).thenReturn(Bundle.RESOLVED);
+        when(context.getBundle(id)).thenReturn(bundle);
+        return bundle;
+    }
+
+    private ExportedPackage newExportedPackage(String name, Bundle importer) {
+        ExportedPackage exported = mock(ExportedPackage.class);
+        when(exported.getName()).thenReturn(name);
+        when(exported.getVersion()).thenReturn(new Version("1.0.0"));
+        when(exported.getImportingBundles()).thenReturn(new Bundle[] { importer });
+        return exported;
+    }
+
+    private BundleEvent newEvent(Bundle bundle, int type) {
+        BundleEvent event = mock(BundleEvent.class);
+        when(event.getBundle()).thenReturn(bundle);
+        when(event.getType()).thenReturn(type);
+        return event;
+    }
+}
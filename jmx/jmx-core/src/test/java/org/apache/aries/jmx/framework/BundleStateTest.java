@@ -20,13 +20,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.osgi.jmx.framework.BundleStateMBean.OBJECTNAME;
 
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -37,6 +41,7 @@ import javax.management.Notification;
 import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 
 import org.apache.aries.jmx.Logger;
 import org.apache.aries.jmx.codec.BundleEventData;
@@ -46,6 +51,9 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.Version;
+import org.osgi.jmx.framework.BundleStateMBean;
 import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.service.startlevel.StartLevel;
 
@@ -132,6 +140,67 @@ public class BundleStateTest {
         
     }
     
+    @Test
+    public void testBatchedNotificationsForBundleEvents() throws Exception {
+
+        BundleContext context = mock(BundleContext.class);
+        when(context.getProperty(EventBatcher.BATCH_WINDOW_PROPERTY)).thenReturn("60000");
+        when(context.getProperty(EventBatcher.BATCH_SIZE_PROPERTY)).thenReturn("2");
+        when(context.getProperty(EventBatcher.QUEUE_SIZE_PROPERTY)).thenReturn("2");
+        PackageAdmin admin = mock(PackageAdmin.class);
+        StartLevel startLevel = mock(StartLevel.class);
+        Logger logger = mock(Logger.class);
+
+        final List<Notification> received = new LinkedList<Notification>();
+
+        BundleState bundleState = new BundleState(context, admin, startLevel, logger);
+
+        Bundle b1 = mock(Bundle.class);
+        when(b1.getBundleId()).thenReturn(new Long(9));
+        when(b1.getSymbolicName()).thenReturn("bundle");
+        when(b1.getLocation()).thenReturn("file:/location");
+
+        BundleEvent installedEvent = mock(BundleEvent.class);
+        when(installedEvent.getBundle()).thenReturn(b1);
+        when(installedEvent.getType()).thenReturn(BundleEvent.INSTALLED);
+
+        BundleEvent resolvedEvent = mock(BundleEvent.class);
+        when(resolvedEvent.getBundle()).thenReturn(b1);
+        when(resolvedEvent.getType()).thenReturn(BundleEvent.RESOLVED);
+
+        MBeanServer server = mock(MBeanServer.class);
+        bundleState.preRegister(server, new ObjectName(OBJECTNAME));
+        bundleState.postRegister(true);
+
+        bundleState.addNotificationListener(new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+               received.add(notification);
+            }
+        }, null, null);
+
+        ArgumentCaptor<BundleListener> argument = ArgumentCaptor.forClass(BundleListener.class);
+        verify(context).addBundleListener(argument.capture());
+        BundleListener listener = argument.getValue();
+
+        // a full batch is sent without waiting for the window
+        listener.bundleChanged(installedEvent);
+        listener.bundleChanged(resolvedEvent);
+
+        bundleState.postDeregister();
+        ExecutorService dispatcher = bundleState.getEventDispatcher();
+        dispatcher.awaitTermination(2, TimeUnit.SECONDS);
+        assertTrue(dispatcher.isTerminated());
+
+        assertEquals(1, received.size());
+        Notification batch = received.get(0);
+        assertEquals(BundleStateQueryMBean.BATCHED_EVENT, batch.getType());
+        CompositeData[] events = (CompositeData[]) batch.getUserData();
+        assertEquals(2, events.length);
+        assertEquals(BundleEvent.INSTALLED, BundleEventData.from(events[0]).getEventType());
+        assertEquals(BundleEvent.RESOLVED, BundleEventData.from(events[1]).getEventType());
+        assertEquals(0, bundleState.getDroppedEventCount());
+    }
+
     @Test
     public void testLifeCycleOfNotificationSupport() throws Exception {
         
@@ -185,4 +254,110 @@ public class BundleStateTest {
       
         
     }
+
+    @Test
+    public void testListBundlesReusesWiringUntilResolved() throws Exception {
+
+        BundleContext context = mock(BundleContext.class);
+        PackageAdmin admin = mock(PackageAdmin.class);
+        StartLevel startLevel = mock(StartLevel.class);
+        Logger logger = mock(Logger.class);
+
+        BundleState bundleState = new BundleState(context, admin, startLevel, logger);
+
+        Bundle b1 = mock(Bundle.class);
+        when(b1.getBundleId()).thenReturn(new Long(9));
+        when(b1.getSymbolicName()).thenReturn("bundle");
+        when(b1.getVersion()).thenReturn(new Version("1.0.0"));
+        when(b1.getHeaders()).thenReturn(new Hashtable<String, String>());
+        when(b1.getState()).thenReturn(Bundle.RESOLVED);
+        when(context.getBundles()).thenReturn(new Bundle[] { b1 });
+
+        BundleEvent resolvedEvent = mock(BundleEvent.class);
+        when(resolvedEvent.getBundle()).thenReturn(b1);
+        when(resolvedEvent.getType()).thenReturn(BundleEvent.RESOLVED);
+
+        BundleEvent startedEvent = mock(BundleEvent.class);
+        when(startedEvent.getBundle()).thenReturn(b1);
+        when(startedEvent.getType()).thenReturn(BundleEvent.STARTED);
+
+        // nothing is cached until the listener is registered
+        bundleState.listBundles();
+        bundleState.listBundles();
+        verify(admin, times(2)).getExportedPackages(b1);
+
+        bundleState.preRegister(mock(MBeanServer.class), new ObjectName(OBJECTNAME));
+        bundleState.postRegister(true);
+        ArgumentCaptor<BundleListener> argument = ArgumentCaptor.forClass(BundleListener.class);
+        verify(context).addBundleListener(argument.capture());
+        BundleListener listener = argument.getValue();
+
+        bundleState.listBundles();
+        bundleState.listBundles();
+        verify(admin, times(3)).getExportedPackages(b1);
+
+        // the state is read again without recomputing the wiring
+        when(b1.getState()).thenReturn(Bundle.ACTIVE);
+        listener.bundleChanged(startedEvent);
+        TabularData table = bundleState.listBundles();
+        verify(admin, times(3)).getExportedPackages(b1);
+        CompositeData row = (CompositeData) table.values().iterator().next();
+        assertEquals("ACTIVE", row.get(BundleStateMBean.STATE));
+
+        listener.bundleChanged(resolvedEvent);
+        bundleState.listBundles();
+        verify(admin, times(4)).getExportedPackages(b1);
+
+        bundleState.postDeregister();
+        bundleState.listBundles();
+        verify(admin, times(5)).getExportedPackages(b1);
+    }
+
+    @Test
+    public void testListBundlesPagedAndProjected() throws Exception {
+
+        BundleContext context = mock(BundleContext.class);
+        PackageAdmin admin = mock(PackageAdmin.class);
+        StartLevel startLevel = mock(StartLevel.class);
+        Logger logger = mock(Logger.class);
+
+        Bundle[] bundles = new Bundle[4];
+        for (int i = 0; i < bundles.length; i++) {
+            bundles[i] = mock(Bundle.class);
+            when(bundles[i].getBundleId()).thenReturn(new Long(10 - i));
+            when(bundles[i].getSymbolicName()).thenReturn("bundle" + (10 - i));
+            when(bundles[i].getVersion()).thenReturn(new Version("1.0.0"));
+            when(bundles[i].getHeaders()).thenReturn(new Hashtable<String, String>());
+            when(bundles[i].getState()).thenReturn(Bundle.ACTIVE);
+        }
+        when(context.getBundles()).thenReturn(bundles);
+        Filter filter = mock(Filter.class);
+        when(filter.match(any(Dictionary.class))).thenReturn(true);
+        when(context.createFilter("(Bundle-SymbolicName=bundle*)")).thenReturn(filter);
+
+        BundleState bundleState = new BundleState(context, admin, startLevel, logger);
+
+        // bundles 7 to 10 sorted by identifier, the second and third kept
+        TabularData table = bundleState.listBundles("(Bundle-SymbolicName=bundle*)", 1, 2,
+                new String[] { BundleStateMBean.SYMBOLIC_NAME, BundleStateMBean.STATE });
+        assertEquals(2, table.size());
+        CompositeData row = table.get(new Object[] { new Long(8) });
+        assertEquals("bundle8", row.get(BundleStateMBean.SYMBOLIC_NAME));
+        assertEquals("ACTIVE", row.get(BundleStateMBean.STATE));
+        assertFalse(row.containsKey(BundleStateMBean.EXPORTED_PACKAGES));
+        assertNotNull(table.get(new Object[] { new Long(9) }));
+        // the wiring is not read for items that do not need it
+        for (Bundle bundle : bundles) {
+            verify(admin, never()).getExportedPackages(bundle);
+        }
+
+        table = bundleState.listBundles(null, 3, 0, new String[] { BundleStateMBean.EXPORTED_PACKAGES });
+        assertEquals(1, table.size());
+        row = table.get(new Object[] { new Long(10) });
+        assertEquals(0, ((String[]) row.get(BundleStateMBean.EXPORTED_PACKAGES)).length);
+        assertFalse(row.containsKey(BundleStateMBean.SYMBOLIC_NAME));
+        // only the wiring of the bundles in the page is read
+        verify(admin).getExportedPackages(bundles[0]);
+        verify(admin, never()).getExportedPackages(bundles[1]);
+    }
 }
@@ -0,0 +1,68 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jmx.framework;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.osgi.jmx.framework.ServiceStateMBean.OBJECTNAME;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.apache.aries.jmx.Logger;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.BundleContext;
+
+/**
+ *
+ *
+ * @version $Rev$ $Date$
+ */
+public class RegistrableStandardEmitterMBeanTest {
+
+    @Test
+    public void testLazyActivation() throws Exception {
+
+        BundleContext context = mock(BundleContext.class);
+        Logger logger = mock(Logger.class);
+
+        ServiceState serviceState = new ServiceState(context, logger);
+        RegistrableStandardEmitterMBean mbean = new RegistrableStandardEmitterMBean(serviceState,
+                ServiceStateQueryMBean.class, true);
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName objectName = new ObjectName(OBJECTNAME);
+        server.registerMBean(mbean, objectName);
+        server.getMBeanInfo(objectName);
+
+        // registered but never used
+        verify(context, never()).addServiceListener(any(AllServiceListener.class));
+
+        server.getAttribute(objectName, "DroppedEventCount");
+        ArgumentCaptor<AllServiceListener> argument = ArgumentCaptor.forClass(AllServiceListener.class);
+        verify(context).addServiceListener(argument.capture());
+
+        server.unregisterMBean(objectName);
+        verify(context).removeServiceListener(argument.getValue());
+    }
+
+}
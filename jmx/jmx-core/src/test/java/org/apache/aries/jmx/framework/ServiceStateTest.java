@@ -44,6 +44,7 @@ import javax.management.Notification;
 import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 
 import org.apache.aries.jmx.Logger;
 import org.junit.Test;
@@ -199,4 +200,32 @@ public class ServiceStateTest {
         
     }
 
+    @Test
+    public void testListServicesPagedAndProjected() throws Exception {
+
+        BundleContext context = mock(BundleContext.class);
+        Logger logger = mock(Logger.class);
+
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(new Long(3));
+        ServiceReference[] references = new ServiceReference[3];
+        for (int i = 0; i < references.length; i++) {
+            references[i] = mock(ServiceReference.class);
+            when(references[i].getBundle()).thenReturn(bundle);
+            when(references[i].getProperty(Constants.SERVICE_ID)).thenReturn(new Long(30 - i));
+            when(references[i].getProperty(Constants.OBJECTCLASS)).thenReturn(new String[] { "org.apache.Service" });
+        }
+        when(context.getAllServiceReferences(null, "(objectClass=org.apache.Service)")).thenReturn(references);
+
+        ServiceState serviceState = new ServiceState(context, logger);
+        TabularData table = serviceState.listServices("(objectClass=org.apache.Service)", 1, 1,
+                new String[] { BUNDLE_IDENTIFIER });
+
+        assertEquals(1, table.size());
+        CompositeData row = (CompositeData) table.values().iterator().next();
+        assertEquals(new Long(29), row.get(IDENTIFIER));
+        assertEquals(new Long(3), row.get(BUNDLE_IDENTIFIER));
+        assertFalse(row.containsKey(OBJECT_CLASS));
+    }
+
 }
@@ -18,6 +18,17 @@
  */
 package org.apache.aries.jpa.container.context.transaction.impl;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
@@ -37,10 +48,25 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A <code>PersistenceContextType.TRANSACTION</code> {@link EntityManager} instance
+ *
+ * Outside of a transaction each call uses an {@link EntityManager} from a
+ * {@link NonTransactionalEntityManagerPool}, returned to the pool when the call completes.
+ * Queries get their own {@link EntityManager}, returned to the pool once they have been
+ * executed or have failed, after which they can not be used any more. {@link #getDelegate()}
+ * and {@link #unwrap(Class)} hand out an {@link EntityManager} that stays usable until the
+ * same thread calls one of them again. Queries and handed out {@link EntityManager}s that are
+ * still in use after {@link NonTransactionalEntityManagerPool#getMaxAge()} milliseconds are
+ * returned to the pool anyway, so that no persistence context lives or grows forever.
+ *
+ * {@link #setFlushMode(FlushModeType)} and {@link #setProperty(String, Object)} only apply to
+ * the transaction's persistence context: outside of a transaction they have no effect, as each
+ * call uses a different persistence context, and a warning is logged.
  */
 public class JTAEntityManager implements EntityManager {
   /** Logger */
   private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container.context");
+  /** The methods of {@link Query} executing the query */
+  private static final Collection<String> QUERY_EXECUTIONS = Arrays.asList("getResultList", "getSingleResult", "executeUpdate");
   
   /** The {@link EntityManagerFactory} that can create new {@link EntityManager} instances */
   private final EntityManagerFactory emf;
@@ -49,10 +75,16 @@ public class JTAEntityManager implements EntityManager {
   /** A registry for creating new persistence contexts */
   private final JTAPersistenceContextRegistry reg;
   /** 
-   * The entity manager to use when there is no transaction. Note that there is one of these
-   * per injection site.
+   * The pool of entity managers to use when there is no transaction, shared with the other
+   * injection sites using the same factory and properties. Lazily acquired.
    */
-  private EntityManager detachedManager = null;
+  private volatile NonTransactionalEntityManagerPool detachedManagers = null;
+  /** The queries created outside of a transaction that have not been executed yet */
+  private final Collection<DetachedQuery> detachedQueries = new HashSet<DetachedQuery>();
+  /** The entity managers handed out by getDelegate and unwrap outside of a transaction, by thread */
+  private final Map<Thread, EscapedManager> escapedManagers = new HashMap<Thread, EscapedManager>();
+  /** The time after which the queries and entity managers handed out should be checked for expiry */
+  private volatile long nextExpiry = Long.MAX_VALUE;
   
   public JTAEntityManager(EntityManagerFactory factory,
       Map<String, Object> properties, JTAPersistenceContextRegistry registry) {
@@ -62,7 +94,8 @@ public class JTAEntityManager implements EntityManager {
   }
 
   /**
-   * Get the target persistence context
+   * Get the target persistence context. When there is no transaction, the returned
+   * entity manager is bound to the calling thread until it is given to {@link #release(EntityManager)}
    * @param forceTransaction Whether the returned entity manager needs to be bound to a transaction
    * @throws TransactionRequiredException if forceTransaction is true and no transaction is available
    * @return
@@ -78,42 +111,189 @@ public class JTAEntityManager implements EntityManager {
         if(!!!reg.jtaIntegrationAvailable() && _logger.isDebugEnabled())
           _logger.debug("No integration with JTA transactions is available. No transaction context is active.");
         
-        if (detachedManager == null) {
-          EntityManager temp = emf.createEntityManager(props);
-          
-          synchronized (this) {
-            if (detachedManager == null) {
-              detachedManager = temp;
-              temp = null;
-            }
+        return getDetachedManagers().get();
+      }
+    }
+  }
+
+  /**
+   * Clear and return to the pool a non transactional entity manager once the call using it
+   * has completed. This is a no-op for transactional entity managers.
+   * @param em
+   */
+  private void release(EntityManager em)
+  {
+    NonTransactionalEntityManagerPool pool = detachedManagers;
+    if (pool != null) {
+      pool.release(em);
+      expire();
+    }
+  }
+
+  private NonTransactionalEntityManagerPool getDetachedManagers()
+  {
+    NonTransactionalEntityManagerPool pool = detachedManagers;
+    if (pool == null) {
+      synchronized (this) {
+        if (detachedManagers == null)
+          detachedManagers = reg.acquireNonTransactionalPool(emf, props);
+        pool = detachedManagers;
+      }
+    }
+    return pool;
+  }
+  
+  /**
+   * Create a query. Outside of a transaction the query gets an entity manager of its own,
+   * so that it can be used after this call, even by another thread.
+   * @param type The type of query to return
+   * @param creator Creates the query from the target persistence context
+   * @return
+   */
+  private <T extends Query> T newQuery(Class<T> type, QueryCreator<T> creator)
+  {
+    if (reg.isTransactionActive())
+      return creator.create(reg.getCurrentPersistenceContext(emf, props));
+
+    NonTransactionalEntityManagerPool pool = getDetachedManagers();
+    EntityManager em = pool.borrow();
+    T query;
+    try {
+      query = creator.create(em);
+    } catch (RuntimeException e) {
+      pool.giveBack(em);
+      throw e;
+    }
+    DetachedQuery handler = new DetachedQuery(pool, em, query);
+    synchronized (detachedQueries) {
+      detachedQueries.add(handler);
+      scheduleExpiry(handler.expiry);
+    }
+    expire();
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  /**
+   * Get the entity manager handed out by calls that expose it to the application. Outside of
+   * a transaction this is an entity manager borrowed for the calling thread. It is not cleared
+   * by the other calls, and is returned to the pool when the thread gets another one, or when
+   * it expires.
+   * @return
+   */
+  private EntityManager getEscapingPersistenceContext()
+  {
+    if (reg.isTransactionActive())
+      return reg.getCurrentPersistenceContext(emf, props);
+
+    NonTransactionalEntityManagerPool pool = getDetachedManagers();
+    EscapedManager escaped = new EscapedManager(pool, pool.borrow());
+    EscapedManager previous;
+    synchronized (escapedManagers) {
+      previous = escapedManagers.put(Thread.currentThread(), escaped);
+      scheduleExpiry(escaped.expiry);
+    }
+    if (previous != null)
+      previous.complete();
+    expire();
+    return escaped.em;
+  }
+
+  /**
+   * Make sure that {@link #expire()} checks a new query or entity manager, while holding
+   * the lock of the collection it was added to
+   * @param expiry
+   */
+  private void scheduleExpiry(long expiry)
+  {
+    synchronized (escapedManagers) {
+      if (expiry < nextExpiry)
+        nextExpiry = expiry;
+    }
+  }
+
+  /**
+   * Return to the pool the entity managers of the queries and of the calls to getDelegate
+   * and unwrap that have been handed out for longer than the pool allows.
+   */
+  private void expire()
+  {
+    long now = System.currentTimeMillis();
+    if (now < nextExpiry)
+      return;
+
+    List<Detached> expired = new ArrayList<Detached>();
+    long next = Long.MAX_VALUE;
+    // both locks are held so that no addition is missed when computing the next expiry
+    synchronized (detachedQueries) {
+      for (Iterator<DetachedQuery> it = detachedQueries.iterator(); it.hasNext();) {
+        DetachedQuery query = it.next();
+        if (query.expiry <= now) {
+          expired.add(query);
+          it.remove();
+        } else {
+          next = Math.min(next, query.expiry);
+        }
+      }
+      synchronized (escapedManagers) {
+        for (Iterator<EscapedManager> it = escapedManagers.values().iterator(); it.hasNext();) {
+          EscapedManager escaped = it.next();
+          if (escaped.expiry <= now) {
+            expired.add(escaped);
+            it.remove();
+          } else {
+            next = Math.min(next, escaped.expiry);
           }
-          
-          if (temp != null)
-            temp.close();
         }
-        return detachedManager;
+        nextExpiry = next;
       }
     }
+    for (Detached detached : expired) {
+      if(_logger.isDebugEnabled())
+        _logger.debug("The non transactional persistence context {} has expired and is returned to the pool.", new Object[] {detached.em});
+      detached.complete();
+    }
   }
-  
+
   /**
    * Called reflectively by blueprint
    */
   public void internalClose() {
-    EntityManager temp = null;
+    NonTransactionalEntityManagerPool temp = null;
     
     synchronized (this) {
-      temp = detachedManager;
-      detachedManager = null;
+      temp = detachedManagers;
+      detachedManagers = null;
     }
     
+    List<DetachedQuery> queries;
+    synchronized (detachedQueries) {
+      queries = new ArrayList<DetachedQuery>(detachedQueries);
+      detachedQueries.clear();
+    }
+    for (DetachedQuery query : queries)
+      query.complete();
+    
+    List<EscapedManager> escaped;
+    synchronized (escapedManagers) {
+      escaped = new ArrayList<EscapedManager>(escapedManagers.values());
+      escapedManagers.clear();
+      nextExpiry = Long.MAX_VALUE;
+    }
+    for (EscapedManager em : escaped)
+      em.complete();
+    
     if (temp != null)
-      temp.close();
+      reg.releaseNonTransactionalPool(temp);
   }
   
   public void clear()
   {
-    getPersistenceContext(false).clear();
+    EntityManager em = getPersistenceContext(false);
+    try {
+      em.clear();
+    } finally {
+      release(em);
+    }
   }
 
   public void close()
@@ -124,38 +304,68 @@ public class JTAEntityManager implements EntityManager {
 
   public boolean contains(Object arg0)
   {
-    return getPersistenceContext(false).contains(arg0);
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.contains(arg0);
+    } finally {
+      release(em);
+    }
   }
 
-  public Query createNamedQuery(String arg0)
+  public Query createNamedQuery(final String arg0)
   {
-    return getPersistenceContext(false).createNamedQuery(arg0);
+    return newQuery(Query.class, new QueryCreator<Query>() {
+      public Query create(EntityManager em) {
+        return em.createNamedQuery(arg0);
+      }
+    });
   }
 
-  public Query createNativeQuery(String arg0)
+  public Query createNativeQuery(final String arg0)
   {
-    return getPersistenceContext(false).createNativeQuery(arg0);
+    return newQuery(Query.class, new QueryCreator<Query>() {
+      public Query create(EntityManager em) {
+        return em.createNativeQuery(arg0);
+      }
+    });
   }
 
   @SuppressWarnings("unchecked")
-  public Query createNativeQuery(String arg0, Class arg1)
+  public Query createNativeQuery(final String arg0, final Class arg1)
   {
-    return getPersistenceContext(false).createNativeQuery(arg0, arg1);
+    return newQuery(Query.class, new QueryCreator<Query>() {
+      public Query create(EntityManager em) {
+        return em.createNativeQuery(arg0, arg1);
+      }
+    });
   }
 
-  public Query createNativeQuery(String arg0, String arg1)
+  public Query createNativeQuery(final String arg0, final String arg1)
   {
-    return getPersistenceContext(false).createNativeQuery(arg0, arg1);
+    return newQuery(Query.class, new QueryCreator<Query>() {
+      public Query create(EntityManager em) {
+        return em.createNativeQuery(arg0, arg1);
+      }
+    });
   }
 
-  public Query createQuery(String arg0)
+  public Query createQuery(final String arg0)
   {
-    return getPersistenceContext(false).createQuery(arg0);
+    return newQuery(Query.class, new QueryCreator<Query>() {
+      public Query create(EntityManager em) {
+        return em.createQuery(arg0);
+      }
+    });
   }
 
   public <T> T find(Class<T> arg0, Object arg1)
   {
-    return getPersistenceContext(false).find(arg0, arg1);
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.find(arg0, arg1);
+    } finally {
+      release(em);
+    }
   }
 
   /**
@@ -168,17 +378,27 @@ public class JTAEntityManager implements EntityManager {
 
   public Object getDelegate()
   {
-    return getPersistenceContext(false).getDelegate();
+    return getEscapingPersistenceContext().getDelegate();
   }
 
   public FlushModeType getFlushMode()
   {
-    return getPersistenceContext(false).getFlushMode();
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.getFlushMode();
+    } finally {
+      release(em);
+    }
   }
 
   public <T> T getReference(Class<T> arg0, Object arg1)
   {
-    return getPersistenceContext(false).getReference(arg0, arg1);
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.getReference(arg0, arg1);
+    } finally {
+      release(em);
+    }
   }
 
   public EntityTransaction getTransaction()
@@ -236,34 +456,65 @@ public class JTAEntityManager implements EntityManager {
     getPersistenceContext(true).remove(arg0);
   }
 
+  /**
+   * Outside of a transaction this has no effect, as every call uses a different persistence context
+   */
   public void setFlushMode(FlushModeType arg0)
   {
-    getPersistenceContext(false).setFlushMode(arg0);
+    if (reg.isTransactionActive())
+      reg.getCurrentPersistenceContext(emf, props).setFlushMode(arg0);
+    else
+      _logger.warn("The flush mode {} was set outside of a transaction and has no effect, as each call uses a different persistence context.", new Object[] {arg0});
   }
 
-  public <T> TypedQuery<T> createNamedQuery(String arg0, Class<T> arg1)
+  @SuppressWarnings("unchecked")
+  public <T> TypedQuery<T> createNamedQuery(final String arg0, final Class<T> arg1)
   {
-    return getPersistenceContext(false).createNamedQuery(arg0, arg1);
+    return newQuery(TypedQuery.class, new QueryCreator<TypedQuery>() {
+      public TypedQuery create(EntityManager em) {
+        return em.createNamedQuery(arg0, arg1);
+      }
+    });
   }
 
-  public <T> TypedQuery<T> createQuery(CriteriaQuery<T> arg0)
+  @SuppressWarnings("unchecked")
+  public <T> TypedQuery<T> createQuery(final CriteriaQuery<T> arg0)
   {
-    return getPersistenceContext(false).createQuery(arg0);
+    return newQuery(TypedQuery.class, new QueryCreator<TypedQuery>() {
+      public TypedQuery create(EntityManager em) {
+        return em.createQuery(arg0);
+      }
+    });
   }
 
-  public <T> TypedQuery<T> createQuery(String arg0, Class<T> arg1)
+  @SuppressWarnings("unchecked")
+  public <T> TypedQuery<T> createQuery(final String arg0, final Class<T> arg1)
   {
-    return getPersistenceContext(false).createQuery(arg0, arg1);
+    return newQuery(TypedQuery.class, new QueryCreator<TypedQuery>() {
+      public TypedQuery create(EntityManager em) {
+        return em.createQuery(arg0, arg1);
+      }
+    });
   }
 
   public void detach(Object arg0)
   {
-    getPersistenceContext(false).detach(arg0);
+    EntityManager em = getPersistenceContext(false);
+    try {
+      em.detach(arg0);
+    } finally {
+      release(em);
+    }
   }
 
   public <T> T find(Class<T> arg0, Object arg1, Map<String, Object> arg2)
   {
-    return getPersistenceContext(false).find(arg0, arg1, arg2);
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.find(arg0, arg1, arg2);
+    } finally {
+      release(em);
+    }
   }
 
   /**
@@ -271,7 +522,12 @@ public class JTAEntityManager implements EntityManager {
    */
   public <T> T find(Class<T> arg0, Object arg1, LockModeType arg2)
   {
-    return getPersistenceContext(arg2 != LockModeType.NONE).find(arg0, arg1, arg2);
+    EntityManager em = getPersistenceContext(arg2 != LockModeType.NONE);
+    try {
+      return em.find(arg0, arg1, arg2);
+    } finally {
+      release(em);
+    }
   }
 
   /**
@@ -279,12 +535,22 @@ public class JTAEntityManager implements EntityManager {
    */
   public <T> T find(Class<T> arg0, Object arg1, LockModeType arg2, Map<String, Object> arg3)
   {
-    return getPersistenceContext(arg2 != LockModeType.NONE).find(arg0, arg1, arg2, arg3);
+    EntityManager em = getPersistenceContext(arg2 != LockModeType.NONE);
+    try {
+      return em.find(arg0, arg1, arg2, arg3);
+    } finally {
+      release(em);
+    }
   }
 
   public CriteriaBuilder getCriteriaBuilder()
   {
-    return getPersistenceContext(false).getCriteriaBuilder();
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.getCriteriaBuilder();
+    } finally {
+      release(em);
+    }
   }
 
   public EntityManagerFactory getEntityManagerFactory()
@@ -302,12 +568,22 @@ public class JTAEntityManager implements EntityManager {
 
   public Metamodel getMetamodel()
   {
-    return getPersistenceContext(false).getMetamodel();
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.getMetamodel();
+    } finally {
+      release(em);
+    }
   }
 
   public Map<String, Object> getProperties()
   {
-    return getPersistenceContext(false).getProperties();
+    EntityManager em = getPersistenceContext(false);
+    try {
+      return em.getProperties();
+    } finally {
+      release(em);
+    }
   }
 
   /**
@@ -342,13 +618,119 @@ public class JTAEntityManager implements EntityManager {
     getPersistenceContext(true).refresh(arg0, arg1, arg2);
   }
 
+  /**
+   * Outside of a transaction this has no effect, as every call uses a different persistence context
+   */
   public void setProperty(String arg0, Object arg1)
   {
-    getPersistenceContext(false).setProperty(arg0, arg1);
+    if (reg.isTransactionActive())
+      reg.getCurrentPersistenceContext(emf, props).setProperty(arg0, arg1);
+    else
+      _logger.warn("The property {} was set outside of a transaction and has no effect, as each call uses a different persistence context.", new Object[] {arg0});
   }
 
   public <T> T unwrap(Class<T> arg0)
   {
-    return getPersistenceContext(false).unwrap(arg0);
+    return getEscapingPersistenceContext().unwrap(arg0);
+  }
+
+  /**
+   * Creates a query from a persistence context
+   */
+  private static abstract class QueryCreator<T extends Query>
+  {
+    public abstract T create(EntityManager em);
+  }
+
+  /**
+   * An entity manager borrowed outside of a transaction for longer than a call
+   */
+  private static class Detached
+  {
+    protected final NonTransactionalEntityManagerPool pool;
+    /** The time after which the entity manager is returned to the pool even if still in use */
+    protected final long expiry;
+    protected EntityManager em;
+
+    private Detached(NonTransactionalEntityManagerPool pool, EntityManager em)
+    {
+      this.pool = pool;
+      this.em = em;
+      expiry = System.currentTimeMillis() + pool.getMaxAge();
+    }
+
+    /**
+     * Return the entity manager to the pool
+     */
+    protected void complete()
+    {
+      EntityManager toReturn;
+      synchronized (this) {
+        toReturn = em;
+        em = null;
+      }
+      if (toReturn != null)
+        pool.giveBack(toReturn);
+    }
+  }
+
+  /**
+   * An entity manager handed out by getDelegate or unwrap
+   */
+  private static final class EscapedManager extends Detached
+  {
+    private EscapedManager(NonTransactionalEntityManagerPool pool, EntityManager em)
+    {
+      super(pool, em);
+    }
+  }
+
+  /**
+   * A query created outside of a transaction, with an entity manager of its own. The entity
+   * manager is returned to the pool once the query has been executed, or has failed.
+   */
+  private final class DetachedQuery extends Detached implements InvocationHandler
+  {
+    private final Query query;
+
+    private DetachedQuery(NonTransactionalEntityManagerPool pool, EntityManager em, Query query)
+    {
+      super(pool, em);
+      this.query = query;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      if (method.getDeclaringClass() == Object.class) {
+        if (method.getName().equals("equals"))
+          return proxy == args[0];
+        else if (method.getName().equals("hashCode"))
+          return System.identityHashCode(proxy);
+        else
+          return "DetachedQuery[" + query + "]";
+      }
+      synchronized (this) {
+        if (em == null)
+          throw new IllegalStateException("A query created outside of a transaction can only be executed once, within "
+              + pool.getMaxAge() + " milliseconds, and can not be used after a failure");
+      }
+      boolean done = true;
+      try {
+        Object result = method.invoke(query, args);
+        done = QUERY_EXECUTIONS.contains(method.getName());
+        // keep the calls chained on the proxy
+        return (result == query) ? proxy : result;
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      } finally {
+        // the application is unlikely to use a query again after a failure
+        if (done) {
+          synchronized (detachedQueries) {
+            detachedQueries.remove(this);
+          }
+          complete();
+        }
+      }
+    }
   }
 }
@@ -18,6 +18,9 @@
  */
 package org.apache.aries.jpa.container.context.transaction.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -70,6 +73,9 @@ public final class JTAPersistenceContextRegistry {
    */
   private final AtomicBoolean registryAvailable = new AtomicBoolean();
 
+  /** The pools of non transactional persistence contexts, shared by the {@link JTAEntityManager}s */
+  private final Map<PoolKey, NonTransactionalEntityManagerPool> nonTxPools = new HashMap<PoolKey, NonTransactionalEntityManagerPool>();
+
   /**
    * Get a PersistenceContext for the current transaction. The persistence context will 
    * automatically be closed when the transaction completes.
@@ -137,6 +143,61 @@ public final class JTAPersistenceContextRegistry {
     return toReturn;
   }
   
+  /**
+   * Get the pool of persistence contexts to use when there is no active transaction. Pools are
+   * shared by all the callers using the same {@link EntityManagerFactory} and properties, and
+   * each call must be matched by a call to {@link #releaseNonTransactionalPool(NonTransactionalEntityManagerPool)}
+   * 
+   * @param persistenceUnit The peristence unit to create the persitence contexts from
+   * @param properties Any properties that should be passed on the call to {@code createEntityManager()}.
+   * @return
+   */
+  public final NonTransactionalEntityManagerPool acquireNonTransactionalPool(EntityManagerFactory persistenceUnit, Map<String, Object> properties)
+  {
+    PoolKey key = new PoolKey(persistenceUnit, properties);
+    synchronized (nonTxPools) {
+      NonTransactionalEntityManagerPool pool = nonTxPools.get(key);
+      if(pool == null) {
+        pool = new NonTransactionalEntityManagerPool(persistenceUnit, properties, 
+            Integer.getInteger(NonTransactionalEntityManagerPool.MAX_IDLE_PROPERTY, NonTransactionalEntityManagerPool.DEFAULT_MAX_IDLE),
+            Integer.getInteger(NonTransactionalEntityManagerPool.MAX_ACTIVE_PROPERTY, NonTransactionalEntityManagerPool.DEFAULT_MAX_ACTIVE),
+            Long.getLong(NonTransactionalEntityManagerPool.MAX_WAIT_PROPERTY, NonTransactionalEntityManagerPool.DEFAULT_MAX_WAIT),
+            Long.getLong(NonTransactionalEntityManagerPool.MAX_AGE_PROPERTY, NonTransactionalEntityManagerPool.DEFAULT_MAX_AGE));
+        nonTxPools.put(key, pool);
+      }
+      pool.getUsers().incrementAndGet();
+      return pool;
+    }
+  }
+
+  /**
+   * Release a pool obtained from {@link #acquireNonTransactionalPool(EntityManagerFactory, Map)},
+   * closing it if it is no longer used
+   * @param pool
+   */
+  public final void releaseNonTransactionalPool(NonTransactionalEntityManagerPool pool)
+  {
+    synchronized (nonTxPools) {
+      if(pool.getUsers().decrementAndGet() > 0)
+        return;
+      nonTxPools.remove(new PoolKey(pool.getEntityManagerFactory(), pool.getProperties()));
+    }
+    if(_logger.isDebugEnabled())
+      _logger.debug("Closing the non transactional persistence context pool {}.", new Object[] {pool});
+    pool.close();
+  }
+
+  /**
+   * Get the pools of non transactional persistence contexts currently in use, for monitoring
+   * @return
+   */
+  public final Collection<NonTransactionalEntityManagerPool> getNonTransactionalPools()
+  {
+    synchronized (nonTxPools) {
+      return new ArrayList<NonTransactionalEntityManagerPool>(nonTxPools.values());
+    }
+  }
+  
   /**
    * Determine whether there is an active transaction on the thread
    * @return
@@ -191,6 +252,32 @@ public final class JTAPersistenceContextRegistry {
         " implementation is available.");
   }
   
+  /**
+   * The key of a non transactional pool: the identity of the factory and the properties
+   */
+  private final static class PoolKey {
+    private final EntityManagerFactory emf;
+    private final Map<String, Object> props;
+
+    public PoolKey(EntityManagerFactory emf, Map<String, Object> props) {
+      this.emf = emf;
+      this.props = props;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+      if(!!!(o instanceof PoolKey))
+        return false;
+      PoolKey other = (PoolKey) o;
+      return emf == other.emf && (props == null ? other.props == null : props.equals(other.props));
+    }
+
+    @Override
+    public final int hashCode() {
+      return System.identityHashCode(emf) * 31 + (props == null ? 0 : props.hashCode());
+    }
+  }
+  
   /**
    * This class is used to close EntityManager instances once the transaction has committed,
    * and clear the persistenceContextRegistry of old persistence contexts.
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.context.transaction.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of the {@link EntityManager} instances used by {@link JTAEntityManager}s when
+ * there is no active transaction, for a given {@link EntityManagerFactory} and set of properties.
+ *
+ * An {@link EntityManager} is bound to the calling thread for the duration of a call, and
+ * nested calls on the same thread share it. Once the outermost call releases it, it is cleared
+ * and returned to the pool, so that no {@link EntityManager} is ever used by two threads at the
+ * same time and no persistence context outlives the call that populated it. Objects that need
+ * their {@link EntityManager} after the call, such as queries, {@link #borrow()} one that is not
+ * bound to any thread, and must give it back within {@link #getMaxAge()} milliseconds.
+ *
+ * At most {@link #getMaxActive()} instances are in use at the same time: a thread needing one
+ * more waits up to {@link #getMaxWait()} milliseconds for another thread to return one.
+ * At most {@link #getMaxIdle()} idle instances are kept, the others are closed.
+ */
+public final class NonTransactionalEntityManagerPool {
+  /** Logger */
+  private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container.context");
+
+  /** The system property that can be used to change the number of idle instances kept by each pool */
+  public static final String MAX_IDLE_PROPERTY = "org.apache.aries.jpa.container.context.nonTxPoolMaxIdle";
+
+  /** The default number of idle instances kept by each pool */
+  public static final int DEFAULT_MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+  /** The system property that can be used to change the number of instances each pool lends at the same time */
+  public static final String MAX_ACTIVE_PROPERTY = "org.apache.aries.jpa.container.context.nonTxPoolMaxActive";
+
+  /** The default number of instances each pool lends at the same time */
+  public static final int DEFAULT_MAX_ACTIVE = 256;
+
+  /** The system property that can be used to change how long, in milliseconds, a thread waits for an instance */
+  public static final String MAX_WAIT_PROPERTY = "org.apache.aries.jpa.container.context.nonTxPoolMaxWait";
+
+  /** The default time, in milliseconds, a thread waits for an instance */
+  public static final long DEFAULT_MAX_WAIT = 30000;
+
+  /**
+   * The system property that can be used to change how long, in milliseconds, an instance
+   * handed out to the application outside of a call can be kept
+   */
+  public static final String MAX_AGE_PROPERTY = "org.apache.aries.jpa.container.context.nonTxPoolMaxAge";
+
+  /** The default time, in milliseconds, an instance handed out to the application can be kept */
+  public static final long DEFAULT_MAX_AGE = 60000;
+
+  private final EntityManagerFactory emf;
+  private final Map<String, Object> props;
+  private final int maxIdle;
+  private final int maxActive;
+  private final long maxWait;
+  private final long maxAge;
+  /** One permit per instance that can still be lent */
+  private final Semaphore permits;
+
+  /** The EntityManager currently bound to each thread */
+  private final ThreadLocal<Binding> bound = new ThreadLocal<Binding>();
+  private final ConcurrentLinkedQueue<EntityManager> idle = new ConcurrentLinkedQueue<EntityManager>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  /** The number of {@link JTAEntityManager}s using this pool */
+  private final AtomicInteger users = new AtomicInteger();
+  private volatile boolean closed;
+
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong borrowed = new AtomicLong();
+  private final AtomicLong destroyed = new AtomicLong();
+  private final AtomicInteger active = new AtomicInteger();
+
+  NonTransactionalEntityManagerPool(EntityManagerFactory factory, Map<String, Object> properties, int maxIdle,
+      int maxActive, long maxWait, long maxAge) {
+    emf = factory;
+    props = properties;
+    this.maxIdle = maxIdle;
+    this.maxActive = maxActive;
+    this.maxWait = maxWait;
+    this.maxAge = maxAge;
+    permits = new Semaphore(maxActive);
+  }
+
+  /**
+   * Get the {@link EntityManager} bound to the current thread, borrowing one from the pool
+   * if there is none. Each call must be matched by a call to {@link #release(EntityManager)}.
+   * @return
+   */
+  public EntityManager get() {
+    Binding binding = bound.get();
+    if (binding != null) {
+      binding.depth++;
+      return binding.em;
+    }
+    EntityManager em = borrow();
+    bound.set(new Binding(em));
+    return em;
+  }
+
+  /**
+   * Clear the {@link EntityManager} bound to the current thread, if it is the given one,
+   * and return it to the pool once the outermost call using it releases it.
+   * @param em
+   */
+  public void release(EntityManager em) {
+    Binding binding = bound.get();
+    if (em == null || binding == null || binding.em != em)
+      return;
+
+    if (--binding.depth > 0)
+      return;
+    bound.remove();
+    giveBack(em);
+  }
+
+  /**
+   * Borrow an {@link EntityManager} that is not bound to any thread. It must be given back
+   * with {@link #giveBack(EntityManager)}.
+   * @throws IllegalStateException if no instance was returned within {@link #getMaxWait()} milliseconds
+   * @return
+   */
+  EntityManager borrow() {
+    try {
+      if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+        throw new IllegalStateException("No non transactional EntityManager was available after " + maxWait
+            + " milliseconds: " + maxActive + " are already in use.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a non transactional EntityManager.", e);
+    }
+    EntityManager em = idle.poll();
+    if (em != null) {
+      idleCount.decrementAndGet();
+    } else {
+      try {
+        em = (props == null) ? emf.createEntityManager() : emf.createEntityManager(props);
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+      created.incrementAndGet();
+      if(_logger.isDebugEnabled())
+        _logger.debug("Created a new non transactional persistence context {}.", new Object[] {em});
+    }
+    borrowed.incrementAndGet();
+    active.incrementAndGet();
+    return em;
+  }
+
+  /**
+   * Clear a borrowed {@link EntityManager} and return it to the pool, or close it if the
+   * pool is full or closed.
+   * @param em
+   */
+  void giveBack(EntityManager em) {
+    active.decrementAndGet();
+    permits.release();
+    try {
+      em.clear();
+    } catch (RuntimeException e) {
+      _logger.warn("There was an error when the container cleared an EntityManager", e);
+      destroy(em);
+      return;
+    }
+    if (!closed && idleCount.incrementAndGet() <= maxIdle) {
+      idle.offer(em);
+      // the pool may have been closed concurrently
+      if (closed)
+        drain();
+    } else {
+      idleCount.decrementAndGet();
+      destroy(em);
+    }
+  }
+
+  /**
+   * Close the idle instances. Instances in use are closed when they are released.
+   */
+  public void close() {
+    closed = true;
+    drain();
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * @return how long, in milliseconds, an instance handed out to the application can be kept
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  public int getIdleCount() {
+    return idleCount.get();
+  }
+
+  /**
+   * @return the number of instances currently borrowed
+   */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  public long getBorrowedCount() {
+    return borrowed.get();
+  }
+
+  public long getDestroyedCount() {
+    return destroyed.get();
+  }
+
+  EntityManagerFactory getEntityManagerFactory() {
+    return emf;
+  }
+
+  Map<String, Object> getProperties() {
+    return props;
+  }
+
+  AtomicInteger getUsers() {
+    return users;
+  }
+
+  private void drain() {
+    EntityManager em;
+    while ((em = idle.poll()) != null) {
+      idleCount.decrementAndGet();
+      destroy(em);
+    }
+  }
+
+  private void destroy(EntityManager em) {
+    destroyed.incrementAndGet();
+    try {
+      em.close();
+    } catch (Exception e) {
+      _logger.warn("There was an error when the container closed an EntityManager", e);
+    }
+  }
+
+  /** An {@link EntityManager} bound to a thread, and the number of calls using it */
+  private static final class Binding {
+    private final EntityManager em;
+    private int depth = 1;
+
+    private Binding(EntityManager em) {
+      this.em = em;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "NonTransactionalEntityManagerPool[emf=" + emf + ", idle=" + getIdleCount() + ", active=" + getActiveCount()
+        + ", created=" + getCreatedCount() + ", borrowed=" + getBorrowedCount() + ", destroyed=" + getDestroyedCount() + "]";
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.context.transaction.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+
+import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JTAEntityManagerTest {
+
+  private EntityManagerFactory emf;
+  private JTAPersistenceContextRegistry contexts;
+  private JTAEntityManager em;
+  
+  @Before
+  public void setup()
+  {
+    // every EntityManager created is a new mock
+    emf = Skeleton.newMock(EntityManagerFactory.class);
+    contexts = new JTAPersistenceContextRegistry();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("prop1", "value1");
+    em = new JTAEntityManager(emf, props, contexts);
+  }
+  
+  @After
+  public void tearDown()
+  {
+    System.clearProperty(NonTransactionalEntityManagerPool.MAX_ACTIVE_PROPERTY);
+    System.clearProperty(NonTransactionalEntityManagerPool.MAX_WAIT_PROPERTY);
+    System.clearProperty(NonTransactionalEntityManagerPool.MAX_AGE_PROPERTY);
+  }
+  
+  @Test
+  public void testNonTransactionalQuery() throws Exception
+  {
+    final Query query = em.createQuery("SELECT e FROM Entity e");
+    NonTransactionalEntityManagerPool pool = contexts.getNonTransactionalPools().iterator().next();
+    assertEquals("The query should keep its EntityManager", 1, pool.getActiveCount());
+    
+    em.find(Object.class, 1);
+    assertEquals("The find should not use the EntityManager of the query", 2, pool.getCreatedCount());
+    assertEquals(1, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+    Skeleton.getSkeleton(emf).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "clear"), 1);
+    
+    final Throwable[] error = new Throwable[1];
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          query.setMaxResults(10);
+          query.getResultList();
+        } catch (Throwable t) {
+          error[0] = t;
+        }
+      }
+    };
+    thread.start();
+    thread.join(10000);
+    assertNull(error[0]);
+    
+    assertEquals("The EntityManager of the query should be returned to the pool", 0, pool.getActiveCount());
+    assertEquals(2, pool.getIdleCount());
+    Skeleton.getSkeleton(emf).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "clear"), 2);
+    
+    try {
+      query.getResultList();
+      fail("The query should not be usable once its EntityManager has been returned");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testInternalClose()
+  {
+    em.createNamedQuery("never.executed");
+    em.getDelegate();
+    em.getDelegate();
+    em.find(Object.class, 1);
+    Skeleton.getSkeleton(emf).assertCalledExactNumberOfTimes(new MethodCall(EntityManagerFactory.class, "createEntityManager", Map.class), 3);
+    // the second getDelegate returns the EntityManager of the first one
+    Skeleton.getSkeleton(emf).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "clear"), 2);
+    
+    em.internalClose();
+    Skeleton.getSkeleton(emf).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "close"), 3);
+    assertEquals(0, contexts.getNonTransactionalPools().size());
+  }
+  
+  @Test
+  public void testEscapedManagerReturnedOnNextCall()
+  {
+    em.unwrap(EntityManager.class);
+    NonTransactionalEntityManagerPool pool = contexts.getNonTransactionalPools().iterator().next();
+    assertEquals(1, pool.getActiveCount());
+    
+    em.getDelegate();
+    assertEquals("Each thread keeps at most one EntityManager handed out", 1, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+  }
+  
+  @Test
+  public void testFailedQueryReturnsEntityManager()
+  {
+    Skeleton.getSkeleton(emf).setThrows(new MethodCall(Query.class, "setParameter", String.class, Object.class), 
+        new IllegalArgumentException("unknown parameter"));
+    Query query = em.createQuery("SELECT e FROM Entity e WHERE e.id = :id");
+    NonTransactionalEntityManagerPool pool = contexts.getNonTransactionalPools().iterator().next();
+    assertEquals(1, pool.getActiveCount());
+    
+    try {
+      query.setParameter("id", 1);
+      fail("The exception of the query should be propagated");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals("The EntityManager of a failed query should be returned to the pool", 0, pool.getActiveCount());
+    
+    try {
+      query.getResultList();
+      fail("The query should not be usable after a failure");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testExpiry() throws Exception
+  {
+    System.setProperty(NonTransactionalEntityManagerPool.MAX_AGE_PROPERTY, "50");
+    Query query = em.createQuery("SELECT e FROM Entity e");
+    em.getDelegate();
+    NonTransactionalEntityManagerPool pool = contexts.getNonTransactionalPools().iterator().next();
+    assertEquals(2, pool.getActiveCount());
+    
+    Thread.sleep(100);
+    em.find(Object.class, 1);
+    assertEquals("Expired EntityManagers should be returned to the pool", 0, pool.getActiveCount());
+    
+    try {
+      query.getResultList();
+      fail("An expired query should not be usable");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testMaxActive()
+  {
+    System.setProperty(NonTransactionalEntityManagerPool.MAX_ACTIVE_PROPERTY, "1");
+    System.setProperty(NonTransactionalEntityManagerPool.MAX_WAIT_PROPERTY, "10");
+    Query query = em.createQuery("SELECT e FROM Entity e");
+    NonTransactionalEntityManagerPool pool = contexts.getNonTransactionalPools().iterator().next();
+    assertEquals(1, pool.getMaxActive());
+    
+    try {
+      em.find(Object.class, 1);
+      fail("No EntityManager should be available");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    
+    query.getResultList();
+    em.find(Object.class, 1);
+    assertEquals(1, pool.getCreatedCount());
+  }
+}
@@ -18,6 +18,7 @@
  */
 package org.apache.aries.jpa.container.context.transaction.impl;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertFalse;
@@ -255,4 +256,43 @@ public class JTAPersistenceContextRegistryTest {
     contexts.getCurrentPersistenceContext(emf1, props1);
   }
   
+  @Test
+  public void testNonTransactionalPool()
+  {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("prop1", "value1");
+    EntityManager em = Skeleton.newMock(EntityManager.class);
+    Skeleton.getSkeleton(emf1).setReturnValue(new MethodCall(EntityManagerFactory.class, 
+        "createEntityManager", props), em);
+    
+    NonTransactionalEntityManagerPool pool = contexts.acquireNonTransactionalPool(emf1, props);
+    assertSame("The pool should be shared", pool, contexts.acquireNonTransactionalPool(emf1, new HashMap<String, Object>(props)));
+    assertNotSame("The pool should depend on the factory", pool, contexts.acquireNonTransactionalPool(emf2, props));
+    
+    assertSame(em, pool.get());
+    assertSame("The EntityManager should be bound to the thread", em, pool.get());
+    assertEquals(1, pool.getActiveCount());
+    
+    pool.release(em);
+    Skeleton.getSkeleton(em).assertNotCalled(new MethodCall(EntityManager.class, "clear"));
+    assertEquals("The EntityManager is still used by the outer call", 1, pool.getActiveCount());
+    
+    pool.release(em);
+    Skeleton.getSkeleton(em).assertCalled(new MethodCall(EntityManager.class, "clear"));
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+    
+    assertSame(em, pool.get());
+    pool.release(em);
+    Skeleton.getSkeleton(emf1).assertCalledExactNumberOfTimes(new MethodCall(EntityManagerFactory.class, "createEntityManager", props), 1);
+    assertEquals(1, pool.getCreatedCount());
+    assertEquals(2, pool.getBorrowedCount());
+    
+    contexts.releaseNonTransactionalPool(pool);
+    Skeleton.getSkeleton(em).assertNotCalled(new MethodCall(EntityManager.class, "close"));
+    contexts.releaseNonTransactionalPool(pool);
+    Skeleton.getSkeleton(em).assertCalledExactNumberOfTimes(new MethodCall(EntityManager.class, "close"), 1);
+    assertEquals(0, pool.getIdleCount());
+  }
+  
 }
@@ -20,10 +20,23 @@ package org.apache.aries.jpa.container.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceProvider;
@@ -32,6 +45,7 @@ import javax.persistence.spi.PersistenceUnitInfo;
 import org.apache.aries.jpa.container.ManagedPersistenceUnitInfo;
 import org.apache.aries.jpa.container.PersistenceUnitConstants;
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.unit.impl.PersistenceUnitInfoImpl;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -58,6 +72,18 @@ public class EntityManagerFactoryManager {
   private Map<String, EntityManagerFactory> emfs = null;
   /** The {@link ServiceRegistration} objects for the {@link EntityManagerFactory}s */
   private Collection<ServiceRegistration> registrations = null;
+  /** 
+   * The {@link ExecutorService} used to create the {@link EntityManagerFactory}s 
+   * concurrently, or {@code null} if they should be created serially
+   */
+  private final ExecutorService bootstrapExecutor;
+  /** 
+   * Whether {@link EntityManagerFactory} objects should only be created by the 
+   * provider when they are first used
+   */
+  private final boolean lazy;
+  /** The time, in milliseconds, taken to create each {@link EntityManagerFactory} */
+  private final Map<String, Long> creationTimes = new HashMap<String, Long>();
 
   /** Logger */
   private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container");
@@ -77,11 +103,40 @@ public class EntityManagerFactoryManager {
    * @param parsedUnits 
    */
   public EntityManagerFactoryManager(BundleContext containerCtx, Bundle b, Collection<ParsedPersistenceUnit> parsedUnits, ServiceReference ref, Collection<ManagedPersistenceUnitInfo> infos) {
+    this(containerCtx, b, parsedUnits, ref, infos, null, false);
+  }
+
+  /**
+   * Create an {@link EntityManagerFactoryManager} for
+   * the supplied persistence bundle that creates its
+   * {@link EntityManagerFactory}s using the supplied {@link ExecutorService}.
+   * 
+   * Persistence units are independent of one another, so when a bundle defines
+   * more than one they are created concurrently, and each {@link EntityManagerFactory}
+   * service is registered as soon as it is available. The {@link ExecutorService} may
+   * also be running this manager on behalf of the {@link PersistenceBundleManager}, so
+   * tasks that no thread has picked up yet are run by the calling thread.
+   * 
+   * In lazy mode the services are registered straight away using a 
+   * {@link LazyEntityManagerFactory}, and the provider is only asked to create 
+   * each {@link EntityManagerFactory} when it is first used.
+   * 
+   * @param b
+   * @param infos 
+   * @param ref 
+   * @param parsedUnits 
+   * @param executor The {@link ExecutorService} to use, or {@code null} to create 
+   *                 the {@link EntityManagerFactory}s on the calling thread
+   * @param lazyCreation true if the {@link EntityManagerFactory}s should be created on first use
+   */
+  public EntityManagerFactoryManager(BundleContext containerCtx, Bundle b, Collection<ParsedPersistenceUnit> parsedUnits, ServiceReference ref, Collection<ManagedPersistenceUnitInfo> infos, ExecutorService executor, boolean lazyCreation) {
     containerContext = containerCtx;
     bundle = b;
     provider = ref;
     persistenceUnits = infos;
     parsedData = parsedUnits;
+    bootstrapExecutor = executor;
+    lazy = lazyCreation;
   }
 
   /**
@@ -169,10 +224,6 @@ public class EntityManagerFactoryManager {
     //Only register if there is a provider and we are not
     //already registered
     if(provider != null && registrations == null) {
-      //Make sure the EntityManagerFactories are instantiated
-      createEntityManagerFactories();
-      
-      registrations = new ArrayList<ServiceRegistration>();
       String providerName = (String) provider.getProperty("javax.persistence.provider");
       if(providerName == null) {
         _logger.warn("The PersistenceProvider for bundle {} did not specify a provider name in the \"javax.persistence.provider\" service property. " +
@@ -181,38 +232,89 @@ public class EntityManagerFactoryManager {
             + "The Peristence Provider service was {}",
             new Object[] {bundle.getSymbolicName() + "_" + bundle.getVersion(), provider});
       }
-      //Register each EMF
-      for(Entry<String, EntityManagerFactory> entry : emfs.entrySet())
-      {
-        Properties props = new Properties();
-        String unitName = entry.getKey();
-          
-        props.put(PersistenceUnitConstants.OSGI_UNIT_NAME, unitName);
-        if(providerName != null)
-          props.put(PersistenceUnitConstants.OSGI_UNIT_PROVIDER, providerName);
-        props.put(PersistenceUnitConstants.OSGI_UNIT_VERSION, provider.getBundle().getVersion());
-        props.put(PersistenceUnitConstants.CONTAINER_MANAGED_PERSISTENCE_UNIT, Boolean.TRUE);
-        props.put(PersistenceUnitConstants.EMPTY_PERSISTENCE_UNIT_NAME, "".equals(unitName));
+      
+      if(emfs == null && bootstrapExecutor != null && !!!lazy) {
+        //Instantiate the EntityManagerFactories, registering each one as it is created
+        registrations = new ArrayList<ServiceRegistration>();
+        boolean registered = false;
         try {
-          registrations.add(bundle.getBundleContext().registerService(EntityManagerFactory.class.getCanonicalName(), entry.getValue(), props));
-        } catch (Exception e) {
-          _logger.error("There was an error registering the persistence unit " 
-              + unitName + " defined by the bundle " + bundle.getSymbolicName() + "_" + bundle.getVersion(), e);
-          throw new InvalidPersistenceUnitException(e);
+          createEntityManagerFactories(providerName);
+          registered = true;
+        } finally {
+          //Don't leave a partial set of services behind, whatever the failure
+          if(!!!registered)
+            unregisterEntityManagerFactories();
         }
+      } else {
+        //Make sure the EntityManagerFactories are instantiated
+        createEntityManagerFactories();
+        
+        registrations = new ArrayList<ServiceRegistration>();
+        //Register each EMF
+        for(Entry<String, EntityManagerFactory> entry : emfs.entrySet())
+          registerEntityManagerFactory(entry.getKey(), entry.getValue(), providerName);
       }
     }
   }
 
+  /**
+   * Register a single {@link EntityManagerFactory} service
+   * 
+   * @param unitName The persistence unit name
+   * @param emf The {@link EntityManagerFactory}
+   * @param providerName The provider name, or {@code null} if the provider did not specify one
+   * @throws InvalidPersistenceUnitException if the service could not be registered
+   */
+  private void registerEntityManagerFactory(String unitName, EntityManagerFactory emf, 
+      String providerName) throws InvalidPersistenceUnitException {
+    Properties props = new Properties();
+      
+    props.put(PersistenceUnitConstants.OSGI_UNIT_NAME, unitName);
+    if(providerName != null)
+      props.put(PersistenceUnitConstants.OSGI_UNIT_PROVIDER, providerName);
+    props.put(PersistenceUnitConstants.OSGI_UNIT_VERSION, provider.getBundle().getVersion());
+    props.put(PersistenceUnitConstants.CONTAINER_MANAGED_PERSISTENCE_UNIT, Boolean.TRUE);
+    props.put(PersistenceUnitConstants.EMPTY_PERSISTENCE_UNIT_NAME, "".equals(unitName));
+    try {
+      registrations.add(bundle.getBundleContext().registerService(EntityManagerFactory.class.getCanonicalName(), emf, props));
+    } catch (Exception e) {
+      _logger.error("There was an error registering the persistence unit " 
+          + unitName + " defined by the bundle " + bundle.getSymbolicName() + "_" + bundle.getVersion(), e);
+      throw new InvalidPersistenceUnitException(e);
+    }
+  }
+
   /**
    * Create {@link EntityManagerFactory} services for this peristence unit
    * throws InvalidPersistenceUnitException if this {@link EntityManagerFactory} is no longer
    *  valid and should be destroyed
    */
   private void createEntityManagerFactories() throws InvalidPersistenceUnitException {
+    createEntityManagerFactories(null);
+  }
+  
+  /**
+   * Create {@link EntityManagerFactory} services for this peristence unit, registering
+   * each one as soon as it has been created if the registrations are being tracked
+   * 
+   * @param providerName The provider name to register the services with
+   * throws InvalidPersistenceUnitException if this {@link EntityManagerFactory} is no longer
+   *  valid and should be destroyed
+   */
+  private void createEntityManagerFactories(String providerName) throws InvalidPersistenceUnitException {
     //Only try if we have a provider and EMFs
     if(provider != null) {
-      if(emfs == null) {
+      if(emfs == null && lazy) {
+        emfs = new HashMap<String, EntityManagerFactory>();
+        //The provider is only needed when each EntityManagerFactory is first used
+        String bundleName = bundle.getSymbolicName() + "_" + bundle.getVersion();
+        for(ManagedPersistenceUnitInfo info : persistenceUnits) {
+          emfs.put(info.getPersistenceUnitInfo().getPersistenceUnitName(), 
+              new LazyEntityManagerFactory(containerContext, provider, info, bundleName));
+        }
+      } else if(emfs == null) {
+        //Share the classes read by the temporary ClassLoaders while the units bootstrap
+        retainTempClassBytes();
         try {
           emfs = new HashMap<String, EntityManagerFactory>();
         
@@ -226,21 +328,148 @@ public class EntityManagerFactoryManager {
             throw new InvalidPersistenceUnitException();
           }
       
-          for(ManagedPersistenceUnitInfo info : persistenceUnits){
-            PersistenceUnitInfo pUnitInfo = info.getPersistenceUnitInfo();
-        
-            emfs.put(pUnitInfo.getPersistenceUnitName(), 
-                providerService.createContainerEntityManagerFactory(
-                    pUnitInfo, info.getContainerProperties()));
+          if(bootstrapExecutor != null && persistenceUnits.size() > 1) {
+            createEntityManagerFactoriesConcurrently(providerService, providerName);
+          } else {
+            for(ManagedPersistenceUnitInfo info : persistenceUnits){
+              EntityManagerFactoryCreation creation = new EntityManagerFactoryCreation(providerService, info, null);
+              addEntityManagerFactory(creation.call(), providerName);
+            }
           }
         } finally {
           //Remember to unget the provider
           containerContext.ungetService(provider);
+          //Providers only use temporary ClassLoaders while they bootstrap
+          releaseTempClassBytes();
+        }
+      }
+    }
+  }
+
+  /**
+   * Create the {@link EntityManagerFactory}s using the bootstrap {@link ExecutorService}.
+   * This method does not return until every creation task has finished, so that no
+   * {@link EntityManagerFactory} is leaked and the provider service can be released.
+   * 
+   * Whole bundles may be set up by the bootstrap threads, so rather than waiting for
+   * a busy pool the calling thread runs any task that has not been started yet.
+   * 
+   * @param providerService
+   * @param providerName
+   * @throws InvalidPersistenceUnitException
+   */
+  private void createEntityManagerFactoriesConcurrently(PersistenceProvider providerService, 
+      String providerName) throws InvalidPersistenceUnitException {
+    
+    BlockingQueue<Future<EntityManagerFactoryCreation>> completed = 
+      new LinkedBlockingQueue<Future<EntityManagerFactoryCreation>>();
+    //Providers commonly rely on the thread context ClassLoader, so use ours
+    ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+    
+    List<CreationTask> tasks = new ArrayList<CreationTask>();
+    for(ManagedPersistenceUnitInfo info : persistenceUnits) {
+      CreationTask task = new CreationTask(new EntityManagerFactoryCreation(providerService, info, tccl), completed);
+      tasks.add(task);
+      try {
+        bootstrapExecutor.execute(task);
+      } catch (RejectedExecutionException ree) {
+        //The executor is shutting down, the task will be run below
+      }
+    }
+    
+    Iterator<CreationTask> unstarted = tasks.iterator();
+    Throwable failure = null;
+    boolean interrupted = false;
+    for(int i = 0; i < tasks.size(); i++) {
+      Future<EntityManagerFactoryCreation> future = completed.poll();
+      while(future == null && unstarted.hasNext()) {
+        //This does nothing if a bootstrap thread has already started the task
+        unstarted.next().run();
+        future = completed.poll();
+      }
+      if(future == null) {
+        try {
+          future = completed.take();
+        } catch (InterruptedException ie) {
+          //Keep waiting, the tasks have to finish before the provider can be released
+          interrupted = true;
+          i--;
+          continue;
         }
       }
+      try {
+        EntityManagerFactoryCreation creation = future.get();
+        if(failure == null)
+          addEntityManagerFactory(creation, providerName);
+        else
+          emfs.put(creation.getUnitName(), creation.getEntityManagerFactory());
+      } catch (ExecutionException ee) {
+        if(failure == null)
+          failure = ee.getCause();
+      } catch (InterruptedException ie) {
+        //Cannot happen as the future is complete
+        interrupted = true;
+      } catch (InvalidPersistenceUnitException ipue) {
+        failure = ipue;
+      }
+    }
+    
+    if(interrupted)
+      Thread.currentThread().interrupt();
+    
+    if(failure instanceof InvalidPersistenceUnitException)
+      throw (InvalidPersistenceUnitException) failure;
+    else if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    else if (failure instanceof Error)
+      throw (Error) failure;
+    else if (failure != null)
+      throw new InvalidPersistenceUnitException((Exception) failure);
+  }
+
+  /**
+   * Start caching the class bytes read by the temporary ClassLoaders of our persistence units
+   */
+  private void retainTempClassBytes() {
+    for(ManagedPersistenceUnitInfo info : persistenceUnits) {
+      PersistenceUnitInfo pUnitInfo = info.getPersistenceUnitInfo();
+      if(pUnitInfo instanceof PersistenceUnitInfoImpl)
+        ((PersistenceUnitInfoImpl) pUnitInfo).retainTempClassBytes();
+    }
+  }
+
+  /**
+   * Release the class bytes cached for the temporary ClassLoaders of our persistence units
+   */
+  private void releaseTempClassBytes() {
+    for(ManagedPersistenceUnitInfo info : persistenceUnits) {
+      PersistenceUnitInfo pUnitInfo = info.getPersistenceUnitInfo();
+      if(pUnitInfo instanceof PersistenceUnitInfoImpl)
+        ((PersistenceUnitInfoImpl) pUnitInfo).releaseTempClassBytes();
     }
   }
 
+  /**
+   * Store a newly created {@link EntityManagerFactory}, registering it
+   * if the {@link EntityManagerFactory} services are being registered
+   * @param creation
+   * @param providerName
+   * @throws InvalidPersistenceUnitException
+   */
+  private void addEntityManagerFactory(EntityManagerFactoryCreation creation, 
+      String providerName) throws InvalidPersistenceUnitException {
+    String unitName = creation.getUnitName();
+    emfs.put(unitName, creation.getEntityManagerFactory());
+    creationTimes.put(unitName, creation.getCreationTime());
+    
+    if(_logger.isDebugEnabled())
+      _logger.debug("The EntityManagerFactory for persistence unit {} in bundle {} was created in {} ms",
+          new Object[] {unitName, bundle.getSymbolicName() + "_" + bundle.getVersion(), creation.getCreationTime()});
+    
+    if(registrations != null)
+      registerEntityManagerFactory(unitName, creation.getEntityManagerFactory(), providerName);
+  }
+
   /**
    * Manage the EntityManagerFactories for the following
    * provider and {@link PersistenceUnitInfo}s
@@ -289,6 +518,7 @@ public class EntityManagerFactoryManager {
    * S
    */
   private void destroyEntityManagerFactories() {
+    creationTimes.clear();
     if(registrations != null)
       unregisterEntityManagerFactories();
     if(emfs != null) {
@@ -313,4 +543,89 @@ public class EntityManagerFactoryManager {
     return parsedData;
   }
 
+  /**
+   * @return the time, in milliseconds, that the provider took to create the
+   *         {@link EntityManagerFactory} for each persistence unit. Persistence
+   *         units that are created lazily are only included once they have been used.
+   */
+  public synchronized Map<String, Long> getCreationTimes()
+  {
+    Map<String, Long> times = new HashMap<String, Long>(creationTimes);
+    if(emfs != null) {
+      for(EntityManagerFactory emf : emfs.values()) {
+        if(emf instanceof LazyEntityManagerFactory && ((LazyEntityManagerFactory) emf).isCreated()) {
+          LazyEntityManagerFactory lemf = (LazyEntityManagerFactory) emf;
+          times.put(lemf.getUnitName(), lemf.getCreationTime());
+        }
+      }
+    }
+    return Collections.unmodifiableMap(times);
+  }
+
+  /**
+   * An {@link EntityManagerFactoryCreation} that adds itself to a queue once it is complete
+   */
+  private static final class CreationTask extends FutureTask<EntityManagerFactoryCreation> {
+    private final Queue<Future<EntityManagerFactoryCreation>> completed;
+    
+    public CreationTask(EntityManagerFactoryCreation creation, 
+        Queue<Future<EntityManagerFactoryCreation>> completed) {
+      super(creation);
+      this.completed = completed;
+    }
+    
+    @Override
+    protected void done() {
+      completed.add(this);
+    }
+  }
+
+  /**
+   * Creates, and times the creation of, the {@link EntityManagerFactory}
+   * for a single persistence unit
+   */
+  private static final class EntityManagerFactoryCreation implements Callable<EntityManagerFactoryCreation> {
+    private final PersistenceProvider providerService;
+    private final ManagedPersistenceUnitInfo info;
+    private final ClassLoader contextClassLoader;
+    private EntityManagerFactory emf;
+    private long creationTime;
+    
+    public EntityManagerFactoryCreation(PersistenceProvider providerService, 
+        ManagedPersistenceUnitInfo info, ClassLoader contextClassLoader) {
+      this.providerService = providerService;
+      this.info = info;
+      this.contextClassLoader = contextClassLoader;
+    }
+
+    public EntityManagerFactoryCreation call() {
+      Thread thread = Thread.currentThread();
+      ClassLoader oldTccl = thread.getContextClassLoader();
+      if(contextClassLoader != null)
+        thread.setContextClassLoader(contextClassLoader);
+      try {
+        long start = System.nanoTime();
+        emf = providerService.createContainerEntityManagerFactory(
+            info.getPersistenceUnitInfo(), info.getContainerProperties());
+        creationTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return this;
+      } finally {
+        if(contextClassLoader != null)
+          thread.setContextClassLoader(oldTccl);
+      }
+    }
+    
+    public String getUnitName() {
+      return info.getPersistenceUnitInfo().getPersistenceUnitName();
+    }
+
+    public EntityManagerFactory getEntityManagerFactory() {
+      return emf;
+    }
+
+    public long getCreationTime() {
+      return creationTime;
+    }
+  }
+
 }
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.spi.PersistenceProvider;
+
+import org.apache.aries.jpa.container.ManagedPersistenceUnitInfo;
+import org.apache.aries.jpa.container.unit.impl.PersistenceUnitInfoImpl;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link EntityManagerFactory} that does not ask the {@link PersistenceProvider}
+ * to create the real {@link EntityManagerFactory} until it is first used. Concurrent
+ * first callers wait for a single creation.
+ * 
+ * By the time it is first used the persistence bundle may already have loaded the
+ * entity classes, so a {@link javax.persistence.spi.ClassTransformer} added by the
+ * provider cannot weave them. This is reported with a warning when it happens.
+ */
+public class LazyEntityManagerFactory implements EntityManagerFactory {
+  /** Logger */
+  private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container");
+
+  /** The container's {@link BundleContext} */
+  private final BundleContext containerContext;
+  /** The {@link PersistenceProvider} to use */
+  private final ServiceReference provider;
+  /** The persistence unit */
+  private final ManagedPersistenceUnitInfo info;
+  /** The name of the persistence bundle, for diagnostics */
+  private final String bundleName;
+
+  /** The real {@link EntityManagerFactory}, once created */
+  private volatile EntityManagerFactory delegate;
+  /** Whether {@link #close()} has been called, guarded by {@code this} */
+  private boolean closed;
+  /** The time, in milliseconds, taken to create the delegate */
+  private volatile long creationTime = -1;
+
+  public LazyEntityManagerFactory(BundleContext containerCtx, ServiceReference ref,
+      ManagedPersistenceUnitInfo unitInfo, String bundleName) {
+    containerContext = containerCtx;
+    provider = ref;
+    info = unitInfo;
+    this.bundleName = bundleName;
+  }
+
+  /**
+   * Get the real {@link EntityManagerFactory}, creating it if necessary
+   * @return
+   * @throws IllegalStateException if this factory has been closed or the provider
+   *                               is no longer available
+   */
+  private EntityManagerFactory getDelegate() {
+    EntityManagerFactory emf = delegate;
+    if(emf != null)
+      return emf;
+
+    synchronized (this) {
+      if(closed)
+        throw new IllegalStateException("The EntityManagerFactory for persistence unit "
+            + getUnitName() + " in bundle " + bundleName + " has been closed");
+
+      if(delegate == null) {
+        PersistenceProvider providerService = (PersistenceProvider) containerContext.getService(provider);
+        if(providerService == null)
+          throw new IllegalStateException("The PersistenceProvider service hosting persistence unit "
+              + getUnitName() + " in bundle " + bundleName + " is no longer available.");
+        if(info.getPersistenceUnitInfo() instanceof PersistenceUnitInfoImpl)
+          ((PersistenceUnitInfoImpl) info.getPersistenceUnitInfo()).retainTempClassBytes();
+        try {
+          long start = System.nanoTime();
+          delegate = providerService.createContainerEntityManagerFactory(
+              info.getPersistenceUnitInfo(), info.getContainerProperties());
+          creationTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+          containerContext.ungetService(provider);
+          if(info.getPersistenceUnitInfo() instanceof PersistenceUnitInfoImpl)
+            ((PersistenceUnitInfoImpl) info.getPersistenceUnitInfo()).releaseTempClassBytes();
+        }
+        if(_logger.isDebugEnabled())
+          _logger.debug("The EntityManagerFactory for persistence unit {} in bundle {} was created on first use in {} ms",
+              new Object[] {getUnitName(), bundleName, creationTime});
+        if(info.getPersistenceUnitInfo() instanceof PersistenceUnitInfoImpl 
+            && ((PersistenceUnitInfoImpl) info.getPersistenceUnitInfo()).isTransformerAdded())
+          _logger.warn("The PersistenceProvider added a ClassTransformer to persistence unit {} in bundle {} " +
+              "when the unit was first used. Classes that the bundle had already loaded will not be transformed. " +
+              "Set {} to false if the provider relies on class transformation.", 
+              new Object[] {getUnitName(), bundleName, PersistenceBundleManager.LAZY_CREATION_PROPERTY});
+      }
+      return delegate;
+    }
+  }
+
+  /**
+   * @return true if the real {@link EntityManagerFactory} has been created
+   */
+  public boolean isCreated() {
+    return delegate != null;
+  }
+
+  /**
+   * @return the time, in milliseconds, taken to create the real {@link EntityManagerFactory},
+   *         or -1 if it has not been created
+   */
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  public String getUnitName() {
+    return info.getPersistenceUnitInfo().getPersistenceUnitName();
+  }
+
+  public EntityManager createEntityManager() {
+    return getDelegate().createEntityManager();
+  }
+
+  public EntityManager createEntityManager(Map arg0) {
+    return getDelegate().createEntityManager(arg0);
+  }
+
+  public CriteriaBuilder getCriteriaBuilder() {
+    return getDelegate().getCriteriaBuilder();
+  }
+
+  public Metamodel getMetamodel() {
+    return getDelegate().getMetamodel();
+  }
+
+  public Map<String, Object> getProperties() {
+    return getDelegate().getProperties();
+  }
+
+  public Cache getCache() {
+    return getDelegate().getCache();
+  }
+
+  public PersistenceUnitUtil getPersistenceUnitUtil() {
+    return getDelegate().getPersistenceUnitUtil();
+  }
+
+  public synchronized boolean isOpen() {
+    if(closed)
+      return false;
+    return (delegate == null) ? true : delegate.isOpen();
+  }
+
+  /**
+   * Close this factory, and the real {@link EntityManagerFactory} if it was created.
+   * This waits for any creation in progress to finish.
+   */
+  public synchronized void close() {
+    closed = true;
+    if(delegate != null)
+      delegate.close();
+  }
+
+  @Override
+  public String toString() {
+    return "LazyEntityManagerFactory[unit=" + getUnitName() + ", bundle=" + bundleName
+        + ", created=" + isCreated() + "]";
+  }
+}
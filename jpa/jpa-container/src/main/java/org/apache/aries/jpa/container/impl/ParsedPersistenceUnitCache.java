@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.parsing.PersistenceDescriptor;
+import org.apache.aries.jpa.container.parsing.impl.PersistenceUnitImpl;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of the {@link ParsedPersistenceUnit}s defined by persistence bundles,
+ * stored in one file per bundle id in the data area of the container bundle.
+ *
+ * An entry can be used without reading the persistence descriptors at all when the
+ * last modified time and Meta-Persistence header of the bundle have not changed. Otherwise
+ * the descriptors are read, and the entry is still used if their digest has not changed.
+ * Entries written by a different version of the container are never used.
+ */
+public class ParsedPersistenceUnitCache {
+  /** Logger */
+  private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container");
+
+  private static final int MAGIC = 0x4A504143;
+  private static final int FORMAT_VERSION = 1;
+
+  /** The directory holding the entries, or {@code null} if the cache is disabled */
+  private final File directory;
+  /** The container bundle */
+  private final Bundle containerBundle;
+
+  /**
+   * @param directory The directory to use, or {@code null} to disable the cache
+   * @param containerBundle The container bundle, whose last modified time is part of every entry
+   */
+  public ParsedPersistenceUnitCache(File directory, Bundle containerBundle) {
+    this.directory = directory;
+    this.containerBundle = containerBundle;
+  }
+
+  /**
+   * Get the cached persistence units for a bundle
+   * @param bundle
+   * @param digest The digest of the persistence descriptors of the bundle, or {@code null}
+   *               to use the entry only if the bundle has not been modified since it was written
+   * @return The persistence units, or {@code null} if there is no valid entry
+   */
+  @SuppressWarnings("unchecked")
+  public Collection<ParsedPersistenceUnit> getUnits(Bundle bundle, String digest) {
+    File file = getFile(bundle);
+    if(file == null || !!!file.isFile())
+      return null;
+
+    try {
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+            || in.readLong() != containerBundle.getLastModified())
+          return null;
+        long lastModified = in.readLong();
+        String header = in.readUTF();
+        String storedDigest = in.readUTF();
+
+        if(!!!header.equals(getHeader(bundle)))
+          return null;
+        if(digest == null ? lastModified != bundle.getLastModified() : !!!digest.equals(storedDigest))
+          return null;
+
+        List<Map<String, Object>> metadata = (List<Map<String, Object>>) in.readObject();
+        Collection<ParsedPersistenceUnit> units = new ArrayList<ParsedPersistenceUnit>(metadata.size());
+        for(Map<String, Object> unit : metadata)
+          units.add(new PersistenceUnitImpl(bundle, unit));
+        return units;
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      if(_logger.isDebugEnabled())
+        _logger.debug("Unable to read the persistence unit cache entry " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Store the persistence units parsed from a bundle
+   * @param bundle
+   * @param digest The digest of the persistence descriptors they were parsed from
+   * @param units
+   */
+  public void setUnits(Bundle bundle, String digest, Collection<ParsedPersistenceUnit> units) {
+    File file = getFile(bundle);
+    if(file == null || digest == null)
+      return;
+
+    List<Map<String, Object>> metadata = new ArrayList<Map<String, Object>>(units.size());
+    for(ParsedPersistenceUnit unit : units)
+      metadata.add(unit.getPersistenceXmlMetadata());
+
+    try {
+      file.getParentFile().mkdirs();
+      ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(containerBundle.getLastModified());
+        out.writeLong(bundle.getLastModified());
+        out.writeUTF(getHeader(bundle));
+        out.writeUTF(digest);
+        out.writeObject(metadata);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      if(_logger.isDebugEnabled())
+        _logger.debug("Unable to write the persistence unit cache entry " + file, e);
+      file.delete();
+    }
+  }
+
+  /**
+   * Remove any entry for the bundle
+   * @param bundle
+   */
+  public void invalidate(Bundle bundle) {
+    File file = getFile(bundle);
+    if(file != null)
+      file.delete();
+  }
+
+  /**
+   * Read the persistence descriptors into memory, closing the original streams,
+   * so that they can be digested before being parsed
+   * @param descriptors
+   * @return Equivalent descriptors backed by the content that was read
+   * @throws IOException
+   */
+  public static List<PersistenceDescriptor> buffer(Collection<PersistenceDescriptor> descriptors) throws IOException {
+    List<PersistenceDescriptor> buffered = new ArrayList<PersistenceDescriptor>(descriptors.size());
+    IOException failure = null;
+    byte[] buffer = new byte[4096];
+    for(PersistenceDescriptor descriptor : descriptors) {
+      InputStream is = descriptor.getInputStream();
+      try {
+        if(failure == null) {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          int n;
+          while((n = is.read(buffer)) != -1)
+            baos.write(buffer, 0, n);
+          buffered.add(new PersistenceDescriptorImpl(descriptor.getLocation(),
+              new ByteArrayInputStream(baos.toByteArray())));
+        }
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        try {
+          is.close();
+        } catch (IOException e) {
+          //We don't care about this exception, so swallow it
+        }
+      }
+    }
+    if(failure != null)
+      throw failure;
+    return buffered;
+  }
+
+  /**
+   * Compute the digest of some buffered persistence descriptors
+   * @param descriptors Descriptors returned by {@link #buffer(Collection)}
+   * @return The digest, or {@code null} if it could not be computed
+   */
+  public static String digest(List<PersistenceDescriptor> descriptors) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      //The descriptors are found in no particular order
+      List<PersistenceDescriptor> sorted = new ArrayList<PersistenceDescriptor>(descriptors);
+      Collections.sort(sorted, new Comparator<PersistenceDescriptor>() {
+        public int compare(PersistenceDescriptor o1, PersistenceDescriptor o2) {
+          return o1.getLocation().compareTo(o2.getLocation());
+        }
+      });
+      for(PersistenceDescriptor descriptor : sorted) {
+        digest.update(descriptor.getLocation().getBytes("UTF-8"));
+        digest.update((byte) 0);
+        ByteArrayInputStream content = (ByteArrayInputStream) descriptor.getInputStream();
+        byte[] bytes = new byte[content.available()];
+        content.mark(0);
+        content.read(bytes, 0, bytes.length);
+        content.reset();
+        digest.update(bytes);
+        digest.update((byte) 0);
+      }
+      StringBuilder sb = new StringBuilder();
+      for(byte b : digest.digest()) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+        sb.append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private File getFile(Bundle bundle) {
+    return (directory == null) ? null : new File(directory, bundle.getBundleId() + ".ser");
+  }
+
+  private static String getHeader(Bundle bundle) {
+    Object header = bundle.getHeaders().get(PersistenceBundleHelper.PERSISTENCE_UNIT_HEADER);
+    return (header == null) ? "" : header.toString();
+  }
+}
@@ -19,6 +19,7 @@
 
 package org.apache.aries.jpa.container.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -33,6 +34,12 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.aries.jpa.container.ManagedPersistenceUnitInfo;
 import org.apache.aries.jpa.container.ManagedPersistenceUnitInfoFactory;
@@ -60,6 +67,30 @@ public class PersistenceBundleManager extends MultiBundleTracker
   /** Logger */
   private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container");
   
+  /** 
+   * The configuration property holding the number of threads used to create the 
+   * EntityManagerFactory objects of a bundle concurrently. The bundles that are 
+   * already installed when the container starts are also set up concurrently. 
+   * The default, 0, creates everything serially on the thread that processes the 
+   * bundle event.
+   */
+  public static final String BOOTSTRAP_THREADS_PROPERTY = "org.apache.aries.jpa.container.bootstrap.threads";
+  
+  /** 
+   * The configuration property that, when set to true, registers the EntityManagerFactory
+   * services straight away and only creates each EntityManagerFactory when it is first used.
+   * This speeds up startup, but the persistence bundle may load its entity classes before 
+   * the provider can register a ClassTransformer for them, so providers that rely on 
+   * load-time weaving should not be used lazily. A warning is logged when this happens.
+   */
+  public static final String LAZY_CREATION_PROPERTY = "org.apache.aries.jpa.container.lazy.creation";
+  
+  /** 
+   * The configuration property that can be set to false to stop the container caching 
+   * parsed persistence units in its data area across restarts.
+   */
+  public static final String PARSE_CACHE_PROPERTY = "org.apache.aries.jpa.container.parse.cache";
+  
   /** The bundle context for this bundle */
   private BundleContext ctx = null;
   /** 
@@ -86,6 +117,18 @@ public class PersistenceBundleManager extends MultiBundleTracker
   private PersistenceDescriptorParser parser;
   /** Configuration for this extender */
   private Properties config;
+  /** Creates EntityManagerFactory objects concurrently, {@code null} unless configured */
+  private ExecutorService bootstrapExecutor;
+  /** 
+   * Managers found while the tracker is opening, which are set up by the
+   * bootstrap threads once it is open. Only non-null during {@link #open()}
+   * and should only ever be accessed when synchronized on {@code this}
+   */
+  private List<EntityManagerFactoryManager> deferredManagers;
+  /** Whether EntityManagerFactory objects are created on first use */
+  private boolean lazyCreation;
+  /** The persistent cache of parsed persistence units */
+  private ParsedPersistenceUnitCache parseCache;
 
   /**
    * Create the extender. Note that it will not start tracking 
@@ -127,7 +170,108 @@ public class PersistenceBundleManager extends MultiBundleTracker
     if(persistenceUnitFactory == null)
       persistenceUnitFactory = new ManagedPersistenceUnitInfoFactoryImpl();
     
+    File cacheDir = null;
+    if(Boolean.parseBoolean(config.getProperty(PARSE_CACHE_PROPERTY, "true").trim()))
+      cacheDir = ctx.getDataFile("persistence-units");
+    parseCache = new ParsedPersistenceUnitCache(cacheDir, ctx.getBundle());
+    
+    lazyCreation = Boolean.parseBoolean(config.getProperty(LAZY_CREATION_PROPERTY, "false").trim());
+    if(lazyCreation && _logger.isInfoEnabled())
+      _logger.info("EntityManagerFactory objects will be created when they are first used");
+    
+    int threads = getBootstrapThreads();
+    if(threads > 0) {
+      if(_logger.isInfoEnabled())
+        _logger.info("Persistence units will be created concurrently using {} threads", new Object[] {threads});
+      bootstrapExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final ThreadFactory factory = Executors.defaultThreadFactory();
+        public Thread newThread(Runnable r) {
+          Thread t = factory.newThread(r);
+          t.setName("Aries JPA EntityManagerFactory bootstrap");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      synchronized (this) {
+        deferredManagers = new ArrayList<EntityManagerFactoryManager>();
+      }
+    }
+    
     super.open();
+    
+    if(bootstrapExecutor != null)
+      setupDeferredManagers();
+  }
+  
+  /**
+   * Bring the managers of the bundles found by {@link #open()} into the right state
+   * using the bootstrap threads, so that persistence bundles are set up concurrently
+   * rather than one at a time on the thread that opened the tracker. This method does
+   * not return until every manager has been set up.
+   */
+  private void setupDeferredManagers() {
+    List<EntityManagerFactoryManager> mgrs;
+    synchronized (this) {
+      mgrs = deferredManagers;
+      deferredManagers = null;
+    }
+    
+    List<FutureTask<Object>> futures = new ArrayList<FutureTask<Object>>();
+    for(final EntityManagerFactoryManager mgr : mgrs) {
+      FutureTask<Object> setup = new FutureTask<Object>(new Runnable() {
+        public void run() {
+          stateChange(mgr, true);
+        }
+      }, null);
+      futures.add(setup);
+      try {
+        bootstrapExecutor.execute(setup);
+      } catch (RejectedExecutionException ree) {
+        //The executor is shutting down, so set the bundle up ourselves
+        setup.run();
+      }
+    }
+    
+    boolean interrupted = false;
+    for(int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      } catch (InterruptedException ie) {
+        //Keep waiting, the container is not open until every bundle is set up
+        interrupted = true;
+        i--;
+      } catch (ExecutionException ee) {
+        _logger.warn("An error occured whilst trying to manage persistence units for bundle " 
+            + mgrs.get(i).getBundle().getSymbolicName() + "_" + mgrs.get(i).getBundle().getVersion(), ee.getCause());
+      }
+    }
+    if(interrupted)
+      Thread.currentThread().interrupt();
+  }
+  
+  @Override
+  public void close() {
+    super.close();
+    if(bootstrapExecutor != null) {
+      bootstrapExecutor.shutdown();
+      bootstrapExecutor = null;
+    }
+  }
+  
+  /**
+   * @return The number of threads configured by {@link #BOOTSTRAP_THREADS_PROPERTY}
+   */
+  private int getBootstrapThreads() {
+    String value = config.getProperty(BOOTSTRAP_THREADS_PROPERTY);
+    if(value != null) {
+      try {
+        return Math.max(0, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException e) {
+        _logger.warn("Invalid value for {}: {}. Persistence units will be created serially.", 
+            new Object[] {BOOTSTRAP_THREADS_PROPERTY, value});
+      }
+    }
+    return 0;
   }
   
   public Object addingBundle(Bundle bundle, BundleEvent event) 
@@ -283,6 +427,9 @@ public class PersistenceBundleManager extends MultiBundleTracker
     EntityManagerFactoryManager mgr = (EntityManagerFactoryManager) object;   
     mgr.destroy();
     persistenceUnitFactory.destroyPersistenceBundle(bundle);
+    //Bundle ids are never reused, so forget uninstalled bundles
+    if(bundle.getState() == Bundle.UNINSTALLED)
+      parseCache.invalidate(bundle);
     //Remember to tidy up the map
     synchronized (this) {
       bundleToManagerMap.remove(bundle);
@@ -291,7 +438,15 @@ public class PersistenceBundleManager extends MultiBundleTracker
   
   private Collection<ParsedPersistenceUnit> parseBundle(Bundle b) {
     
-    Collection<ParsedPersistenceUnit> pUnits = new ArrayList<ParsedPersistenceUnit>();
+    //Use the units from the last time this bundle was parsed if it hasn't changed
+    Collection<ParsedPersistenceUnit> pUnits = parseCache.getUnits(b, null);
+    if(pUnits != null) {
+      if(_logger.isDebugEnabled())
+        _logger.debug("Using the cached persistence units {} for bundle {}", new Object[] {pUnits, b.getSymbolicName() + "_" + b.getVersion()});
+      return pUnits;
+    }
+    
+    pUnits = new ArrayList<ParsedPersistenceUnit>();
     
     Collection <PersistenceDescriptor> persistenceXmls = PersistenceBundleHelper.findPersistenceXmlFiles(b);
 
@@ -306,18 +461,42 @@ public class PersistenceBundleManager extends MultiBundleTracker
             new Object[] {b.getSymbolicName() + "_" + b.getVersion()});
       }
       
+      //Read the descriptors so that the cache can tell if they have changed
+      List<PersistenceDescriptor> descriptors;
+      try {
+        descriptors = ParsedPersistenceUnitCache.buffer(persistenceXmls);
+      } catch (IOException e) {
+        _logger.error("There was an exception while reading the persistence descriptors in bundle "
+            + b.getSymbolicName() + "_" + b.getVersion() + ". No persistence descriptors will be processed for this bundle.", e);
+        return pUnits;
+      }
+      String digest = ParsedPersistenceUnitCache.digest(descriptors);
       
+      Collection<ParsedPersistenceUnit> cached = parseCache.getUnits(b, digest);
+      if(cached != null) {
+        if(_logger.isDebugEnabled())
+          _logger.debug("The persistence descriptors in bundle {} have not changed, using the cached persistence units {}", 
+              new Object[] {b.getSymbolicName() + "_" + b.getVersion(), cached});
+        //Remember the new last modified time of the bundle
+        parseCache.setUnits(b, digest, cached);
+        return cached;
+      }
       
+      boolean parsed = true;
       //Parse each descriptor
-      for(PersistenceDescriptor descriptor : persistenceXmls) {
+      for(PersistenceDescriptor descriptor : descriptors) {
         try {
           pUnits.addAll(parser.parse(b, descriptor));
         } catch (PersistenceDescriptorParserException e) {
+          parsed = false;
           _logger.error("There was an error while parsing the persistence descriptor " 
               + descriptor.getLocation() + " in bundle " + b.getSymbolicName() 
               + "_" + b.getVersion() + ". No persistence units will be managed for this bundle", e);
         }
       }
+      //Only cache complete results, so that any error is reported again
+      if(parsed)
+        parseCache.setUnits(b, digest, pUnits);
     }
     return pUnits;
   }
@@ -353,7 +532,7 @@ public class PersistenceBundleManager extends MultiBundleTracker
         if(mgr != null)
           mgr.manage(pUnits, ref, infos);
         else 
-          mgr = new EntityManagerFactoryManager(ctx, bundle, pUnits, ref, infos);
+          mgr = new EntityManagerFactoryManager(ctx, bundle, pUnits, ref, infos, bootstrapExecutor, lazyCreation);
           
         //Register the manager (this may re-add, but who cares)
         synchronized (this) {
@@ -364,24 +543,42 @@ public class PersistenceBundleManager extends MultiBundleTracker
           }
         }
           
-        //prod the manager to get it into the right state
-        try {
-          mgr.bundleStateChange();
-        } catch (InvalidPersistenceUnitException e) {
-          logInvalidPersistenceUnitException(bundle, e);
-          mgr.destroy();
-          if(infos != null)
-            persistenceUnitFactory.destroyPersistenceBundle(bundle);
-          //Put the manager into the list of managers waiting for a new
-          //provider, one that might work!
-          synchronized (this) {
-            managersAwaitingProviders.add(mgr);
+        //prod the manager to get it into the right state, unless the
+        //bootstrap threads will do it once the tracker is open
+        synchronized (this) {
+          if(ref != null && deferredManagers != null) {
+            deferredManagers.add(mgr);
+            return mgr;
           }
         }
+        stateChange(mgr, infos != null);
       }
       return mgr;
     }
   
+  /**
+   * Prod a manager to get it into the right state
+   * 
+   * @param mgr The manager
+   * @param destroyBundle Whether the {@link ManagedPersistenceUnitInfoFactory} 
+   *                      must be told if the persistence units are invalid
+   */
+  private void stateChange(EntityManagerFactoryManager mgr, boolean destroyBundle) {
+    try {
+      mgr.bundleStateChange();
+    } catch (InvalidPersistenceUnitException e) {
+      logInvalidPersistenceUnitException(mgr.getBundle(), e);
+      mgr.destroy();
+      if(destroyBundle)
+        persistenceUnitFactory.destroyPersistenceBundle(mgr.getBundle());
+      //Put the manager into the list of managers waiting for a new
+      //provider, one that might work!
+      synchronized (this) {
+        managersAwaitingProviders.add(mgr);
+      }
+    }
+  }
+  
   /**
    * Get a persistence provider from the service registry described by the
    * persistence units defined
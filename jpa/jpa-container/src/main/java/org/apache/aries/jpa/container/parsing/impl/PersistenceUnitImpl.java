@@ -68,6 +68,22 @@ public class PersistenceUnitImpl implements ParsedPersistenceUnit
     if (transactionType != null) metadata.put(TRANSACTION_TYPE, transactionType);
 
   }
+
+  /**
+   * Create a persistence unit from metadata previously returned by
+   * {@link #getPersistenceXmlMetadata()}, for example by a unit that
+   * was parsed when the container last ran
+   * 
+   * @param b
+   * @param persistenceXmlMetadata
+   */
+  public PersistenceUnitImpl(Bundle b, Map<String, Object> persistenceXmlMetadata)
+  {
+    this.bundle = b;
+    metadata.putAll(persistenceXmlMetadata);
+    //Take a deep copy, exactly as getPersistenceXmlMetadata does
+    copyMutableValues(metadata);
+  }
   
   
   public Bundle getDefiningBundle()
@@ -78,16 +94,25 @@ public class PersistenceUnitImpl implements ParsedPersistenceUnit
   public Map<String, Object> getPersistenceXmlMetadata()
   {
     Map<String, Object> data = new HashMap<String, Object>(metadata);
+    copyMutableValues(data);
+    return data;
+  }
+
+  /**
+   * Replace the lists and properties in the metadata with copies, so that
+   * it does not share any mutable value with the metadata it was copied from
+   * @param data
+   */
+  private static void copyMutableValues(Map<String, Object> data)
+  {
     if(data.containsKey(MAPPING_FILES))
-      data.put(MAPPING_FILES, ((ArrayList) metadata.get(MAPPING_FILES)).clone());
+      data.put(MAPPING_FILES, ((ArrayList) data.get(MAPPING_FILES)).clone());
     if(data.containsKey(JAR_FILES))
-    data.put(JAR_FILES, ((ArrayList) metadata.get(JAR_FILES)).clone());
+      data.put(JAR_FILES, ((ArrayList) data.get(JAR_FILES)).clone());
     if(data.containsKey(MANAGED_CLASSES))
-    data.put(MANAGED_CLASSES, ((ArrayList) metadata.get(MANAGED_CLASSES)).clone());
+      data.put(MANAGED_CLASSES, ((ArrayList) data.get(MANAGED_CLASSES)).clone());
     if(data.containsKey(PROPERTIES))
-    data.put(PROPERTIES, ((Properties)metadata.get(PROPERTIES)).clone());
-    
-    return data;
+      data.put(PROPERTIES, ((Properties) data.get(PROPERTIES)).clone());
   }
 
   /**
@@ -40,8 +40,11 @@ public class ManagedPersistenceUnitInfoFactoryImpl implements
     
     Collection<ManagedPersistenceUnitInfo> managedUnits = new ArrayList<ManagedPersistenceUnitInfo>();
     
+    //The units in a bundle share the same classes, so only read them once
+    TempClassBytesCache classBytes = new TempClassBytesCache();
+    
     for(ParsedPersistenceUnit unit : persistenceMetadata)
-      managedUnits.add(new ManagedPersistenceUnitInfoImpl(persistenceBundle, unit, providerReference));
+      managedUnits.add(new ManagedPersistenceUnitInfoImpl(persistenceBundle, unit, providerReference, classBytes));
     
     return managedUnits;
   }
@@ -38,6 +38,12 @@ public class ManagedPersistenceUnitInfoImpl implements
       ServiceReference providerRef) {
     info = new PersistenceUnitInfoImpl(persistenceBundle, unit, providerRef);
   }
+  
+  public ManagedPersistenceUnitInfoImpl(Bundle persistenceBundle,
+      ParsedPersistenceUnit unit,
+      ServiceReference providerRef, TempClassBytesCache classBytes) {
+    info = new PersistenceUnitInfoImpl(persistenceBundle, unit, providerRef, classBytes);
+  }
 
   public Map<String, Object> getContainerProperties() {
     return Collections.emptyMap();
@@ -49,20 +49,51 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
   
   private final ServiceReference providerRef;
   
+  /** The class bytes shared by our temporary ClassLoaders */
+  private final TempClassBytesCache tempClassBytes;
+  
+  /** The ClassLoader for the provider bundle, the parent of our temporary ClassLoaders */
+  private volatile ClassLoader providerLoader;
+  
+  /** Whether the provider has asked for the persistence unit's classes to be transformed */
+  private volatile boolean transformerAdded;
+  
   /** Logger */
   private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container");
   
   public PersistenceUnitInfoImpl (Bundle b, ParsedPersistenceUnit parsedData, final ServiceReference providerRef)
+  {
+    this(b, parsedData, providerRef, new TempClassBytesCache());
+  }
+  
+  /**
+   * @param b
+   * @param parsedData
+   * @param providerRef
+   * @param classBytes The class bytes cache to share with the other 
+   *                   persistence units in the bundle
+   */
+  public PersistenceUnitInfoImpl (Bundle b, ParsedPersistenceUnit parsedData, final ServiceReference providerRef,
+      TempClassBytesCache classBytes)
   {
     bundle = b;
     unit = parsedData;
     this.providerRef = providerRef;
     cl = new BundleDelegatingClassLoader(b);
+    tempClassBytes = classBytes;
   }
   
   public void addTransformer(ClassTransformer arg0) {
+    transformerAdded = true;
     // TODO Add support for class transformation from this method
   }
+  
+  /**
+   * @return true if the provider has called {@link #addTransformer(ClassTransformer)}
+   */
+  public boolean isTransformerAdded() {
+    return transformerAdded;
+  }
 
   public boolean excludeUnlistedClasses() {
     Boolean result = (Boolean) unit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.EXCLUDE_UNLISTED_CLASSES);
@@ -126,7 +157,37 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
   }
 
   public ClassLoader getNewTempClassLoader() {
-    return new TempBundleDelegatingClassLoader(bundle, new BundleDelegatingClassLoader(providerRef.getBundle()));
+    ClassLoader parent = providerLoader;
+    if(parent == null) {
+      parent = new BundleDelegatingClassLoader(providerRef.getBundle());
+      providerLoader = parent;
+    }
+    return new TempBundleDelegatingClassLoader(bundle, parent, tempClassBytes);
+  }
+  
+  /**
+   * Share the class bytes read by the temporary ClassLoaders until {@link #releaseTempClassBytes()}
+   * is called. This should be called before the provider is asked to create the EntityManagerFactory.
+   */
+  public void retainTempClassBytes() {
+    tempClassBytes.retain();
+  }
+  
+  /**
+   * Stop sharing the class bytes read by the temporary ClassLoaders. This should be called
+   * once the EntityManagerFactory has been created, as providers only use temporary
+   * ClassLoaders while they bootstrap.
+   */
+  public void releaseTempClassBytes() {
+    tempClassBytes.release("persistence unit " + getPersistenceUnitName() + " in bundle "
+        + bundle.getSymbolicName() + "_" + bundle.getVersion());
+  }
+  
+  /**
+   * @return the class bytes cache shared by the temporary ClassLoaders
+   */
+  public TempClassBytesCache getTempClassBytes() {
+    return tempClassBytes;
   }
 
   public DataSource getNonJtaDataSource() {
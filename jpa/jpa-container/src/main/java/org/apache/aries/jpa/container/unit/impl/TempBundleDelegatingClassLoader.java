@@ -34,15 +34,36 @@ public class TempBundleDelegatingClassLoader extends ClassLoader {
 
   private final Bundle bundle;
   
+  /** The class bytes shared with other temporary ClassLoaders, may be null */
+  private final TempClassBytesCache classBytes;
+  
   public TempBundleDelegatingClassLoader(Bundle b, ClassLoader parent) {
+    this(b, parent, null);
+  }
+  
+  public TempBundleDelegatingClassLoader(Bundle b, ClassLoader parent, TempClassBytesCache cache) {
     super(parent);
     bundle = b;
+    classBytes = cache;
   }
   
   @Override
   protected Class<?> findClass(String className) throws ClassNotFoundException {
     String classResName = className.replace('.', '/').concat(".class");
     
+    if(classBytes != null) {
+      byte[] bytes;
+      try {
+        bytes = classBytes.getClassBytes(this, classResName);
+      } catch (IOException ioe) {
+        throw new ClassNotFoundException(className, ioe);
+      }
+      if(bytes == null)
+        throw new ClassNotFoundException(className);
+      
+      return defineClass(className, bytes, 0, bytes.length);
+    }
+    
     //Don't use loadClass, just load the bytes and call defineClass
     InputStream is = getResourceAsStream(classResName);
     
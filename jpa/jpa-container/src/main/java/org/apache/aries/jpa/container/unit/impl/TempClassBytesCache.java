@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.unit.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The class bytes read by the {@link TempBundleDelegatingClassLoader}s of the
+ * persistence units in a bundle. Providers typically create several temporary
+ * ClassLoaders while they bootstrap, and each of them would otherwise read every
+ * entity class from the bundle again.
+ *
+ * The bytes are only needed while the EntityManagerFactory objects are created.
+ * Each persistence unit {@link #retain() retains} the cache before its provider
+ * bootstraps it and {@link #release(String) releases} it afterwards. Classes are
+ * only cached while a bootstrap is in progress, and the bytes are dropped when the
+ * last one finishes, so temporary ClassLoaders that a provider keeps using later
+ * read through to the bundle without filling the cache again. The bytes are also
+ * held softly.
+ */
+public class TempClassBytesCache {
+  /** Logger */
+  private static final Logger _logger = LoggerFactory.getLogger("org.apache.aries.jpa.container");
+
+  /** The cached bytes, keyed by resource name */
+  private volatile SoftReference<ConcurrentMap<String, byte[]>> cache =
+    new SoftReference<ConcurrentMap<String, byte[]>>(null);
+  /** The number of bootstraps in progress, guarded by this */
+  private int bootstraps;
+
+  private final AtomicLong reads = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong readTime = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Get the bytes of a class, reading them from the supplied {@link ClassLoader}
+   * if they are not cached
+   * @param loader
+   * @param classResName
+   * @return The bytes, or null if the class cannot be found
+   * @throws IOException
+   */
+  public byte[] getClassBytes(ClassLoader loader, String classResName) throws IOException {
+    ConcurrentMap<String, byte[]> map = getMap();
+    byte[] bytes = (map == null) ? null : map.get(classResName);
+    if(bytes != null) {
+      hits.incrementAndGet();
+      return bytes;
+    }
+
+    URL url = loader.getResource(classResName);
+    if(url == null)
+      return null;
+
+    long start = System.nanoTime();
+    bytes = read(url);
+    readTime.addAndGet(System.nanoTime() - start);
+    reads.incrementAndGet();
+    bytesRead.addAndGet(bytes.length);
+
+    if(map != null)
+      map.put(classResName, bytes);
+    return bytes;
+  }
+
+  /**
+   * Start caching class bytes for a persistence unit that is about to be bootstrapped
+   */
+  public synchronized void retain() {
+    bootstraps++;
+  }
+
+  /**
+   * Finish a bootstrap started with {@link #retain()}. The cached bytes are released,
+   * and what was read is logged, once no bootstrap is in progress.
+   * @param owner A description of the owner of this cache
+   */
+  public void release(String owner) {
+    boolean populated;
+    synchronized (this) {
+      if(bootstraps == 0 || --bootstraps > 0)
+        return;
+      //The units in a bundle share a cache, only report it once
+      populated = cache.get() != null;
+      cache = new SoftReference<ConcurrentMap<String, byte[]>>(null);
+    }
+    if(populated && _logger.isDebugEnabled())
+      _logger.debug("The temporary ClassLoaders for {} read {} classes ({} bytes) in {} ms, and reused {}",
+          new Object[] {owner, getReads(), getBytesRead(), getReadTime(), getHits()});
+  }
+
+  /**
+   * @return the number of classes read from the bundle
+   */
+  public long getReads() {
+    return reads.get();
+  }
+
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /**
+   * @return the time, in milliseconds, spent reading classes
+   */
+  public long getReadTime() {
+    return TimeUnit.NANOSECONDS.toMillis(readTime.get());
+  }
+
+  /**
+   * @return the number of times the bytes of a class were reused
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the cache, or null if no bootstrap is in progress
+   */
+  private ConcurrentMap<String, byte[]> getMap() {
+    ConcurrentMap<String, byte[]> map = cache.get();
+    if(map == null) {
+      synchronized (this) {
+        map = cache.get();
+        if(map == null && bootstraps > 0) {
+          map = new ConcurrentHashMap<String, byte[]>();
+          cache = new SoftReference<ConcurrentMap<String, byte[]>>(map);
+        }
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Read a class file, using the size of the entry when the archive
+   * provides it to avoid copying the bytes
+   */
+  private static byte[] read(URL url) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setUseCaches(false);
+    InputStream is = conn.getInputStream();
+    try {
+      int length = conn.getContentLength();
+      if(length >= 0) {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while(offset < length) {
+          int read = is.read(bytes, offset, length - offset);
+          if(read < 0)
+            throw new IOException("Unexpected end of " + url + " after " + offset + " of " + length + " bytes");
+          offset += read;
+        }
+        return bytes;
+      }
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buff = new byte[8192];
+      int read = is.read(buff);
+      while(read >0) {
+        baos.write(buff, 0, read);
+        read = is.read(buff);
+      }
+      return baos.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
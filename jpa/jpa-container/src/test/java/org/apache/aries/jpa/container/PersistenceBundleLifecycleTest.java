@@ -33,10 +33,16 @@ import java.io.OutputStreamWriter;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 
@@ -51,6 +57,7 @@ import org.apache.aries.jpa.container.util.FakeManagedPersistenceUnitFactory;
 import org.apache.aries.mocks.BundleContextMock;
 import org.apache.aries.mocks.BundleMock;
 import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.MethodCallHandler;
 import org.apache.aries.unittest.mocks.Skeleton;
 import org.junit.After;
 import org.junit.Before;
@@ -220,6 +227,43 @@ public class PersistenceBundleLifecycleTest
     testSuccessfulRegistrationEvent(ref, extenderContext, 1);
   }
   
+  @Test
+  public void testManager_OnePreExistingPersistenceBundle_LazyCreation() throws Exception
+  {
+    BundleContext extenderContext = preExistingBundleSetup();
+    Properties props = new Properties();
+    props.put(PersistenceBundleManager.LAZY_CREATION_PROPERTY, "true");
+    mgr.setConfig(props);
+    
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    ServiceRegistration reg = persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName()} ,
+        pp, hash1 );
+    ServiceReference ref = reg.getReference();
+    
+    mgr.addingProvider(ref);
+    
+    setupPersistenceBundle("file4", "");
+    
+    mgr.open();
+    
+    //The service is registered, but the provider has not been used yet
+    testSuccessfulCreationEvent(ref, extenderContext, 0);
+    BundleContextMock.assertServiceExists(EntityManagerFactory.class.getName());
+    ServiceReference[] emfs = extenderContext.getServiceReferences(EntityManagerFactory.class.getName(), null);
+    assertEquals("Wrong number of services", 1, emfs.length);
+    assertEquals("alpha", emfs[0].getProperty("osgi.unit.name"));
+    
+    EntityManagerFactory emf = (EntityManagerFactory) extenderContext.getService(emfs[0]);
+    assertTrue("The factory should be open", emf.isOpen());
+    Skeleton.getSkeleton(pp).assertNotCalled(new MethodCall(PersistenceProvider.class, "createContainerEntityManagerFactory", PersistenceUnitInfo.class, Map.class));
+    
+    emf.createEntityManager();
+    emf.createEntityManager();
+    testSuccessfulCreationEvent(ref, extenderContext, 1);
+    assertEquals("Wrong number of creation times", 1, getTrackedObject().getCreationTimes().size());
+  }
+  
   @Test
   public void testManager_OnePreExistingPersistenceBundle_OneProviderLater() throws Exception
   {
@@ -932,6 +976,83 @@ public class PersistenceBundleLifecycleTest
     
   }
 
+  @Test
+  public void testMultipleLocationsBootstrapExecutor() throws Exception
+  {
+    //Check we register every EMFactory when they are created by the bootstrap executor
+    BundleContext extenderContext = preExistingBundleSetup();
+    Properties props = new Properties();
+    props.put(PersistenceBundleManager.BOOTSTRAP_THREADS_PROPERTY, "1");
+    mgr.setConfig(props);
+    
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    ServiceRegistration reg = persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName()} ,
+        pp, hash1 );
+    
+    ServiceReference ref = reg.getReference();
+    setupPersistenceBundle21();
+    
+    mgr.addingProvider(ref);
+    mgr.open();
+    
+    testSuccessfulCreationEvent(ref, extenderContext, 4);
+    testSuccessfulRegistrationEvent(ref, extenderContext, 4, "persistence", "found", "jar", "another");
+    assertEquals("Wrong number of creation times", 4, getTrackedObject().getCreationTimes().size());
+    
+    mgr.close();
+  }
+
+  @Test
+  public void testMultiplePreExistingBundlesBootstrapExecutor() throws Exception
+  {
+    //Check that the bundles found when the tracker opens are set up concurrently
+    //by the bootstrap threads, and that open() waits for all of them
+    BundleContext extenderContext = extenderBundle.getBundleContext();
+    Bundle otherBundle = Skeleton.newMock(new BundleMock("scrappy.doo", new Hashtable<String, Object>()), Bundle.class);
+    Skeleton.getSkeleton(extenderContext).setReturnValue(
+        new MethodCall(BundleContext.class, "getBundles"),
+        new Bundle[] {persistenceBundle, otherBundle});
+    mgr = new PersistenceBundleManager(extenderContext);
+    Properties props = new Properties();
+    props.put(PersistenceBundleManager.BOOTSTRAP_THREADS_PROPERTY, "2");
+    mgr.setConfig(props);
+    mgr.setParser(new PersistenceDescriptorParserImpl());
+    
+    Hashtable<String,String> hash1 = new Hashtable<String, String>();
+    hash1.put("javax.persistence.provider", "no.such.Provider");
+    ServiceRegistration reg = persistenceBundle.getBundleContext().registerService(new String[] {PersistenceProvider.class.getName()} ,
+        pp, hash1 );
+    ServiceReference ref = reg.getReference();
+    
+    setupPersistenceBundle(persistenceBundle, "file4", "");
+    setupPersistenceBundle(otherBundle, "file4", "");
+    
+    //Each bundle waits for the other one to be created, which only works if they are created concurrently
+    final CountDownLatch bothCreating = new CountDownLatch(2);
+    final List<String> creators = Collections.synchronizedList(new ArrayList<String>());
+    Skeleton.getSkeleton(pp).registerMethodCallHandler(new MethodCall(PersistenceProvider.class, 
+        "createContainerEntityManagerFactory", PersistenceUnitInfo.class, Map.class), new MethodCallHandler() {
+      public Object handle(MethodCall methodCall, Skeleton parent) throws Exception {
+        bothCreating.countDown();
+        if(bothCreating.await(10, TimeUnit.SECONDS))
+          creators.add(Thread.currentThread().getName());
+        return Skeleton.newMock(EntityManagerFactory.class);
+      }
+    });
+    
+    mgr.addingProvider(ref);
+    mgr.open();
+    
+    assertEquals("Both bundles should have been created concurrently by the bootstrap threads",
+        Arrays.asList("Aries JPA EntityManagerFactory bootstrap", "Aries JPA EntityManagerFactory bootstrap"), creators);
+    //Both services are registered by the time open() returns
+    ServiceReference[] emfs = extenderContext.getServiceReferences(EntityManagerFactory.class.getName(), null);
+    assertEquals("Wrong number of services", 2, emfs.length);
+    
+    mgr.close();
+  }
+
   private void setupPersistenceBundle21() throws Exception {
     persistenceBundle.getHeaders().put("Meta-Persistence", "OSGI-INF/found.xml, jarfile.jar!/jar.xml,persistence/another.xml, does-not-exist.xml");
     
@@ -986,9 +1107,14 @@ public class PersistenceBundleLifecycleTest
 
   private void setupPersistenceBundle(String root, String header) throws MalformedURLException
   {
-    persistenceBundle.getHeaders().put("Meta-Persistence", header);
+    setupPersistenceBundle(persistenceBundle, root, header);
+  }
+  
+  private void setupPersistenceBundle(Bundle bundle, String root, String header) throws MalformedURLException
+  {
+    bundle.getHeaders().put("Meta-Persistence", header);
     
-    Skeleton skel = Skeleton.getSkeleton(persistenceBundle);
+    Skeleton skel = Skeleton.getSkeleton(bundle);
     
     skel.setReturnValue(new MethodCall(Bundle.class, "getState"), Bundle.ACTIVE);
     
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.aries.jpa.container.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.parsing.PersistenceDescriptor;
+import org.apache.aries.jpa.container.parsing.impl.PersistenceUnitImpl;
+import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+public class ParsedPersistenceUnitCacheTest
+{
+  private File directory;
+  private Bundle containerBundle;
+  private Bundle bundle;
+  private ParsedPersistenceUnitCache cache;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    directory = File.createTempFile("persistence-units", "");
+    directory.delete();
+
+    containerBundle = Skeleton.newMock(Bundle.class);
+    Skeleton.getSkeleton(containerBundle).setReturnValue(new MethodCall(Bundle.class, "getLastModified"), 1L);
+
+    bundle = Skeleton.newMock(Bundle.class);
+    Skeleton skel = Skeleton.getSkeleton(bundle);
+    skel.setReturnValue(new MethodCall(Bundle.class, "getBundleId"), 42L);
+    skel.setReturnValue(new MethodCall(Bundle.class, "getLastModified"), 100L);
+    setHeader(bundle, null);
+
+    cache = new ParsedPersistenceUnitCache(directory, containerBundle);
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    File[] files = directory.listFiles();
+    if(files != null)
+      for(File f : files)
+        f.delete();
+    directory.delete();
+  }
+
+  @Test
+  public void testUnchangedBundleHits() throws Exception
+  {
+    PersistenceUnitImpl unit = newUnit();
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(unit));
+
+    //Neither the descriptors nor their digest are needed
+    Collection<ParsedPersistenceUnit> units = cache.getUnits(bundle, null);
+    assertNotNull("The entry should be used", units);
+    assertEquals(1, units.size());
+    ParsedPersistenceUnit cached = units.iterator().next();
+    assertSame(bundle, cached.getDefiningBundle());
+    assertEquals(unit.getPersistenceXmlMetadata(), cached.getPersistenceXmlMetadata());
+
+    assertNotNull("The entry should be used", cache.getUnits(bundle, "digest"));
+  }
+
+  @Test
+  public void testModifiedBundleChecksTheDigest() throws Exception
+  {
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(newUnit()));
+
+    Skeleton.getSkeleton(bundle).setReturnValue(new MethodCall(Bundle.class, "getLastModified"), 200L);
+    assertNull("The descriptors may have changed", cache.getUnits(bundle, null));
+    assertNotNull("The descriptors have not changed", cache.getUnits(bundle, "digest"));
+    assertNull("The descriptors have changed", cache.getUnits(bundle, "other"));
+  }
+
+  @Test
+  public void testChangedHeaderMisses() throws Exception
+  {
+    setHeader(bundle, "META-INF/persistence.xml");
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(newUnit()));
+    assertNotNull(cache.getUnits(bundle, null));
+
+    setHeader(bundle, "META-INF/persistence.xml, OSGI-INF/persistence.xml");
+    assertNull("Other descriptors may be used", cache.getUnits(bundle, null));
+    assertNull("Other descriptors may be used", cache.getUnits(bundle, "digest"));
+  }
+
+  @Test
+  public void testUpdatedContainerMisses() throws Exception
+  {
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(newUnit()));
+
+    Skeleton.getSkeleton(containerBundle).setReturnValue(new MethodCall(Bundle.class, "getLastModified"), 2L);
+    assertNull("The entry was written by another container", cache.getUnits(bundle, "digest"));
+  }
+
+  @Test
+  public void testInvalidateRemovesTheEntry() throws Exception
+  {
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(newUnit()));
+    cache.invalidate(bundle);
+    assertNull(cache.getUnits(bundle, "digest"));
+    assertFalse(getEntry().exists());
+  }
+
+  @Test
+  public void testCorruptEntryMisses() throws Exception
+  {
+    directory.mkdirs();
+    FileOutputStream out = new FileOutputStream(getEntry());
+    out.write("not a cache entry".getBytes("UTF-8"));
+    out.close();
+    assertNull(cache.getUnits(bundle, null));
+
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(newUnit()));
+    RandomAccessFile file = new RandomAccessFile(getEntry(), "rw");
+    file.setLength(file.length() / 2);
+    file.close();
+    assertNull("A truncated entry should not be used", cache.getUnits(bundle, "digest"));
+  }
+
+  @Test
+  public void testOldFormatMisses() throws Exception
+  {
+    directory.mkdirs();
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(getEntry()));
+    //The magic number of the cache followed by an older format version
+    out.writeInt(0x4A504143);
+    out.writeInt(0);
+    out.writeLong(1L);
+    out.writeLong(100L);
+    out.writeUTF("");
+    out.writeUTF("digest");
+    out.writeObject(new ArrayList<Map<String, Object>>());
+    out.close();
+    assertNull(cache.getUnits(bundle, "digest"));
+  }
+
+  @Test
+  public void testDisabledCache() throws Exception
+  {
+    cache = new ParsedPersistenceUnitCache(null, containerBundle);
+    cache.setUnits(bundle, "digest", Collections.<ParsedPersistenceUnit>singletonList(newUnit()));
+    assertNull(cache.getUnits(bundle, "digest"));
+    assertFalse(directory.exists());
+  }
+
+  @Test
+  public void testCachedUnitsAreCopies() throws Exception
+  {
+    Map<String, Object> metadata = newUnit().getPersistenceXmlMetadata();
+    PersistenceUnitImpl unit = new PersistenceUnitImpl(bundle, metadata);
+    ((List<String>) metadata.get(ParsedPersistenceUnit.MANAGED_CLASSES)).add("org.apache.aries.Other");
+    ((Properties) metadata.get(ParsedPersistenceUnit.PROPERTIES)).setProperty("other", "value");
+
+    Map<String, Object> copy = unit.getPersistenceXmlMetadata();
+    assertEquals(Arrays.asList("org.apache.aries.Entity"), copy.get(ParsedPersistenceUnit.MANAGED_CLASSES));
+    assertEquals(1, ((Properties) copy.get(ParsedPersistenceUnit.PROPERTIES)).size());
+  }
+
+  @Test
+  public void testDigest() throws Exception
+  {
+    String digest = ParsedPersistenceUnitCache.digest(Arrays.asList(
+        newDescriptor("a.xml", "<a/>"), newDescriptor("b.xml", "<b/>")));
+    assertNotNull(digest);
+    assertEquals("The order of the descriptors does not matter", digest, ParsedPersistenceUnitCache.digest(Arrays.asList(
+        newDescriptor("b.xml", "<b/>"), newDescriptor("a.xml", "<a/>"))));
+    assertFalse("The content matters", digest.equals(ParsedPersistenceUnitCache.digest(Arrays.asList(
+        newDescriptor("a.xml", "<a/>"), newDescriptor("b.xml", "<c/>")))));
+    assertFalse("The locations matter", digest.equals(ParsedPersistenceUnitCache.digest(Arrays.asList(
+        newDescriptor("a.xml", "<a/>"), newDescriptor("c.xml", "<b/>")))));
+  }
+
+  private File getEntry()
+  {
+    return new File(directory, "42.ser");
+  }
+
+  private PersistenceUnitImpl newUnit()
+  {
+    PersistenceUnitImpl unit = new PersistenceUnitImpl(bundle, "alpha", "JTA", "1.0");
+    unit.setProviderClassName("org.apache.aries.Provider");
+    unit.addClassName("org.apache.aries.Entity");
+    unit.addMappingFileName("META-INF/orm.xml");
+    unit.addProperty("key", "value");
+    return unit;
+  }
+
+  private static PersistenceDescriptor newDescriptor(String location, String content) throws Exception
+  {
+    return new PersistenceDescriptorImpl(location, new ByteArrayInputStream(content.getBytes("UTF-8")));
+  }
+
+  private static void setHeader(Bundle bundle, String value)
+  {
+    Hashtable<String, String> headers = new Hashtable<String, String>();
+    if(value != null)
+      headers.put(PersistenceBundleHelper.PERSISTENCE_UNIT_HEADER, value);
+    Skeleton.getSkeleton(bundle).setReturnValue(new MethodCall(Bundle.class, "getHeaders"), headers);
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.aries.jpa.container.unit.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+
+import org.apache.aries.unittest.mocks.MethodCall;
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+public class TempClassBytesCacheTest
+{
+  private static final String CLASS_RES_NAME = "org/apache/aries/Entity.class";
+
+  private File classFile;
+  private CountingClassLoader loader;
+  private TempClassBytesCache cache;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    classFile = File.createTempFile("Entity", ".class");
+    FileOutputStream out = new FileOutputStream(classFile);
+    out.write(new byte[] {1, 2, 3, 4});
+    out.close();
+    loader = new CountingClassLoader(classFile.toURI().toURL());
+    cache = new TempClassBytesCache();
+  }
+
+  @After
+  public void tearDown()
+  {
+    classFile.delete();
+  }
+
+  @Test
+  public void testBytesSharedDuringBootstrap() throws Exception
+  {
+    cache.retain();
+    byte[] first = cache.getClassBytes(loader, CLASS_RES_NAME);
+    byte[] second = cache.getClassBytes(loader, CLASS_RES_NAME);
+
+    assertArrayEquals(new byte[] {1, 2, 3, 4}, first);
+    assertSame(first, second);
+    assertEquals(1, loader.lookups);
+    assertEquals(1, cache.getReads());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void testNothingCachedAfterRelease() throws Exception
+  {
+    cache.retain();
+    cache.getClassBytes(loader, CLASS_RES_NAME);
+    cache.release("test");
+
+    //A temporary ClassLoader still used by the provider reads through to the bundle
+    byte[] first = cache.getClassBytes(loader, CLASS_RES_NAME);
+    byte[] second = cache.getClassBytes(loader, CLASS_RES_NAME);
+    assertArrayEquals(first, second);
+    assertNotSame(first, second);
+    assertEquals(3, loader.lookups);
+    assertEquals(0, cache.getHits());
+  }
+
+  @Test
+  public void testReleasedByTheLastBootstrap() throws Exception
+  {
+    cache.retain();
+    cache.retain();
+    cache.getClassBytes(loader, CLASS_RES_NAME);
+    cache.release("first");
+
+    cache.getClassBytes(loader, CLASS_RES_NAME);
+    assertEquals("The other unit is still bootstrapping", 1, loader.lookups);
+
+    cache.release("second");
+    cache.getClassBytes(loader, CLASS_RES_NAME);
+    assertEquals(2, loader.lookups);
+  }
+
+  @Test
+  public void testUnbalancedReleaseIgnored() throws Exception
+  {
+    cache.release("test");
+    cache.retain();
+    cache.getClassBytes(loader, CLASS_RES_NAME);
+    cache.getClassBytes(loader, CLASS_RES_NAME);
+    assertEquals(1, loader.lookups);
+  }
+
+  @Test
+  public void testMissingClass() throws Exception
+  {
+    cache.retain();
+    assertNull(cache.getClassBytes(loader, "org/apache/aries/Missing.class"));
+  }
+
+  @Test
+  public void testTempClassLoadersShareBytes() throws Exception
+  {
+    String name = Entity.class.getName();
+    String resName = name.replace('.', '/') + ".class";
+    URL url = Entity.class.getClassLoader().getResource(resName);
+    Bundle bundle = Skeleton.newMock(Bundle.class);
+    Skeleton.getSkeleton(bundle).setReturnValue(new MethodCall(Bundle.class, "getResource", resName), url);
+
+    cache.retain();
+    Class<?> first = new TempBundleDelegatingClassLoader(bundle, null, cache).loadClass(name);
+    Class<?> second = new TempBundleDelegatingClassLoader(bundle, null, cache).loadClass(name);
+    cache.release("test");
+
+    assertNotSame(first, second);
+    assertNotSame(Entity.class, first);
+    assertEquals(name, first.getName());
+    assertEquals(1, cache.getReads());
+    assertEquals(1, cache.getHits());
+  }
+
+  public static class Entity
+  {
+  }
+
+  private static class CountingClassLoader extends ClassLoader
+  {
+    private final URL url;
+    private int lookups;
+
+    private CountingClassLoader(URL url)
+    {
+      super(null);
+      this.url = url;
+    }
+
+    @Override
+    public URL getResource(String name)
+    {
+      if(CLASS_RES_NAME.equals(name)) {
+        lookups++;
+        return url;
+      }
+      return null;
+    }
+  }
+}
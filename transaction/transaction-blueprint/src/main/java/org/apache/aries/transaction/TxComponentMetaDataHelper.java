@@ -18,6 +18,8 @@
  */
 package org.apache.aries.transaction;
 
+import java.lang.reflect.Method;
+
 import org.osgi.service.blueprint.reflect.ComponentMetadata;
 
 public interface TxComponentMetaDataHelper {
@@ -28,4 +30,13 @@ public interface TxComponentMetaDataHelper {
     public String getComponentMethodTxStrategy(
             ComponentMetadata component, String methodName);
 
+    /**
+     * Get the transaction strategy of a method of a component.  The result is computed
+     * once per method and cached, so that it can be called on each invocation.
+     *
+     * @return the strategy or <code>null</code> if no transaction data was set for the component
+     */
+    public TransactionStrategy getComponentMethodTxStrategy(
+            ComponentMetadata component, Method method);
+
 }
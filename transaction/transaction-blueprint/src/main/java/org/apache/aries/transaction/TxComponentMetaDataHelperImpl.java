@@ -18,7 +18,10 @@
  */
 package org.apache.aries.transaction;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,18 +33,55 @@ import org.osgi.service.blueprint.reflect.ComponentMetadata;
 public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper {
 
     private static class TranData
+    {
+      /** The current patterns, replaced as a whole when a pattern is added */
+      private volatile Patterns patterns = new Patterns(Collections.<Pattern, String>emptyMap());
+
+      public synchronized void add(Pattern pattern, String strategy) {
+          Map<Pattern, String> map = new HashMap<Pattern, String>(patterns.map);
+          map.put(pattern, strategy);
+          // previously resolved strategies may no longer apply, so they are not carried over
+          patterns = new Patterns(map);
+      }
+
+      public TransactionStrategy getStrategy(Method method)
+      {
+        return patterns.getStrategy(method);
+      }
+
+      public String getStrategy(String name)
+      {
+        return patterns.getStrategy(name);
+      }
+    }
+
+    /**
+     * An immutable set of patterns, with the strategies resolved from them.  A lookup
+     * racing with {@link TranData#add} only caches its result in the patterns it read.
+     */
+    private static class Patterns
     {
       private static final Pattern WILDCARD = Pattern.compile("\\Q.*\\E");
       private final Map<Pattern, String> map;
       private final Map<String, String> cache;
+      private final Map<Method, TransactionStrategy> methodCache;
       
-      public TranData() {
-          map = new ConcurrentHashMap<Pattern, String>();
+      public Patterns(Map<Pattern, String> map) {
+          this.map = map;
           cache = new ConcurrentHashMap<String, String>();
+          methodCache = new ConcurrentHashMap<Method, TransactionStrategy>();
       }
-      
-      public void add(Pattern pattern, String strategy) {
-          map.put(pattern, strategy);
+
+      public TransactionStrategy getStrategy(Method method)
+      {
+        TransactionStrategy strategy = methodCache.get(method);
+        
+        if (strategy == null) {
+            strategy = TransactionStrategy.fromValue(getStrategy(method.getName()));
+            methodCache.put(method, strategy);
+        }
+        
+        return strategy;
       }
       
       public String getStrategy(String name)
@@ -172,4 +212,15 @@ public class TxComponentMetaDataHelperImpl implements TxComponentMetaDataHelper
 
         return result;
     }
+
+    public TransactionStrategy getComponentMethodTxStrategy(ComponentMetadata component, Method method)
+    {
+        TranData td = data.get(component);
+        TransactionStrategy result = null;
+
+        if (td != null)
+            result = td.getStrategy(method);
+
+        return result;
+    }
 }
@@ -92,10 +92,8 @@ public class TxInterceptorImpl implements Interceptor {
 
     public Object preCall(ComponentMetadata cm, Method m,
         Object... parameters) throws Throwable  {
-      final String methodName = m.getName();
-      final String strategy = metaDataHelper.getComponentMethodTxStrategy(cm, methodName);
-      
-      TransactionStrategy txStrategy = TransactionStrategy.fromValue(strategy);
+      // resolved once per method by the helper, no pattern matching on the hot path
+      final TransactionStrategy txStrategy = metaDataHelper.getComponentMethodTxStrategy(cm, m);
       
       if (LOGGER.isDebugEnabled())
           LOGGER.debug("Method: " + m + ", has transaction strategy: " + txStrategy);
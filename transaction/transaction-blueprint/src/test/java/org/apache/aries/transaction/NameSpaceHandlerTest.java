@@ -20,6 +20,7 @@ package org.apache.aries.transaction;
 
 import static org.junit.Assert.assertEquals;
 
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URL;
 import java.util.LinkedList;
@@ -95,6 +96,10 @@ public class NameSpaceHandlerTest {
 
       assertEquals("Required", txenhancer.getComponentMethodTxStrategy(anon, "doSomething"));
       assertEquals("Never", txenhancer.getComponentMethodTxStrategy(anonToo, "doSomething"));
+
+      Method toString = Object.class.getMethod("toString");
+      assertEquals(TransactionStrategy.REQUIRED, txenhancer.getComponentMethodTxStrategy(anon, toString));
+      assertEquals(TransactionStrategy.NEVER, txenhancer.getComponentMethodTxStrategy(anonToo, toString));
         
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.aries.unittest.mocks.Skeleton;
+import org.junit.Test;
+import org.osgi.service.blueprint.reflect.ComponentMetadata;
+
+public class TxComponentMetaDataHelperImplTest {
+
+    public interface Service
+    {
+      void doSomething();
+
+      void doOther();
+
+      String getValue();
+    }
+
+    private final TxComponentMetaDataHelperImpl helper = new TxComponentMetaDataHelperImpl();
+    private final ComponentMetadata component = Skeleton.newMock(ComponentMetadata.class);
+
+    @Test
+    public void testCachedStrategiesFollowAddedPatterns() throws Exception
+    {
+      Method doSomething = Service.class.getMethod("doSomething");
+      Method getValue = Service.class.getMethod("getValue");
+
+      assertNull(helper.getComponentMethodTxStrategy(component, doSomething));
+
+      helper.setComponentTransactionData(component, "Supports", "*");
+      assertEquals(TransactionStrategy.SUPPORTS, helper.getComponentMethodTxStrategy(component, doSomething));
+      assertEquals(TransactionStrategy.SUPPORTS, helper.getComponentMethodTxStrategy(component, getValue));
+      assertEquals("Supports", helper.getComponentMethodTxStrategy(component, "doSomething"));
+
+      // the strategies cached for the methods and names must not outlive the new patterns
+      helper.setComponentTransactionData(component, "Never", "do*");
+      assertEquals(TransactionStrategy.NEVER, helper.getComponentMethodTxStrategy(component, doSomething));
+      assertEquals(TransactionStrategy.SUPPORTS, helper.getComponentMethodTxStrategy(component, getValue));
+      assertEquals("Never", helper.getComponentMethodTxStrategy(component, "doSomething"));
+
+      helper.setComponentTransactionData(component, "Mandatory", "doSomething");
+      assertEquals(TransactionStrategy.MANDATORY, helper.getComponentMethodTxStrategy(component, doSomething));
+      assertEquals(TransactionStrategy.NEVER, helper.getComponentMethodTxStrategy(component, Service.class.getMethod("doOther")));
+      assertEquals("Mandatory", helper.getComponentMethodTxStrategy(component, "doSomething"));
+    }
+
+    @Test
+    public void testMethodAndNameLookupsAgree() throws Exception
+    {
+      helper.setComponentTransactionData(component, "RequiresNew", "get*");
+      helper.setComponentTransactionData(component, "Never", "do*");
+
+      for (Method method : Service.class.getMethods()) {
+        // the name lookup first, then the method lookup, then both again from the caches
+        String name = helper.getComponentMethodTxStrategy(component, method.getName());
+        assertEquals(TransactionStrategy.fromValue(name), helper.getComponentMethodTxStrategy(component, method));
+        assertEquals(name, helper.getComponentMethodTxStrategy(component, method.getName()));
+        assertEquals(TransactionStrategy.fromValue(name), helper.getComponentMethodTxStrategy(component, method));
+      }
+      assertEquals(TransactionStrategy.REQUIRESNEW, helper.getComponentMethodTxStrategy(component, Service.class.getMethod("getValue")));
+    }
+
+    @Test
+    public void testStrategiesArePerComponent() throws Exception
+    {
+      ComponentMetadata other = Skeleton.newMock(ComponentMetadata.class);
+      Method doSomething = Service.class.getMethod("doSomething");
+      helper.setComponentTransactionData(component, "Never", "*");
+      helper.setComponentTransactionData(other, "Mandatory", "*");
+
+      assertEquals(TransactionStrategy.NEVER, helper.getComponentMethodTxStrategy(component, doSomething));
+      assertEquals(TransactionStrategy.MANDATORY, helper.getComponentMethodTxStrategy(other, doSomething));
+    }
+
+    @Test
+    public void testConcurrentLookupsDuringAdd() throws Exception
+    {
+      final Method doSomething = Service.class.getMethod("doSomething");
+      for (int round = 0; round < 200; round++) {
+        final TxComponentMetaDataHelperImpl helper = new TxComponentMetaDataHelperImpl();
+        final ComponentMetadata component = Skeleton.newMock(ComponentMetadata.class);
+        helper.setComponentTransactionData(component, "Supports", "*");
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(2);
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+          readers[i] = new Thread() {
+            public void run() {
+              started.countDown();
+              while (!done.get()) {
+                helper.getComponentMethodTxStrategy(component, doSomething);
+              }
+            }
+          };
+          readers[i].start();
+        }
+        started.await(10, TimeUnit.SECONDS);
+        helper.setComponentTransactionData(component, "Never", "doSomething");
+
+        // once added, no lookup may bring back the strategy resolved from the old patterns
+        for (int i = 0; i < 100; i++) {
+          assertEquals(TransactionStrategy.NEVER, helper.getComponentMethodTxStrategy(component, doSomething));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+          reader.join();
+        }
+        assertEquals(TransactionStrategy.NEVER, helper.getComponentMethodTxStrategy(component, doSomething));
+      }
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.LogException;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+
+/**
+ * A {@link TransactionLog} writing to two fixed size segment files through a
+ * {@link FileChannel}, optionally memory mapped.
+ * <p>
+ * Prepare records must be on disk before the transaction manager commits the
+ * branches, but writing a record only copies it into the current segment: the
+ * first thread needing a force becomes the leader and forces every record written
+ * so far, while the threads arriving meanwhile wait for it or for the next leader.
+ * Concurrent transactions therefore share a single <code>force()</code>.  When the
+ * previous force covered more than one record, the leader waits up to
+ * <code>maxBatchDelay</code> microseconds so that more records join the batch.
+ * Commit and rollback records are not forced, as recovery only replays the
+ * commit of transactions which were prepared.
+ * <p>
+ * When the current segment is full, the prepare records of the transactions
+ * still in progress are copied at the start of the other segment, which is then
+ * stamped with a new generation.  Only the segment with the latest generation
+ * is needed for recovery, so the two segments are recycled in turn.
+ */
+public class FileChannelTransactionLog implements TransactionLog {
+
+    private static final int SEGMENT_MAGIC = 0x41544C47;
+    /** Magic, generation and checksum */
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+    /** Length, generation and checksum */
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+
+    private static final byte PREPARE = 1;
+    private static final byte COMMIT = 2;
+    private static final byte ROLLBACK = 3;
+
+    private final int segmentSize;
+    private final long maxBatchDelayNanos;
+    private final Segment[] segments = new Segment[2];
+
+    /** The prepare records of the transactions in progress, guarded by this */
+    private final Map<XidKey, byte[]> pending = new LinkedHashMap<XidKey, byte[]>();
+    private Segment current;
+    private int position;
+    /** Number of bytes written since the log was opened */
+    private long written;
+    private long records;
+    private long rollovers;
+    private boolean closed;
+
+    private final Object forceLock = new Object();
+    /** Guarded by forceLock */
+    private long forcedUpTo;
+    private boolean forcing;
+    private long forcedRecords;
+    private long lastBatchSize;
+    private long forces;
+    private long forceTime;
+    private long bytesForced;
+
+    public FileChannelTransactionLog(String logFileDir,
+                                     String logFileName,
+                                     String logFileExt,
+                                     int segmentSize,
+                                     boolean mapped,
+                                     int maxBatchDelayMicros) throws IOException {
+        this.segmentSize = segmentSize;
+        this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+        File dir = new File(logFileDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create transaction log directory " + dir);
+        }
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new Segment(new File(dir, logFileName + "_" + (i + 1) + "." + logFileExt), mapped);
+            }
+            open();
+        } catch (IOException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+    /**
+     * Replay the latest segment, then start a new generation so that no record
+     * left behind by an interrupted write can be mistaken for a later one.
+     */
+    private void open() throws IOException {
+        current = segments[1];
+        current.generation = 0;
+        for (Segment segment : segments) {
+            ByteBuffer header = segment.read();
+            if (header.getInt() == SEGMENT_MAGIC) {
+                long generation = header.getLong();
+                if (header.getInt() == checksum(generation, header.array(), 0, 0)
+                        && generation > current.generation) {
+                    current = segment;
+                    current.generation = generation;
+                }
+            }
+        }
+        if (current.generation > 0) {
+            replay(current);
+        }
+        try {
+            synchronized (this) {
+                rollover(0);
+            }
+        } catch (LogException e) {
+            throw (IOException) new IOException(e.getMessage()).initCause(e);
+        }
+    }
+
+    private void replay(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.read();
+        int pos = HEADER_SIZE;
+        while (pos + RECORD_HEADER_SIZE <= segmentSize) {
+            buffer.position(pos);
+            int length = buffer.getInt();
+            long generation = buffer.getLong();
+            int crc = buffer.getInt();
+            if (length <= 0 || generation != segment.generation
+                    || pos + RECORD_HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (crc != checksum(generation, payload, 0, length)) {
+                break;
+            }
+            XidKey key = new XidKey(new DataInputStream(new ByteArrayInputStream(payload, 1, length - 1)));
+            if (payload[0] == PREPARE) {
+                pending.put(key, payload);
+            } else {
+                pending.remove(key);
+            }
+            pos += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    public void begin(Xid xid) throws LogException {
+    }
+
+    public Object prepare(Xid xid, List<? extends TransactionBranchInfo> branches) throws LogException {
+        XidKey key = new XidKey(xid);
+        byte[] payload = encode(PREPARE, xid, branches);
+        long end;
+        synchronized (this) {
+            end = write(payload);
+            pending.put(key, payload);
+        }
+        force(end);
+        return key;
+    }
+
+    public void commit(Xid xid, Object logMark) throws LogException {
+        complete(COMMIT, xid);
+    }
+
+    public void rollback(Xid xid, Object logMark) throws LogException {
+        complete(ROLLBACK, xid);
+    }
+
+    private void complete(byte type, Xid xid) throws LogException {
+        byte[] payload = encode(type, xid, null);
+        synchronized (this) {
+            write(payload);
+            pending.remove(new XidKey(xid));
+        }
+    }
+
+    public Collection<Recovery.XidBranchesPair> recover(XidFactory xidFactory) throws LogException {
+        List<byte[]> prepared;
+        synchronized (this) {
+            prepared = new ArrayList<byte[]>(pending.values());
+        }
+        List<Recovery.XidBranchesPair> pairs = new ArrayList<Recovery.XidBranchesPair>(prepared.size());
+        try {
+            for (byte[] payload : prepared) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+                XidKey key = new XidKey(in);
+                Recovery.XidBranchesPair pair = new Recovery.XidBranchesPair(key.toXid(xidFactory), key);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Xid branchXid = new XidKey(in).toXid(xidFactory);
+                    pair.addBranch(new TransactionBranchInfoImpl(branchXid, in.readUTF()));
+                }
+                pairs.add(pair);
+            }
+        } catch (IOException e) {
+            throw new LogException("Unable to decode transaction log record", e);
+        }
+        return pairs;
+    }
+
+    /**
+     * Force the records written so far and close the segment files.
+     */
+    public void close() throws LogException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                current.force();
+            } catch (IOException e) {
+                throw new LogException("Unable to force transaction log", e);
+            } finally {
+                closeSegments();
+            }
+        }
+    }
+
+    public String getXMLStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<FileChannelTransactionLog>");
+        sb.append("<segmentSize>").append(segmentSize).append("</segmentSize>");
+        sb.append("<records>").append(getRecordCount()).append("</records>");
+        sb.append("<forces>").append(getForceCount()).append("</forces>");
+        sb.append("<averageForceTime>").append(getAverageForceTime()).append("</averageForceTime>");
+        sb.append("<averageBytesPerForce>").append(getAverageBytesPerForce()).append("</averageBytesPerForce>");
+        sb.append("<rollovers>").append(getRolloverCount()).append("</rollovers>");
+        sb.append("<pending>").append(getPendingCount()).append("</pending>");
+        sb.append("</FileChannelTransactionLog>");
+        return sb.toString();
+    }
+
+    /**
+     * @return the average time, in milliseconds, taken by a force
+     */
+    public int getAverageForceTime() {
+        synchronized (forceLock) {
+            return forces == 0 ? 0 : (int) TimeUnit.NANOSECONDS.toMillis(forceTime / forces);
+        }
+    }
+
+    public int getAverageBytesPerForce() {
+        synchronized (forceLock) {
+            return forces == 0 ? 0 : (int) (bytesForced / forces);
+        }
+    }
+
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forces;
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return the number of times a full segment was replaced by the other one
+     */
+    public synchronized long getRolloverCount() {
+        return rollovers;
+    }
+
+    /**
+     * @return the number of prepared transactions which have not completed
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Append a record to the current segment, which must be done while holding
+     * the lock on this log.
+     * @return the position to force the log up to for this record to be on disk
+     */
+    private long write(byte[] payload) throws LogException {
+        if (closed) {
+            throw new LogException("Transaction log is closed");
+        }
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (position + size > segmentSize) {
+            rollover(size);
+        }
+        try {
+            current.write(record(current.generation, payload), position);
+        } catch (IOException e) {
+            throw new LogException("Unable to write to transaction log", e);
+        }
+        position += size;
+        written += size;
+        records++;
+        return written;
+    }
+
+    /**
+     * Switch to the other segment, copying the prepare records of the pending
+     * transactions.  The header is written last, so that the segment does not
+     * replace the current one in case of a crash before it is complete.
+     */
+    private void rollover(int needed) throws LogException {
+        Segment next = (current == segments[0]) ? segments[1] : segments[0];
+        long generation = current.generation + 1;
+        try {
+            current.force();
+            int pos = HEADER_SIZE;
+            int size = needed;
+            for (byte[] payload : pending.values()) {
+                size += RECORD_HEADER_SIZE + payload.length;
+            }
+            if (HEADER_SIZE + size > segmentSize) {
+                throw new LogException("Transaction log segments of " + segmentSize
+                        + " bytes are too small for " + pending.size() + " pending transactions");
+            }
+            for (byte[] payload : pending.values()) {
+                next.write(record(generation, payload), pos);
+                pos += RECORD_HEADER_SIZE + payload.length;
+            }
+            next.force();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(SEGMENT_MAGIC);
+            header.putLong(generation);
+            header.putInt(checksum(generation, header.array(), 0, 0));
+            header.flip();
+            next.write(header, 0);
+            next.force();
+            next.generation = generation;
+            written += pos - HEADER_SIZE;
+            current = next;
+            position = pos;
+            rollovers++;
+        } catch (IOException e) {
+            throw new LogException("Unable to switch transaction log segment", e);
+        }
+    }
+
+    /**
+     * Wait until the log has been forced up to the given position, forcing it
+     * if no other thread is already doing so.
+     */
+    private void force(long upTo) throws LogException {
+        synchronized (forceLock) {
+            try {
+                while (forcing && forcedUpTo < upTo) {
+                    forceLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LogException("Interrupted while waiting for transaction log force");
+            }
+            if (forcedUpTo >= upTo) {
+                return;
+            }
+            forcing = true;
+            if (maxBatchDelayNanos > 0 && lastBatchSize > 1) {
+                // give the concurrent transactions a chance to join this force
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                try {
+                    for (long wait = maxBatchDelayNanos; wait > 0; wait = deadline - System.nanoTime()) {
+                        TimeUnit.NANOSECONDS.timedWait(forceLock, wait);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        Segment segment;
+        long target;
+        long batch;
+        synchronized (this) {
+            segment = current;
+            target = written;
+            batch = records;
+        }
+        boolean forced = false;
+        long start = System.nanoTime();
+        try {
+            segment.force();
+            forced = true;
+        } catch (IOException e) {
+            throw new LogException("Unable to force transaction log", e);
+        } finally {
+            synchronized (forceLock) {
+                forcing = false;
+                if (forced && target > forcedUpTo) {
+                    forces++;
+                    forceTime += System.nanoTime() - start;
+                    bytesForced += target - forcedUpTo;
+                    lastBatchSize = batch - forcedRecords;
+                    forcedRecords = batch;
+                    forcedUpTo = target;
+                }
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments) {
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    private static ByteBuffer record(long generation, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putLong(generation);
+        buffer.putInt(checksum(generation, payload, 0, payload.length));
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(long generation, byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (generation >>> i));
+        }
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(byte type, Xid xid, List<? extends TransactionBranchInfo> branches) throws LogException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeByte(type);
+            writeXid(out, xid);
+            if (branches != null) {
+                out.writeInt(branches.size());
+                for (TransactionBranchInfo branch : branches) {
+                    writeXid(out, branch.getBranchXid());
+                    out.writeUTF(branch.getResourceName());
+                }
+            }
+            out.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new LogException("Unable to encode transaction log record", e);
+        }
+    }
+
+    private static void writeXid(DataOutputStream out, Xid xid) throws IOException {
+        byte[] globalId = xid.getGlobalTransactionId();
+        byte[] branchId = xid.getBranchQualifier();
+        out.writeInt(xid.getFormatId());
+        out.writeShort(globalId.length);
+        out.write(globalId);
+        out.writeShort(branchId.length);
+        out.write(branchId);
+    }
+
+    /**
+     * One of the segment files.
+     */
+    private class Segment {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private long generation;
+
+        public Segment(File f, boolean mapped) throws IOException {
+            file = new RandomAccessFile(f, "rw");
+            channel = file.getChannel();
+            if (file.length() < segmentSize) {
+                // allocate the whole segment now so that forcing it never has to update the file size
+                ByteBuffer zeros = ByteBuffer.allocate(Math.min(segmentSize, 64 * 1024));
+                for (long pos = file.length(); pos < segmentSize; ) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), segmentSize - pos));
+                    pos += channel.write(zeros, pos);
+                }
+                channel.force(true);
+            }
+            buffer = mapped ? channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize) : null;
+        }
+
+        public ByteBuffer read() throws IOException {
+            if (buffer != null) {
+                ByteBuffer copy = ByteBuffer.allocate(segmentSize);
+                ByteBuffer source = buffer.duplicate();
+                source.clear();
+                copy.put(source);
+                copy.flip();
+                return copy;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(segmentSize);
+            int n = 0;
+            while (copy.hasRemaining() && n >= 0) {
+                n = channel.read(copy, copy.position());
+            }
+            copy.clear();
+            return copy;
+        }
+
+        public void write(ByteBuffer data, int pos) throws IOException {
+            if (buffer != null) {
+                ByteBuffer target = buffer.duplicate();
+                target.position(pos);
+                target.put(data);
+            } else {
+                while (data.hasRemaining()) {
+                    pos += channel.write(data, pos);
+                }
+            }
+        }
+
+        public void force() throws IOException {
+            if (buffer != null) {
+                buffer.force();
+            } else {
+                channel.force(false);
+            }
+        }
+
+        public void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * The identity of a transaction, as written in the log.
+     */
+    private static class XidKey {
+
+        private final int formatId;
+        private final byte[] globalId;
+        private final byte[] branchId;
+        private final int hashCode;
+
+        public XidKey(Xid xid) {
+            this(xid.getFormatId(), xid.getGlobalTransactionId(), xid.getBranchQualifier());
+        }
+
+        public XidKey(DataInputStream in) throws IOException {
+            this(in.readInt(), readBytes(in), readBytes(in));
+        }
+
+        private XidKey(int formatId, byte[] globalId, byte[] branchId) {
+            this.formatId = formatId;
+            this.globalId = globalId;
+            this.branchId = branchId;
+            this.hashCode = 31 * (31 * formatId + Arrays.hashCode(globalId)) + Arrays.hashCode(branchId);
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readUnsignedShort()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        public Xid toXid(XidFactory xidFactory) {
+            return xidFactory.recover(formatId, globalId, branchId);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof XidKey)) {
+                return false;
+            }
+            XidKey other = (XidKey) o;
+            return formatId == other.formatId
+                    && Arrays.equals(globalId, other.globalId)
+                    && Arrays.equals(branchId, other.branchId);
+        }
+    }
+}
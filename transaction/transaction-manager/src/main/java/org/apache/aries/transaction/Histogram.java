@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram with fixed buckets.  A value is counted in the first
+ * bucket whose bound is greater or equal to it, or in the last bucket if it is
+ * greater than every bound.
+ */
+public class Histogram {
+
+    /** Bounds, in microseconds, of the buckets used for latencies */
+    public static final long[] LATENCY_BOUNDS = {
+        100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+        100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000
+    };
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(long[] bounds) {
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * @return the upper bound of each bucket but the last one
+     */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return the number of values counted in each bucket
+     */
+    public long[] getCounts() {
+        long[] result = new long[counts.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -23,14 +23,21 @@ import java.util.Properties;
 import java.io.File;
 import java.io.IOException;
 
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.transaction.xa.XAException;
+import javax.transaction.SystemException;
 import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
 import javax.transaction.UserTransaction;
 
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationException;
+import org.osgi.util.tracker.ServiceTracker;
 import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
 import org.apache.geronimo.transaction.manager.TransactionLog;
 import org.apache.geronimo.transaction.manager.XidFactory;
@@ -39,11 +46,15 @@ import org.apache.geronimo.transaction.manager.RecoverableTransactionManager;
 import org.apache.geronimo.transaction.log.HOWLLog;
 import org.apache.geronimo.transaction.log.UnrecoverableLog;
 import org.objectweb.howl.log.LogConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  */
 public class TransactionManagerService {
 
+    private static final Logger log = LoggerFactory.getLogger("org.apache.aries.transaction");
+
     public static final String TRANSACTION_TIMEOUT = "aries.transaction.timeout";
     public static final String RECOVERABLE = "aries.transaction.recoverable";
     public static final String HOWL_BUFFER_CLASS_NAME = "aries.transaction.howl.bufferClassName";
@@ -59,9 +70,21 @@ public class TransactionManagerService {
     public static final String HOWL_MIN_BUFFERS = "aries.transaction.howl.minBuffers";
     public static final String HOWL_THREADS_WAITING_FORCE_THRESHOLD = "aries.transaction.howl.threadsWaitingForceThreshold";
     public static final String HOWL_LOG_FILE_DIR = "aries.transaction.howl.logFileDir";
+    public static final String LOG_TYPE = "aries.transaction.log.type";
+    public static final String LOG_FILE_DIR = "aries.transaction.log.logFileDir";
+    public static final String LOG_FILE_EXT = "aries.transaction.log.logFileExt";
+    public static final String LOG_FILE_NAME = "aries.transaction.log.logFileName";
+    public static final String LOG_SEGMENT_SIZE = "aries.transaction.log.segmentSize";
+    public static final String LOG_MAPPED = "aries.transaction.log.mapped";
+    public static final String LOG_MAX_BATCH_DELAY = "aries.transaction.log.maxBatchDelay";
+    public static final String STATISTICS_ENABLED = "aries.transaction.statistics.enabled";
+    public static final String STATISTICS_SLOW_THRESHOLD = "aries.transaction.statistics.slowThreshold";
+    public static final String STATISTICS_SLOW_TRANSACTIONS = "aries.transaction.statistics.slowTransactions";
 
     public static final int DEFAULT_TRANSACTION_TIMEOUT = 600; // 600 seconds -> 10 minutes
     public static final boolean DEFAULT_RECOVERABLE = false;   // not recoverable by default
+    public static final String LOG_TYPE_HOWL = "howl";
+    public static final String LOG_TYPE_FILE_CHANNEL = "filechannel";
 
     private static final String PLATFORM_TRANSACTION_MANAGER_CLASS = "org.springframework.transaction.PlatformTransactionManager";
 
@@ -71,6 +94,8 @@ public class TransactionManagerService {
     private boolean useSpring;
     private GeronimoTransactionManager transactionManager;
     private TransactionLog transactionLog;
+    private TransactionStatistics statistics;
+    private ServiceTracker mbeanServerTracker;
     private ServiceRegistration serviceRegistration;
 
     public TransactionManagerService(String pid, Dictionary properties, BundleContext bundleContext) throws ConfigurationException {
@@ -82,10 +107,52 @@ public class TransactionManagerService {
         if (transactionTimeout <= 0) {
             throw new ConfigurationException(TRANSACTION_TIMEOUT, "Property " + TRANSACTION_TIMEOUT + " must be > 0");
         }
+        // Statistics
+        if (getBool(STATISTICS_ENABLED, false)) {
+            int slowThresholdMilliseconds = getInt(STATISTICS_SLOW_THRESHOLD, 1000);
+            if (slowThresholdMilliseconds < 0) {
+                throw new ConfigurationException(STATISTICS_SLOW_THRESHOLD, "slowThreshold must be >= 0");
+            }
+            int slowTransactions = getInt(STATISTICS_SLOW_TRANSACTIONS, 32);
+            if (slowTransactions < 0) {
+                throw new ConfigurationException(STATISTICS_SLOW_TRANSACTIONS, "slowTransactions must be >= 0");
+            }
+            statistics = new TransactionStatistics(transactionTimeout * 1000L, slowThresholdMilliseconds, slowTransactions);
+        }
         // XID factory
-        XidFactory xidFactory = new XidFactoryImpl(pid.getBytes());
+        XidFactory xidFactory = statistics != null ? statistics.createXidFactory(pid.getBytes()) : new XidFactoryImpl(pid.getBytes());
         // Transaction log
-        if (getBool(RECOVERABLE, DEFAULT_RECOVERABLE)) {
+        String logType = getString(LOG_TYPE, LOG_TYPE_HOWL);
+        if (!LOG_TYPE_HOWL.equals(logType) && !LOG_TYPE_FILE_CHANNEL.equals(logType)) {
+            throw new ConfigurationException(LOG_TYPE, "Property must be either " + LOG_TYPE_HOWL + " or " + LOG_TYPE_FILE_CHANNEL);
+        }
+        if (getBool(RECOVERABLE, DEFAULT_RECOVERABLE) && LOG_TYPE_FILE_CHANNEL.equals(logType)) {
+            String logFileDir = getString(LOG_FILE_DIR, null);
+            if (logFileDir == null || logFileDir.length() == 0 || !new File(logFileDir).isAbsolute()) {
+                throw new ConfigurationException(LOG_FILE_DIR, "Property should be set to an absolute directory");
+            }
+            String logFileExt = getString(LOG_FILE_EXT, "tlog");
+            String logFileName = getString(LOG_FILE_NAME, "transaction");
+            int segmentSizeKBytes = getInt(LOG_SEGMENT_SIZE, 4096);
+            if (segmentSizeKBytes < 64 || segmentSizeKBytes > 1024 * 1024) {
+                throw new ConfigurationException(LOG_SEGMENT_SIZE, "segmentSize must be between 64 and 1048576");
+            }
+            boolean mapped = getBool(LOG_MAPPED, true);
+            int maxBatchDelayMicroseconds = getInt(LOG_MAX_BATCH_DELAY, 100);
+            if (maxBatchDelayMicroseconds < 0) {
+                throw new ConfigurationException(LOG_MAX_BATCH_DELAY, "maxBatchDelay must be >= 0");
+            }
+            try {
+                transactionLog = new FileChannelTransactionLog(logFileDir,
+                                                               logFileName,
+                                                               logFileExt,
+                                                               segmentSizeKBytes * 1024,
+                                                               mapped,
+                                                               maxBatchDelayMicroseconds);
+            } catch (IOException e) {
+                throw new ConfigurationException(LOG_FILE_DIR, "Unable to open transaction log", e);
+            }
+        } else if (getBool(RECOVERABLE, DEFAULT_RECOVERABLE)) {
             String bufferClassName = getString(HOWL_BUFFER_CLASS_NAME, "org.objectweb.howl.log.BlockLogBuffer");
             int bufferSizeKBytes = getInt(HOWL_BUFFER_SIZE, 32);
             if (bufferSizeKBytes < 1 || bufferSizeKBytes > 32) {
@@ -137,17 +204,33 @@ public class TransactionManagerService {
         } else {
             transactionLog =  new UnrecoverableLog();
         }
+        // Statistics
+        TransactionLog managerLog = transactionLog;
+        if (statistics != null) {
+            managerLog = statistics.wrap(transactionLog);
+        }
         // Create transaction manager
         try {
             try {
-                transactionManager = new SpringTransactionManagerCreator().create(transactionTimeout, xidFactory, transactionLog);
+                transactionManager = new SpringTransactionManagerCreator().create(transactionTimeout, xidFactory, managerLog, statistics);
                 useSpring = true;
             } catch (NoClassDefFoundError e) {
-                transactionManager = new GeronimoTransactionManager(transactionTimeout, xidFactory, transactionLog);
+                final TransactionStatistics transactionStatistics = statistics;
+                transactionManager = new GeronimoTransactionManager(transactionTimeout, xidFactory, managerLog) {
+                    public void setTransactionTimeout(int seconds) throws SystemException {
+                        super.setTransactionTimeout(seconds);
+                        if (transactionStatistics != null) {
+                            transactionStatistics.setTransactionTimeout(seconds);
+                        }
+                    }
+                };
             }
         } catch (XAException e) {
             throw new RuntimeException("Error recovering transaction log", e);
         }
+        if (statistics != null) {
+            transactionManager.addTransactionAssociationListener(statistics);
+        }
     }
 
     public void start() throws Exception {
@@ -163,14 +246,23 @@ public class TransactionManagerService {
             clazzes.add(PLATFORM_TRANSACTION_MANAGER_CLASS);
         }
         serviceRegistration = bundleContext.registerService(clazzes.toArray(new String[clazzes.size()]), transactionManager, new Properties());
+        if (statistics != null) {
+            mbeanServerTracker = new StatisticsMBeanTracker(bundleContext, statistics, pid);
+            mbeanServerTracker.open();
+        }
     }
 
     public void close() throws Exception {
+        if (mbeanServerTracker != null) {
+            mbeanServerTracker.close();
+        }
         if (serviceRegistration != null) {
             serviceRegistration.unregister();
         }
         if (transactionLog instanceof HOWLLog) {
             ((HOWLLog) transactionLog).doStop();
+        } else if (transactionLog instanceof FileChannelTransactionLog) {
+            ((FileChannelTransactionLog) transactionLog).close();
         }
     }
 
@@ -206,14 +298,61 @@ public class TransactionManagerService {
         return dflt;
     }
 
+    /**
+     * Registers the statistics in every {@link MBeanServer} service, next to the
+     * framework MBeans.
+     */
+    private static class StatisticsMBeanTracker extends ServiceTracker {
+
+        private final TransactionStatistics statistics;
+        private final ObjectName name;
+
+        public StatisticsMBeanTracker(BundleContext bundleContext, TransactionStatistics statistics, String pid) {
+            super(bundleContext, MBeanServer.class.getName(), null);
+            this.statistics = statistics;
+            try {
+                this.name = new ObjectName(TransactionStatisticsMBean.OBJECTNAME + ",pid=" + ObjectName.quote(pid));
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+
+        public Object addingService(ServiceReference reference) {
+            MBeanServer mbeanServer = (MBeanServer) context.getService(reference);
+            try {
+                mbeanServer.registerMBean(new StandardMBean(statistics, TransactionStatisticsMBean.class), name);
+            } catch (Exception e) {
+                log.warn("Unable to register transaction statistics MBean " + name, e);
+            }
+            return mbeanServer;
+        }
+
+        public void removedService(ServiceReference reference, Object service) {
+            try {
+                ((MBeanServer) service).unregisterMBean(name);
+            } catch (Exception e) {
+                // Ignore
+            }
+            context.ungetService(reference);
+        }
+
+    }
+
     /**
      * We use an inner static class to decouple this class from the spring-tx classes
      * in order to not have NoClassDefFoundError if those are not present.
      */
     public static class SpringTransactionManagerCreator {
 
-        public GeronimoTransactionManager create(int defaultTransactionTimeoutSeconds, XidFactory xidFactory, TransactionLog transactionLog) throws XAException {
-            return new GeronimoPlatformTransactionManager(defaultTransactionTimeoutSeconds, xidFactory, transactionLog);
+        public GeronimoTransactionManager create(int defaultTransactionTimeoutSeconds, XidFactory xidFactory, TransactionLog transactionLog, final TransactionStatistics statistics) throws XAException {
+            return new GeronimoPlatformTransactionManager(defaultTransactionTimeoutSeconds, xidFactory, transactionLog) {
+                public void setTransactionTimeout(int seconds) throws SystemException {
+                    super.setTransactionTimeout(seconds);
+                    if (statistics != null) {
+                        statistics.setTransactionTimeout(seconds);
+                    }
+                }
+            };
         }
 
     }
@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.LogException;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionImpl;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.TransactionManagerMonitor;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.apache.geronimo.transaction.manager.XidFactoryImpl;
+
+/**
+ * Collects the {@link TransactionStatisticsMBean} statistics.
+ * <p>
+ * Transactions are tracked from the time they are first associated with a thread,
+ * through a {@link Synchronization} registered at that time, so it is called before
+ * the other synchronizations.  The transaction log is wrapped to time the force of
+ * prepare records, which happens on the committing thread once every resource has
+ * been prepared.  The xid factory counts the branches created when resources are
+ * enlisted, which tells whether the transaction manager commits in one or two
+ * phases, even when every resource votes read only and nothing is logged.
+ * <p>
+ * The transaction manager rolls back a transaction whose commit is requested after
+ * its timeout.  The timeout of each transaction is the default one, or the one set
+ * by {@link #setTransactionTimeout(int)} on the thread that begins it.
+ */
+public class TransactionStatistics implements TransactionStatisticsMBean, TransactionManagerMonitor {
+
+    private static final long[] RESOURCE_BOUNDS = { 1, 2, 3, 4, 6, 8, 12, 16 };
+
+    private final long timeoutMillis;
+    private final long slowThresholdMillis;
+
+    private final Map<Transaction, Completion> active = new ConcurrentHashMap<Transaction, Completion>();
+    /** The completion running on the current thread, if any */
+    private final ThreadLocal<Completion> completing = new ThreadLocal<Completion>();
+    /** The transaction associated with the current thread, if tracked */
+    private final ThreadLocal<Completion> associated = new ThreadLocal<Completion>();
+    /** The timeout set for the next transaction begun by the current thread */
+    private final ThreadLocal<Long> threadTimeouts = new ThreadLocal<Long>();
+
+    private final AtomicLong begun = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong rolledBack = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong onePhase = new AtomicLong();
+    private final AtomicLong twoPhase = new AtomicLong();
+
+    private final Histogram commitLatencies = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram onePhaseLatencies = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram twoPhaseLatencies = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram rollbackLatencies = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram applicationTimes = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram prepareTimes = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram logTimes = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram twoPhaseResources = new Histogram(RESOURCE_BOUNDS);
+
+    /** Ring buffer of the most recent slow transactions, guarded by itself */
+    private final String[] slowTransactions;
+    private int slowIndex;
+    private int slowCount;
+
+    /**
+     * @param timeoutMillis the default transaction timeout
+     * @param slowThresholdMillis the duration above which a transaction is recorded as slow
+     * @param slowTransactions the number of slow transactions to keep
+     */
+    public TransactionStatistics(long timeoutMillis, long slowThresholdMillis, int slowTransactions) {
+        this.timeoutMillis = timeoutMillis;
+        this.slowThresholdMillis = slowThresholdMillis;
+        this.slowTransactions = new String[slowTransactions];
+    }
+
+    /**
+     * Wrap a transaction log to time the force of prepare records.
+     */
+    public TransactionLog wrap(TransactionLog transactionLog) {
+        return new StatisticsTransactionLog(transactionLog);
+    }
+
+    /**
+     * Create the xid factory of the transaction manager, counting the branches
+     * of the transactions associated with the current thread.
+     */
+    public XidFactory createXidFactory(byte[] tmId) {
+        return new StatisticsXidFactory(tmId);
+    }
+
+    /**
+     * Called by the transaction manager when the timeout of the current thread is set.
+     * Like the transaction manager, the timeout only applies to the next transaction
+     * begun by the thread, and 0 restores the default timeout.
+     */
+    public void setTransactionTimeout(int seconds) {
+        if (seconds > 0) {
+            threadTimeouts.set(TimeUnit.SECONDS.toMillis(seconds));
+        } else {
+            threadTimeouts.remove();
+        }
+    }
+
+    public void threadAssociated(Transaction transaction) {
+        Completion completion = active.get(transaction);
+        if (completion != null) {
+            // resumed
+            associated.set(completion);
+            return;
+        }
+        Long threadTimeout = threadTimeouts.get();
+        threadTimeouts.remove();
+        try {
+            if (transaction.getStatus() != Status.STATUS_ACTIVE) {
+                return;
+            }
+            completion = new Completion(transaction, threadTimeout != null ? threadTimeout.longValue() : timeoutMillis);
+            transaction.registerSynchronization(completion);
+            active.put(transaction, completion);
+            associated.set(completion);
+            begun.incrementAndGet();
+        } catch (Exception e) {
+            // The transaction cannot be tracked
+        }
+    }
+
+    public void threadUnassociated(Transaction transaction) {
+        associated.remove();
+    }
+
+    public long getBegunCount() {
+        return begun.get();
+    }
+
+    public long getCommittedCount() {
+        return committed.get();
+    }
+
+    public long getRolledBackCount() {
+        return rolledBack.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public long getOnePhaseCommitCount() {
+        return onePhase.get();
+    }
+
+    public long getTwoPhaseCommitCount() {
+        return twoPhase.get();
+    }
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    public long[] getLatencyBounds() {
+        return Histogram.LATENCY_BOUNDS.clone();
+    }
+
+    public long[] getCommitLatencies() {
+        return commitLatencies.getCounts();
+    }
+
+    public long[] getOnePhaseCommitLatencies() {
+        return onePhaseLatencies.getCounts();
+    }
+
+    public long[] getTwoPhaseCommitLatencies() {
+        return twoPhaseLatencies.getCounts();
+    }
+
+    public long[] getRollbackLatencies() {
+        return rollbackLatencies.getCounts();
+    }
+
+    public long[] getApplicationTimes() {
+        return applicationTimes.getCounts();
+    }
+
+    public long[] getPrepareTimes() {
+        return prepareTimes.getCounts();
+    }
+
+    public long[] getLogTimes() {
+        return logTimes.getCounts();
+    }
+
+    public long[] getResourceBounds() {
+        return RESOURCE_BOUNDS.clone();
+    }
+
+    public long[] getTwoPhaseCommitResources() {
+        return twoPhaseResources.getCounts();
+    }
+
+    public double getAverageCommitTime() {
+        return commitLatencies.getMean() / 1000;
+    }
+
+    public double getAverageApplicationTime() {
+        return applicationTimes.getMean() / 1000;
+    }
+
+    public double getAveragePrepareTime() {
+        return prepareTimes.getMean() / 1000;
+    }
+
+    public double getAverageLogTime() {
+        return logTimes.getMean() / 1000;
+    }
+
+    public long getSlowTransactionThreshold() {
+        return slowThresholdMillis;
+    }
+
+    public String[] getSlowTransactions() {
+        synchronized (slowTransactions) {
+            String[] result = new String[slowCount];
+            int first = slowIndex - slowCount + slowTransactions.length;
+            for (int i = 0; i < slowCount; i++) {
+                result[i] = slowTransactions[(first + i) % slowTransactions.length];
+            }
+            return result;
+        }
+    }
+
+    public void reset() {
+        begun.set(0);
+        committed.set(0);
+        rolledBack.set(0);
+        timedOut.set(0);
+        onePhase.set(0);
+        twoPhase.set(0);
+        commitLatencies.reset();
+        onePhaseLatencies.reset();
+        twoPhaseLatencies.reset();
+        rollbackLatencies.reset();
+        applicationTimes.reset();
+        prepareTimes.reset();
+        logTimes.reset();
+        twoPhaseResources.reset();
+        synchronized (slowTransactions) {
+            slowIndex = 0;
+            slowCount = 0;
+        }
+    }
+
+    private void completed(Completion c, int status) {
+        long end = System.nanoTime();
+        long duration = end - c.begin;
+        long completionStart = c.beforeCompletion != 0 ? c.beforeCompletion : end;
+        long application = completionStart - c.begin;
+        long completion = end - completionStart;
+        applicationTimes.record(micros(application));
+        if (status == Status.STATUS_COMMITTED) {
+            committed.incrementAndGet();
+            commitLatencies.record(micros(completion));
+            if (c.branches > 1) {
+                twoPhase.incrementAndGet();
+                twoPhaseLatencies.record(micros(completion));
+                twoPhaseResources.record(c.branches);
+                if (c.logStart != 0) {
+                    prepareTimes.record(micros(c.logStart - completionStart));
+                    logTimes.record(micros(c.logEnd - c.logStart));
+                }
+            } else {
+                onePhase.incrementAndGet();
+                onePhaseLatencies.record(micros(completion));
+            }
+        } else {
+            rolledBack.incrementAndGet();
+            rollbackLatencies.record(micros(completion));
+            if (c.isTimedOut()) {
+                timedOut.incrementAndGet();
+            }
+        }
+        if (slowTransactions.length > 0 && TimeUnit.NANOSECONDS.toMillis(duration) >= slowThresholdMillis) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(c.xid);
+            sb.append(status == Status.STATUS_COMMITTED ? " committed" : " rolled back");
+            sb.append(" in ").append(millis(duration)).append(" ms:");
+            sb.append(" application=").append(millis(application));
+            if (c.logStart != 0) {
+                sb.append(" prepare=").append(millis(c.logStart - completionStart));
+                sb.append(" log=").append(millis(c.logEnd - c.logStart));
+                sb.append(" commit=").append(millis(end - c.logEnd));
+            } else {
+                sb.append(" completion=").append(millis(completion));
+            }
+            sb.append(" resources=").append(c.branches);
+            synchronized (slowTransactions) {
+                slowTransactions[slowIndex] = sb.toString();
+                slowIndex = (slowIndex + 1) % slowTransactions.length;
+                slowCount = Math.min(slowCount + 1, slowTransactions.length);
+            }
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10000.0) / 100.0;
+    }
+
+    private static Object getKey(Transaction transaction) {
+        return transaction instanceof TransactionImpl ? ((TransactionImpl) transaction).getTransactionKey() : null;
+    }
+
+    private static String toString(Transaction transaction) {
+        Object key = getKey(transaction);
+        if (!(key instanceof Xid)) {
+            return String.valueOf(transaction);
+        }
+        Xid xid = (Xid) key;
+        StringBuilder sb = new StringBuilder();
+        sb.append(xid.getFormatId()).append(':');
+        for (byte b : xid.getGlobalTransactionId()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The timings of a transaction.
+     */
+    private class Completion implements Synchronization {
+
+        private final Transaction transaction;
+        private final Object key;
+        private final String xid;
+        private final long begin = System.nanoTime();
+        private final long deadline;
+        private volatile int branches;
+        private long beforeCompletion;
+        private boolean rollbackOnly;
+        private long logStart;
+        private long logEnd;
+
+        public Completion(Transaction transaction, long timeoutMillis) {
+            this.transaction = transaction;
+            this.key = getKey(transaction);
+            this.xid = TransactionStatistics.toString(transaction);
+            this.deadline = timeoutMillis > 0 ? begin + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        }
+
+        public void beforeCompletion() {
+            beforeCompletion = System.nanoTime();
+            try {
+                rollbackOnly = transaction.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+            } catch (Exception e) {
+                rollbackOnly = true;
+            }
+            completing.set(this);
+        }
+
+        /**
+         * A transaction times out when its commit is requested after its deadline,
+         * without having been marked for rollback before.  A rollback requested by
+         * the application does not run the synchronizations before completion.
+         */
+        public boolean isTimedOut() {
+            return deadline != 0 && beforeCompletion != 0 && !rollbackOnly && beforeCompletion - deadline >= 0;
+        }
+
+        public void afterCompletion(int status) {
+            completing.remove();
+            active.remove(transaction);
+            completed(this, status);
+        }
+    }
+
+    /**
+     * Counts the branches of the transaction associated with the current thread, as
+     * the transaction manager creates one for each resource manager enlisted.
+     */
+    private class StatisticsXidFactory extends XidFactoryImpl {
+
+        public StatisticsXidFactory(byte[] tmId) {
+            super(tmId);
+        }
+
+        public Xid createBranch(Xid globalId, int branch) {
+            Completion completion = associated.get();
+            if (completion != null && (completion.key == null || completion.key.equals(globalId))) {
+                completion.branches++;
+            }
+            return super.createBranch(globalId, branch);
+        }
+    }
+
+    /**
+     * Times the force of prepare records for the completion running on the current thread.
+     */
+    private class StatisticsTransactionLog implements TransactionLog {
+
+        private final TransactionLog delegate;
+
+        public StatisticsTransactionLog(TransactionLog delegate) {
+            this.delegate = delegate;
+        }
+
+        public void begin(Xid xid) throws LogException {
+            delegate.begin(xid);
+        }
+
+        public Object prepare(Xid xid, List<? extends TransactionBranchInfo> branches) throws LogException {
+            Completion completion = completing.get();
+            if (completion == null) {
+                return delegate.prepare(xid, branches);
+            }
+            completion.logStart = System.nanoTime();
+            try {
+                return delegate.prepare(xid, branches);
+            } finally {
+                completion.logEnd = System.nanoTime();
+            }
+        }
+
+        public void commit(Xid xid, Object logMark) throws LogException {
+            delegate.commit(xid, logMark);
+        }
+
+        public void rollback(Xid xid, Object logMark) throws LogException {
+            delegate.rollback(xid, logMark);
+        }
+
+        public Collection<Recovery.XidBranchesPair> recover(XidFactory xidFactory) throws LogException {
+            return delegate.recover(xidFactory);
+        }
+
+        public String getXMLStats() {
+            return delegate.getXMLStats();
+        }
+
+        public int getAverageForceTime() {
+            return delegate.getAverageForceTime();
+        }
+
+        public int getAverageBytesPerForce() {
+            return delegate.getAverageBytesPerForce();
+        }
+    }
+}
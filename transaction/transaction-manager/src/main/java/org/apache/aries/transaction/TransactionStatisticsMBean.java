@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+/**
+ * Runtime statistics of a transaction manager.
+ * <p>
+ * The time of a transaction is split between the application, from its begin to
+ * the start of its completion, the prepare of its resources, the force of the
+ * transaction log and the commit of its resources.  The prepare and log times are
+ * only known for transactions committed in two phases that write a prepare record,
+ * that is not when every resource votes read only.  Histograms are returned
+ * as the number of values in each bucket, whose bounds are given by
+ * {@link #getLatencyBounds()} in microseconds and by {@link #getResourceBounds()}.
+ * The number of resources of a transaction is the number of resource managers
+ * enlisted in it.
+ */
+public interface TransactionStatisticsMBean {
+
+    String OBJECTNAME = "org.apache.aries.transaction:type=TransactionStatistics";
+
+    long getBegunCount();
+
+    long getCommittedCount();
+
+    long getRolledBackCount();
+
+    /**
+     * @return the number of transactions rolled back because their commit was requested after their timeout
+     */
+    long getTimedOutCount();
+
+    long getOnePhaseCommitCount();
+
+    long getTwoPhaseCommitCount();
+
+    int getActiveCount();
+
+    long[] getLatencyBounds();
+
+    /**
+     * @return the time taken by the completion of committed transactions
+     */
+    long[] getCommitLatencies();
+
+    long[] getOnePhaseCommitLatencies();
+
+    long[] getTwoPhaseCommitLatencies();
+
+    long[] getRollbackLatencies();
+
+    long[] getApplicationTimes();
+
+    long[] getPrepareTimes();
+
+    long[] getLogTimes();
+
+    long[] getResourceBounds();
+
+    /**
+     * @return the number of resources of each transaction committed in two phases
+     */
+    long[] getTwoPhaseCommitResources();
+
+    /**
+     * @return the average time, in milliseconds, taken by the completion of committed transactions
+     */
+    double getAverageCommitTime();
+
+    double getAverageApplicationTime();
+
+    double getAveragePrepareTime();
+
+    double getAverageLogTime();
+
+    /**
+     * @return the duration, in milliseconds, above which a transaction is recorded as slow
+     */
+    long getSlowTransactionThreshold();
+
+    /**
+     * @return the most recent slow transactions, oldest first, with their xid and the
+     *         breakdown of their duration
+     */
+    String[] getSlowTransactions();
+
+    void reset();
+
+}
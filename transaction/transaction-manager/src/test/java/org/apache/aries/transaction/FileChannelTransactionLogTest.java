@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.LogException;
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.apache.geronimo.transaction.manager.XidFactoryImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileChannelTransactionLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private final XidFactory xidFactory = new XidFactoryImpl();
+    private File dir;
+    private FileChannelTransactionLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("txlog", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (log != null) {
+            log.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRecoverPreparedTransactions() throws Exception {
+        log = open(SEGMENT_SIZE);
+        Xid committed = prepare();
+        Xid rolledBack = prepare();
+        Xid pending = prepare();
+        log.commit(committed, null);
+        log.rollback(rolledBack, null);
+
+        reopen(SEGMENT_SIZE);
+        assertRecovered(pending);
+        Recovery.XidBranchesPair pair = log.recover(xidFactory).iterator().next();
+        assertEquals(1, pair.getBranches().size());
+        TransactionBranchInfo branch = pair.getBranches().iterator().next();
+        assertEquals("resource", branch.getResourceName());
+        assertTrue(Arrays.equals(pending.getGlobalTransactionId(), branch.getBranchXid().getGlobalTransactionId()));
+    }
+
+    @Test
+    public void testReplayStopsAtTornRecord() throws Exception {
+        log = open(SEGMENT_SIZE);
+        Xid complete = prepare();
+        prepare();
+        log.close();
+        log = null;
+
+        // a crash in the middle of the last write leaves the end of its record unwritten
+        tearLastRecord(new File(dir, "transaction_1.log"));
+
+        log = open(SEGMENT_SIZE);
+        assertRecovered(complete);
+
+        // the torn record is not picked up once the log has moved on
+        Xid later = prepare();
+        reopen(SEGMENT_SIZE);
+        assertRecovered(complete, later);
+    }
+
+    @Test
+    public void testRolloverCarriesPendingPrepares() throws Exception {
+        log = open(1024);
+        Xid pending = prepare();
+        long rollovers = log.getRolloverCount();
+        while (log.getRolloverCount() < rollovers + 3) {
+            Xid xid = prepare();
+            log.commit(xid, null);
+        }
+        assertEquals(1, log.getPendingCount());
+
+        reopen(1024);
+        assertRecovered(pending);
+    }
+
+    @Test
+    public void testOpenChoosesNewerSegment() throws Exception {
+        log = open(SEGMENT_SIZE);
+        Xid first = prepare();
+        // the first segment now holds the first prepare, the second one gets a newer generation
+        reopen(SEGMENT_SIZE);
+        Xid second = prepare();
+        reopen(SEGMENT_SIZE);
+        assertRecovered(first, second);
+
+        // and back to the first segment
+        Xid third = prepare();
+        reopen(SEGMENT_SIZE);
+        assertRecovered(first, second, third);
+    }
+
+    @Test
+    public void testSegmentOverflowFails() throws Exception {
+        log = open(512);
+        try {
+            for (int i = 0; i < 100; i++) {
+                prepare();
+            }
+            fail("The pending transactions can not fit in a segment");
+        } catch (LogException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("too small") >= 0);
+        }
+    }
+
+    private FileChannelTransactionLog open(int segmentSize) throws IOException {
+        return new FileChannelTransactionLog(dir.getAbsolutePath(), "transaction", "log", segmentSize, false, 0);
+    }
+
+    private void reopen(int segmentSize) throws Exception {
+        log.close();
+        log = null;
+        log = open(segmentSize);
+    }
+
+    private Xid prepare() throws LogException {
+        Xid xid = xidFactory.createXid();
+        TransactionBranchInfo branch = new TransactionBranchInfoImpl(xidFactory.createBranch(xid, 1), "resource");
+        log.prepare(xid, Collections.singletonList(branch));
+        return xid;
+    }
+
+    private void assertRecovered(Xid... xids) throws LogException {
+        Set<String> expected = new HashSet<String>();
+        for (Xid xid : xids) {
+            expected.add(Arrays.toString(xid.getGlobalTransactionId()));
+        }
+        Set<String> recovered = new HashSet<String>();
+        for (Recovery.XidBranchesPair pair : log.recover(xidFactory)) {
+            recovered.add(Arrays.toString(pair.getXid().getGlobalTransactionId()));
+        }
+        assertEquals(expected, recovered);
+    }
+
+    /**
+     * Zero the last bytes written to a segment file.
+     */
+    private static void tearLastRecord(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            int end = data.length - 1;
+            while (end >= 0 && data[end] == 0) {
+                end--;
+            }
+            assertTrue("The segment is empty", end > 0);
+            raf.seek(end - 3);
+            raf.write(new byte[4]);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testValuesAreCountedInTheFirstBucketHoldingThem() {
+        Histogram histogram = new Histogram(new long[] { 10, 20, 30 });
+        histogram.record(0);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(20);
+        histogram.record(30);
+        histogram.record(31);
+        histogram.record(1000);
+
+        assertTrue(Arrays.equals(new long[] { 2, 2, 1, 2 }, histogram.getCounts()));
+        assertEquals(7, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1102 / 7.0, histogram.getMean(), 0.000001);
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        Histogram histogram = new Histogram(Histogram.LATENCY_BOUNDS);
+
+        assertEquals(Histogram.LATENCY_BOUNDS.length + 1, histogram.getCounts().length);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void testReset() {
+        Histogram histogram = new Histogram(new long[] { 10 });
+        histogram.record(5);
+        histogram.record(50);
+        histogram.reset();
+
+        assertTrue(Arrays.equals(new long[] { 0, 0 }, histogram.getCounts()));
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(7);
+        assertTrue(Arrays.equals(new long[] { 1, 0 }, histogram.getCounts()));
+        assertEquals(7, histogram.getMax());
+    }
+
+    @Test
+    public void testBoundsAreCopied() {
+        long[] bounds = { 10, 20 };
+        Histogram histogram = new Histogram(bounds);
+        histogram.getBounds()[0] = 100;
+        histogram.record(15);
+
+        assertTrue(Arrays.equals(bounds, histogram.getBounds()));
+        assertTrue(Arrays.equals(new long[] { 0, 1, 0 }, histogram.getCounts()));
+    }
+
+    @Test
+    public void testConcurrentRecords() throws Exception {
+        final Histogram histogram = new Histogram(new long[] { 10 });
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final long value = i * 10;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(value);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(Arrays.equals(new long[] { 20000, 20000 }, histogram.getCounts()));
+        assertEquals(40000, histogram.getCount());
+        assertEquals(30, histogram.getMax());
+        assertEquals(15.0, histogram.getMean(), 0.000001);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.aries.transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.apache.geronimo.transaction.manager.Recovery;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.TransactionLog;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.junit.Test;
+
+public class TransactionStatisticsTest {
+
+    private TransactionStatistics statistics;
+    private XidFactory xidFactory;
+    private TransactionLog log;
+
+    @Test
+    public void testOnePhaseCommit() throws Exception {
+        init(60000);
+        TestTransaction tx = begin(60000);
+        tx.enlist(1);
+        tx.commit();
+
+        assertEquals(1, statistics.getBegunCount());
+        assertEquals(1, statistics.getCommittedCount());
+        assertEquals(1, statistics.getOnePhaseCommitCount());
+        assertEquals(0, statistics.getTwoPhaseCommitCount());
+        assertEquals(0, statistics.getActiveCount());
+        assertEquals(1, sum(statistics.getOnePhaseCommitLatencies()));
+        assertEquals(0, sum(statistics.getTwoPhaseCommitResources()));
+    }
+
+    @Test
+    public void testReadOnlyTwoPhaseCommit() throws Exception {
+        init(60000);
+        TestTransaction tx = begin(60000);
+        tx.enlist(2);
+        // every resource votes read only, so no prepare record is written
+        tx.commit();
+
+        assertEquals(0, statistics.getOnePhaseCommitCount());
+        assertEquals(1, statistics.getTwoPhaseCommitCount());
+        assertEquals(1, statistics.getTwoPhaseCommitResources()[1]);
+        assertEquals(0, sum(statistics.getLogTimes()));
+        assertEquals(0, sum(statistics.getPrepareTimes()));
+    }
+
+    @Test
+    public void testLoggedTwoPhaseCommit() throws Exception {
+        init(60000);
+        TestTransaction tx = begin(60000);
+        tx.enlist(3);
+        tx.logPrepare = true;
+        tx.commit();
+
+        assertEquals(1, statistics.getTwoPhaseCommitCount());
+        assertEquals(1, statistics.getTwoPhaseCommitResources()[2]);
+        assertEquals(1, sum(statistics.getLogTimes()));
+        assertEquals(1, sum(statistics.getPrepareTimes()));
+    }
+
+    @Test
+    public void testBranchesAreCountedWhileAssociated() throws Exception {
+        init(60000);
+        TestTransaction tx = begin(60000);
+        tx.enlist(1);
+        statistics.threadUnassociated(tx);
+        xidFactory.createBranch(tx.xid, 2);
+        statistics.threadAssociated(tx);
+        tx.enlist(1);
+        tx.commit();
+
+        assertEquals(1, statistics.getBegunCount());
+        assertEquals(1, statistics.getTwoPhaseCommitCount());
+        assertEquals(1, statistics.getTwoPhaseCommitResources()[1]);
+    }
+
+    @Test
+    public void testCommitAfterDefaultTimeout() throws Exception {
+        init(1);
+        TestTransaction tx = begin(1);
+        Thread.sleep(10);
+        tx.commit();
+
+        assertEquals(1, statistics.getRolledBackCount());
+        assertEquals(1, statistics.getTimedOutCount());
+        assertEquals(0, statistics.getCommittedCount());
+    }
+
+    @Test
+    public void testCommitWithinThreadTimeout() throws Exception {
+        init(1);
+        statistics.setTransactionTimeout(60);
+        TestTransaction tx = begin(60000);
+        Thread.sleep(10);
+        tx.commit();
+
+        assertEquals(1, statistics.getCommittedCount());
+        assertEquals(0, statistics.getTimedOutCount());
+
+        // the thread timeout only applies to the next transaction
+        tx = begin(1);
+        Thread.sleep(10);
+        tx.commit();
+
+        assertEquals(1, statistics.getTimedOutCount());
+    }
+
+    @Test
+    public void testCommitAfterThreadTimeout() throws Exception {
+        init(60000);
+        statistics.setTransactionTimeout(1);
+        TestTransaction tx = begin(1000);
+        Thread.sleep(1100);
+        tx.commit();
+
+        assertEquals(1, statistics.getTimedOutCount());
+    }
+
+    @Test
+    public void testRollbacksAreNotTimeouts() throws Exception {
+        init(1);
+        TestTransaction tx = begin(1);
+        Thread.sleep(10);
+        tx.rollback();
+        tx = begin(1);
+        Thread.sleep(10);
+        tx.setRollbackOnly();
+        tx.commit();
+
+        assertEquals(2, statistics.getRolledBackCount());
+        assertEquals(0, statistics.getTimedOutCount());
+        assertEquals(2, sum(statistics.getRollbackLatencies()));
+    }
+
+    @Test
+    public void testSlowTransactions() throws Exception {
+        statistics = new TransactionStatistics(60000, 0, 2);
+        xidFactory = statistics.createXidFactory("test".getBytes());
+        log = statistics.wrap(new NullTransactionLog());
+        for (int i = 0; i < 3; i++) {
+            TestTransaction tx = begin(60000);
+            tx.enlist(i + 1);
+            tx.commit();
+        }
+
+        String[] slow = statistics.getSlowTransactions();
+        assertEquals(2, slow.length);
+        assertTrue(slow[0], slow[0].endsWith(" resources=2"));
+        assertTrue(slow[1], slow[1].endsWith(" resources=3"));
+
+        statistics.reset();
+        assertEquals(0, statistics.getSlowTransactions().length);
+        assertEquals(0, statistics.getCommittedCount());
+        assertEquals(0, sum(statistics.getCommitLatencies()));
+    }
+
+    private void init(long timeoutMillis) {
+        statistics = new TransactionStatistics(timeoutMillis, 60000, 8);
+        xidFactory = statistics.createXidFactory("test".getBytes());
+        log = statistics.wrap(new NullTransactionLog());
+    }
+
+    private TestTransaction begin(long timeoutMillis) {
+        TestTransaction tx = new TestTransaction(xidFactory.createXid(), timeoutMillis);
+        statistics.threadAssociated(tx);
+        return tx;
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * Completes like the transaction manager: a commit runs the synchronizations
+     * before completion, then rolls back when the transaction is marked for rollback
+     * or has timed out, or writes a prepare record when asked to, as it does unless
+     * every resource votes read only.
+     */
+    private class TestTransaction implements Transaction {
+
+        private final Xid xid;
+        private final long deadline;
+        private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+        private final List<TransactionBranchInfo> branches = new ArrayList<TransactionBranchInfo>();
+        private int status = Status.STATUS_ACTIVE;
+        private boolean logPrepare;
+
+        public TestTransaction(Xid xid, long timeoutMillis) {
+            this.xid = xid;
+            this.deadline = System.currentTimeMillis() + timeoutMillis;
+        }
+
+        public void enlist(int resources) {
+            for (int i = 0; i < resources; i++) {
+                branches.add(new TransactionBranchInfoImpl(xidFactory.createBranch(xid, branches.size() + 1), "resource"));
+            }
+        }
+
+        public void commit() {
+            for (Synchronization synchronization : synchronizations) {
+                synchronization.beforeCompletion();
+            }
+            if (System.currentTimeMillis() > deadline) {
+                status = Status.STATUS_MARKED_ROLLBACK;
+            }
+            if (status == Status.STATUS_ACTIVE && logPrepare) {
+                try {
+                    log.prepare(xid, branches);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            complete(status == Status.STATUS_ACTIVE ? Status.STATUS_COMMITTED : Status.STATUS_ROLLEDBACK);
+        }
+
+        public void rollback() {
+            complete(Status.STATUS_ROLLEDBACK);
+        }
+
+        public void setRollbackOnly() {
+            status = Status.STATUS_MARKED_ROLLBACK;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void registerSynchronization(Synchronization synchronization) {
+            synchronizations.add(synchronization);
+        }
+
+        public boolean enlistResource(XAResource xaResource) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean delistResource(XAResource xaResource, int flag) {
+            throw new UnsupportedOperationException();
+        }
+
+        private void complete(int completionStatus) {
+            status = completionStatus;
+            for (Synchronization synchronization : synchronizations) {
+                synchronization.afterCompletion(completionStatus);
+            }
+            statistics.threadUnassociated(this);
+        }
+    }
+
+    private static class NullTransactionLog implements TransactionLog {
+
+        public void begin(Xid xid) {
+        }
+
+        public Object prepare(Xid xid, List<? extends TransactionBranchInfo> branches) {
+            return null;
+        }
+
+        public void commit(Xid xid, Object logMark) {
+        }
+
+        public void rollback(Xid xid, Object logMark) {
+        }
+
+        public Collection<Recovery.XidBranchesPair> recover(XidFactory xidFactory) {
+            return Collections.emptyList();
+        }
+
+        public String getXMLStats() {
+            return null;
+        }
+
+        public int getAverageForceTime() {
+            return 0;
+        }
+
+        public int getAverageBytesPerForce() {
+            return 0;
+        }
+    }
+}
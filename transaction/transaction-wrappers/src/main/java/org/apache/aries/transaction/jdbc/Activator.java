@@ -31,9 +31,15 @@ import java.util.Hashtable;
 import javax.sql.DataSource;
 import javax.sql.XADataSource;
 import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Activator implements BundleActivator, ServiceTrackerCustomizer, ServiceListener
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Activator.class);
+
   private TransactionManager tm;
   private ServiceTracker t;
   private ServiceReference ref;
@@ -81,18 +87,40 @@ public class Activator implements BundleActivator, ServiceTrackerCustomizer, Ser
     }
     map.put("aries.xa.aware", "true");
 
+    XADataSource xaDataSource = (XADataSource) ctx.getService(ref);
     XADatasourceEnlistingWrapper wrapper = new XADatasourceEnlistingWrapper();
     wrapper.setTxManager(tm);
-    wrapper.setDataSource((XADataSource) ctx.getService(ref));
+    wrapper.setDataSource(xaDataSource);
+    if (getBoolean(ref, XAConnectionPool.POOLING_PROPERTY, false)) {
+      wrapper.setPool(new XAConnectionPool(xaDataSource, tm,
+          getInt(ref, XAConnectionPool.MIN_SIZE_PROPERTY, XAConnectionPool.DEFAULT_MIN_SIZE),
+          getInt(ref, XAConnectionPool.MAX_SIZE_PROPERTY, XAConnectionPool.DEFAULT_MAX_SIZE),
+          getLong(ref, XAConnectionPool.IDLE_TIMEOUT_PROPERTY, XAConnectionPool.DEFAULT_IDLE_TIMEOUT),
+          getLong(ref, XAConnectionPool.MAX_WAIT_PROPERTY, XAConnectionPool.DEFAULT_MAX_WAIT),
+          getBoolean(ref, XAConnectionPool.VALIDATE_PROPERTY, false)));
+    } else if (getBoolean(ref, TransactionConnectionCache.LOCAL_TRANSACTIONS_PROPERTY, false)
+        && tm instanceof TransactionSynchronizationRegistry) {
+      // the local transaction of a connection is shared within the transaction
+      wrapper.setConnectionCache(new TransactionConnectionCache(xaDataSource, tm, true));
+    } else {
+      if (getBoolean(ref, TransactionConnectionCache.LOCAL_TRANSACTIONS_PROPERTY, false)) {
+        LOGGER.warn("The transaction manager is not a TransactionSynchronizationRegistry, the data source "
+            + ref + " uses XA transactions rather than local transactions");
+      }
+      if (getBoolean(ref, TransactionConnectionCache.SHARE_CONNECTIONS_PROPERTY, true)) {
+        wrapper.setConnectionCache(new TransactionConnectionCache(xaDataSource, tm));
+      }
+    }
 
     ServiceRegistration reg = ctx.registerService(DataSource.class.getName(), wrapper, map); 
 
-    return reg;
+    return new Registration(reg, wrapper);
   }
  
   public void modifiedService(ServiceReference ref, Object service)
   {
-    ServiceRegistration reg = (ServiceRegistration) service;
+    // changes to the pool configuration only apply when the data source is registered again
+    ServiceRegistration reg = ((Registration) service).reg;
     
     Hashtable<String, Object> map = new Hashtable<String, Object>();
     for (String key : ref.getPropertyKeys()) {
@@ -105,7 +133,9 @@ public class Activator implements BundleActivator, ServiceTrackerCustomizer, Ser
 
   public void removedService(ServiceReference ref, Object service)
   {
-    ((ServiceRegistration)service).unregister();
+    Registration registration = (Registration) service;
+    registration.reg.unregister();
+    registration.wrapper.close();
   }
 
   public void serviceChanged(ServiceEvent event)
@@ -124,4 +154,42 @@ public class Activator implements BundleActivator, ServiceTrackerCustomizer, Ser
       tm = null;
     }
   }
+
+  private static boolean getBoolean(ServiceReference ref, String key, boolean def)
+  {
+    Object value = ref.getProperty(key);
+    return value != null ? Boolean.valueOf(value.toString().trim()) : def;
+  }
+
+  private static int getInt(ServiceReference ref, String key, int def)
+  {
+    return (int) getLong(ref, key, def);
+  }
+
+  private static long getLong(ServiceReference ref, String key, long def)
+  {
+    Object value = ref.getProperty(key);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(value.toString().trim());
+      } catch (NumberFormatException e) {
+        // use the default
+      }
+    }
+    return def;
+  }
+
+  private static class Registration
+  {
+    private final ServiceRegistration reg;
+    private final XADatasourceEnlistingWrapper wrapper;
+
+    public Registration(ServiceRegistration reg, XADatasourceEnlistingWrapper wrapper)
+    {
+      this.reg = reg;
+      this.wrapper = wrapper;
+    }
+  }
 }
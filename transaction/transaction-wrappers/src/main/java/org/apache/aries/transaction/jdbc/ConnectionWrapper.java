@@ -56,6 +56,13 @@ public class ConnectionWrapper implements Connection {
     
     private TransactionManager tm;
     
+    /**
+     * Wrap a connection whose enlistment is managed by the caller.
+     */
+    protected ConnectionWrapper(Connection connection) {
+        this.connection = connection;
+    }
+
     public ConnectionWrapper(XAConnection xaConnection, TransactionManager tm) {
         try {
             this.xaConnection = xaConnection;
@@ -64,7 +71,7 @@ public class ConnectionWrapper implements Connection {
             
             if (tm.getStatus() == Status.STATUS_ACTIVE) {
                 Transaction tx = tm.getTransaction();
-                tx.enlistResource(xaConnection.getXAResource());
+                TransactionSupport.enlistResource(tm, tx, xaConnection.getXAResource());
             }
         } catch (Exception e) {
             try {
@@ -78,8 +85,26 @@ public class ConnectionWrapper implements Connection {
         }
     }
 
+    /**
+     * The connection the calls are delegated to.  Subclasses can override it to
+     * check that the connection can still be used.
+     */
+    protected Connection getDelegate() throws SQLException {
+        return connection;
+    }
+
+    private Connection getClientInfoDelegate() throws SQLClientInfoException {
+        try {
+            return getDelegate();
+        } catch (SQLClientInfoException e) {
+            throw e;
+        } catch (SQLException e) {
+            throw new SQLClientInfoException(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, e);
+        }
+    }
+
     public void clearWarnings() throws SQLException {
-        connection.clearWarnings();
+        getDelegate().clearWarnings();
     }
 
     public void close() throws SQLException {
@@ -103,210 +128,210 @@ public class ConnectionWrapper implements Connection {
     }
 
     public void commit() throws SQLException {
-        connection.commit();
+        getDelegate().commit();
     }
 
     public Array createArrayOf(String typeName, Object[] elements)
             throws SQLException {
-        return connection.createArrayOf(typeName, elements);
+        return getDelegate().createArrayOf(typeName, elements);
     }
 
     public Blob createBlob() throws SQLException {
-        return connection.createBlob();
+        return getDelegate().createBlob();
     }
 
     public Clob createClob() throws SQLException {
-        return connection.createClob();
+        return getDelegate().createClob();
     }
 
     public NClob createNClob() throws SQLException {
-        return connection.createNClob();
+        return getDelegate().createNClob();
     }
 
     public SQLXML createSQLXML() throws SQLException {
-        return connection.createSQLXML();
+        return getDelegate().createSQLXML();
     }
 
     public Statement createStatement() throws SQLException {
-        return connection.createStatement();
+        return getDelegate().createStatement();
     }
 
     public Statement createStatement(int resultSetType,
             int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
-        return connection.createStatement(resultSetType, resultSetConcurrency,
+        return getDelegate().createStatement(resultSetType, resultSetConcurrency,
                 resultSetHoldability);
     }
 
     public Statement createStatement(int resultSetType, int resultSetConcurrency)
             throws SQLException {
-        return connection.createStatement(resultSetType, resultSetConcurrency);
+        return getDelegate().createStatement(resultSetType, resultSetConcurrency);
     }
 
     public Struct createStruct(String typeName, Object[] attributes)
             throws SQLException {
-        return connection.createStruct(typeName, attributes);
+        return getDelegate().createStruct(typeName, attributes);
     }
 
     public boolean getAutoCommit() throws SQLException {
-        return connection.getAutoCommit();
+        return getDelegate().getAutoCommit();
     }
 
     public String getCatalog() throws SQLException {
-        return connection.getCatalog();
+        return getDelegate().getCatalog();
     }
 
     public Properties getClientInfo() throws SQLException {
-        return connection.getClientInfo();
+        return getDelegate().getClientInfo();
     }
 
     public String getClientInfo(String name) throws SQLException {
-        return connection.getClientInfo(name);
+        return getDelegate().getClientInfo(name);
     }
 
     public int getHoldability() throws SQLException {
-        return connection.getHoldability();
+        return getDelegate().getHoldability();
     }
 
     public DatabaseMetaData getMetaData() throws SQLException {
-        return connection.getMetaData();
+        return getDelegate().getMetaData();
     }
 
     public int getTransactionIsolation() throws SQLException {
-        return connection.getTransactionIsolation();
+        return getDelegate().getTransactionIsolation();
     }
 
     public Map<String, Class<?>> getTypeMap() throws SQLException {
-        return connection.getTypeMap();
+        return getDelegate().getTypeMap();
     }
 
     public SQLWarning getWarnings() throws SQLException {
-        return connection.getWarnings();
+        return getDelegate().getWarnings();
     }
 
     public boolean isClosed() throws SQLException {
-        return connection.isClosed();
+        return getDelegate().isClosed();
     }
 
     public boolean isReadOnly() throws SQLException {
-        return connection.isReadOnly();
+        return getDelegate().isReadOnly();
     }
 
     public boolean isValid(int timeout) throws SQLException {
-        return connection.isValid(timeout);
+        return getDelegate().isValid(timeout);
     }
 
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return connection.isWrapperFor(iface);
+        return getDelegate().isWrapperFor(iface);
     }
 
     public String nativeSQL(String sql) throws SQLException {
-        return connection.nativeSQL(sql);
+        return getDelegate().nativeSQL(sql);
     }
 
     public CallableStatement prepareCall(String sql, int resultSetType,
             int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
-        return connection.prepareCall(sql, resultSetType, resultSetConcurrency,
+        return getDelegate().prepareCall(sql, resultSetType, resultSetConcurrency,
                 resultSetHoldability);
     }
 
     public CallableStatement prepareCall(String sql, int resultSetType,
             int resultSetConcurrency) throws SQLException {
-        return connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+        return getDelegate().prepareCall(sql, resultSetType, resultSetConcurrency);
     }
 
     public CallableStatement prepareCall(String sql) throws SQLException {
-        return connection.prepareCall(sql);
+        return getDelegate().prepareCall(sql);
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType,
             int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
-        return connection.prepareStatement(sql, resultSetType,
+        return getDelegate().prepareStatement(sql, resultSetType,
                 resultSetConcurrency, resultSetHoldability);
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType,
             int resultSetConcurrency) throws SQLException {
-        return connection.prepareStatement(sql, resultSetType,
+        return getDelegate().prepareStatement(sql, resultSetType,
                 resultSetConcurrency);
     }
 
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
             throws SQLException {
-        return connection.prepareStatement(sql, autoGeneratedKeys);
+        return getDelegate().prepareStatement(sql, autoGeneratedKeys);
     }
 
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
             throws SQLException {
-        return connection.prepareStatement(sql, columnIndexes);
+        return getDelegate().prepareStatement(sql, columnIndexes);
     }
 
     public PreparedStatement prepareStatement(String sql, String[] columnNames)
             throws SQLException {
-        return connection.prepareStatement(sql, columnNames);
+        return getDelegate().prepareStatement(sql, columnNames);
     }
 
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return connection.prepareStatement(sql);
+        return getDelegate().prepareStatement(sql);
     }
 
     public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-        connection.releaseSavepoint(savepoint);
+        getDelegate().releaseSavepoint(savepoint);
     }
 
     public void rollback() throws SQLException {
-        connection.rollback();
+        getDelegate().rollback();
     }
 
     public void rollback(Savepoint savepoint) throws SQLException {
-        connection.rollback(savepoint);
+        getDelegate().rollback(savepoint);
     }
 
     public void setAutoCommit(boolean autoCommit) throws SQLException {
-        connection.setAutoCommit(autoCommit);
+        getDelegate().setAutoCommit(autoCommit);
     }
 
     public void setCatalog(String catalog) throws SQLException {
-        connection.setCatalog(catalog);
+        getDelegate().setCatalog(catalog);
     }
 
     public void setClientInfo(Properties properties)
             throws SQLClientInfoException {
-        connection.setClientInfo(properties);
+        getClientInfoDelegate().setClientInfo(properties);
     }
 
     public void setClientInfo(String name, String value)
             throws SQLClientInfoException {
-        connection.setClientInfo(name, value);
+        getClientInfoDelegate().setClientInfo(name, value);
     }
 
     public void setHoldability(int holdability) throws SQLException {
-        connection.setHoldability(holdability);
+        getDelegate().setHoldability(holdability);
     }
 
     public void setReadOnly(boolean readOnly) throws SQLException {
-        connection.setReadOnly(readOnly);
+        getDelegate().setReadOnly(readOnly);
     }
 
     public Savepoint setSavepoint() throws SQLException {
-        return connection.setSavepoint();
+        return getDelegate().setSavepoint();
     }
 
     public Savepoint setSavepoint(String name) throws SQLException {
-        return connection.setSavepoint(name);
+        return getDelegate().setSavepoint(name);
     }
 
     public void setTransactionIsolation(int level) throws SQLException {
-        connection.setTransactionIsolation(level);
+        getDelegate().setTransactionIsolation(level);
     }
 
     public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
-        connection.setTypeMap(map);
+        getDelegate().setTypeMap(map);
     }
 
     public <T> T unwrap(Class<T> iface) throws SQLException {
-        return connection.unwrap(iface);
+        return getDelegate().unwrap(iface);
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * An {@link XAResource} completing the local transaction of a {@link Connection}
+ * whose auto-commit has been disabled.
+ * <p>
+ * When it is the only resource of a transaction, the transaction manager commits it
+ * in one phase, which is a local <code>commit()</code>.  When it is mixed with other
+ * resources it must be enlisted last, so that it is prepared after all of them: the
+ * local transaction is then committed during the prepare phase (the last resource
+ * gambit) and the resource votes read-only.  If that commit fails, the vote is a
+ * rollback and the other resources are rolled back.  At most one such resource can
+ * take part in a transaction, no resource can be enlisted after it, and it cannot be
+ * recovered.
+ */
+public class LocalXAResource implements XAResource {
+
+    private final Connection connection;
+    private boolean completed;
+
+    public LocalXAResource(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @return true if the local transaction has been committed or rolled back
+     */
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    public void start(Xid xid, int flags) throws XAException {
+    }
+
+    public void end(Xid xid, int flags) throws XAException {
+    }
+
+    public int prepare(Xid xid) throws XAException {
+        commitLocal();
+        return XA_RDONLY;
+    }
+
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+        if (!onePhase) {
+            // prepare has already committed, and voted read-only
+            throw new XAException(XAException.XAER_PROTO);
+        }
+        commitLocal();
+    }
+
+    public synchronized void rollback(Xid xid) throws XAException {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            throw (XAException) new XAException(XAException.XAER_RMERR).initCause(e);
+        }
+    }
+
+    public void forget(Xid xid) throws XAException {
+    }
+
+    public Xid[] recover(int flag) throws XAException {
+        return new Xid[0];
+    }
+
+    public boolean isSameRM(XAResource xares) throws XAException {
+        return xares == this;
+    }
+
+    public int getTransactionTimeout() throws XAException {
+        return 0;
+    }
+
+    public boolean setTransactionTimeout(int seconds) throws XAException {
+        return false;
+    }
+
+    private synchronized void commitLocal() throws XAException {
+        if (completed) {
+            throw new XAException(XAException.XAER_PROTO);
+        }
+        completed = true;
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException e1) {
+                // the commit failure is reported
+            }
+            throw (XAException) new XAException(XAException.XA_RBROLLBACK).initCause(e);
+        }
+    }
+}
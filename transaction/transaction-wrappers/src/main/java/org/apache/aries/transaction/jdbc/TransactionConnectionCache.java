@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.xa.XAResource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares one enlisted {@link XAConnection} between all the connections obtained
+ * from an {@link XADataSource} within the same JTA transaction.
+ * <p>
+ * The first connection requested in a transaction opens a physical connection and
+ * enlists its {@link XAResource}.  Later requests get a lightweight handle over the
+ * same physical connection, and closing a handle does nothing.  The resource is not
+ * delisted: it stays associated with the transaction, so that synchronizations can
+ * still use the connection before the transaction completes, and the transaction
+ * manager ends it when committing or rolling back.  The physical connection is closed
+ * after the transaction has completed.  Outside of a transaction every request gets
+ * its own {@link ConnectionWrapper}, as before.
+ * <p>
+ * In local transaction mode the physical connection is not enlisted through XA.  Its
+ * auto-commit is disabled instead, and a {@link LocalXAResource} is enlisted just
+ * before the transaction completes, from an interposed synchronization so that it is
+ * the last resource.  A transaction using only this data source is then committed
+ * with a local <code>commit()</code>, without XA start/end calls or a log write.
+ * This mode requires a transaction manager which is also a
+ * {@link TransactionSynchronizationRegistry}.  A transaction in which a second data
+ * source tries to enlist a local resource is rolled back, and so is a transaction in
+ * which a connection of this bundle is enlisted after the local resource, for instance
+ * from an interposed synchronization registered later: it would be prepared after
+ * the local transaction has been committed.  Resources enlisted at that point by
+ * other code can not be detected, and must not be mixed with local transactions.
+ */
+public class TransactionConnectionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionConnectionCache.class);
+
+    /** Service property disabling the sharing of connections within a transaction, <code>true</code> by default */
+    public static final String SHARE_CONNECTIONS_PROPERTY = "aries.xa.shareConnections";
+
+    /** Service property enabling the local transaction mode, <code>false</code> by default */
+    public static final String LOCAL_TRANSACTIONS_PROPERTY = "aries.xa.localTransactions";
+
+    private final XADataSource dataSource;
+    private final TransactionManager tm;
+    private final boolean localTransactions;
+
+    /** The physical connection enlisted in each transaction */
+    private final Map<Transaction, Enlistment> enlistments = new HashMap<Transaction, Enlistment>();
+
+    private long enlistCount;
+    private long enlistSaved;
+    private long delistSaved;
+    private long localCount;
+
+    public TransactionConnectionCache(XADataSource dataSource, TransactionManager tm) {
+        this(dataSource, tm, false);
+    }
+
+    /**
+     * @throws IllegalArgumentException if local transactions are requested and the
+     *         transaction manager is not a {@link TransactionSynchronizationRegistry}
+     */
+    public TransactionConnectionCache(XADataSource dataSource, TransactionManager tm, boolean localTransactions) {
+        if (localTransactions && !(tm instanceof TransactionSynchronizationRegistry)) {
+            throw new IllegalArgumentException("Local transactions require a transaction manager which is also a TransactionSynchronizationRegistry");
+        }
+        this.dataSource = dataSource;
+        this.tm = tm;
+        this.localTransactions = localTransactions;
+    }
+
+    /**
+     * Get a connection, sharing the physical connection of the current transaction if there is one.
+     */
+    public Connection getConnection() throws SQLException {
+        Transaction tx = TransactionSupport.getActiveTransaction(tm);
+        if (tx == null) {
+            return new ConnectionWrapper(dataSource.getXAConnection(), tm);
+        }
+
+        Enlistment enlistment;
+        synchronized (this) {
+            enlistment = enlistments.get(tx);
+            if (enlistment != null) {
+                enlistSaved++;
+            }
+        }
+        if (enlistment != null) {
+            return new ConnectionHandle(enlistment);
+        }
+
+        XAConnection xaConnection = dataSource.getXAConnection();
+        try {
+            enlistment = new Enlistment(tx, xaConnection);
+            if (enlistment.localResource != null) {
+                // called after the regular synchronizations, so that the resources they enlist come first
+                getSynchronizationRegistry().registerInterposedSynchronization(enlistment);
+            } else {
+                TransactionSupport.enlistResource(tm, tx, enlistment.xaResource);
+                tx.registerSynchronization(enlistment);
+            }
+        } catch (Exception e) {
+            close(xaConnection);
+            throw TransactionSupport.enlistFailed(tx, e);
+        }
+        synchronized (this) {
+            enlistments.put(tx, enlistment);
+            enlistCount++;
+        }
+        return new ConnectionHandle(enlistment);
+    }
+
+    /**
+     * Number of times a physical connection was enlisted in a transaction.
+     */
+    public synchronized long getEnlistCount() {
+        return enlistCount;
+    }
+
+    /**
+     * Number of enlistments avoided by reusing the connection of the transaction.
+     */
+    public synchronized long getEnlistSavedCount() {
+        return enlistSaved;
+    }
+
+    /**
+     * Number of delistments avoided by closing a handle rather than the enlisted connection.
+     */
+    public synchronized long getDelistSavedCount() {
+        return delistSaved;
+    }
+
+    /**
+     * Number of transactions which used a local transaction rather than an XA branch.
+     */
+    public synchronized long getLocalCount() {
+        return localCount;
+    }
+
+    public boolean isLocalTransactions() {
+        return localTransactions;
+    }
+
+    /**
+     * Number of transactions currently holding a connection.
+     */
+    public synchronized int getActiveCount() {
+        return enlistments.size();
+    }
+
+    private TransactionSynchronizationRegistry getSynchronizationRegistry() {
+        return (TransactionSynchronizationRegistry) tm;
+    }
+
+    private static void close(XAConnection xaConnection) {
+        try {
+            xaConnection.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * The physical connection enlisted in a transaction.
+     */
+    private class Enlistment implements Synchronization {
+
+        private final Transaction tx;
+        private final XAConnection xaConnection;
+        private final Connection connection;
+        private final XAResource xaResource;
+        /** The resource completing the local transaction, in local transaction mode */
+        private final LocalXAResource localResource;
+        private final boolean autoCommit;
+        /** Number of handles closed by the application, guarded by the cache */
+        private int closedHandles;
+
+        public Enlistment(Transaction tx, XAConnection xaConnection) throws SQLException {
+            this.tx = tx;
+            this.xaConnection = xaConnection;
+            this.connection = xaConnection.getConnection();
+            if (localTransactions) {
+                this.xaResource = null;
+                this.autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                this.localResource = new LocalXAResource(connection);
+            } else {
+                this.xaResource = xaConnection.getXAResource();
+                this.autoCommit = false;
+                this.localResource = null;
+            }
+        }
+
+        public void beforeCompletion() {
+            if (localResource == null) {
+                synchronized (TransactionConnectionCache.this) {
+                    // each handle closed would have delisted the resource, the transaction
+                    // manager ends it once instead
+                    delistSaved += Math.max(0, closedHandles - 1);
+                }
+                return;
+            }
+            try {
+                // only the last resource can commit in its prepare phase
+                TransactionSynchronizationRegistry registry = getSynchronizationRegistry();
+                if (registry.getResource(TransactionSupport.LOCAL_RESOURCE_KEY) != null) {
+                    LOGGER.error("Transaction " + tx + " uses local transactions of more than one data source, it is rolled back");
+                    TransactionSupport.setRollbackOnly(tx);
+                    return;
+                }
+                registry.putResource(TransactionSupport.LOCAL_RESOURCE_KEY, localResource);
+                tx.enlistResource(localResource);
+            } catch (Exception e) {
+                LOGGER.warn("Unable to enlist the local transaction of connection " + connection + " in transaction " + tx, e);
+                TransactionSupport.setRollbackOnly(tx);
+            }
+        }
+
+        public void afterCompletion(int status) {
+            synchronized (TransactionConnectionCache.this) {
+                enlistments.remove(tx);
+                if (localResource != null) {
+                    localCount++;
+                }
+            }
+            if (localResource != null) {
+                try {
+                    // rolled back without the resource being enlisted
+                    localResource.rollback(null);
+                    connection.setAutoCommit(autoCommit);
+                } catch (Exception e) {
+                    // the connection is closed anyway
+                }
+            }
+            close(xaConnection);
+        }
+    }
+
+    /**
+     * A connection handed out to the application within a transaction.  Closing it
+     * leaves the physical connection enlisted until the transaction completes.
+     */
+    private class ConnectionHandle extends ConnectionWrapper {
+
+        private final Enlistment enlistment;
+        private boolean closed;
+
+        public ConnectionHandle(Enlistment enlistment) {
+            super(enlistment.connection);
+            this.enlistment = enlistment;
+        }
+
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (TransactionConnectionCache.this) {
+                enlistment.closedHandles++;
+            }
+        }
+
+        public boolean isClosed() throws SQLException {
+            return closed || super.isClosed();
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import java.sql.SQLException;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.xa.XAResource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transaction handling shared by the {@link XAConnectionPool} and the
+ * {@link TransactionConnectionCache}.
+ */
+final class TransactionSupport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionSupport.class);
+
+    /** The key of the local resource of a transaction in the {@link TransactionSynchronizationRegistry} */
+    static final String LOCAL_RESOURCE_KEY = LocalXAResource.class.getName();
+
+    private TransactionSupport() {
+    }
+
+    /**
+     * @return the transaction associated with the current thread if it is active, null otherwise
+     */
+    static Transaction getActiveTransaction(TransactionManager tm) throws SQLException {
+        try {
+            if (tm != null && tm.getStatus() == Status.STATUS_ACTIVE) {
+                return tm.getTransaction();
+            }
+            return null;
+        } catch (Exception e) {
+            SQLException sqle = new SQLException("Unable to get the current transaction");
+            sqle.initCause(e);
+            throw sqle;
+        }
+    }
+
+    /**
+     * Enlist a resource in a transaction.  A {@link LocalXAResource} commits when it is
+     * prepared, so it must be the last resource of its transaction: once it has been
+     * enlisted, no other resource can be.
+     *
+     * @throws IllegalStateException if the local resource of the transaction has already been enlisted
+     */
+    static void enlistResource(TransactionManager tm, Transaction tx, XAResource resource) throws RollbackException, SystemException {
+        if (tm instanceof TransactionSynchronizationRegistry
+                && ((TransactionSynchronizationRegistry) tm).getResource(LOCAL_RESOURCE_KEY) != null) {
+            throw new IllegalStateException("Transaction " + tx + " has already enlisted a local transaction as its last resource");
+        }
+        tx.enlistResource(resource);
+    }
+
+    /**
+     * Mark a transaction for rollback because a connection could not be enlisted in it.
+     *
+     * @return the exception to throw to the application
+     */
+    static SQLException enlistFailed(Transaction tx, Exception cause) {
+        setRollbackOnly(tx);
+        SQLException sqle = new SQLException("Unable to enlist connection in transaction " + tx);
+        sqle.initCause(cause);
+        return sqle;
+    }
+
+    /**
+     * Mark a transaction for rollback, logging rather than throwing if that fails.
+     */
+    static void setRollbackOnly(Transaction tx) {
+        try {
+            tx.setRollbackOnly();
+        } catch (Exception e) {
+            LOGGER.warn("Unable to mark transaction " + tx + " for rollback", e);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of {@link XAConnection}s obtained from an {@link XADataSource}.
+ * <p>
+ * Within a JTA transaction, all the connections obtained from the pool share the
+ * same {@link XAConnection}, which is enlisted once in the transaction and only
+ * returned to the pool when the transaction completes.  Outside of a transaction,
+ * the connection is returned to the pool when it is closed.
+ * <p>
+ * Connections idle for longer than the idle timeout are closed, as long as the pool
+ * holds more than its minimum number of connections, and idle connections can be
+ * validated before being handed out.
+ * <p>
+ * A connection returned to the pool is reset: the work left uncommitted outside of a
+ * transaction is rolled back, and the auto-commit mode, transaction isolation, read-only
+ * mode and catalog are restored to the values the connection had when it was opened.
+ * A handle can not be used any more once it has been closed or, for a handle obtained
+ * within a transaction, once that transaction has completed.
+ */
+public class XAConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionPool.class);
+
+    /** Service property enabling the pooling of connections, <code>false</code> by default */
+    public static final String POOLING_PROPERTY = "aries.xa.pooling";
+    /** Service property for the minimum number of connections kept in the pool */
+    public static final String MIN_SIZE_PROPERTY = "aries.xa.pool.minSize";
+    /** Service property for the maximum number of connections in the pool */
+    public static final String MAX_SIZE_PROPERTY = "aries.xa.pool.maxSize";
+    /** Service property for the time in milliseconds after which an idle connection is closed */
+    public static final String IDLE_TIMEOUT_PROPERTY = "aries.xa.pool.idleTimeout";
+    /** Service property for the maximum time in milliseconds to wait for a connection */
+    public static final String MAX_WAIT_PROPERTY = "aries.xa.pool.maxWait";
+    /** Service property enabling the validation of idle connections before they are handed out */
+    public static final String VALIDATE_PROPERTY = "aries.xa.pool.validate";
+
+    public static final int DEFAULT_MIN_SIZE = 0;
+    public static final int DEFAULT_MAX_SIZE = 10;
+    public static final long DEFAULT_IDLE_TIMEOUT = 15 * 60 * 1000L;
+    public static final long DEFAULT_MAX_WAIT = 30 * 1000L;
+
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    private final XADataSource dataSource;
+    private final TransactionManager tm;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long maxWait;
+    private final boolean validate;
+
+    /** Idle connections, the most recently used first */
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+    /** Connections associated with a transaction */
+    private final Map<Transaction, PooledConnection> enlisted = new HashMap<Transaction, PooledConnection>();
+    private final Timer evictor;
+    private int size;
+    private boolean closed;
+    /** Whether the driver supports {@link Connection#isValid(int)}, a JDBC 4 method */
+    private volatile boolean jdbc4Validation = true;
+
+    private long created;
+    private long destroyed;
+    private long waits;
+    private long totalWaitTime;
+    private long maxWaitTime;
+    private long enlistSaved;
+
+    public XAConnectionPool(XADataSource dataSource, TransactionManager tm, int minSize, int maxSize,
+                            long idleTimeout, long maxWait, boolean validate) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.dataSource = dataSource;
+        this.tm = tm;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.maxWait = maxWait;
+        this.validate = validate;
+        if (idleTimeout > 0 || minSize > 0) {
+            long period = idleTimeout > 0 ? Math.max(1000L, idleTimeout / 2) : 60 * 1000L;
+            evictor = new Timer("Aries XA connection pool evictor", true);
+            evictor.schedule(new TimerTask() {
+                public void run() {
+                    evict();
+                }
+            }, 0, period);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Get a connection, enlisted in the current transaction if there is one.
+     */
+    public Connection getConnection() throws SQLException {
+        Transaction tx = TransactionSupport.getActiveTransaction(tm);
+        if (tx == null) {
+            return new PooledConnectionWrapper(borrow());
+        }
+        PooledConnection pc;
+        synchronized (this) {
+            pc = enlisted.get(tx);
+            if (pc != null) {
+                enlistSaved++;
+            }
+        }
+        if (pc != null) {
+            return new PooledConnectionWrapper(pc);
+        }
+        pc = borrow();
+        try {
+            TransactionSupport.enlistResource(tm, tx, pc.xaConnection.getXAResource());
+            tx.registerSynchronization(new TransactionCompletion(tx, pc));
+        } catch (Exception e) {
+            pc.broken = true;
+            release(pc);
+            throw TransactionSupport.enlistFailed(tx, e);
+        }
+        pc.transaction = tx;
+        synchronized (this) {
+            enlisted.put(tx, pc);
+        }
+        return new PooledConnectionWrapper(pc);
+    }
+
+    /**
+     * Close the pool and all its idle connections.  Connections in use are closed
+     * when they are returned to the pool.
+     */
+    public void close() {
+        List<PooledConnection> toDestroy;
+        synchronized (this) {
+            closed = true;
+            toDestroy = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            size -= toDestroy.size();
+            notifyAll();
+        }
+        if (evictor != null) {
+            evictor.cancel();
+        }
+        for (PooledConnection pc : toDestroy) {
+            destroy(pc);
+        }
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized int getActiveCount() {
+        return size - idle.size();
+    }
+
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    public synchronized long getDestroyedCount() {
+        return destroyed;
+    }
+
+    /**
+     * Number of requests that had to wait for a connection to be returned to the pool.
+     */
+    public synchronized long getWaitCount() {
+        return waits;
+    }
+
+    /**
+     * Total time in milliseconds spent waiting for connections.
+     */
+    public synchronized long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    /**
+     * Longest time in milliseconds spent waiting for a connection.
+     */
+    public synchronized long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Number of enlistments avoided by reusing the connection of the transaction.
+     */
+    public synchronized long getEnlistSavedCount() {
+        return enlistSaved;
+    }
+
+    private PooledConnection borrow() throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean waited = false;
+        try {
+            while (true) {
+                PooledConnection pc = null;
+                boolean create = false;
+                synchronized (this) {
+                    while (pc == null && !create) {
+                        if (closed) {
+                            throw new SQLException("Connection pool is closed");
+                        }
+                        if (!idle.isEmpty()) {
+                            pc = idle.removeFirst();
+                        } else if (size < maxSize) {
+                            size++;
+                            create = true;
+                        } else {
+                            long remaining = maxWait > 0 ? start + maxWait - System.currentTimeMillis() : 0;
+                            if (maxWait > 0 && remaining <= 0) {
+                                throw new SQLException("Timed out after " + maxWait + "ms waiting for a connection, pool size is " + maxSize);
+                            }
+                            waited = true;
+                            try {
+                                wait(remaining);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new SQLException("Interrupted while waiting for a connection");
+                            }
+                        }
+                    }
+                }
+                if (create) {
+                    return create();
+                }
+                if (!validate || isValid(pc)) {
+                    return pc;
+                }
+                discard(pc);
+            }
+        } finally {
+            if (waited) {
+                long time = System.currentTimeMillis() - start;
+                synchronized (this) {
+                    waits++;
+                    totalWaitTime += time;
+                    maxWaitTime = Math.max(maxWaitTime, time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a new connection, for which room has already been made in the pool.
+     */
+    private PooledConnection create() throws SQLException {
+        try {
+            PooledConnection pc = new PooledConnection(dataSource.getXAConnection());
+            synchronized (this) {
+                created++;
+            }
+            return pc;
+        } catch (SQLException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isValid(PooledConnection pc) {
+        if (pc.broken) {
+            return false;
+        }
+        try {
+            if (jdbc4Validation) {
+                try {
+                    return pc.connection.isValid(VALIDATION_TIMEOUT);
+                } catch (AbstractMethodError e) {
+                    jdbc4Validation = false;
+                } catch (NoSuchMethodError e) {
+                    jdbc4Validation = false;
+                }
+                LOGGER.info("The JDBC driver does not support Connection.isValid(), idle connections are only checked for being closed");
+            }
+            return !pc.connection.isClosed();
+        } catch (SQLException e) {
+            LOGGER.debug("Discarding invalid connection", e);
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        pc.transaction = null;
+        if (!pc.broken) {
+            try {
+                pc.reset();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to reset the connection returned to the pool, discarding it", e);
+                pc.broken = true;
+            }
+        }
+        if (pc.broken) {
+            discard(pc);
+            return;
+        }
+        boolean keep;
+        synchronized (this) {
+            keep = !closed;
+            if (keep) {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pc);
+            } else {
+                size--;
+            }
+            notifyAll();
+        }
+        if (!keep) {
+            destroy(pc);
+        }
+    }
+
+    private void discard(PooledConnection pc) {
+        synchronized (this) {
+            size--;
+            notifyAll();
+        }
+        destroy(pc);
+    }
+
+    private void destroy(PooledConnection pc) {
+        synchronized (this) {
+            destroyed++;
+        }
+        try {
+            pc.xaConnection.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Close the connections that have been idle for too long and make sure the pool
+     * holds its minimum number of connections.
+     */
+    private void evict() {
+        List<PooledConnection> toDestroy = new ArrayList<PooledConnection>();
+        int missing;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (idleTimeout > 0) {
+                long limit = System.currentTimeMillis() - idleTimeout;
+                // the least recently used connections are at the end of the list
+                for (ListIterator<PooledConnection> it = idle.listIterator(idle.size()); it.hasPrevious() && size > minSize;) {
+                    PooledConnection pc = it.previous();
+                    if (pc.lastUsed > limit) {
+                        break;
+                    }
+                    it.remove();
+                    size--;
+                    toDestroy.add(pc);
+                }
+            }
+            missing = minSize - size;
+            size += Math.max(0, missing);
+        }
+        for (PooledConnection pc : toDestroy) {
+            destroy(pc);
+        }
+        for (int i = 0; i < missing; i++) {
+            try {
+                release(create());
+            } catch (Exception e) {
+                // create() has given the room back, try again on the next run
+                for (int j = i + 1; j < missing; j++) {
+                    synchronized (this) {
+                        size--;
+                        notifyAll();
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private class TransactionCompletion implements Synchronization {
+
+        private final Transaction tx;
+        private final PooledConnection pc;
+
+        public TransactionCompletion(Transaction tx, PooledConnection pc) {
+            this.tx = tx;
+            this.pc = pc;
+        }
+
+        public void beforeCompletion() {
+        }
+
+        public void afterCompletion(int status) {
+            synchronized (XAConnectionPool.this) {
+                enlisted.remove(tx);
+            }
+            release(pc);
+        }
+    }
+
+    /**
+     * A physical connection held by the pool.
+     */
+    private static class PooledConnection implements ConnectionEventListener {
+
+        private final XAConnection xaConnection;
+        private final Connection connection;
+        private final boolean autoCommit;
+        private final int isolation;
+        private final boolean readOnly;
+        private final String catalog;
+        private volatile Transaction transaction;
+        private volatile boolean broken;
+        private long lastUsed;
+
+        public PooledConnection(XAConnection xaConnection) throws SQLException {
+            this.xaConnection = xaConnection;
+            xaConnection.addConnectionEventListener(this);
+            try {
+                this.connection = xaConnection.getConnection();
+                this.autoCommit = connection.getAutoCommit();
+                this.isolation = connection.getTransactionIsolation();
+                this.readOnly = connection.isReadOnly();
+                this.catalog = connection.getCatalog();
+            } catch (SQLException e) {
+                xaConnection.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Roll back the work left uncommitted and restore the state the connection
+         * had when it was opened.
+         */
+        public void reset() throws SQLException {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                if (autoCommit) {
+                    connection.setAutoCommit(true);
+                }
+            } else if (!autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            if (connection.getTransactionIsolation() != isolation) {
+                connection.setTransactionIsolation(isolation);
+            }
+            if (connection.isReadOnly() != readOnly) {
+                connection.setReadOnly(readOnly);
+            }
+            String current = connection.getCatalog();
+            if (catalog == null ? current != null : !catalog.equals(current)) {
+                if (catalog == null) {
+                    throw new SQLException("Unable to restore an undefined catalog");
+                }
+                connection.setCatalog(catalog);
+            }
+        }
+
+        public void connectionClosed(ConnectionEvent event) {
+        }
+
+        public void connectionErrorOccurred(ConnectionEvent event) {
+            broken = true;
+        }
+    }
+
+    /**
+     * The connection handed out to the application.  Closing it returns the underlying
+     * connection to the pool, unless it is associated with a transaction, in which case
+     * it is returned when the transaction completes.
+     */
+    private class PooledConnectionWrapper extends ConnectionWrapper {
+
+        private final PooledConnection pc;
+        /** The transaction the handle was obtained in, if any */
+        private final Transaction transaction;
+        private volatile boolean closed;
+
+        public PooledConnectionWrapper(PooledConnection pc) {
+            super(pc.connection);
+            this.pc = pc;
+            this.transaction = pc.transaction;
+        }
+
+        protected Connection getDelegate() throws SQLException {
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if (pc.transaction != transaction) {
+                throw new SQLException("The transaction of the connection has completed");
+            }
+            return super.getDelegate();
+        }
+
+        public synchronized void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (transaction == null) {
+                release(pc);
+            }
+        }
+
+        public boolean isClosed() throws SQLException {
+            return closed || pc.transaction != transaction || super.isClosed();
+        }
+    }
+
+}
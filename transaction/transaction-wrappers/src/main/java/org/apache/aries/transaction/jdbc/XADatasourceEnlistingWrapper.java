@@ -32,8 +32,10 @@ import javax.transaction.TransactionManager;
  * This class allows JDBC XA data sources to participate in global transactions,
  * via the {@link ConnectionWrapper} that is returned. The only service provided
  * is enlistment/delistment of the associated {@link XAResource} in transactions.
- * Important consideration such as connection pooling and error handling are
- * completely ignored.
+ * Connections are pooled when an {@link XAConnectionPool} is set.  Otherwise, when a
+ * {@link TransactionConnectionCache} is set, the connections obtained within a transaction
+ * share one enlisted physical connection, and a new physical connection is opened for
+ * each call outside of a transaction.
  *
  */
 public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
@@ -43,9 +45,19 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
     private XADataSource wrappedDS;
     
     private transient TransactionManager tm;
+
+    private transient XAConnectionPool pool;
+
+    private transient TransactionConnectionCache connectionCache;
     
     public Connection getConnection() throws SQLException
     {
+      if (pool != null) {
+        return pool.getConnection();
+      }
+      if (connectionCache != null) {
+        return connectionCache.getConnection();
+      }
       XAConnection xaConn = wrappedDS.getXAConnection();
       Connection conn = getEnlistedConnection(xaConn);
       
@@ -95,6 +107,44 @@ public class XADatasourceEnlistingWrapper implements DataSource, Serializable {
     {
       tm = txMgr;
     }
+
+    /**
+     * Set the pool used by {@link #getConnection()}.  Connections obtained with
+     * explicit credentials are never pooled.
+     */
+    public void setPool(XAConnectionPool pool)
+    {
+      this.pool = pool;
+    }
+
+    public XAConnectionPool getPool()
+    {
+      return pool;
+    }
+
+    /**
+     * Set the cache used by {@link #getConnection()} to share connections within
+     * a transaction when there is no pool.
+     */
+    public void setConnectionCache(TransactionConnectionCache connectionCache)
+    {
+      this.connectionCache = connectionCache;
+    }
+
+    public TransactionConnectionCache getConnectionCache()
+    {
+      return connectionCache;
+    }
+
+    /**
+     * Close the pool, if any.
+     */
+    public void close()
+    {
+      if (pool != null) {
+        pool.close();
+      }
+    }
     
     @Override
     public boolean equals(Object other)
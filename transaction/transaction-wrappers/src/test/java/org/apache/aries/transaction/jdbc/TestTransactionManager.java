@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * A minimal transaction manager for the tests.  A transaction with a single resource
+ * is committed in one phase, otherwise the resources are prepared in the order they
+ * were enlisted and all of them are rolled back if one of them fails to prepare.
+ */
+public class TestTransactionManager implements TransactionManager, TransactionSynchronizationRegistry {
+
+    private final ThreadLocal<TestTransaction> current = new ThreadLocal<TestTransaction>();
+
+    public void begin() throws NotSupportedException, SystemException {
+        if (current.get() != null) {
+            throw new NotSupportedException("Nested transactions are not supported");
+        }
+        current.set(new TestTransaction());
+    }
+
+    public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
+        try {
+            getRequiredTransaction().commit();
+        } finally {
+            current.remove();
+        }
+    }
+
+    public void rollback() throws SystemException {
+        try {
+            getRequiredTransaction().rollback();
+        } finally {
+            current.remove();
+        }
+    }
+
+    public int getStatus() {
+        TestTransaction tx = current.get();
+        return tx != null ? tx.getStatus() : Status.STATUS_NO_TRANSACTION;
+    }
+
+    public Transaction getTransaction() {
+        return current.get();
+    }
+
+    public void resume(Transaction tx) throws InvalidTransactionException {
+        current.set((TestTransaction) tx);
+    }
+
+    public Transaction suspend() {
+        Transaction tx = current.get();
+        current.remove();
+        return tx;
+    }
+
+    public void setRollbackOnly() {
+        getRequiredTransaction().setRollbackOnly();
+    }
+
+    public void setTransactionTimeout(int seconds) {
+    }
+
+    public Object getTransactionKey() {
+        return current.get();
+    }
+
+    public void putResource(Object key, Object value) {
+        getRequiredTransaction().resources.put(key, value);
+    }
+
+    public Object getResource(Object key) {
+        return getRequiredTransaction().resources.get(key);
+    }
+
+    public void registerInterposedSynchronization(Synchronization sync) {
+        getRequiredTransaction().interposed.add(sync);
+    }
+
+    public int getTransactionStatus() {
+        return getStatus();
+    }
+
+    public boolean getRollbackOnly() {
+        return getRequiredTransaction().getStatus() == Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    private TestTransaction getRequiredTransaction() {
+        TestTransaction tx = current.get();
+        if (tx == null) {
+            throw new IllegalStateException("No transaction");
+        }
+        return tx;
+    }
+
+    public static class TestTransaction implements Transaction {
+
+        private final Xid xid = new TestXid();
+        private final List<XAResource> enlisted = new ArrayList<XAResource>();
+        private final List<XAResource> started = new ArrayList<XAResource>();
+        private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+        private final List<Synchronization> interposed = new ArrayList<Synchronization>();
+        private final Map<Object, Object> resources = new HashMap<Object, Object>();
+        private int status = Status.STATUS_ACTIVE;
+
+        public boolean enlistResource(XAResource resource) throws RollbackException, SystemException {
+            if (status == Status.STATUS_MARKED_ROLLBACK) {
+                throw new RollbackException("Transaction is marked for rollback");
+            }
+            if (status != Status.STATUS_ACTIVE) {
+                throw new IllegalStateException("Transaction is not active");
+            }
+            if (started.contains(resource)) {
+                return false;
+            }
+            try {
+                if (enlisted.contains(resource)) {
+                    resource.start(xid, XAResource.TMJOIN);
+                } else {
+                    resource.start(xid, XAResource.TMNOFLAGS);
+                    enlisted.add(resource);
+                }
+            } catch (XAException e) {
+                throw (SystemException) new SystemException("Unable to start the resource").initCause(e);
+            }
+            started.add(resource);
+            return true;
+        }
+
+        public boolean delistResource(XAResource resource, int flag) throws SystemException {
+            if (!started.remove(resource)) {
+                throw new IllegalStateException("Resource is not enlisted");
+            }
+            try {
+                resource.end(xid, flag);
+            } catch (XAException e) {
+                throw (SystemException) new SystemException("Unable to end the resource").initCause(e);
+            }
+            return true;
+        }
+
+        public void registerSynchronization(Synchronization sync) throws RollbackException {
+            if (status == Status.STATUS_MARKED_ROLLBACK) {
+                throw new RollbackException("Transaction is marked for rollback");
+            }
+            synchronizations.add(sync);
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setRollbackOnly() {
+            status = Status.STATUS_MARKED_ROLLBACK;
+        }
+
+        /**
+         * The resources enlisted in the transaction, in the order they were enlisted.
+         */
+        public List<XAResource> getResources() {
+            return enlisted;
+        }
+
+        public void commit() throws RollbackException {
+            try {
+                // synchronizations may register others or enlist resources
+                for (int i = 0; i < synchronizations.size(); i++) {
+                    synchronizations.get(i).beforeCompletion();
+                }
+                for (int i = 0; i < interposed.size(); i++) {
+                    interposed.get(i).beforeCompletion();
+                }
+            } catch (RuntimeException e) {
+                status = Status.STATUS_MARKED_ROLLBACK;
+            }
+            if (status == Status.STATUS_MARKED_ROLLBACK) {
+                rollback();
+                throw new RollbackException("Transaction was marked for rollback");
+            }
+            endAll(XAResource.TMSUCCESS);
+            status = Status.STATUS_PREPARING;
+            List<XAResource> prepared = new ArrayList<XAResource>();
+            try {
+                if (enlisted.size() == 1) {
+                    enlisted.get(0).commit(xid, true);
+                } else {
+                    for (XAResource resource : enlisted) {
+                        if (resource.prepare(xid) == XAResource.XA_OK) {
+                            prepared.add(resource);
+                        }
+                    }
+                    for (XAResource resource : prepared) {
+                        resource.commit(xid, false);
+                    }
+                }
+            } catch (XAException e) {
+                for (XAResource resource : enlisted) {
+                    try {
+                        resource.rollback(xid);
+                    } catch (XAException e1) {
+                        // keep rolling back the others
+                    }
+                }
+                afterCompletion(Status.STATUS_ROLLEDBACK);
+                throw (RollbackException) new RollbackException("Transaction rolled back").initCause(e);
+            }
+            afterCompletion(Status.STATUS_COMMITTED);
+        }
+
+        public void rollback() {
+            endAll(XAResource.TMFAIL);
+            for (XAResource resource : enlisted) {
+                try {
+                    resource.rollback(xid);
+                } catch (XAException e) {
+                    // keep rolling back the others
+                }
+            }
+            afterCompletion(Status.STATUS_ROLLEDBACK);
+        }
+
+        private void endAll(int flag) {
+            for (XAResource resource : new ArrayList<XAResource>(started)) {
+                try {
+                    delistResource(resource, flag);
+                } catch (SystemException e) {
+                    // the resource is rolled back
+                }
+            }
+        }
+
+        private void afterCompletion(int completionStatus) {
+            status = completionStatus;
+            for (Synchronization sync : interposed) {
+                sync.afterCompletion(completionStatus);
+            }
+            for (Synchronization sync : synchronizations) {
+                sync.afterCompletion(completionStatus);
+            }
+        }
+    }
+
+    private static class TestXid implements Xid {
+
+        private static int counter;
+
+        private final byte[] globalId;
+
+        public TestXid() {
+            synchronized (TestXid.class) {
+                globalId = Integer.toString(++counter).getBytes();
+            }
+        }
+
+        public int getFormatId() {
+            return 1;
+        }
+
+        public byte[] getGlobalTransactionId() {
+            return globalId;
+        }
+
+        public byte[] getBranchQualifier() {
+            return new byte[0];
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.ConnectionEventListener;
+import javax.sql.StatementEventListener;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * An in-memory {@link XADataSource} whose connections record the calls made on them.
+ */
+public class TestXADataSource implements XADataSource {
+
+    final List<TestConnection> connections = new ArrayList<TestConnection>();
+    /** Whether the connections implement the JDBC 4 <code>Connection.isValid()</code> */
+    boolean jdbc4 = true;
+    /** Whether the resources of the connections fail to start a transaction branch */
+    boolean failStart;
+
+    public XAConnection getXAConnection() {
+        TestConnection connection = new TestConnection(jdbc4);
+        connection.failStart = failStart;
+        connections.add(connection);
+        return connection;
+    }
+
+    public XAConnection getXAConnection(String user, String password) {
+        return getXAConnection();
+    }
+
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    public void setLoginTimeout(int seconds) {
+    }
+
+    /**
+     * A physical connection, which is also its own {@link XAResource}.  The XA and local
+     * transaction calls are recorded in {@link #events}.
+     */
+    static class TestConnection implements XAConnection, XAResource, InvocationHandler {
+
+        final List<String> events = new ArrayList<String>();
+        final Connection connection;
+        final boolean jdbc4;
+        boolean autoCommit = true;
+        int isolation = Connection.TRANSACTION_READ_COMMITTED;
+        boolean readOnly;
+        String catalog = "main";
+        boolean closed;
+        boolean failStart;
+        boolean failCommit;
+        boolean failPrepare;
+
+        TestConnection(boolean jdbc4) {
+            this.jdbc4 = jdbc4;
+            this.connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("isClosed")) {
+                return closed;
+            } else if (name.equals("close")) {
+                return null;
+            } else if (name.equals("toString")) {
+                return "TestConnection" + System.identityHashCode(this);
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if (name.equals("isValid")) {
+                if (!jdbc4) {
+                    throw new AbstractMethodError("isValid");
+                }
+                return true;
+            } else if (name.equals("getAutoCommit")) {
+                return autoCommit;
+            } else if (name.equals("setAutoCommit")) {
+                autoCommit = (Boolean) args[0];
+            } else if (name.equals("getTransactionIsolation")) {
+                return isolation;
+            } else if (name.equals("setTransactionIsolation")) {
+                isolation = (Integer) args[0];
+            } else if (name.equals("isReadOnly")) {
+                return readOnly;
+            } else if (name.equals("setReadOnly")) {
+                readOnly = (Boolean) args[0];
+            } else if (name.equals("getCatalog")) {
+                return catalog;
+            } else if (name.equals("setCatalog")) {
+                catalog = (String) args[0];
+            } else if (name.equals("commit")) {
+                if (failCommit) {
+                    throw new SQLException("Commit failed");
+                }
+                events.add("local commit");
+            } else if (name.equals("rollback")) {
+                events.add("local rollback");
+            }
+            return null;
+        }
+
+        public Connection getConnection() throws SQLException {
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            return connection;
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        public XAResource getXAResource() {
+            return this;
+        }
+
+        public void addConnectionEventListener(ConnectionEventListener listener) {
+        }
+
+        public void removeConnectionEventListener(ConnectionEventListener listener) {
+        }
+
+        public void addStatementEventListener(StatementEventListener listener) {
+        }
+
+        public void removeStatementEventListener(StatementEventListener listener) {
+        }
+
+        public void start(Xid xid, int flags) throws XAException {
+            if (failStart) {
+                throw new XAException(XAException.XAER_RMERR);
+            }
+            events.add(flags == TMJOIN ? "join" : "start");
+        }
+
+        public void end(Xid xid, int flags) {
+            events.add("end");
+        }
+
+        public int prepare(Xid xid) throws XAException {
+            events.add("prepare");
+            if (failPrepare) {
+                throw new XAException(XAException.XA_RBROLLBACK);
+            }
+            return XA_OK;
+        }
+
+        public void commit(Xid xid, boolean onePhase) {
+            events.add(onePhase ? "commit one phase" : "commit");
+        }
+
+        public void rollback(Xid xid) {
+            events.add("rollback");
+        }
+
+        public void forget(Xid xid) {
+        }
+
+        public Xid[] recover(int flag) {
+            return new Xid[0];
+        }
+
+        public boolean isSameRM(XAResource resource) {
+            return resource == this;
+        }
+
+        public int getTransactionTimeout() {
+            return 0;
+        }
+
+        public boolean setTransactionTimeout(int seconds) {
+            return false;
+        }
+    }
+}
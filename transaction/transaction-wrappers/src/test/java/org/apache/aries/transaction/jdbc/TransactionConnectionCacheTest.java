@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionManager;
+
+import org.apache.aries.transaction.jdbc.TestXADataSource.TestConnection;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionConnectionCacheTest {
+
+    private TestXADataSource dataSource;
+    private TestTransactionManager tm;
+    private TransactionConnectionCache cache;
+
+    @Before
+    public void setUp() {
+        dataSource = new TestXADataSource();
+        tm = new TestTransactionManager();
+        cache = new TransactionConnectionCache(dataSource, tm);
+    }
+
+    @Test
+    public void testConnectionIsShared() throws Exception {
+        tm.begin();
+        Connection connection = cache.getConnection();
+        Connection shared = cache.getConnection();
+        connection.close();
+        shared.createStatement();
+        assertEquals(1, dataSource.connections.size());
+        assertEquals(1, cache.getActiveCount());
+        tm.commit();
+
+        TestConnection physical = dataSource.connections.get(0);
+        assertEquals(Arrays.asList("start", "end", "commit one phase"), physical.events);
+        assertTrue(physical.closed);
+        assertEquals(1, cache.getEnlistCount());
+        assertEquals(1, cache.getEnlistSavedCount());
+        assertEquals(0, cache.getActiveCount());
+    }
+
+    @Test
+    public void testConnectionUsableFromSynchronization() throws Exception {
+        tm.begin();
+        cache.getConnection().close();
+        final List<String> eventsWhenUsed = new ArrayList<String>();
+        // registered after the cache's own synchronization, like a persistence context flushed on commit
+        tm.getTransaction().registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                try {
+                    Connection connection = cache.getConnection();
+                    connection.createStatement();
+                    connection.close();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                eventsWhenUsed.addAll(dataSource.connections.get(0).events);
+            }
+
+            public void afterCompletion(int status) {
+            }
+        });
+        tm.commit();
+
+        // the resource was still associated with the transaction when the connection was used
+        assertEquals(Arrays.asList("start"), eventsWhenUsed);
+        assertEquals(1, dataSource.connections.size());
+        assertEquals(Arrays.asList("start", "end", "commit one phase"), dataSource.connections.get(0).events);
+        assertEquals(1, cache.getEnlistCount());
+        assertEquals(1, cache.getEnlistSavedCount());
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        tm.begin();
+        cache.getConnection().close();
+        tm.rollback();
+
+        TestConnection physical = dataSource.connections.get(0);
+        assertEquals(Arrays.asList("start", "end", "rollback"), physical.events);
+        assertTrue(physical.closed);
+        assertEquals(0, cache.getActiveCount());
+    }
+
+    @Test
+    public void testEnlistFailureMarksTransactionForRollback() throws Exception {
+        dataSource.failStart = true;
+        tm.begin();
+        try {
+            cache.getConnection();
+            fail("The connection can not be enlisted");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(Status.STATUS_MARKED_ROLLBACK, tm.getStatus());
+        assertTrue(dataSource.connections.get(0).closed);
+        assertEquals(0, cache.getActiveCount());
+        tm.rollback();
+    }
+
+    @Test
+    public void testLocalTransactionCommittedInOnePhase() throws Exception {
+        cache = new TransactionConnectionCache(dataSource, tm, true);
+        tm.begin();
+        Connection connection = cache.getConnection();
+        Connection shared = cache.getConnection();
+        connection.close();
+        shared.createStatement();
+        shared.close();
+        tm.commit();
+
+        TestConnection physical = dataSource.connections.get(0);
+        assertEquals(Arrays.asList("local commit"), physical.events);
+        assertTrue(physical.autoCommit);
+        assertTrue(physical.closed);
+        assertEquals(1, cache.getLocalCount());
+        assertEquals(1, cache.getEnlistSavedCount());
+        // nothing is delisted in local mode, so no delistment is saved either
+        assertEquals(0, cache.getDelistSavedCount());
+    }
+
+    @Test
+    public void testLocalTransactionIsLastResource() throws Exception {
+        TestXADataSource xaDataSource = new TestXADataSource();
+        TransactionConnectionCache xaCache = new TransactionConnectionCache(xaDataSource, tm);
+        cache = new TransactionConnectionCache(dataSource, tm, true);
+        tm.begin();
+        cache.getConnection().close();
+        xaCache.getConnection().close();
+        List<?> resources = ((TestTransactionManager.TestTransaction) tm.getTransaction()).getResources();
+        tm.commit();
+
+        // the local resource is enlisted last, and commits when it is prepared
+        assertEquals(2, resources.size());
+        assertTrue(resources.get(1) instanceof LocalXAResource);
+        assertEquals(Arrays.asList("start", "end", "prepare", "commit"), xaDataSource.connections.get(0).events);
+        assertEquals(Arrays.asList("local commit"), dataSource.connections.get(0).events);
+    }
+
+    @Test
+    public void testPrepareFailureRollsBackLocalTransaction() throws Exception {
+        TestXADataSource xaDataSource = new TestXADataSource();
+        TransactionConnectionCache xaCache = new TransactionConnectionCache(xaDataSource, tm);
+        cache = new TransactionConnectionCache(dataSource, tm, true);
+        tm.begin();
+        cache.getConnection().close();
+        xaCache.getConnection().close();
+        xaDataSource.connections.get(0).failPrepare = true;
+        assertRollback();
+
+        assertEquals(Arrays.asList("start", "end", "prepare", "rollback"), xaDataSource.connections.get(0).events);
+        assertEquals(Arrays.asList("local rollback"), dataSource.connections.get(0).events);
+        assertTrue(dataSource.connections.get(0).autoCommit);
+    }
+
+    @Test
+    public void testLocalCommitFailureRollsBackOtherResources() throws Exception {
+        TestXADataSource xaDataSource = new TestXADataSource();
+        TransactionConnectionCache xaCache = new TransactionConnectionCache(xaDataSource, tm);
+        cache = new TransactionConnectionCache(dataSource, tm, true);
+        tm.begin();
+        cache.getConnection().close();
+        xaCache.getConnection().close();
+        dataSource.connections.get(0).failCommit = true;
+        assertRollback();
+
+        assertEquals(Arrays.asList("start", "end", "prepare", "rollback"), xaDataSource.connections.get(0).events);
+        assertEquals(Arrays.asList("local rollback"), dataSource.connections.get(0).events);
+    }
+
+    @Test
+    public void testResourceEnlistedAfterLocalResourceRollsBack() throws Exception {
+        final TestXADataSource xaDataSource = new TestXADataSource();
+        final TransactionConnectionCache xaCache = new TransactionConnectionCache(xaDataSource, tm);
+        cache = new TransactionConnectionCache(dataSource, tm, true);
+        tm.begin();
+        cache.getConnection().close();
+        final List<SQLException> failures = new ArrayList<SQLException>();
+        // runs after the local resource has been enlisted, and would be prepared after it
+        tm.registerInterposedSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                try {
+                    xaCache.getConnection().close();
+                } catch (SQLException e) {
+                    failures.add(e);
+                }
+                for (TestConnection connection : xaDataSource.connections) {
+                    connection.failPrepare = true;
+                }
+            }
+
+            public void afterCompletion(int status) {
+            }
+        });
+        assertRollback();
+
+        assertEquals(1, failures.size());
+        // the local transaction is not committed before the late resource fails to prepare
+        assertEquals(Arrays.asList("local rollback"), dataSource.connections.get(0).events);
+        for (TestConnection connection : xaDataSource.connections) {
+            assertFalse(connection.events.contains("prepare"));
+        }
+    }
+
+    @Test
+    public void testSecondLocalResourceRollsBack() throws Exception {
+        TestXADataSource otherDataSource = new TestXADataSource();
+        TransactionConnectionCache otherCache = new TransactionConnectionCache(otherDataSource, tm, true);
+        cache = new TransactionConnectionCache(dataSource, tm, true);
+        tm.begin();
+        cache.getConnection().close();
+        otherCache.getConnection().close();
+        assertRollback();
+
+        assertEquals(Arrays.asList("local rollback"), dataSource.connections.get(0).events);
+        assertEquals(Arrays.asList("local rollback"), otherDataSource.connections.get(0).events);
+    }
+
+    @Test
+    public void testLocalTransactionsRequireSynchronizationRegistry() throws Exception {
+        TransactionManager plain = (TransactionManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { TransactionManager.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        try {
+                            return method.invoke(tm, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getTargetException();
+                        }
+                    }
+                });
+        try {
+            new TransactionConnectionCache(dataSource, plain, true);
+            fail("Local transactions can not be ordered without a TransactionSynchronizationRegistry");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse(new TransactionConnectionCache(dataSource, plain).isLocalTransactions());
+    }
+
+    private void assertRollback() throws Exception {
+        try {
+            tm.commit();
+            fail("The transaction must roll back");
+        } catch (RollbackException e) {
+            // expected
+        }
+        assertEquals(0, cache.getActiveCount());
+    }
+}
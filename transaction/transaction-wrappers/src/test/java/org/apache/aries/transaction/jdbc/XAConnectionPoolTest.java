@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.transaction.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.apache.aries.transaction.jdbc.TestXADataSource.TestConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XAConnectionPoolTest {
+
+    private TestXADataSource dataSource;
+    private TestTransactionManager tm;
+    private XAConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        dataSource = new TestXADataSource();
+        tm = new TestTransactionManager();
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testStateIsResetOnRelease() throws Exception {
+        pool = new XAConnectionPool(dataSource, tm, 0, 1, 0, 1000, false);
+        Connection connection = pool.getConnection();
+        connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        connection.setReadOnly(true);
+        connection.setCatalog("other");
+        connection.close();
+
+        TestConnection physical = dataSource.connections.get(0);
+        assertEquals(Arrays.asList("local rollback"), physical.events);
+        assertTrue(physical.autoCommit);
+        assertEquals(Connection.TRANSACTION_READ_COMMITTED, physical.isolation);
+        assertFalse(physical.readOnly);
+        assertEquals("main", physical.catalog);
+
+        // the reset connection is reused
+        pool.getConnection().close();
+        assertEquals(1, dataSource.connections.size());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testClosedHandleCanNotBeUsed() throws Exception {
+        pool = new XAConnectionPool(dataSource, tm, 0, 1, 0, 1000, false);
+        Connection connection = pool.getConnection();
+        connection.close();
+        assertTrue(connection.isClosed());
+        assertFails(connection);
+
+        // the connection is now used by another handle, which must not be affected
+        Connection other = pool.getConnection();
+        connection.close();
+        assertEquals(0, pool.getIdleCount());
+        assertFalse(other.isClosed());
+        other.createStatement();
+        other.close();
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testHandleCanNotBeUsedAfterTransaction() throws Exception {
+        pool = new XAConnectionPool(dataSource, tm, 0, 1, 0, 1000, false);
+        tm.begin();
+        Connection connection = pool.getConnection();
+        Connection shared = pool.getConnection();
+        connection.close();
+        shared.createStatement();
+        assertEquals(0, pool.getIdleCount());
+        tm.commit();
+
+        TestConnection physical = dataSource.connections.get(0);
+        assertEquals(Arrays.asList("start", "end", "commit one phase"), physical.events);
+        assertEquals(1, pool.getIdleCount());
+        assertTrue(shared.isClosed());
+        assertFails(shared);
+
+        Connection other = pool.getConnection();
+        shared.close();
+        assertEquals(0, pool.getIdleCount());
+        other.createStatement();
+        other.close();
+        assertEquals(1, pool.getEnlistSavedCount());
+    }
+
+    @Test
+    public void testValidationWithJdbc3Driver() throws Exception {
+        dataSource.jdbc4 = false;
+        pool = new XAConnectionPool(dataSource, tm, 0, 1, 0, 1000, true);
+        pool.getConnection().close();
+        pool.getConnection().close();
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(0, pool.getDestroyedCount());
+
+        // a closed connection is still detected
+        dataSource.connections.get(0).closed = true;
+        pool.getConnection().close();
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getDestroyedCount());
+    }
+
+    private static void assertFails(Connection connection) {
+        try {
+            connection.createStatement();
+            fail("The connection can not be used any more");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+}